@@ -0,0 +1,132 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.htmlspeed.server.CacheUtils;
+import com.htmlspeed.server.ConfigData;
+import com.htmlspeed.server.GzipCodec;
+import com.htmlspeed.server.PageRsrc;
+import com.htmlspeed.server.RsrcIfc;
+import com.htmlspeed.server.ServiceUtils;
+
+/**
+ * CacheBenchmark
+ *
+ * Lookups of cached pages (ServiceUtils.getFromCache) and md5 of pages
+ * (CacheUtils.md5Of), executed by all the processors (contended).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class CacheBenchmark
+{
+    private static final int CACHED_PAGES = 10000;
+
+    /**
+     * The cache, shared by the threads.
+     */
+    @State(Scope.Benchmark)
+    public static class CacheState
+    {
+        public ConfigData configData;
+
+        public String[] urls;
+
+        public byte[] page;
+
+        @Setup
+        public void setup() throws IOException
+        {
+            configData = new ConfigData();
+            configData.domain = Corpus.DOMAIN;
+            page = Corpus.page("64k");
+            urls = fillCache(configData, page);
+        }
+    }
+
+    /**
+     * Sequence number of the lookups of a thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+        public int n;
+    }
+
+    @Benchmark
+    public RsrcIfc cacheLookup(CacheState cache, ThreadState thread)
+    {
+        // Skewed access: half of the lookups are of 1% of the pages.
+        int n = thread.n++;
+        int i = (int)(((n * 2654435761L) & 0x7fffffffL) % CACHED_PAGES);
+        if ((n & 1) == 0)
+            i %= CACHED_PAGES / 100;
+        return ServiceUtils.getFromCache(CacheUtils.FIRST_VISIT_VARIANT, cache.urls[i], cache.configData);
+    }
+
+    @Benchmark
+    public String md5(CacheState cache)
+    {
+        return CacheUtils.md5Of(cache.page);
+    }
+
+    /**
+     * Caches CACHED_PAGES pages (as state-less pages of the first visit).
+     *
+     * @param configData used configuration
+     * @param page content of the cached pages
+     * @return urls of the cached pages
+     */
+    private static String[] fillCache(ConfigData configData, byte[] page)
+    {
+        byte[] optimGzip = GzipCodec.gzip(page, GzipCodec.HTML);
+        long currentTime = System.currentTimeMillis();
+        String[] urls = new String[CACHED_PAGES];
+        for (int p = 0 ; p < CACHED_PAGES ; p++)
+        {
+            urls[p] = Corpus.SITE + "/news/" + p + ".html";
+
+            PageRsrc rsrc = new PageRsrc();
+            rsrc.url = urls[p];
+            rsrc.host = configData.domain;
+            rsrc.variant = CacheUtils.FIRST_VISIT_VARIANT;
+            rsrc.origData = page;
+            rsrc.optimGzip = optimGzip;
+            rsrc.optimGzipEncoding = "gzip";
+            rsrc.origMd5 = CacheUtils.md5Of(page);
+            rsrc.lastRefreshTime = currentTime;
+            rsrc.maxAge = 3600;
+            rsrc.maxFreshTime = currentTime + rsrc.maxAge*1000;
+
+            configData.cache.recordAccess(rsrc.url); // Admitted by the frequency sketch.
+            configData.cache.recordAccess(rsrc.url);
+            synchronized (configData.cache.lockOf(rsrc.url))
+            {
+                ServiceUtils.putInCache(rsrc.variant, rsrc.url, rsrc, configData);
+            }
+        }
+        return urls;
+    }
+}
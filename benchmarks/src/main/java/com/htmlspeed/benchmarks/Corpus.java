@@ -0,0 +1,247 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Corpus
+ *
+ * The documents measured by the benchmarks. A document is named by the @Param of
+ * a benchmark: a size (e.g. 64k) names a synthetic document of that size, and any
+ * other name is the path of a saved page or style-sheet, e.g.
+ *
+ *      java -jar benchmarks/target/benchmarks.jar Parse -p page=/corpus/news.html,/corpus/shop.html
+ *
+ * Synthetic documents are generated from a fixed seed, so runs are comparable.
+ */
+public class Corpus
+{
+    public static final String SITE = "http://www.bench.htmlspeed.com";
+
+    public static final String DOMAIN = "www.bench.htmlspeed.com";
+
+    private static final String[] WORDS = {
+        "the", "speed", "of", "page", "loading", "news", "today", "market", "sport", "weather",
+        "and", "in", "a", "to", "is", "for", "on", "with", "new", "more", "about", "read",
+        "world", "business", "technology", "video", "photo", "comments", "share", "update"};
+
+    /**
+     * @param name a size (e.g. 64k) or the path of a saved page
+     * @return content of the page
+     * @throws IOException when a saved page can't be read
+     */
+    public static byte[] page(String name) throws IOException
+    {
+        int size = sizeOf(name);
+        return (size > 0 ? generatePage(size, new Random(314)) : readFile(new File(name)));
+    }
+
+    /**
+     * @param name a size (e.g. 16k) or the path of a saved style-sheet
+     * @return content of the style-sheet
+     * @throws IOException when a saved style-sheet can't be read
+     */
+    public static byte[] styleSheet(String name) throws IOException
+    {
+        int size = sizeOf(name);
+        return (size > 0 ? generateStyleSheet(size, new Random(314)) : readFile(new File(name)));
+    }
+
+    /**
+     * @param size approximate size in bytes
+     * @return a script
+     */
+    public static byte[] script(int size)
+    {
+        Random random = new Random(314);
+        StringBuilder js = new StringBuilder(size + 256);
+        int func = 0;
+        while (js.length() < size)
+        {
+            js.append("function f").append(func).append("(a, b) {\n    var ");
+            js.append(WORDS[random.nextInt(WORDS.length)]).append(" = a + b * ").append(random.nextInt(1000));
+            js.append(";\n    return document.getElementById('s").append(func).append("');\n}\n");
+            func++;
+        }
+        return js.toString().getBytes();
+    }
+
+    /**
+     * @param count number of patterns
+     * @return state-full patterns (in the format of the lines of state-full.txt)
+     */
+    public static String[] patterns(int count)
+    {
+        String[] lines = new String[count];
+        for (int p = 0 ; p < count ; p++)
+        {
+            switch (p % 4)
+            {
+                case 0:
+                    lines[p] = SITE + "/account" + p + "/*";
+                    break;
+                case 1:
+                    lines[p] = "*/cart" + p + ".html";
+                    break;
+                case 2:
+                    lines[p] = SITE + "/*session" + p + "*";
+                    break;
+                default:
+                    lines[p] = SITE + "/login" + p + ".html";
+                    break;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @param count number of urls
+     * @param patterns number of patterns (see patterns)
+     * @return urls of the benchmarked site (a few of them are selected by the patterns)
+     */
+    public static String[] urls(int count, int patterns)
+    {
+        Random random = new Random(314);
+        String[] urls = new String[count];
+        for (int u = 0 ; u < count ; u++)
+        {
+            switch (random.nextInt(8))
+            {
+                case 0:
+                    urls[u] = SITE + "/account" + (random.nextInt(patterns / 4) * 4) + "/settings.html";
+                    break;
+                case 1:
+                    urls[u] = SITE + "/shop/cart" + random.nextInt(patterns) + ".html";
+                    break;
+                default:
+                    urls[u] = SITE + "/news/" + WORDS[random.nextInt(WORDS.length)] + "/" + u + ".html?page=" + random.nextInt(10);
+                    break;
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * @param len number of bytes
+     * @return random (incompressible) bytes, like the content of an image
+     */
+    public static byte[] randomBytes(int len)
+    {
+        byte[] bytes = new byte[len];
+        new Random(314).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param name name of a document
+     * @return its size when name is a size (e.g. 64k), otherwise 0
+     */
+    private static int sizeOf(String name)
+    {
+        if (name.length() < 2 || Character.toLowerCase(name.charAt(name.length() - 1)) != 'k')
+            return 0;
+        try
+        {
+            return Integer.parseInt(name.substring(0, name.length() - 1)) * 1024;
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+            byte[] buffer = new byte[8*1024];
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                out.write(buffer, 0, len);
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @param size approximate size in bytes
+     * @param random source of the text
+     * @return a html-page referencing style-sheets, scripts and images
+     */
+    private static byte[] generatePage(int size, Random random)
+    {
+        StringBuilder html = new StringBuilder(size + 1024);
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n<title>HtmlSpeed benchmark</title>\n");
+        html.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\">\n");
+        for (int i = 0 ; i < 4 ; i++)
+            html.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"/css/style").append(i).append(".css\">\n");
+        for (int i = 0 ; i < 4 ; i++)
+            html.append("<script type=\"text/javascript\" src=\"/js/script").append(i).append(".js\"></script>\n");
+        html.append("<style>body{margin:0;font-family:arial}</style>\n</head>\n<body>\n");
+
+        int section = 0;
+        while (html.length() < size)
+        {
+            html.append("<div class=\"section\" id=\"s").append(section).append("\">\n");
+            html.append("<h2><a href=\"/news/").append(section).append(".html\">");
+            appendWords(html, 6, random);
+            html.append("</a></h2>\n");
+            html.append("<img src=\"/images/img").append(section % 50).append(".png\" width=\"100\" height=\"80\" alt=\"\">\n");
+            html.append("<p>");
+            appendWords(html, 80, random);
+            html.append("</p>\n");
+            if (section % 10 == 0)
+                html.append("<script type=\"text/javascript\">var s").append(section).append("=").append(section).append(";</script>\n");
+            html.append("</div>\n");
+            section++;
+        }
+
+        html.append("</body>\n</html>\n");
+        return html.toString().getBytes();
+    }
+
+    /**
+     * @param size approximate size in bytes
+     * @param random source of the rules
+     * @return a style-sheet referencing images
+     */
+    private static byte[] generateStyleSheet(int size, Random random)
+    {
+        StringBuilder css = new StringBuilder(size + 256);
+        int rule = 0;
+        while (css.length() < size)
+        {
+            css.append(".c").append(rule).append(" {margin:").append(random.nextInt(20)).append("px; color:#");
+            css.append(Integer.toHexString(0x100000 + random.nextInt(0xefffff))).append(';');
+            if (rule % 4 == 0)
+                css.append(" background:url(/images/bg").append(rule % 30).append(".png) no-repeat;");
+            css.append("}\n");
+            rule++;
+        }
+        return css.toString().getBytes();
+    }
+
+    private static void appendWords(StringBuilder text, int count, Random random)
+    {
+        for (int w = 0 ; w < count ; w++)
+        {
+            if (w > 0)
+                text.append(' ');
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.htmlspeed.server.GzipCodec;
+
+/**
+ * GzipBenchmark
+ *
+ * Gziping and ungziping of pages by GzipCodec (pooled Deflater/Inflater and buffers),
+ * compared with a GZIPOutputStream/GZIPInputStream per call, as the pages were gziped
+ * before GzipCodec. Run with -prof gc for the allocated bytes per page
+ * (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GzipBenchmark
+{
+    @Param({"8k", "64k", "512k"})
+    public String page;
+
+    private byte[] _page;
+
+    private byte[] _gziped;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        _page = Corpus.page(page);
+        _gziped = GzipCodec.gzip(_page, GzipCodec.HTML);
+    }
+
+    @Benchmark
+    public byte[] gzipPooled()
+    {
+        return GzipCodec.gzip(_page, GzipCodec.HTML);
+    }
+
+    @Benchmark
+    public byte[] gzipPerCall() throws IOException
+    {
+        ByteArrayOutputStream oByteArr = new ByteArrayOutputStream(_page.length*3/4);
+        GZIPOutputStream oGzip = new GZIPOutputStream(oByteArr);
+        oGzip.write(_page);
+        oGzip.close();
+        return oByteArr.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] ungzipPooled() throws IOException
+    {
+        return GzipCodec.ungzip(_gziped);
+    }
+
+    @Benchmark
+    public byte[] ungzipPerCall() throws IOException
+    {
+        GZIPInputStream is = new GZIPInputStream(new ByteArrayInputStream(_gziped));
+        byte[] buff = new byte[16*10240];
+        ByteArrayOutputStream os = new ByteArrayOutputStream(_gziped.length * 2);
+        int n;
+        while ((n = is.read(buff)) >= 0)
+            os.write(buff, 0, n);
+        is.close();
+        return os.toByteArray();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.htmlspeed.server.CacheUtils;
+import com.htmlspeed.server.ConfigData;
+import com.htmlspeed.server.HtmlAnalyzer;
+import com.htmlspeed.server.JsRsrc;
+import com.htmlspeed.server.RsrcIfc;
+import com.htmlspeed.server.ServiceContext;
+import com.htmlspeed.server.ServiceUtils;
+
+/**
+ * ParseBenchmark
+ *
+ * Parsing of pages and style-sheets (HtmlAnalyzer.analyze), and building the
+ * gziped response of an analyzed page with its external scripts inlined
+ * (ServiceUtils.buildResponseToBrowser).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark
+{
+    /**
+     * A page (see Corpus.page).
+     */
+    @State(Scope.Thread)
+    public static class PageState
+    {
+        @Param({"8k", "64k", "512k"})
+        public String page;
+
+        public ServiceContext context;
+
+        @Setup
+        public void setup() throws IOException
+        {
+            context = contextOf(Corpus.page(page), false /* isCss */);
+        }
+    }
+
+    /**
+     * A style-sheet (see Corpus.styleSheet).
+     */
+    @State(Scope.Thread)
+    public static class StyleSheetState
+    {
+        @Param({"2k", "16k", "128k"})
+        public String styleSheet;
+
+        public ServiceContext context;
+
+        @Setup
+        public void setup() throws IOException
+        {
+            context = contextOf(Corpus.styleSheet(styleSheet), true /* isCss */);
+        }
+    }
+
+    /**
+     * An analyzed page, whose external scripts are inlinable.
+     */
+    @State(Scope.Thread)
+    public static class AnalyzedPageState
+    {
+        @Param({"8k", "64k", "512k"})
+        public String page;
+
+        public ServiceContext context;
+
+        @Setup
+        public void setup() throws IOException
+        {
+            context = contextOf(Corpus.page(page), false /* isCss */);
+            context.info = new HtmlAnalyzer().analyze(context);
+            context.allRsrcs = rsrcsOf(context, Corpus.script(4*1024));
+        }
+    }
+
+    @Benchmark
+    public int[] parseHtml(PageState state)
+    {
+        return new HtmlAnalyzer().analyze(state.context);
+    }
+
+    @Benchmark
+    public int[] parseCss(StyleSheetState state)
+    {
+        return new HtmlAnalyzer().analyze(state.context);
+    }
+
+    @Benchmark
+    public byte[] inlineGzip(AnalyzedPageState state) throws IOException
+    {
+        return ServiceUtils.buildResponseToBrowser(state.context, true /* isGziped */);
+    }
+
+    /**
+     * @param doc a page or a style-sheet
+     * @param isCss true when doc is a style-sheet
+     * @return a service-context of doc
+     */
+    private static ServiceContext contextOf(byte[] doc, boolean isCss)
+    {
+        ConfigData configData = new ConfigData();
+        configData.domain = Corpus.DOMAIN;
+
+        ServiceContext context = new ServiceContext();
+        context.url = Corpus.SITE + (isCss ? "/css/bench.css" : "/bench.html");
+        context.host = configData.domain;
+        context.requestHost = configData.domain;
+        context.configData = configData;
+        context.cache = configData.cache;
+        context.orig = doc;
+        context.isHtml = !isCss;
+        context.isCss = isCss;
+        context.variant = (isCss ? CacheUtils.NON_PAGE_VARIANT : CacheUtils.FIRST_VISIT_VARIANT);
+        return context;
+    }
+
+    /**
+     * Builds the resources of an analyzed page, as found by ServiceUtils.loadMissingRsrcs:
+     * the external scripts are inlinable (with content script), other resources are not found.
+     *
+     * @param context an analyzed page (context.info)
+     * @param script content of the scripts
+     * @return the resources of the page
+     */
+    private static RsrcIfc[] rsrcsOf(ServiceContext context, byte[] script)
+    {
+        int[] info = context.info;
+        ArrayList<RsrcIfc> rsrcs = new ArrayList<RsrcIfc>();
+        int i = 0;
+        while (i < info.length && info[i] != HtmlAnalyzer.EOF_KIND)
+        {
+            if (info[i] == HtmlAnalyzer.SCRIPT_KIND && info[i + HtmlAnalyzer.SCRIPT_SRC_FIRST] > 0)
+            {
+                JsRsrc jsRsrc = new JsRsrc();
+                jsRsrc.url = Corpus.SITE + "/js/script" + rsrcs.size() + ".js";
+                jsRsrc.host = context.host;
+                jsRsrc.origData = script;
+                jsRsrc.isInlinable = true;
+                rsrcs.add(jsRsrc);
+            }
+            else if (info[i] == HtmlAnalyzer.IMG_KIND ||
+                    info[i] == HtmlAnalyzer.CSS_IMG_KIND ||
+                    info[i] == HtmlAnalyzer.INPUT_KIND ||
+                    info[i] == HtmlAnalyzer.SCRIPT_KIND ||
+                    info[i] == HtmlAnalyzer.LINK_KIND)
+            {
+                rsrcs.add(null);
+            }
+            i += HtmlAnalyzer.INFO_LENS[info[i]];
+        }
+        return rsrcs.toArray(new RsrcIfc[rsrcs.size()]);
+    }
+}
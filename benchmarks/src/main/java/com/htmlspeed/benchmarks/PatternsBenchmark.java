@@ -0,0 +1,94 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.htmlspeed.server.ConfigData;
+import com.htmlspeed.server.ConfigUtils;
+import com.htmlspeed.server.ImageUtils;
+
+/**
+ * PatternsBenchmark
+ *
+ * Matching urls with the state-full patterns (ConfigData.isStateFull), and base64
+ * encoding of inlined images (ImageUtils.encode).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatternsBenchmark
+{
+    /**
+     * State-full patterns and the matched urls.
+     */
+    @State(Scope.Thread)
+    public static class PatternsState
+    {
+        @Param({"10", "100"})
+        public int patterns;
+
+        public ConfigData configData;
+
+        public String[] urls;
+
+        public int n;
+
+        @Setup
+        public void setup()
+        {
+            configData = new ConfigData();
+            configData.domain = Corpus.DOMAIN;
+            configData.setStateFullPatterns(ConfigUtils.patternsOf(Corpus.patterns(patterns)));
+            urls = Corpus.urls(1000, patterns);
+        }
+    }
+
+    /**
+     * Content of an image.
+     */
+    @State(Scope.Thread)
+    public static class ImageState
+    {
+        @Param({"2048", "16384"})
+        public int imageSize;
+
+        public byte[] image;
+
+        @Setup
+        public void setup()
+        {
+            image = Corpus.randomBytes(imageSize);
+        }
+    }
+
+    @Benchmark
+    public boolean isStateFull(PatternsState state)
+    {
+        return state.configData.isStateFull(state.urls[state.n++ % state.urls.length]);
+    }
+
+    @Benchmark
+    public String base64(ImageState state)
+    {
+        return ImageUtils.encode(state.image);
+    }
+}
@@ -0,0 +1,344 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * AutoRefresher
+ *
+ * Periodically refreshes the pages listed in config-file auto-refreshed.txt, and
+ * loads once the listed pages whose period is 0 (see ConfigUtils.loadAutoRefreshed).
+ *
+ * The refreshes are scheduled on a TimerWheel (a single thread for any number of
+ * pages) and executed by a BackLoadScheduler calling ServiceUtils.refreshPage:
+ *
+ * - Each period is randomly lengthened or shortened by up to auto.refresh.jitter
+ *   percents, so pages listed with the same period are not refreshed together.
+ * - At most auto.refresh.loaders pages are refreshed concurrently, and at most
+ *   auto.refresh.loaders.per.origin of them from the same host.
+ * - Refreshes from the same host start at least auto.refresh.origin.interval
+ *   milli-seconds apart, later refreshes are postponed on the wheel.
+ * - A page is not refreshed while its previous refresh is still queued or running.
+ */
+public class AutoRefresher
+{
+    /**
+     * Precision of the refresh times.
+     */
+    private static final long TICK_IN_MILLIS = 100;
+
+    /**
+     * Delay before the first refresh of a listed page (its jitter is added).
+     */
+    private static final long FIRST_DELAY_IN_MILLIS = 1000;
+
+    /**
+     * Schedules the refreshes of all the listed pages.
+     */
+    private static final TimerWheel _wheel = new TimerWheel("HtmlSpeedAutoRefreshWheel", TICK_IN_MILLIS);
+
+    /**
+     * Executes the refreshes (each one is a job).
+     */
+    private static final BackLoadScheduler _scheduler = new BackLoadScheduler("HtmlSpeedAutoRefresher", 5, 2, 10000);
+
+    /**
+     * Used for invoking the content-servers (set by HtmlSpeedServlet when created).
+     */
+    private static volatile HttpClient _client;
+
+    /**
+     * Reports failed refreshes (the logger of HtmlSpeedServlet, see setLogger).
+     */
+    private static volatile Logger _log = Log.getLogger(AutoRefresher.class);
+
+    /**
+     * Max percents of a period that are randomly added or subtracted (property auto.refresh.jitter).
+     */
+    private static volatile int _jitterPercent = 10;
+
+    /**
+     * Min milli-seconds between refreshes from a host (property auto.refresh.origin.interval).
+     */
+    private static long _originIntervalMillis = 500;
+
+    /**
+     * Maps a host to the earliest time of its next refresh (guarded by itself).
+     */
+    private static final HashMap<String, Long> _nextOriginTimes = new HashMap<String, Long>();
+
+    /**
+     * The listed pages (guarded by AutoRefresher.class).
+     */
+    private static final ArrayList<Entry> _entries = new ArrayList<Entry>();
+
+    private static final Random _random = new Random();
+
+    // Metrics:
+    private static final AtomicLong _refreshed = new AtomicLong(); // Completed refreshes.
+    private static final AtomicLong _busy = new AtomicLong(); // Refreshes skipped (previous one still running).
+    private static final AtomicLong _postponed = new AtomicLong(); // Refreshes postponed by the origin interval.
+    private static final AtomicLong _failed = new AtomicLong(); // Failed or rejected refreshes.
+
+    /**
+     * A listed page (executed by the wheel at the time of its next refresh).
+     */
+    private static class Entry implements Runnable
+    {
+        private final String _url;
+        private final String _host;
+
+        /**
+         * Milli-seconds between refreshes (0 when loaded once).
+         */
+        private final long _periodMillis;
+
+        /**
+         * The next scheduled refresh.
+         */
+        private volatile TimerWheel.Timeout _timeout;
+
+        /**
+         * True when the page is not listed any more.
+         */
+        private volatile boolean _isCancelled = false;
+
+        /**
+         * Starts a refresh that has been postponed (its origin time is already reserved).
+         */
+        private final Runnable _postponedStarter = new Runnable()
+        {
+            public void run()
+            {
+                if (_isCancelled)
+                    _scheduler.unmarkQueued(_url);
+                else
+                    _scheduler.submit(new RefreshJob(Entry.this));
+            }
+        };
+
+        public Entry(String url, String host, long periodMillis)
+        {
+            _url = url;
+            _host = host;
+            _periodMillis = periodMillis;
+        }
+
+        @Override
+        public void run()
+        {
+            if (_isCancelled)
+                return;
+
+            if (_periodMillis > 0)
+                _timeout = _wheel.schedule(this, jitteredOf(_periodMillis));
+
+            if (!_scheduler.markQueued(_url))
+            {
+                _busy.incrementAndGet();
+                return;
+            }
+
+            long delay = reserveOriginTime(_host);
+            if (delay > 0)
+            {
+                _postponed.incrementAndGet();
+                _wheel.schedule(_postponedStarter, delay);
+                return;
+            }
+
+            _scheduler.submit(new RefreshJob(this));
+        }
+    }
+
+    /**
+     * A refresh of a listed page.
+     */
+    private static class RefreshJob extends BackLoadScheduler.Job
+    {
+        private final Entry _entry;
+
+        public RefreshJob(Entry entry)
+        {
+            super(entry._host, entry._url);
+            _entry = entry;
+        }
+
+        @Override
+        public void load()
+        {
+            try
+            {
+                HttpClient client = _client;
+                if (!_entry._isCancelled && client != null)
+                {
+                    ServiceUtils.refreshPage(_entry._url, client);
+                    _refreshed.incrementAndGet();
+                }
+            }
+            catch (Exception e)
+            {
+                _failed.incrementAndGet(); // Not retried (refreshed again in next period).
+                _log.warn("SERVER: failed auto-refreshing " + _entry._url + " of " + _entry._host, e);
+            }
+            finally
+            {
+                _scheduler.unmarkQueued(_entry._url);
+            }
+        }
+
+        @Override
+        public void cancel()
+        {
+            _failed.incrementAndGet();
+            _scheduler.unmarkQueued(_entry._url);
+        }
+    }
+
+    /**
+     * Called by HtmlSpeedServlet when its http-client is created.
+     *
+     * @param client used for invoking the content-servers
+     */
+    public static void setClient(HttpClient client)
+    {
+        _client = client;
+    }
+
+    /**
+     * Called by HtmlSpeedServlet when it is initialized.
+     *
+     * @param log the logger of the servlet
+     */
+    public static void setLogger(Logger log)
+    {
+        _log = log;
+    }
+
+    /**
+     * Sets the limits of the refreshes.
+     *
+     * @param maxLoaders max number of concurrent refreshes (property auto.refresh.loaders)
+     * @param maxPerOrigin max number of concurrent refreshes from a host (property auto.refresh.loaders.per.origin)
+     * @param originIntervalMillis min milli-seconds between refreshes from a host (property auto.refresh.origin.interval)
+     * @param jitterPercent max percents of a period added or subtracted (property auto.refresh.jitter)
+     */
+    public static void setLimits(int maxLoaders, int maxPerOrigin, int originIntervalMillis, int jitterPercent)
+    {
+        _scheduler.setLimits(maxLoaders, maxPerOrigin, 10000);
+        synchronized (_nextOriginTimes)
+        {
+            _originIntervalMillis = Math.max(0, originIntervalMillis);
+        }
+        _jitterPercent = Math.max(0, Math.min(100, jitterPercent));
+    }
+
+    /**
+     * Schedules the refreshes of a listed page.
+     *
+     * @param url full url of the page
+     * @param period seconds between refreshes (0 for loading the page once)
+     */
+    public static synchronized void add(String url, long period)
+    {
+        int hostFirst = url.indexOf("//") + 2;
+        int hostLast = url.indexOf('/', hostFirst);
+        String host = (hostLast < 0 ? url.substring(hostFirst) : url.substring(hostFirst, hostLast));
+
+        Entry entry = new Entry(url, host, period*1000);
+        long firstDelay = FIRST_DELAY_IN_MILLIS + (long)(_random.nextDouble() * period*1000 * _jitterPercent / 100);
+        entry._timeout = _wheel.schedule(entry, firstDelay);
+        _entries.add(entry);
+    }
+
+    /**
+     * Cancels the refreshes of all the listed pages (called before the list is reloaded).
+     */
+    public static synchronized void clear()
+    {
+        for (Entry entry : _entries)
+        {
+            entry._isCancelled = true;
+            TimerWheel.Timeout timeout = entry._timeout;
+            if (timeout != null)
+                _wheel.cancel(timeout);
+        }
+        _entries.clear();
+
+        synchronized (_nextOriginTimes)
+        {
+            _nextOriginTimes.clear();
+        }
+    }
+
+    /**
+     * Cancels all the refreshes (called by HtmlSpeedServlet.destroy()). The wheel is
+     * started again by the refreshes added when the servlet is initialized (see add).
+     */
+    public static synchronized void stop()
+    {
+        clear();
+        _wheel.stop();
+    }
+
+    /**
+     * @param periodMillis a period in milli-seconds
+     * @return periodMillis randomly lengthened or shortened by up to _jitterPercent
+     */
+    private static long jitteredOf(long periodMillis)
+    {
+        double jitter = (_random.nextDouble() * 2 - 1) * _jitterPercent / 100;
+        return Math.max(TICK_IN_MILLIS, periodMillis + (long)(periodMillis * jitter));
+    }
+
+    /**
+     * Reserves the time of a refresh from host.
+     *
+     * @param host the host of a refreshed page
+     * @return milli-seconds until the reserved time (0 when the refresh can start now)
+     */
+    private static long reserveOriginTime(String host)
+    {
+        synchronized (_nextOriginTimes)
+        {
+            if (_originIntervalMillis == 0)
+                return 0;
+
+            long currentTime = System.currentTimeMillis();
+            Long nextTime = _nextOriginTimes.get(host);
+            long startTime = (nextTime == null ? currentTime : Math.max(currentTime, nextTime.longValue()));
+            _nextOriginTimes.put(host, Long.valueOf(startTime + _originIntervalMillis));
+            return startTime - currentTime;
+        }
+    }
+
+    /**
+     * @return statistics (reported by /htmlspeed/cache-stats)
+     */
+    public static String getStats()
+    {
+        int entries;
+        synchronized (AutoRefresher.class)
+        {
+            entries = _entries.size();
+        }
+        return "auto-refresh: pages " + entries +
+                ", refreshed " + _refreshed.get() +
+                ", busy " + _busy.get() +
+                ", postponed " + _postponed.get() +
+                ", failed " + _failed.get() +
+                ", " + _wheel.toString() +
+                ", " + _scheduler.toString();
+    }
+}
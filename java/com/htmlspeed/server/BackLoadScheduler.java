@@ -0,0 +1,561 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * BackLoadScheduler
+ *
+ * Schedules background loads (jobs) of resources on a bounded pool of loaders.
+ *
+ * - At most maxLoaders jobs are executed concurrently, and at most maxPerHost
+ *   of them load from the same host, so a slow host delays only its own jobs.
+ * - At most maxQueued jobs wait in the queue. When the queue is full a new job
+ *   replaces the oldest waiting retry, otherwise it is rejected (cancelled).
+ * - Jobs submitted by a service (resources of the page being served) are
+ *   scheduled before retries of failed jobs.
+ * - Keys (urls) of queued/running jobs are kept, so a url is queued only once.
+ *
+ * The jobs are executed by a cached thread-pool (or by virtual threads when
+ * enabled, see VirtualThreads). The number of threads is bounded by maxLoaders.
+ */
+public class BackLoadScheduler
+{
+    /**
+     * Number of milli-seconds before a failed job is retried.
+     */
+    private static final int RETRY_DELAY_IN_MILLIS = 1000;
+
+    /**
+     * Number of retries of a failed job before it is cancelled.
+     */
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * Reports failed jobs (the logger of HtmlSpeedServlet, see setLogger).
+     */
+    private static volatile Logger _log = Log.getLogger(BackLoadScheduler.class);
+
+    /**
+     * A background load of resources from a single host.
+     */
+    public static abstract class Job
+    {
+        /**
+         * The host the resources are loaded from.
+         */
+        public final String host;
+
+        /**
+         * The loaded url (or the url of the page whose resources are loaded), reported when the job fails.
+         */
+        public final String url;
+
+        /**
+         * Time when the job has been (re)queued.
+         */
+        private long _enqueueTime;
+
+        /**
+         * The job is not executed before this time (retries).
+         */
+        private long _notBefore;
+
+        /**
+         * Number of failed executions.
+         */
+        private int _retries;
+
+        protected Job(String host, String url)
+        {
+            this.host = host;
+            this.url = url;
+        }
+
+        /**
+         * Loads the resources (executed by a loader thread).
+         *
+         * @throws Exception when failed (the job is retried)
+         */
+        public abstract void load() throws Exception;
+
+        /**
+         * Rolls back the job when it is rejected, replaced or failed too many times.
+         */
+        public abstract void cancel();
+    }
+
+    /**
+     * Name of the scheduler (prefix of the names of its threads).
+     */
+    private final String _name;
+
+    /**
+     * Guards all the fields bellow.
+     */
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    /**
+     * Signaled when a job is queued or a loader becomes free.
+     */
+    private final Condition _isChanged = _lock.newCondition();
+
+    /**
+     * Jobs of pages being served (executed first).
+     */
+    private final ArrayDeque<Job> _pageJobs = new ArrayDeque<Job>();
+
+    /**
+     * Jobs to be retried.
+     */
+    private final ArrayDeque<Job> _retryJobs = new ArrayDeque<Job>();
+
+    /**
+     * Number of running jobs per host.
+     */
+    private final HashMap<String, Integer> _activePerHost = new HashMap<String, Integer>();
+
+    /**
+     * Number of running jobs.
+     */
+    private int _activeCount = 0;
+
+    private int _maxLoaders;
+
+    private int _maxPerHost;
+
+    private int _maxQueued;
+
+    /**
+     * Keys of queued/running jobs (see markQueued).
+     */
+    private final ConcurrentHashMap<String, Boolean> _queuedKeys = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Platform threads executing the jobs (when virtual threads are disabled).
+     */
+    private final ExecutorService _pool;
+
+    /**
+     * The thread assigning queued jobs to loaders (started by first submit).
+     */
+    private Thread _dispatcher = null;
+
+    // Metrics:
+    private final AtomicLong _submittedCount = new AtomicLong();
+    private final AtomicLong _rejectedCount = new AtomicLong();
+    private final AtomicLong _dedupedCount = new AtomicLong();
+    private final AtomicLong _retriedCount = new AtomicLong();
+    private final AtomicLong _startedCount = new AtomicLong();
+    private final AtomicLong _totalWaitMillis = new AtomicLong();
+    private final AtomicLong _maxWaitMillis = new AtomicLong();
+
+    /**
+     * CONSTRUCTOR
+     *
+     * @param name name of scheduler
+     * @param maxLoaders max number of concurrently running jobs
+     * @param maxPerHost max number of concurrently running jobs of a single host
+     * @param maxQueued max number of waiting jobs
+     */
+    public BackLoadScheduler(String name, int maxLoaders, int maxPerHost, int maxQueued)
+    {
+        _name = name;
+        setLimits(maxLoaders, maxPerHost, maxQueued);
+
+        final AtomicInteger threadNum = new AtomicInteger();
+        _pool = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, _name + "-" + threadNum.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Called by HtmlSpeedServlet when it is initialized.
+     *
+     * @param log the logger of the servlet (reports failed jobs of all the schedulers)
+     */
+    public static void setLogger(Logger log)
+    {
+        _log = log;
+    }
+
+    /**
+     * Modifies the limits of the scheduler (already queued jobs are kept).
+     *
+     * @param maxLoaders max number of concurrently running jobs
+     * @param maxPerHost max number of concurrently running jobs of a single host
+     * @param maxQueued max number of waiting jobs
+     */
+    public void setLimits(int maxLoaders, int maxPerHost, int maxQueued)
+    {
+        _lock.lock();
+        try
+        {
+            _maxLoaders = Math.max(1, maxLoaders);
+            _maxPerHost = Math.max(1, maxPerHost);
+            _maxQueued = Math.max(1, maxQueued);
+            _isChanged.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Marks key as queued (until unmarkQueued is called).
+     *
+     * @param key identifies a loaded resource
+     * @return false when key is already queued (the resource should not be queued again)
+     */
+    public boolean markQueued(String key)
+    {
+        if (_queuedKeys.putIfAbsent(key, Boolean.TRUE) == null)
+            return true;
+
+        _dedupedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param key identifies a loaded resource
+     * @return true when key is queued or being loaded
+     */
+    public boolean isQueued(String key)
+    {
+        return _queuedKeys.containsKey(key);
+    }
+
+    /**
+     * Removes the mark set by markQueued.
+     *
+     * @param key identifies a loaded resource
+     */
+    public void unmarkQueued(String key)
+    {
+        _queuedKeys.remove(key);
+    }
+
+    /**
+     * Queues a job of a page being served. When the queue is full the oldest
+     * waiting retry is cancelled, and when there is no such retry the job
+     * itself is rejected.
+     *
+     * @param job the queued job
+     * @return false when the job is rejected (the job is cancelled)
+     */
+    public boolean submit(Job job)
+    {
+        Job replaced = null;
+        boolean isRejected = false;
+
+        _lock.lock();
+        try
+        {
+            if (_pageJobs.size() + _retryJobs.size() >= _maxQueued)
+            {
+                replaced = _retryJobs.pollFirst();
+                if (replaced == null)
+                    isRejected = true;
+            }
+            if (!isRejected)
+            {
+                job._enqueueTime = System.currentTimeMillis();
+                _pageJobs.addLast(job);
+                _submittedCount.incrementAndGet();
+                _isChanged.signalAll();
+                startDispatcher();
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        // Cancelling outside of _lock (cancel locks the cache-structure):
+        if (replaced != null)
+        {
+            _rejectedCount.incrementAndGet();
+            replaced.cancel();
+        }
+        if (isRejected)
+        {
+            _rejectedCount.incrementAndGet();
+            job.cancel();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of waiting jobs
+     */
+    public int getQueueDepth()
+    {
+        _lock.lock();
+        try
+        {
+            return _pageJobs.size() + _retryJobs.size();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of running jobs
+     */
+    public int getActiveCount()
+    {
+        _lock.lock();
+        try
+        {
+            return _activeCount;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        long started = _startedCount.get();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("back-loads queued: ").append(getQueueDepth());
+        sb.append(", running: ").append(getActiveCount());
+        sb.append(", submitted: ").append(_submittedCount.get());
+        sb.append(", started: ").append(started);
+        sb.append(", rejected: ").append(_rejectedCount.get());
+        sb.append(", deduped: ").append(_dedupedCount.get());
+        sb.append(", retried: ").append(_retriedCount.get());
+        sb.append(", avg wait ms: ").append(started == 0 ? 0 : _totalWaitMillis.get() / started);
+        sb.append(", max wait ms: ").append(_maxWaitMillis.get());
+        return sb.toString();
+    }
+
+    /**
+     * Starts the dispatcher thread if not running (called when _lock is locked).
+     */
+    private void startDispatcher()
+    {
+        if (_dispatcher != null && _dispatcher.isAlive())
+            return;
+
+        _dispatcher = new Thread(_name)
+        {
+            @Override
+            public void run()
+            {
+                while (true)
+                {
+                    Job job = null;
+                    try
+                    {
+                        job = takeJob();
+                        execute(job);
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                    catch (Throwable t)
+                    {
+                        _log.warn("SERVER: " + _name + " failed starting " +
+                                    (job != null ? job.url + " of " + job.host : "a job"), t);
+                    }
+                }
+            }
+        };
+        _dispatcher.setDaemon(true);
+        _dispatcher.start();
+    }
+
+    /**
+     * Waits for a queued job that can be started (a loader is free, its host is not
+     * loaded by maxPerHost jobs and its retry delay has passed), and marks it as running.
+     *
+     * @return the job to be executed
+     * @throws InterruptedException when interrupted
+     */
+    private Job takeJob() throws InterruptedException
+    {
+        _lock.lock();
+        try
+        {
+            while (true)
+            {
+                long currentTime = System.currentTimeMillis();
+                long nextRetryTime = Long.MAX_VALUE;
+
+                if (_activeCount < _maxLoaders)
+                {
+                    Job job = pollStartable(_pageJobs, currentTime);
+                    if (job == null)
+                        job = pollStartable(_retryJobs, currentTime);
+                    if (job != null)
+                    {
+                        _activeCount++;
+                        Integer hostCount = _activePerHost.get(job.host);
+                        _activePerHost.put(job.host, Integer.valueOf(hostCount == null ? 1 : hostCount.intValue() + 1));
+
+                        long waitTime = currentTime - job._enqueueTime;
+                        _startedCount.incrementAndGet();
+                        _totalWaitMillis.addAndGet(waitTime);
+                        if (waitTime > _maxWaitMillis.get())
+                            _maxWaitMillis.set(waitTime);
+                        return job;
+                    }
+
+                    for (Job retry : _retryJobs)
+                        if (retry._notBefore > currentTime && retry._notBefore < nextRetryTime)
+                            nextRetryTime = retry._notBefore;
+                }
+
+                if (nextRetryTime == Long.MAX_VALUE)
+                    _isChanged.await();
+                else
+                    _isChanged.await(nextRetryTime - currentTime, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Removes from jobs the first job that can be started (called when _lock is locked).
+     *
+     * @param jobs queue of jobs
+     * @param currentTime current time in milli-seconds
+     * @return the removed job (null when none)
+     */
+    private Job pollStartable(ArrayDeque<Job> jobs, long currentTime)
+    {
+        Iterator<Job> iter = jobs.iterator();
+        while (iter.hasNext())
+        {
+            Job job = iter.next();
+            if (job._notBefore > currentTime)
+                continue;
+            Integer hostCount = _activePerHost.get(job.host);
+            if (hostCount != null && hostCount.intValue() >= _maxPerHost)
+                continue;
+            iter.remove();
+            return job;
+        }
+        return null;
+    }
+
+    /**
+     * Executes job by a virtual thread (when enabled) or by a thread of _pool.
+     *
+     * @param job the executed job
+     */
+    private void execute(final Job job)
+    {
+        Runnable runnable = new Runnable()
+        {
+            public void run()
+            {
+                runJob(job);
+            }
+        };
+
+        ExecutorService virtualExecutor = VirtualThreads.getExecutor();
+        if (virtualExecutor != null)
+        {
+            try
+            {
+                virtualExecutor.execute(runnable);
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Virtual threads have just been disabled.
+            }
+        }
+        _pool.execute(runnable);
+    }
+
+    /**
+     * Runs job, and re-queues it as a retry when failed.
+     *
+     * @param job the executed job
+     */
+    private void runJob(Job job)
+    {
+        boolean isFailed = false;
+        try
+        {
+            job.load();
+        }
+        catch (Throwable t)
+        {
+            _log.warn("SERVER: " + _name + " failed loading " + job.url + " of " + job.host, t);
+            isFailed = true;
+        }
+
+        boolean isCancelled = false;
+        _lock.lock();
+        try
+        {
+            _activeCount--;
+            int hostCount = _activePerHost.get(job.host).intValue() - 1;
+            if (hostCount == 0)
+                _activePerHost.remove(job.host);
+            else
+                _activePerHost.put(job.host, Integer.valueOf(hostCount));
+
+            if (isFailed)
+            {
+                if (++job._retries > MAX_RETRIES || _pageJobs.size() + _retryJobs.size() >= _maxQueued)
+                {
+                    isCancelled = true;
+                }
+                else
+                {
+                    job._enqueueTime = System.currentTimeMillis();
+                    job._notBefore = job._enqueueTime + RETRY_DELAY_IN_MILLIS;
+                    _retryJobs.addLast(job);
+                    _retriedCount.incrementAndGet();
+                }
+            }
+            _isChanged.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        if (isCancelled)
+            job.cancel();
+    }
+}
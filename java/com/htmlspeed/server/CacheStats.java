@@ -0,0 +1,255 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * CacheStats
+ *
+ * Hits, misses, refreshes and admission-rejects of the cache-structure,
+ * counted separately for each kind of resource (page, css, js, image).
+ */
+public class CacheStats
+{
+    /**
+     * Kinds of counted resources.
+     */
+    public static final int PAGE_KIND = 0;
+    public static final int CSS_KIND = 1;
+    public static final int JS_KIND = 2;
+    public static final int IMAGE_KIND = 3;
+    public static final int OTHER_KIND = 4;
+
+    /**
+     * Names of kinds (indexed by kind).
+     */
+    public static final String[] KIND_NAMES = {"page", "css", "js", "image", "other"};
+
+    /**
+     * Number of times a fresh cached resource has been used (indexed by kind).
+     */
+    private final AtomicLongArray _hits = new AtomicLongArray(KIND_NAMES.length);
+
+    /**
+     * Number of times a resource had to be loaded from content server (indexed by kind).
+     */
+    private final AtomicLongArray _misses = new AtomicLongArray(KIND_NAMES.length);
+
+    /**
+     * Number of times a cached resource has been refreshed from content server (indexed by kind).
+     */
+    private final AtomicLongArray _refreshes = new AtomicLongArray(KIND_NAMES.length);
+
+    /**
+     * Number of loaded resources not admitted into the cache (indexed by kind).
+     */
+    private final AtomicLongArray _rejects = new AtomicLongArray(KIND_NAMES.length);
+
+    /**
+     * Number of missed pages returned from the load of a concurrent service
+     * (loads from content-server saved by ServiceUtils.tryToJoinPageLoad).
+     */
+    private final AtomicLong _joinedLoads = new AtomicLong();
+
+    /**
+     * Number of services that stopped waiting for a concurrent load (timeout).
+     */
+    private final AtomicLong _joinTimeouts = new AtomicLong();
+
+    /**
+     * Number of services that waited for a concurrent load that didn't cache the page.
+     */
+    private final AtomicLong _joinFallbacks = new AtomicLong();
+
+    /**
+     * Number of stale resources returned while refreshed in the background (stale-while-revalidate).
+     */
+    private final AtomicLong _staleHits = new AtomicLong();
+
+    /**
+     * Number of stale resources returned because their refresh has failed (stale-if-error).
+     */
+    private final AtomicLong _staleIfErrorHits = new AtomicLong();
+
+    /**
+     * @param cls class of a resource (subclass of Rsrc)
+     * @return the kind of resource
+     */
+    public static int kindOf(Class<?> cls)
+    {
+        if (cls == PageRsrc.class)
+            return PAGE_KIND;
+        if (cls == CssRsrc.class)
+            return CSS_KIND;
+        if (cls == JsRsrc.class)
+            return JS_KIND;
+        if (cls == ImageRsrc.class)
+            return IMAGE_KIND;
+        return OTHER_KIND;
+    }
+
+    /**
+     * @param cls class of used cached resource
+     * @param variant variant of used page (ignored for other resources)
+     */
+    public void recordHit(Class<?> cls, char variant)
+    {
+        int kind = kindOf(cls);
+        _hits.incrementAndGet(kind);
+        Metrics.recordCacheEvent(Metrics.HIT_EVENT, kind, variantOf(kind, variant));
+    }
+
+    /**
+     * @param cls class of resource loaded from content server
+     * @param variant variant of loaded page (ignored for other resources)
+     */
+    public void recordMiss(Class<?> cls, char variant)
+    {
+        int kind = kindOf(cls);
+        _misses.incrementAndGet(kind);
+        Metrics.recordCacheEvent(Metrics.MISS_EVENT, kind, variantOf(kind, variant));
+    }
+
+    /**
+     * @param cls class of cached resource refreshed from content server
+     * @param variant variant of refreshed page (ignored for other resources)
+     */
+    public void recordRefresh(Class<?> cls, char variant)
+    {
+        int kind = kindOf(cls);
+        _refreshes.incrementAndGet(kind);
+        Metrics.recordCacheEvent(Metrics.REFRESH_EVENT, kind, variantOf(kind, variant));
+    }
+
+    /**
+     * @return variant for a page, CacheUtils.NON_PAGE_VARIANT for other kinds
+     */
+    private static char variantOf(int kind, char variant)
+    {
+        return (kind == PAGE_KIND ? variant : CacheUtils.NON_PAGE_VARIANT);
+    }
+
+    /**
+     * @param cls class of resource rejected by the admission policy
+     */
+    public void recordReject(Class<?> cls)
+    {
+        _rejects.incrementAndGet(kindOf(cls));
+    }
+
+    public long getHits(int kind)
+    {
+        return _hits.get(kind);
+    }
+
+    public long getMisses(int kind)
+    {
+        return _misses.get(kind);
+    }
+
+    public void recordJoinedLoad()
+    {
+        _joinedLoads.incrementAndGet();
+    }
+
+    public void recordJoinTimeout()
+    {
+        _joinTimeouts.incrementAndGet();
+    }
+
+    public void recordJoinFallback()
+    {
+        _joinFallbacks.incrementAndGet();
+    }
+
+    public void recordStaleHit()
+    {
+        _staleHits.incrementAndGet();
+    }
+
+    public void recordStaleIfErrorHit()
+    {
+        _staleIfErrorHits.incrementAndGet();
+    }
+
+    public long getStaleHits()
+    {
+        return _staleHits.get();
+    }
+
+    public long getJoinedLoads()
+    {
+        return _joinedLoads.get();
+    }
+
+    public long getRefreshes(int kind)
+    {
+        return _refreshes.get(kind);
+    }
+
+    public long getRejects(int kind)
+    {
+        return _rejects.get(kind);
+    }
+
+    /**
+     * @param kind kind of resource
+     * @return hits / (hits + misses) of kind (0 when there were no requests)
+     */
+    public double getHitRatio(int kind)
+    {
+        long hits = _hits.get(kind);
+        long total = hits + _misses.get(kind);
+        return (total == 0 ? 0.0 : (double)hits / total);
+    }
+
+    /**
+     * Zeros all counters.
+     */
+    public void clear()
+    {
+        for (int i = 0 ; i < KIND_NAMES.length ; i++)
+        {
+            _hits.set(i, 0);
+            _misses.set(i, 0);
+            _refreshes.set(i, 0);
+            _rejects.set(i, 0);
+        }
+        _joinedLoads.set(0);
+        _joinTimeouts.set(0);
+        _joinFallbacks.set(0);
+        _staleHits.set(0);
+        _staleIfErrorHits.set(0);
+    }
+
+    /**
+     * @return a line for each kind: name hits misses refreshes rejects hit-ratio, a line of joined page loads
+     *      and a line of stale hits
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(256);
+        for (int i = 0 ; i < KIND_NAMES.length ; i++)
+        {
+            sb.append(KIND_NAMES[i]);
+            sb.append(" hits: ").append(getHits(i));
+            sb.append(", misses: ").append(getMisses(i));
+            sb.append(", refreshes: ").append(getRefreshes(i));
+            sb.append(", rejects: ").append(getRejects(i));
+            sb.append(", hit-ratio: ").append(Math.round(getHitRatio(i) * 1000) / 10.0).append("%\n");
+        }
+        sb.append("joined page loads (saved loads): ").append(_joinedLoads.get());
+        sb.append(", join timeouts: ").append(_joinTimeouts.get());
+        sb.append(", join fallbacks: ").append(_joinFallbacks.get()).append('\n');
+        sb.append("stale hits (while revalidate): ").append(_staleHits.get());
+        sb.append(", stale hits (if error): ").append(_staleIfErrorHits.get()).append('\n');
+        return sb.toString();
+    }
+}
@@ -6,8 +6,9 @@
  */
 package com.htmlspeed.server;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * CacheStructure
@@ -21,42 +22,112 @@ import java.util.HashSet;
 public class CacheStructure
 {
     /**
-     * Used for synchronizing access to cache-structure.
-     * rsrcs should only be accessed when globalLock is locked.
+     * Number of lock-stripes (must be a power of 2).
      */
-    public final Object globalLock = new Object();
+    private static final int LOCK_STRIPES = 256;
+
+    /**
+     * Lock-stripes used for synchronizing load/refresh of resources.
+     * A single url is always guarded by the same stripe (see lockOf).
+     */
+    private final Object[] _locks = new Object[LOCK_STRIPES];
 
     /**
      * A collection of all stateless (and half-state-full) resources that are currently
      * loaded into cache-structure. This collection is a hash map from url to rsrc.
      *
-     * Important: rsrcs should only be accessed when globalLock is locked.
+     * Reads are lock-free. Replacing a Rsrc by a TempRsrc (and back), and accessing
+     * the waiters of a TempRsrc, should only be done when lockOf(url) is locked.
      */
-    public HashMap<String, RsrcIfc> rsrcs = new HashMap<String,RsrcIfc>(8*1024);
+    public ConcurrentHashMap<String, RsrcIfc> rsrcs = new ConcurrentHashMap<String,RsrcIfc>(8*1024, 0.75f, 64);
+
+    /**
+     * In-flight loads of missed html-pages by the key of cache.rsrcs (variant and url).
+     * Concurrent misses of a page wait for its single load (see ServiceUtils.tryToJoinPageLoad).
+     */
+    public ConcurrentHashMap<String, LoadLock> pageLoads = new ConcurrentHashMap<String, LoadLock>(256, 0.75f, 64);
 
     /**
      * Urls of all previously loaded state-full resources.
-     * Should only be accessed while globalLock is locked.
      */
-    public HashSet<String> stateFullRsrcs = new HashSet<String>(8*1024);
+    public Set<String> stateFullRsrcs = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>(8*1024, 0.75f, 64));
 
     /**
-     * A doubly linked list of buffers containing original/optimized/gziped resources
-     * ordered by load/usage time. Currently bufs is the only timed-buffers-list.
+     * The cached resources containing original/optimized/gziped buffers,
+     * evicted by approximate-LRU. Currently rsrcsList is the only timed-buffers-list.
      */
     public RsrcsList rsrcsList;
 
+    /**
+     * Estimated access frequencies of resources (used by the admission policy of rsrcsList).
+     */
+    public FrequencySketch sketch;
+
+    /**
+     * The disk tier of the cache (null when disk.cache.dir is not configured).
+     */
+    public volatile DiskStore diskStore;
+
+    /**
+     * Hits/misses of resources by kind.
+     */
+    public CacheStats stats = new CacheStats();
+
     /**
      * Private constructor of the single instance of CacheStructure
      */
     public CacheStructure(ConfigData configData)
     {
         rsrcsList = new RsrcsList(configData);
+        sketch = new FrequencySketch((int)Math.min(configData.maxCacheTotalSize / (8*1024), Integer.MAX_VALUE));
+        for (int i = 0 ; i < LOCK_STRIPES ; i++)
+            _locks[i] = new Object();
+    }
+
+    /**
+     * Returns the lock-stripe guarding the load/refresh of url.
+     *
+     * @param url full url of resource
+     * @return the lock to be locked while replacing/notifying the TempRsrc of url
+     */
+    public Object lockOf(String url)
+    {
+        int h = hashOf(url);
+        h ^= (h >>> 16);
+        return _locks[h & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Hash-code of url used for lock-striping and for frequency estimation.
+     *
+     * The protocol ("http:" or "https:") is ignored, same as in the keys of rsrcs,
+     * so a single resource has a single hash-code for all its variants.
+     *
+     * @param url full url of resource
+     * @return hash-code of url without its protocol
+     */
+    public static int hashOf(String url)
+    {
+        int first = url.indexOf('/');
+        if (first < 0)
+            first = 0;
+        int h = 0;
+        for (int i = first ; i < url.length() ; i++)
+            h = 31*h + url.charAt(i);
+        return h;
     }
 
     /**
-     * Note: should only be called when globalLock is locked.
+     * Records an access to url by the admission policy.
      *
+     * @param url full url of accessed resource
+     */
+    public void recordAccess(String url)
+    {
+        sketch.increment(hashOf(url));
+    }
+
+    /**
      * @param url full url of resource
      * @param configData used configuration
      * @return true when url is a previously loaded state-full rsrc or configured to be state-full
@@ -73,8 +144,6 @@ public class CacheStructure
     /**
      * Adds full-url to list of previously-loaded (known) state-full resources.
      *
-     * Note: should only be called when globalLock is locked.
-     *
      * @param url full url of newly encountered state-full resource.
      */
     public void addStateFull(String url)
@@ -302,6 +302,32 @@ public class CacheUtils
             return variant - MOBILE_FIRST_VISIT_VARIANT;
     }
 
+    /**
+     * @param variant char code of a page variant
+     * @param isStateFull true when the page is state-full
+     * @param configData configuration of domain
+     * @return variant moved into the range of allowed variants (see min/max.statefull/stateless.variant)
+     */
+    public static char inRangeVariantOf(char variant, boolean isStateFull, ConfigData configData)
+    {
+        int variantOffset = offsetOf(variant);
+        if (isStateFull)
+        {
+            if (variantOffset < configData.minStateFullVariant)
+                variant += (configData.minStateFullVariant - variantOffset);
+            else if (variantOffset > configData.maxStateFullVariant)
+                variant -= (variantOffset - configData.maxStateFullVariant);
+        }
+        else
+        {
+            if (variantOffset < configData.minStateLessVariant)
+                variant += (configData.minStateLessVariant - variantOffset);
+            else if (variantOffset > configData.maxStateLessVariant)
+                variant -= (variantOffset - configData.maxStateLessVariant);
+        }
+        return variant;
+    }
+
     /**
      * @param variant char code of a page variant
      * @return first in group of variants containing variant
@@ -417,6 +443,20 @@ public class CacheUtils
         return md5 + variant;
     }
 
+    /**
+     * @param origEtag ETag returned by the content-server (null when missing)
+     * @param md5 the md5 (in base64 format) of the original content of the resource
+     * @param variant the variant of the returned rsrc
+     * @param isStateFullHtml true when rsrc is a state-full html page
+     * @return the ETag returned to the browser: origEtag + {|[ + md5 + variant + }|]
+     */
+    public static String toEtag(String origEtag, String md5, char variant, boolean isStateFullHtml)
+    {
+        char leftBrace = isStateFullHtml ? '{' : '[';
+        char rightBrace = isStateFullHtml ? '}' : ']';
+        return (origEtag != null ? origEtag : "") + leftBrace + md5 + variant + rightBrace;
+    }
+
     /**
      * @param url full url of resource
      * @param exchange contains response from webserver
@@ -60,28 +60,28 @@ public class Cdn
         if (replacer instanceof ImageRsrc)
         {
             ImageRsrc img = (ImageRsrc)replacer;
-            if (img.origData != null)
-                size = img.origData.length;
+            if (img.hasOrigData())
+                size = img.getOrigDataLength();
         }
         else if (replacer instanceof JsRsrc)
         {
             JsRsrc js = (JsRsrc)replacer;
-            if (js.optimGzip != null)
-                size = js.optimGzip.length;
-            else if (js.origGzip != null)
-                size = js.origGzip.length;
+            if (js.hasOptimGzip())
+                size = js.getOptimGzipLength();
+            else if (js.hasOrigGzip())
+                size = js.getOrigGzipLength();
             else if (js.optimData != null)
                 size = js.optimData.length;
-            else if (js.origData != null)
-                size = js.origData.length;
+            else if (js.hasOrigData())
+                size = js.getOrigDataLength();
         }
         else if (replacer instanceof CssRsrc)
         {
             CssRsrc css = (CssRsrc)replacer;
-            if (css.optimGzip != null)
-                size = css.optimGzip.length;
-            else if (css.origGzip != null)
-                size = css.origGzip.length;
+            if (css.hasOptimGzip())
+                size = css.getOptimGzipLength();
+            else if (css.hasOrigGzip())
+                size = css.getOrigGzipLength();
         }
 
         String cdnHost = null; // The domain of selected CDN (null when no CDN has been selected)
@@ -184,6 +184,13 @@ public class ConfigData
      */
     public boolean isSetCookieStatefull = true;
 
+    /**
+     * Names of the session-cookies of the content-servers (property session.cookies),
+     * used for routing the requests of a session to the same content-server
+     * (null when none).
+     */
+    public String[] sessionCookies = null;
+
     /**
      * Maps a single size-range to a single domain that is used by the CDN
      */
@@ -288,16 +295,103 @@ public class ConfigData
     private static final long MAX_HEAP = Runtime.getRuntime().maxMemory();
 
     /**
-     * cache.rsrcsList.bufs.totalSize is not allowed bo be larger than maxCacheTotalSize.
+     * cache.rsrcsList.getTotalSize() is not allowed bo be larger than maxCacheTotalSize.
      */
     public long maxCacheTotalSize = MAX_HEAP * 60 / 100;
 
     /**
-     * When cache.rsrcsList.bufs.totalSize is going to be larger than maxCacheTotalSize we free
+     * When cache.rsrcsList.getTotalSize() is going to be larger than maxCacheTotalSize we free
      * enough buffers so that bufs.totalSize drops to be bellow lowerCacheTotalSize.
      */
     public long lowerCacheTotalSize = MAX_HEAP * 40 / 100;
 
+    /**
+     * When true (the default) a loaded resource is only admitted into a full cache
+     * when it is accessed at least as frequently as the resources it would evict.
+     */
+    public boolean isAdmissionFilter = true;
+
+    /**
+     * When true the served bodies of cached resources are stored in direct
+     * (off-heap) memory (see OffHeapStore). Default is false.
+     */
+    public boolean isOffHeap = false;
+
+    /**
+     * Directory of the disk tier of the cache (null when there is no disk tier).
+     */
+    public String diskCacheDir = null;
+
+    /**
+     * Maximum size in bytes of the disk tier of the cache.
+     */
+    public long maxDiskCacheSize = 1024L*1024*1024;
+
+    /**
+     * When true state-full html-pages are optimized and returned to the browser
+     * while they are received from the content-server (see HtmlStreamer). Default is false.
+     */
+    public boolean isStreamingHtml = false;
+
+    /**
+     * When true the head of a page that is not cached is returned to the browser
+     * before the resources of the page are loaded (see ServiceUtils.earlyFlush). Default is false.
+     */
+    public boolean isEarlyFlush = false;
+
+    /**
+     * Max number of milli-seconds that a service of a missed html-page waits for a
+     * concurrent load of the same page (see ServiceUtils.tryToJoinPageLoad), 0 for
+     * not waiting. Default is 5000.
+     */
+    public long pageLoadJoinTimeout = 5000;
+
+    /**
+     * Max number of milli-seconds that a service of a missed html-page waits for the loads
+     * of its resources (property assembly.deadline), 0 for waiting until all are loaded.
+     * Resources loaded later are not inlined in the page (they are cached when loaded).
+     * Default is 0.
+     */
+    public long assemblyDeadline = 0;
+
+    /**
+     * Number of seconds after a cached resource becomes stale during which the stale
+     * resource is returned to the browser while it is refreshed in the background
+     * (property stale.while.revalidate), 0 for refreshing before returning. Default is 0.
+     */
+    public long staleWhileRevalidate = 0;
+
+    /**
+     * Number of seconds after a cached resource becomes stale during which the stale
+     * resource is returned to the browser when its refresh fails (property stale.if.error).
+     * Default is 0 (a failed refresh is retried after 1 minute).
+     */
+    public long staleIfError = 0;
+
+    /**
+     * Number of seconds before a hot cached resource expires during which it is revalidated
+     * in the background (property refresh.ahead.window, see RefreshAhead), 0 for not
+     * revalidating. Default is 0.
+     */
+    public long refreshAheadWindow = 0;
+
+    /**
+     * Minimal decayed number of hits of a cached resource that is revalidated before
+     * it expires (property refresh.ahead.min.hits, see Rsrc.decayedHits). Default is 5.
+     */
+    public float refreshAheadMinHits = 5;
+
+    /**
+     * Patterns selecting urls whose stale windows override staleWhileRevalidate and
+     * staleIfError (properties staleN.pattern), 4 entries per pattern as in _stateFullPatterns.
+     */
+    private String[] _stalePatterns = null;
+
+    /**
+     * The stale-while-revalidate and stale-if-error seconds of each pattern in _stalePatterns.
+     */
+    private long[] _staleWindows = null;
+
     public transient CacheStructure cache = new CacheStructure(this);
 
     /**
@@ -406,6 +500,45 @@ public class ConfigData
         return isSelected(url.toLowerCase(), _noInlinePatterns, true);
     }
 
+    /**
+     * Sets the per-pattern stale windows (properties staleN.pattern, staleN.while.revalidate
+     * and staleN.if.error).
+     *
+     * @param stalePatterns 4 entries per pattern (null when there are no patterns)
+     * @param staleWindows stale-while-revalidate and stale-if-error seconds of each pattern
+     */
+    public void setStalePatterns(String[] stalePatterns, long[] staleWindows)
+    {
+        _stalePatterns = stalePatterns;
+        _staleWindows = staleWindows;
+    }
+
+    /**
+     * @param url the full url of a resource
+     * @return number of milli-seconds after url becomes stale during which it is
+     *      returned to the browser while it is refreshed in the background
+     */
+    public long staleWhileRevalidateOf(String url)
+    {
+        int i = _stalePatterns == null ? (-1) : indexOfSelecting(url.toLowerCase(), _stalePatterns, true);
+        if (i >= 0 && ConfigUtils.ACCEPT.equals(_stalePatterns[i]))
+            return _staleWindows[i/2]*1000;
+        return staleWhileRevalidate*1000;
+    }
+
+    /**
+     * @param url the full url of a resource
+     * @return number of milli-seconds after url becomes stale during which it is
+     *      returned to the browser when its refresh fails
+     */
+    public long staleIfErrorOf(String url)
+    {
+        int i = _stalePatterns == null ? (-1) : indexOfSelecting(url.toLowerCase(), _stalePatterns, true);
+        if (i >= 0 && ConfigUtils.ACCEPT.equals(_stalePatterns[i]))
+            return _staleWindows[i/2 + 1]*1000;
+        return staleIfError*1000;
+    }
+
     /**
      * Sets new value to property properties
      *
@@ -522,6 +655,18 @@ public class ConfigData
         if (patterns == null)
             return false;
 
+        int i = indexOfSelecting(url, patterns, wildcardsAllowed);
+        return i >= 0 && ConfigUtils.ACCEPT.equals(patterns[i]);
+    }
+
+    /**
+     * @param url the checked string
+     * @param patterns the string-selection patterns
+     * @param wildcardsAllowed when false patterns with '*' are skipped
+     * @return index in patterns of the first pattern selecting url ((-1) when none)
+     */
+    private int indexOfSelecting(String url, String[] patterns, boolean wildcardsAllowed)
+    {
         if (url.startsWith("http://"))
             url = url.substring(5);
         else if (url.startsWith("https://"))
@@ -529,18 +674,16 @@ public class ConfigData
 
         for (int i = 0 ; i < patterns.length ; i += 4)
         {
-            boolean isAccept = ConfigUtils.ACCEPT.equals(patterns[i]);
-
             if (ConfigUtils.ALL.equals(patterns[i+1]))
             {
                 if (!wildcardsAllowed)
                     continue;
-                return isAccept;
+                return i;
             }
             if (ConfigUtils.EQUALS.equals(patterns[i+1]))
             {
                 if (url.equals(patterns[i+2]))
-                    return isAccept;
+                    return i;
                 continue;
             }
             if (!wildcardsAllowed)
@@ -571,10 +714,10 @@ public class ConfigData
             if (patterns[i+3] != null && !url.endsWith(patterns[i+3]))
                 continue;
 
-            return isAccept;
+            return i;
         }
 
-        return false;
+        return (-1);
     }
 
     public void clean()
@@ -619,6 +762,8 @@ public class ConfigData
 
         isSetCookieStatefull = true;
 
+        sessionCookies = null;
+
         cdnSrcHostInfos = new HashMap<String, SrcHostInfo>();
 
         removeFromHtml = null;
@@ -646,6 +791,21 @@ public class ConfigData
 
         maxCacheTotalSize = MAX_HEAP * 60 / 100;
         lowerCacheTotalSize = MAX_HEAP * 40 / 100;
+
+        isAdmissionFilter = true;
+        isOffHeap = false;
+        isStreamingHtml = false;
+        isEarlyFlush = false;
+        pageLoadJoinTimeout = 5000;
+        assemblyDeadline = 0;
+        staleWhileRevalidate = 0;
+        staleIfError = 0;
+        _stalePatterns = null;
+        _staleWindows = null;
+        refreshAheadWindow = 0;
+        refreshAheadMinHits = 5;
+        diskCacheDir = null;
+        maxDiskCacheSize = 1024L*1024*1024;
     }
 
 }
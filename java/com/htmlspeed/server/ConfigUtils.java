@@ -19,9 +19,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.crypto.Cipher;
 import javax.servlet.ServletException;
@@ -285,26 +282,15 @@ public class ConfigUtils
     private static long _propertiesLastModified = 0;
 
     /**
-     * Timer used for periodically-refreshing important state-less pages
-     * and for loading specified state-full pages once. 
-     */
-    private static Timer _refreshTimer;
-
-    /**
-     * Hashed list of URI's of all pages that are automatically refreshed by _refreshTimer
+     * Hashed list of URI's of all pages that are automatically refreshed by AutoRefresher
      */
     private static HashSet<String> _autoRefreshedPagesSet = new HashSet<String>();
 
     /**
-     * List of URI's of all pages that are automatically refreshed by _refreshTimer
+     * List of URI's of all pages that are automatically refreshed by AutoRefresher
      */
     private static ArrayList<String> _autoRefreshedPages = new ArrayList<String>();
 
-    /**
-     * Thread-pool, used for refreshing pages.
-     */
-    private static ExecutorService _pool = Executors.newFixedThreadPool(5);
-
     /**
      * The single instance of ConfigBackThread.
      * Created by method startConfigBackThread.
@@ -357,6 +343,32 @@ public class ConfigUtils
         return routerConfig;
     }
 
+    /**
+     * @return all the loaded configurations (each one once)
+     */
+    public static ArrayList<ConfigData> getAllConfigData()
+    {
+        ArrayList<ConfigData> all = new ArrayList<ConfigData>();
+        configLock.readLock().lock();
+        try
+        {
+            all.add(_configData);
+            if (isGaliel && _configs != null)
+            {
+                for (ConfigData configData : _configs.values())
+                {
+                    if (!all.contains(configData))
+                        all.add(configData);
+                }
+            }
+        }
+        finally
+        {
+            configLock.readLock().unlock();
+        }
+        return all;
+    }
+
     /**
      * Starts the single instance of ConfigBackThread.
      *
@@ -827,8 +839,8 @@ public class ConfigUtils
      * Each line in the file contains:
      *      dddd full-page-url         (dddd: period in seconds between refresh invocations).
      *
-     * For each listed full-page-url creates a RefreshTimerTask instance to
-     * be executed once if dddd equals 0 or periodically each dddd seconds.
+     * Each listed full-page-url is refreshed by AutoRefresher once if dddd
+     * equals 0 or periodically each dddd seconds.
      *
      * @param fileName name of file containing the list of auto-refreshed pages
      */
@@ -841,18 +853,12 @@ public class ConfigUtils
 
         _autoRefreshedPagesSet.clear();
         _autoRefreshedPages.clear();
+        AutoRefresher.clear();
 
         File file = new File(filePath);
         if (!file.exists() || !file.canRead())
             return;
 
-        if (_refreshTimer != null)
-        {
-            _refreshTimer.cancel();
-            _refreshTimer.purge();
-        }
-        _refreshTimer = new Timer("RefreshTimer", true);
-
         _autoRefreshedLastModified = new File(filePath).lastModified();
 
         Scanner scan = null;
@@ -865,8 +871,6 @@ public class ConfigUtils
             // Will not happen.
         }
 
-        long firstTime = 1000; // Delay before first execution of load of next listed page.
-
         while (scan.hasNextLine())
         {
             String line = scan.nextLine();
@@ -891,12 +895,7 @@ public class ConfigUtils
             long period = Long.parseLong(line.substring(0, lastDigit));
             String fullUrl = line.substring(httpIndex);
 
-            RefreshTimerTask task = new RefreshTimerTask(fullUrl, _pool);
-            if (period == 0)
-                _refreshTimer.schedule(task, firstTime);
-            else
-                _refreshTimer.schedule(task, firstTime, period*1000);
-            firstTime += 1000;
+            AutoRefresher.add(fullUrl, period);
 
             _autoRefreshedPagesSet.add(fullUrl);
             _autoRefreshedPages.add(fullUrl);
@@ -927,20 +926,6 @@ public class ConfigUtils
         return _autoRefreshedPagesSet.contains(uri);
     }
 
-    /**
-     * Destroy instances of RefreshTimerTask instances.
-     * Called by HtmlSpeedServlet.destroy() and when file auto-refreshed.txt is modified.
-     */
-    public static void destroyRefreshTimerTasks()
-    {
-        if (_refreshTimer != null)
-        {
-            _refreshTimer.cancel();
-            _refreshTimer.purge();
-            _refreshTimer = null;
-        }
-    }
-
     private static StringBuilder dumpPatterns(String[] patterns, String kind, String filePath, int version)
     {
         StringBuilder html = new StringBuilder(1028*8);
@@ -1085,66 +1070,112 @@ public class ConfigUtils
 
         while(scan.hasNextLine())
         {
-            boolean isReject = false;
-
             String text = scan.nextLine().toLowerCase();
+            patternsInfo.html.append(addPattern(patterns, text)).append("<br/>");
+        }
 
-            // Removing http:  and https: because they don't effect selection:
-            text = text.replace("http://", "//");
-            text = text.replace("https://", "//");
+        scan.close();
 
-            if (text.startsWith("!"))
-            {
-                isReject = true;
-                patterns.add(REJECT);
-                text = text.substring(1);
-            }
-            else
-            {
-                patterns.add(ACCEPT);
-            }
+        patternsInfo.patterns = patterns.toArray(new String[patterns.size()]);
+        return patternsInfo;
+    }
 
-            if (text.equals("*"))
-            {
-                patterns.add(ALL);
-                patterns.add(null);
-                patterns.add(null);
-            }
-            else if(!text.contains("*"))
-            {
-                // Fixed string:
-                patterns.add(EQUALS);
-                patterns.add(text);
-                patterns.add(null);
-            }
-            else
-            {
-                int firstAsterix = text.indexOf('*');
-                int secondAsterix = text.indexOf('*', firstAsterix + 1);
+    /**
+     * @param lines patterns in the format of the lines of a patterns configuration-file
+     * @return the parsed patterns (4 entries per line, see addPattern)
+     */
+    public static String[] patternsOf(String[] lines)
+    {
+        ArrayList<String> patterns = new ArrayList<String>(lines.length * 4);
+        for (String line : lines)
+            addPattern(patterns, line.toLowerCase());
+        return patterns.toArray(new String[patterns.size()]);
+    }
 
-                if (firstAsterix > 0)
-                    patterns.add(text.substring(0, firstAsterix)); // starts-with
-                else // firstAsterix == 0:
-                    patterns.add(null);
+    /**
+     * Parses a single pattern (a line of a patterns configuration-file),
+     * and adds its 4 entries (cmd, starts-with, contains, ends-with) to patterns.
+     *
+     * @param patterns the parsed patterns
+     * @param text a pattern in lower-case (e.g. "!//www.site.com/news/*.html")
+     * @return the added pattern (without http: and https:)
+     */
+    private static String addPattern(ArrayList<String> patterns, String text)
+    {
+        boolean isReject = false;
 
-                if (firstAsterix + 1 < secondAsterix)
-                    patterns.add(text.substring(firstAsterix + 1, secondAsterix)); // contains
-                else
-                    patterns.add(null);
+        // Removing http:  and https: because they don't effect selection:
+        text = text.replace("http://", "//");
+        text = text.replace("https://", "//");
 
-                int maxAsterix = Math.max(firstAsterix, secondAsterix);
-                if (maxAsterix < text.length() - 1)
-                    patterns.add(text.substring(maxAsterix + 1)); // ends-with
-                else
-                    patterns.add(null);
-            }
-            patternsInfo.html.append(isReject ? "!" : "").append(text).append("<br/>");
+        if (text.startsWith("!"))
+        {
+            isReject = true;
+            patterns.add(REJECT);
+            text = text.substring(1);
+        }
+        else
+        {
+            patterns.add(ACCEPT);
         }
 
-        scan.close();
+        if (text.equals("*"))
+        {
+            patterns.add(ALL);
+            patterns.add(null);
+            patterns.add(null);
+        }
+        else if(!text.contains("*"))
+        {
+            // Fixed string:
+            patterns.add(EQUALS);
+            patterns.add(text);
+            patterns.add(null);
+        }
+        else
+        {
+            int firstAsterix = text.indexOf('*');
+            int secondAsterix = text.indexOf('*', firstAsterix + 1);
 
-        patternsInfo.patterns = patterns.toArray(new String[patterns.size()]);
-        return patternsInfo;
+            if (firstAsterix > 0)
+                patterns.add(text.substring(0, firstAsterix)); // starts-with
+            else // firstAsterix == 0:
+                patterns.add(null);
+
+            if (firstAsterix + 1 < secondAsterix)
+                patterns.add(text.substring(firstAsterix + 1, secondAsterix)); // contains
+            else
+                patterns.add(null);
+
+            int maxAsterix = Math.max(firstAsterix, secondAsterix);
+            if (maxAsterix < text.length() - 1)
+                patterns.add(text.substring(maxAsterix + 1)); // ends-with
+            else
+                patterns.add(null);
+        }
+
+        return (isReject ? "!" : "") + text;
+    }
+
+    /**
+     * @param configData configuration of domain
+     * @param name name of a property holding a number of seconds
+     * @return value of property (0 when missing or illegal)
+     */
+    private static long secondsProperty(ConfigData configData, String name)
+    {
+        String value = configData.getProperty(name);
+        if (value == null)
+            return 0; // Default
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            System.out.println("Illegal property: " + name + " " + value);
+            return 0;
+        }
     }
 
     /**
@@ -1428,6 +1459,14 @@ public class ConfigUtils
         String isSetCookieStatefull = configData.getProperty("set.cookie.statefull");
         configData.isSetCookieStatefull = !"false".equalsIgnoreCase(isSetCookieStatefull); // Default is "true"
 
+        String sessionCookies = configData.getProperty("session.cookies");
+        if (sessionCookies != null && sessionCookies.trim().length() > 0)
+        {
+            configData.sessionCookies = sessionCookies.trim().split("\\s*,\\s*");
+            if (configData.isDebug)
+                System.out.println("SERVER: session cookies: " + sessionCookies.trim());
+        }
+
         // Handling CDN rules:
         configData.clearCdns();
         for (int cdnInd = 1 ; cdnInd < 1000 ; cdnInd++)
@@ -1479,6 +1518,121 @@ public class ConfigUtils
         String fixedMaxAge = configData.getProperty("fixed.maxage");
         configData.isFixedMaxAge = "true".equalsIgnoreCase(fixedMaxAge);
 
+        String admissionFilter = configData.getProperty("admission.filter");
+        configData.isAdmissionFilter = !"false".equalsIgnoreCase(admissionFilter); // Default is true
+
+        String offHeap = configData.getProperty("off.heap");
+        configData.isOffHeap = "true".equalsIgnoreCase(offHeap); // Default is false
+
+        String streamingHtml = configData.getProperty("streaming.html");
+        configData.isStreamingHtml = "true".equalsIgnoreCase(streamingHtml); // Default is false
+
+        String earlyFlush = configData.getProperty("early.flush");
+        configData.isEarlyFlush = "true".equalsIgnoreCase(earlyFlush); // Default is false
+
+        String pageLoadJoinTimeout = configData.getProperty("page.load.join.timeout");
+        configData.pageLoadJoinTimeout = 5000; // Default
+        if (pageLoadJoinTimeout != null)
+        {
+            try
+            {
+                configData.pageLoadJoinTimeout = Long.parseLong(pageLoadJoinTimeout);
+            }
+            catch (NumberFormatException e)
+            {
+                System.out.println("Illegal property: page.load.join.timeout " + pageLoadJoinTimeout);
+            }
+        }
+
+        String assemblyDeadline = configData.getProperty("assembly.deadline");
+        configData.assemblyDeadline = 0; // Default
+        if (assemblyDeadline != null)
+        {
+            try
+            {
+                configData.assemblyDeadline = Math.max(0, Long.parseLong(assemblyDeadline.trim()));
+            }
+            catch (NumberFormatException e)
+            {
+                System.out.println("Illegal property: assembly.deadline " + assemblyDeadline);
+            }
+        }
+
+        configData.staleWhileRevalidate = secondsProperty(configData, "stale.while.revalidate");
+        configData.staleIfError = secondsProperty(configData, "stale.if.error");
+
+        // Per-pattern stale windows (stale1.pattern, stale2.pattern, ...):
+        ArrayList<String> stalePatterns = new ArrayList<String>();
+        ArrayList<Long> staleWindows = new ArrayList<Long>();
+        for (int i = 1 ; i < 1000 ; i++)
+        {
+            String stalePattern = configData.getProperty("stale" + Integer.toString(i) + ".pattern");
+            if (stalePattern == null)
+                break;
+            addPattern(stalePatterns, stalePattern.trim().toLowerCase());
+            staleWindows.add(Long.valueOf(secondsProperty(configData, "stale" + Integer.toString(i) + ".while.revalidate")));
+            staleWindows.add(Long.valueOf(secondsProperty(configData, "stale" + Integer.toString(i) + ".if.error")));
+        }
+        if (stalePatterns.isEmpty())
+        {
+            configData.setStalePatterns(null, null);
+        }
+        else
+        {
+            long[] windows = new long[staleWindows.size()];
+            for (int i = 0 ; i < windows.length ; i++)
+                windows[i] = staleWindows.get(i).longValue();
+            configData.setStalePatterns(stalePatterns.toArray(new String[stalePatterns.size()]), windows);
+        }
+
+        configData.refreshAheadWindow = secondsProperty(configData, "refresh.ahead.window");
+
+        String refreshAheadMinHits = configData.getProperty("refresh.ahead.min.hits");
+        configData.refreshAheadMinHits = 5; // Default
+        if (refreshAheadMinHits != null)
+        {
+            try
+            {
+                configData.refreshAheadMinHits = Float.parseFloat(refreshAheadMinHits);
+            }
+            catch (NumberFormatException e)
+            {
+                System.out.println("Illegal property: refresh.ahead.min.hits " + refreshAheadMinHits);
+            }
+        }
+
+        String diskCacheSize = configData.getProperty("disk.cache.size");
+        configData.maxDiskCacheSize = 1024L*1024*1024; // Default is 1G
+        if (diskCacheSize != null)
+        {
+            try
+            {
+                configData.maxDiskCacheSize = Long.parseLong(diskCacheSize) * 1024*1024;
+            }
+            catch (NumberFormatException e)
+            {
+                System.out.println("Illegal property: disk.cache.size " + diskCacheSize);
+            }
+        }
+
+        configData.diskCacheDir = configData.getProperty("disk.cache.dir");
+        if (configData.diskCacheDir == null)
+        {
+            configData.cache.diskStore = null;
+        }
+        else
+        {
+            try
+            {
+                configData.cache.diskStore = DiskStore.open(configData.diskCacheDir, configData.maxDiskCacheSize);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Illegal property: disk.cache.dir " + configData.diskCacheDir + " " + e);
+                configData.cache.diskStore = null;
+            }
+        }
+
         String minMaxAge = configData.getProperty("min.maxage");
         configData.minStateLessMaxAge = 7*60; // Default
         if (minMaxAge != null)
@@ -1666,6 +1820,8 @@ public class ConfigUtils
                 cache.rsrcs.clear();
                 cache.stateFullRsrcs.clear();
                 cache.rsrcsList.clear();
+                if (cache.diskStore != null)
+                    cache.diskStore.clear();
             }
             configData.dirPath = dir.getPath();
             loadOtherDomains(path, File.separator + "other-domains.txt", configData);
@@ -1874,6 +2030,8 @@ public class ConfigUtils
                             cache.rsrcs.clear();
                             cache.stateFullRsrcs.clear();
                             cache.rsrcsList.clear();
+                            if (cache.diskStore != null)
+                                cache.diskStore.clear();
                         }
 
                         if (isLicenseModified)
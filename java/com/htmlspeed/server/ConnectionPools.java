@@ -0,0 +1,333 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.client.AbstractHttpConnection;
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * ConnectionPools
+ *
+ * The connections of the http-client with each content-server (ip:port and scheme,
+ * a destination of the http-client) are pooled: a connection is kept alive after
+ * its response and reused by the next request (up to max.connections connections
+ * per destination, idle connections are closed after idle.timeout milli-seconds).
+ *
+ * Pre-warming: when connections.warm is set, at least that number of idle connections
+ * are kept open with each destination used in the last 10 intervals, checked every
+ * connections.warm.interval seconds and when a destination is first used. The requests
+ * of the sub-resources of a page then reuse open connections instead of opening
+ * (and handshaking) new ones. Ejected content-servers are not warmed.
+ */
+public class ConnectionPools
+{
+    /**
+     * Destinations not used during this number of intervals are not warmed any more.
+     */
+    private static final int UNUSED_INTERVALS = 10;
+
+    /**
+     * Schedules the warming of the pools (stopped by stop, restarted by the next schedule).
+     */
+    private static final TimerWheel _wheel = new TimerWheel("HtmlSpeedConnectionWarmer", 1000);
+
+    /**
+     * Threads of _warmer.
+     */
+    private static final ThreadFactory _warmerThreads = new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "HtmlSpeedConnectionWarmer-pool");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Opens the connections (opening a connection blocks until connected). Created
+     * by setClient, and shut down by stop (null when stopped).
+     */
+    private static volatile ExecutorService _warmer;
+
+    /**
+     * Reports failed warmings (the logger of HtmlSpeedServlet, see setLogger).
+     */
+    private static volatile Logger _log = Log.getLogger(ConnectionPools.class);
+
+    /**
+     * The http-client of the content-servers (set by HtmlSpeedServlet when created).
+     */
+    private static volatile HttpClient _client;
+
+    /**
+     * Idle connections kept with each destination (property connections.warm, 0 disables warming).
+     */
+    private static volatile int _warmConnections = 0;
+
+    /**
+     * Milli-seconds between warmings (property connections.warm.interval).
+     */
+    private static volatile long _intervalMillis = 30000;
+
+    /**
+     * Maps a destination ("http://ip:port" or "https://ip:port") to the time of its last request.
+     */
+    private static final ConcurrentHashMap<String, AtomicLong> _destinations = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * True when a warming of all the destinations is scheduled.
+     */
+    private static final AtomicBoolean _isScheduled = new AtomicBoolean(false);
+
+    /**
+     * Warms all the used destinations (executed by the wheel, handed over to _warmer).
+     */
+    private static final Runnable _scheduler = new Runnable()
+    {
+        public void run()
+        {
+            _isScheduled.set(false);
+            if (_warmConnections == 0)
+                return;
+
+            schedule();
+            execute(new Runnable()
+            {
+                public void run()
+                {
+                    warmAll();
+                }
+            });
+        }
+    };
+
+    /**
+     * Called by HtmlSpeedServlet when its http-client is created (also after
+     * the servlet has been destroyed and initialized again).
+     *
+     * @param client the http-client of the content-servers
+     */
+    public static synchronized void setClient(HttpClient client)
+    {
+        _client = client;
+        if (_warmer == null)
+            _warmer = Executors.newSingleThreadExecutor(_warmerThreads);
+    }
+
+    /**
+     * Called by HtmlSpeedServlet when it is initialized.
+     *
+     * @param log the logger of the servlet
+     */
+    public static void setLogger(Logger log)
+    {
+        _log = log;
+    }
+
+    /**
+     * Sets the pre-warming of the pools.
+     *
+     * @param warmConnections idle connections kept with each destination, 0 disables warming (property connections.warm)
+     * @param interval seconds between warmings (property connections.warm.interval)
+     */
+    public static void setWarming(int warmConnections, int interval)
+    {
+        _warmConnections = Math.max(0, warmConnections);
+        _intervalMillis = Math.max(1, interval) * 1000L;
+        if (_warmConnections > 0)
+            schedule();
+    }
+
+    /**
+     * Counts a request sent to a content-server (called by ServiceUtils.setExchangeDestParams).
+     * The first request of a destination warms its pool.
+     *
+     * @param address ip:port of the content-server
+     * @param isSsl true when https is used
+     */
+    public static void use(final String address, final boolean isSsl)
+    {
+        String destination = (isSsl ? "https://" : "http://") + address;
+        AtomicLong lastUse = _destinations.get(destination);
+        if (lastUse != null)
+        {
+            lastUse.lazySet(System.currentTimeMillis());
+            return;
+        }
+
+        if (_destinations.putIfAbsent(destination, new AtomicLong(System.currentTimeMillis())) == null &&
+                _warmConnections > 0)
+        {
+            execute(new Runnable()
+            {
+                public void run()
+                {
+                    warm(address, isSsl);
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands a warming over to _warmer (dropped when stopped).
+     *
+     * @param task the warming
+     */
+    private static void execute(Runnable task)
+    {
+        ExecutorService warmer = _warmer;
+        if (warmer == null)
+            return;
+        try
+        {
+            warmer.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Stopped meanwhile.
+        }
+    }
+
+    /**
+     * Schedules the next warming of all the destinations (when not scheduled).
+     */
+    private static void schedule()
+    {
+        if (_isScheduled.compareAndSet(false, true))
+            _wheel.schedule(_scheduler, _intervalMillis);
+    }
+
+    /**
+     * Warms the destinations used in the last UNUSED_INTERVALS intervals,
+     * and forgets the others.
+     */
+    private static void warmAll()
+    {
+        long currentTime = System.currentTimeMillis();
+        Iterator<Map.Entry<String, AtomicLong>> iter = _destinations.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<String, AtomicLong> entry = iter.next();
+            if (currentTime - entry.getValue().get() > UNUSED_INTERVALS * _intervalMillis)
+            {
+                iter.remove();
+                continue;
+            }
+
+            String destination = entry.getKey();
+            boolean isSsl = destination.startsWith("https://");
+            warm(destination.substring(isSsl ? 8 : 7), isSsl);
+        }
+    }
+
+    /**
+     * Opens connections with a destination, until it has _warmConnections idle connections
+     * (executed by _warmer).
+     *
+     * @param address ip:port of the content-server
+     * @param isSsl true when https is used
+     */
+    private static void warm(String address, boolean isSsl)
+    {
+        HttpClient client = _client;
+        int warmConnections = _warmConnections;
+        if (client == null || warmConnections == 0)
+            return;
+
+        ContentServerHealth.State state = ContentServerHealth.stateOf(address);
+        if (state != null && !state.isAvailable(System.currentTimeMillis()))
+            return; // Ejected.
+
+        ArrayList<AbstractHttpConnection> reserved = new ArrayList<AbstractHttpConnection>(warmConnections);
+        HttpDestination destination = null;
+        try
+        {
+            destination = client.getDestination(Address.from(address), isSsl);
+            if (destination.getIdleConnections() >= warmConnections)
+                return;
+
+            // Reserving the idle connections, then new connections:
+            for (int i = 0 ; i < warmConnections ; i++)
+            {
+                AbstractHttpConnection connection = destination.reserveConnection(client.getConnectTimeout());
+                if (connection == null)
+                    break; // max.connections are used.
+                reserved.add(connection);
+            }
+        }
+        catch (Exception exc)
+        {
+            _log.warn("SERVER: failed warming connections with: " + address + ", " + exc);
+        }
+        finally
+        {
+            // Returning the reserved connections (also when a later reservation has failed):
+            for (AbstractHttpConnection connection : reserved)
+                destination.returnIdleConnection(connection);
+        }
+    }
+
+    /**
+     * Stops the warming (called by HtmlSpeedServlet.destroy()). The warming is
+     * started again by setClient and setWarming when the servlet is initialized.
+     */
+    public static synchronized void stop()
+    {
+        _wheel.stop();
+        _isScheduled.set(false);
+        if (_warmer != null)
+        {
+            _warmer.shutdownNow();
+            _warmer = null;
+        }
+    }
+
+    /**
+     * @return the connections and idle connections of each used destination (reported by /htmlspeed/cache-stats)
+     */
+    public static String getStats()
+    {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("connection-pools (warm ").append(_warmConnections).append("):");
+        HttpClient client = _client;
+        if (client == null)
+            return sb.toString();
+
+        TreeMap<String, AtomicLong> sorted = new TreeMap<String, AtomicLong>(_destinations);
+        for (String destination : sorted.keySet())
+        {
+            boolean isSsl = destination.startsWith("https://");
+            try
+            {
+                HttpDestination d = client.getDestination(Address.from(destination.substring(isSsl ? 8 : 7)), isSsl);
+                sb.append("\n  ").append(destination).append(": connections ").append(d.getConnections())
+                  .append(", idle ").append(d.getIdleConnections());
+            }
+            catch (Exception exc)
+            {
+                sb.append("\n  ").append(destination).append(": ").append(exc);
+            }
+        }
+        return sb.toString();
+    }
+}
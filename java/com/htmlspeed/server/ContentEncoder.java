@@ -0,0 +1,34 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.io.IOException;
+
+/**
+ * ContentEncoder
+ *
+ * Produces a pre-encoded representation of cached resources (see Encodings).
+ *
+ * Implementations are listed by class-name in the property content.encoders and
+ * must have a public no-arg constructor. encode is called concurrently by the
+ * threads of Encodings.
+ */
+public interface ContentEncoder
+{
+    /**
+     * @return the content-coding of the representation, as used in Accept-Encoding
+     *      and Content-Encoding (e.g. "br", "zstd")
+     */
+    public String getEncoding();
+
+    /**
+     * @param data the original (not encoded) content
+     * @return data encoded (at the maximal level of compression)
+     * @throws IOException when data can't be encoded
+     */
+    public byte[] encode(byte[] data) throws IOException;
+}
@@ -0,0 +1,923 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpSchemes;
+import org.eclipse.jetty.io.Buffer;
+
+/**
+ * ContentServerHealth
+ *
+ * Health and load of the content-servers (the addresses of the host-info), used by
+ * LoadBalancer for skipping unhealthy content-servers:
+ *
+ * - Active checking: every health.check.interval seconds each content-server is
+ *   probed (GET health.check.path, with the scheme of its last request). After
+ *   health.check.unhealthy failed probes the content-server is ejected. A
+ *   content-server that has not been requested yet is not probed.
+ * - Outlier detection (passive): the requests of the services are counted. A
+ *   content-server is ejected after outlier.consecutive.failures failures in a
+ *   row, or when in a window of 10 seconds (of at least outlier.min.requests
+ *   requests) outlier.error.percent of its requests have failed, or when its
+ *   latency is outlier.latency.factor times the latency of its peers. The last
+ *   available content-server of a host is not ejected as an outlier.
+ * - A communication failure ejects the content-server immediately (unless it is
+ *   the last available content-server of its hosts).
+ * - An ejected content-server is not used for outlier.ejection.time seconds,
+ *   doubled on each further ejection (up to outlier.ejection.max.time). Then it
+ *   is resumed after health.check.healthy successful probes (when active checking
+ *   is disabled it is resumed when the ejection time is over).
+ * - A resumed content-server receives a growing part of its requests during
+ *   slow.start seconds (from 10% to 100%).
+ *
+ * Failures are 5xx responses, communication failures and timeouts.
+ *
+ * The load of a content-server is its outstanding requests and the peak-EWMA
+ * of its latencies (a new latency above the average replaces it, a lower
+ * latency is averaged with a decay of 10 seconds, failures count as 1 second).
+ */
+public class ContentServerHealth
+{
+    /**
+     * Precision of the times of the probes.
+     */
+    private static final long TICK_IN_MILLIS = 100;
+
+    /**
+     * Length of the windows of outlier detection.
+     */
+    private static final long OUTLIER_WINDOW_IN_MILLIS = 10000;
+
+    /**
+     * Part of the requests received by a content-server when its slow-start begins.
+     */
+    private static final double MIN_SLOW_START_FACTOR = 0.1;
+
+    /**
+     * Weight of a new latency in the moving average of latencies.
+     */
+    private static final double EWMA_ALPHA = 0.1;
+
+    /**
+     * Decay time of the peak-EWMA of latencies.
+     */
+    private static final double PEAK_EWMA_DECAY_IN_MILLIS = 10000;
+
+    /**
+     * Latency of a failed request in the peak-EWMA (a fast failure must not attract requests).
+     */
+    private static final long FAILURE_IN_MICROS = 1000000;
+
+    /**
+     * Schedules the probes of all the content-servers.
+     */
+    private static final TimerWheel _wheel = new TimerWheel("HtmlSpeedHealthChecker", TICK_IN_MILLIS);
+
+    /**
+     * Used for probing the content-servers (set by HtmlSpeedServlet when created).
+     */
+    private static volatile HttpClient _client;
+
+    // Active checking (see setChecks):
+    private static volatile int _checkInterval = 10;
+    private static volatile String _checkPath = "/";
+    private static volatile int _checkTimeout = 2000;
+    private static volatile int _unhealthyProbes = 2;
+    private static volatile int _healthyProbes = 2;
+
+    // Outlier detection (see setOutlierDetection):
+    private static volatile int _maxConsecutiveFailures = 5;
+    private static volatile int _maxErrorPercent = 50;
+    private static volatile int _minRequests = 20;
+    private static volatile int _latencyFactor = 5;
+    private static volatile long _ejectionMillis = 10000;
+    private static volatile long _maxEjectionMillis = 300000;
+    private static volatile long _slowStartMillis = 30000;
+
+    /**
+     * Maps an address (as in host-info, and as ip:port of http and of https) to its state.
+     * Modified when ContentServerHealth.class is locked.
+     */
+    private static final ConcurrentHashMap<String, State> _states = new ConcurrentHashMap<String, State>();
+
+    private static final Random _random = new Random();
+
+    /**
+     * Incremented when the states of the host-info are set (see retainOnly), so that
+     * the peers of an address in several hosts of the host-info are merged by statesOf.
+     */
+    private static int _hostInfoGeneration = 0;
+
+    /**
+     * Health of a content-server.
+     */
+    public static class State
+    {
+        /**
+         * The address as defined in host-info (ip, ip:port or ip:htmlPort:sslPort).
+         */
+        public final String address;
+
+        /**
+         * ip:port of http and https.
+         */
+        private final String _httpAddress;
+        private final String _httpsAddress;
+
+        /**
+         * Value of the Host header of the probes (the first host of the content-server).
+         */
+        private volatile String _host;
+
+        /**
+         * Scheme of the last request sent to the content-server (null when not requested yet).
+         */
+        private volatile String _scheme = null;
+
+        /**
+         * The content-servers of the same hosts (including this).
+         */
+        private volatile State[] _peers = new State[0];
+
+        /**
+         * Value of _hostInfoGeneration when _host and _peers have been set (guarded by ContentServerHealth.class).
+         */
+        private int _generation = -1;
+
+        /**
+         * The next probe (null when removed).
+         */
+        private volatile TimerWheel.Timeout _probe;
+
+        private volatile boolean _isRemoved = false;
+
+        /**
+         * Requests sent to the content-server and not completed yet.
+         */
+        private final AtomicInteger _outstanding = new AtomicInteger(0);
+
+        /**
+         * Peak-EWMA of the latencies in micro-seconds (bits of double), updated at _peakEwmaTime.
+         */
+        private final AtomicLong _peakEwmaBits = new AtomicLong(Double.doubleToLongBits(0));
+        private volatile long _peakEwmaTime = 0;
+
+        // Modified when this is locked:
+        private volatile boolean _isEjected = false;
+        private volatile long _resumeTime = 0; // Start of the slow-start (0 when never resumed).
+
+        // Guarded by this:
+        private long _ejectionEndTime = 0; // Until then no requests and no probes.
+        private int _ejections = 0; // Ejections since the content-server has been stable (backoff exponent).
+        private long _totalEjections = 0;
+        private String _reason = null; // Reason of the last ejection.
+        private int _probeSuccesses = 0; // Successful probes in a row.
+        private int _probeFailures = 0; // Failed probes in a row.
+        private int _consecutiveFailures = 0; // Failed requests in a row.
+        private long _windowStartTime = 0;
+        private int _windowRequests = 0;
+        private int _windowFailures = 0;
+        private double _ewmaMicros = 0; // Moving average of the latencies of successful requests.
+
+        /**
+         * Probes the content-server (executed by the wheel).
+         */
+        private final Runnable _prober = new Runnable()
+        {
+            public void run()
+            {
+                probe();
+            }
+        };
+
+        private State(String address)
+        {
+            this.address = address;
+            int firstColon = address.indexOf(':');
+            int lastColon = address.lastIndexOf(':');
+            if (firstColon < 0)
+            {
+                _httpAddress = address + ":80";
+                _httpsAddress = address + ":443";
+            }
+            else if (firstColon < lastColon)
+            {
+                _httpAddress = address.substring(0, lastColon);
+                _httpsAddress = address.substring(0, firstColon) + address.substring(lastColon);
+            }
+            else
+            {
+                _httpAddress = address;
+                _httpsAddress = address;
+            }
+        }
+
+        /**
+         * @param currentTime current time
+         * @return true when the content-server can receive requests
+         */
+        public boolean isAvailable(long currentTime)
+        {
+            if (!_isEjected)
+                return true; // Not locking this (called on each request).
+
+            synchronized (this)
+            {
+                if (!_isEjected)
+                    return true;
+
+                if (_checkInterval == 0 && currentTime >= _ejectionEndTime)
+                {
+                    resume(currentTime); // No active checking.
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        /**
+         * @param currentTime current time
+         * @return part of its requests received by the content-server (less than 1 during its slow-start)
+         */
+        public double getSlowStartFactor(long currentTime)
+        {
+            long resumeTime = _resumeTime;
+            long elapsed = currentTime - resumeTime;
+            if (resumeTime == 0 || elapsed >= _slowStartMillis || elapsed < 0)
+                return 1;
+            return MIN_SLOW_START_FACTOR + (1 - MIN_SLOW_START_FACTOR) * elapsed / _slowStartMillis;
+        }
+
+        /**
+         * Counts a request sent to the content-server.
+         *
+         * @param isHttps true when the request is sent by https
+         */
+        public void onRequestStart(boolean isHttps)
+        {
+            _outstanding.incrementAndGet();
+            String scheme = (isHttps ? HttpSchemes.HTTPS : HttpSchemes.HTTP);
+            if (_scheme != scheme)
+                _scheme = scheme;
+        }
+
+        /**
+         * Counts a completed request of the content-server.
+         *
+         * @param micros latency of the request
+         * @param isFailed true when the request has failed
+         * @param currentTime current time
+         */
+        public void onRequestEnd(long micros, boolean isFailed, long currentTime)
+        {
+            onRequestCancel();
+
+            if (isFailed)
+                micros = Math.max(micros, FAILURE_IN_MICROS);
+            while (true)
+            {
+                long bits = _peakEwmaBits.get();
+                double ewma = decayedPeakEwma(Double.longBitsToDouble(bits), currentTime);
+                double updated = (micros >= ewma ? micros : ewma + (micros - ewma) * decayOf(currentTime, true));
+                if (_peakEwmaBits.compareAndSet(bits, Double.doubleToLongBits(updated)))
+                {
+                    _peakEwmaTime = currentTime;
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Counts a cancelled request of the content-server (its latency is unknown).
+         */
+        public void onRequestCancel()
+        {
+            while (true)
+            {
+                int outstanding = _outstanding.get();
+                if (outstanding <= 0 || _outstanding.compareAndSet(outstanding, outstanding - 1))
+                    break; // Not below 0 (a request started before the state was created).
+            }
+        }
+
+        /**
+         * @return the requests sent to the content-server and not completed yet
+         */
+        public int getOutstanding()
+        {
+            return _outstanding.get();
+        }
+
+        /**
+         * @param currentTime current time
+         * @return the peak-EWMA of the latencies in micro-seconds (0 when unknown)
+         */
+        public double getPeakEwmaMicros(long currentTime)
+        {
+            return decayedPeakEwma(Double.longBitsToDouble(_peakEwmaBits.get()), currentTime);
+        }
+
+        /**
+         * @return ewma decayed toward 0 since its last update (an idle content-server is tried again)
+         */
+        private double decayedPeakEwma(double ewma, long currentTime)
+        {
+            return ewma * (1 - decayOf(currentTime, false));
+        }
+
+        /**
+         * @param isUpdate true when weighting a new latency (at least the weight of a single latency)
+         * @return the weight of the time since the last update of the peak-EWMA
+         */
+        private double decayOf(long currentTime, boolean isUpdate)
+        {
+            double elapsed = Math.max(0, currentTime - _peakEwmaTime);
+            double weight = 1 - Math.exp(-elapsed / PEAK_EWMA_DECAY_IN_MILLIS);
+            return (isUpdate ? Math.max(weight, EWMA_ALPHA) : weight);
+        }
+
+        /**
+         * Ejects the content-server (does nothing when already ejected).
+         *
+         * @param currentTime current time
+         * @param reason displayed reason
+         */
+        private synchronized void eject(long currentTime, String reason)
+        {
+            if (_isEjected)
+                return;
+
+            _isEjected = true;
+            _ejections++;
+            _totalEjections++;
+            _reason = reason;
+            _ejectionEndTime = currentTime + ejectionMillisOf(_ejections);
+            _probeSuccesses = 0;
+            _resumeTime = 0;
+            System.out.println("SERVER: ejected content-server: " + address + " (" + reason + ") for " +
+                                (_ejectionEndTime - currentTime)/1000 + " seconds");
+        }
+
+        /**
+         * Resumes the usage of an ejected content-server (called when this is locked).
+         */
+        private void resume(long currentTime)
+        {
+            _isEjected = false;
+            _resumeTime = currentTime;
+            _consecutiveFailures = 0;
+            _probeFailures = 0;
+            _windowStartTime = currentTime;
+            _windowRequests = 0;
+            _windowFailures = 0;
+            _ewmaMicros = 0;
+            System.out.println("SERVER: resuming access to content-server: " + address);
+        }
+
+        /**
+         * Counts a request of a service (outlier detection).
+         */
+        private void recordResult(long micros, boolean isFailed, long currentTime)
+        {
+            String reason = null; // Not null when the content-server is an outlier.
+            boolean isWindowOver = false;
+            double ewmaMicros;
+            synchronized (this)
+            {
+                if (_isEjected)
+                    return; // A late response of a request sent before the ejection.
+
+                if (_ejections > 0 && currentTime - _resumeTime > _maxEjectionMillis)
+                    _ejections = 0; // Stable again: backoff is restarted.
+
+                _windowRequests++;
+                if (isFailed)
+                {
+                    _windowFailures++;
+                    _consecutiveFailures++;
+                    if (_maxConsecutiveFailures > 0 && _consecutiveFailures >= _maxConsecutiveFailures)
+                        reason = _consecutiveFailures + " consecutive failures";
+                }
+                else
+                {
+                    _consecutiveFailures = 0;
+                    _ewmaMicros = (_ewmaMicros == 0 ? micros : _ewmaMicros + EWMA_ALPHA * (micros - _ewmaMicros));
+                }
+
+                if (currentTime - _windowStartTime >= OUTLIER_WINDOW_IN_MILLIS)
+                {
+                    if (reason == null && _windowRequests >= _minRequests && _maxErrorPercent > 0 &&
+                            _windowFailures * 100 >= _maxErrorPercent * _windowRequests)
+                        reason = (_windowFailures * 100 / _windowRequests) + "% failures";
+                    isWindowOver = (_windowRequests >= _minRequests);
+                    _windowStartTime = currentTime;
+                    _windowRequests = 0;
+                    _windowFailures = 0;
+                }
+                ewmaMicros = _ewmaMicros;
+            }
+
+            // Comparing the latency with the latencies of the peers (outside of the lock of this):
+            if (reason == null && isWindowOver && _latencyFactor > 0 && ewmaMicros > 0)
+            {
+                double sum = 0;
+                int count = 0;
+                for (State peer : _peers)
+                {
+                    double peerMicros = (peer != this && peer.isAvailable(currentTime) ? peer.getEwmaMicros() : 0);
+                    if (peerMicros > 0)
+                    {
+                        sum += peerMicros;
+                        count++;
+                    }
+                }
+                if (count > 0 && ewmaMicros > _latencyFactor * sum / count)
+                    reason = "latency " + (long)(ewmaMicros / 1000) + "ms, peers " + (long)(sum / count / 1000) + "ms";
+            }
+
+            if (reason != null && hasAvailablePeer(currentTime))
+                eject(currentTime, reason);
+        }
+
+        private synchronized double getEwmaMicros()
+        {
+            return _ewmaMicros;
+        }
+
+        /**
+         * @return true when another content-server of the host is available
+         */
+        private boolean hasAvailablePeer(long currentTime)
+        {
+            for (State peer : _peers)
+            {
+                if (peer != this && peer.isAvailable(currentTime))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Schedules the next probe and sends a probe to the content-server.
+         */
+        private void probe()
+        {
+            if (_isRemoved)
+                return;
+
+            int interval = _checkInterval;
+            long delay = (interval > 0 ? interval : 10) * 1000L;
+            _probe = _wheel.schedule(_prober, delay + (long)((_random.nextDouble() - 0.5) * delay / 5));
+
+            HttpClient client = _client;
+            String scheme = _scheme;
+            if (interval == 0 || client == null || scheme == null)
+                return; // Not requested yet: the scheme of the content-server is unknown.
+
+            synchronized (this)
+            {
+                if (_isEjected && System.currentTimeMillis() < _ejectionEndTime)
+                    return; // Ejected: probed after the ejection time.
+            }
+
+            ProbeExchange exchange = new ProbeExchange(this);
+            exchange.setMethod("GET");
+            boolean isHttps = (scheme == HttpSchemes.HTTPS);
+            exchange.setScheme(scheme);
+            exchange.setAddress(Address.from(isHttps ? _httpsAddress : _httpAddress));
+            exchange.setRequestURI(_checkPath);
+            exchange.addRequestHeader("Host", _host);
+            exchange.setTimeout(_checkTimeout);
+            try
+            {
+                client.send(exchange);
+            }
+            catch (IOException e)
+            {
+                onProbeResult(false);
+            }
+        }
+
+        /**
+         * Called when a probe is completed.
+         *
+         * @param isHealthy true when the content-server has responded without a 5xx status
+         */
+        private synchronized void onProbeResult(boolean isHealthy)
+        {
+            long currentTime = System.currentTimeMillis();
+            if (isHealthy)
+            {
+                _probeFailures = 0;
+                _probeSuccesses++;
+                if (_isEjected && currentTime >= _ejectionEndTime && _probeSuccesses >= _healthyProbes)
+                    resume(currentTime);
+            }
+            else
+            {
+                _probeSuccesses = 0;
+                _probeFailures++;
+                if (_isEjected)
+                {
+                    if (currentTime >= _ejectionEndTime)
+                    {
+                        // Still unhealthy, ejected for a longer time:
+                        _ejections++;
+                        _ejectionEndTime = currentTime + ejectionMillisOf(_ejections);
+                    }
+                }
+                else if (_probeFailures >= _unhealthyProbes)
+                {
+                    eject(currentTime, _probeFailures + " failed health checks");
+                }
+            }
+        }
+
+        /**
+         * @return the health of the content-server (0 ejected, 1 in slow-start, 2 healthy)
+         */
+        public synchronized int getHealth()
+        {
+            if (_isEjected)
+                return 0;
+            long elapsed = System.currentTimeMillis() - _resumeTime;
+            return (_resumeTime != 0 && elapsed < _slowStartMillis && elapsed >= 0 ? 1 : 2);
+        }
+
+        public synchronized long getTotalEjections()
+        {
+            return _totalEjections;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            long currentTime = System.currentTimeMillis();
+            StringBuilder sb = new StringBuilder(128);
+            sb.append(address).append(": ");
+            if (_isEjected)
+            {
+                sb.append("ejected (").append(_reason).append(")");
+                if (currentTime < _ejectionEndTime)
+                    sb.append(" for ").append((_ejectionEndTime - currentTime) / 1000).append(" seconds");
+                else
+                    sb.append(" waiting for health checks");
+            }
+            else if (getHealth() == 1)
+            {
+                sb.append("slow-start");
+            }
+            else
+            {
+                sb.append("healthy");
+            }
+            sb.append(", latency ").append((long)(_ewmaMicros / 1000)).append("ms");
+            sb.append(", outstanding ").append(_outstanding.get());
+            sb.append(", ejections ").append(_totalEjections);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A probe of a content-server (its content is ignored).
+     */
+    private static class ProbeExchange extends HttpExchange
+    {
+        private final State _state;
+        private int _status = 0;
+        private final AtomicBoolean _isDone = new AtomicBoolean(false);
+
+        public ProbeExchange(State state)
+        {
+            _state = state;
+        }
+
+        @Override
+        protected void onResponseStatus(Buffer version, int status, Buffer reason)
+        {
+            _status = status;
+        }
+
+        @Override
+        protected void onResponseComplete()
+        {
+            done(0 < _status && _status < 500);
+        }
+
+        @Override
+        protected void onConnectionFailed(Throwable ex)
+        {
+            done(false);
+        }
+
+        @Override
+        protected void onException(Throwable ex)
+        {
+            done(false);
+        }
+
+        @Override
+        protected void onExpire()
+        {
+            done(false);
+        }
+
+        private void done(boolean isHealthy)
+        {
+            if (_isDone.compareAndSet(false, true))
+                _state.onProbeResult(isHealthy);
+        }
+    }
+
+    /**
+     * @param ejections number of ejections since the content-server has been stable
+     * @return milli-seconds of the ejection (doubled on each ejection)
+     */
+    private static long ejectionMillisOf(int ejections)
+    {
+        return Math.min(_maxEjectionMillis, _ejectionMillis << Math.min(ejections - 1, 20));
+    }
+
+    /**
+     * Called by HtmlSpeedServlet when its http-client is created.
+     *
+     * @param client used for probing the content-servers
+     */
+    public static void setClient(HttpClient client)
+    {
+        _client = client;
+    }
+
+    /**
+     * Sets the active checking.
+     *
+     * @param interval seconds between probes of a content-server, 0 disables probing (property health.check.interval)
+     * @param path the requested path (property health.check.path)
+     * @param timeout milli-seconds until a probe fails (property health.check.timeout)
+     * @param unhealthyProbes failed probes ejecting a content-server (property health.check.unhealthy)
+     * @param healthyProbes successful probes resuming a content-server (property health.check.healthy)
+     */
+    public static void setChecks(int interval, String path, int timeout, int unhealthyProbes, int healthyProbes)
+    {
+        _checkInterval = Math.max(0, interval);
+        _checkPath = (path != null && path.startsWith("/") ? path : "/");
+        _checkTimeout = Math.max(1, timeout);
+        _unhealthyProbes = Math.max(1, unhealthyProbes);
+        _healthyProbes = Math.max(1, healthyProbes);
+    }
+
+    /**
+     * Sets the outlier detection (0 disables a check).
+     *
+     * @param maxConsecutiveFailures property outlier.consecutive.failures
+     * @param maxErrorPercent property outlier.error.percent
+     * @param minRequests property outlier.min.requests
+     * @param latencyFactor property outlier.latency.factor
+     * @param ejectionTime seconds of the first ejection (property outlier.ejection.time)
+     * @param maxEjectionTime max seconds of an ejection (property outlier.ejection.max.time)
+     * @param slowStart seconds of the slow-start of a resumed content-server (property slow.start)
+     */
+    public static void setOutlierDetection(
+                                            int maxConsecutiveFailures,
+                                            int maxErrorPercent,
+                                            int minRequests,
+                                            int latencyFactor,
+                                            int ejectionTime,
+                                            int maxEjectionTime,
+                                            int slowStart)
+    {
+        _maxConsecutiveFailures = Math.max(0, maxConsecutiveFailures);
+        _maxErrorPercent = Math.max(0, maxErrorPercent);
+        _minRequests = Math.max(1, minRequests);
+        _latencyFactor = Math.max(0, latencyFactor);
+        _ejectionMillis = Math.max(1, ejectionTime) * 1000L;
+        _maxEjectionMillis = Math.max(ejectionTime, maxEjectionTime) * 1000L;
+        _slowStartMillis = Math.max(0, slowStart) * 1000L;
+    }
+
+    /**
+     * Returns the states of the content-servers of a host (called by ServiceUtils.setHostInfo).
+     * The state of an address that is already known is kept. The peers of an address that
+     * serves several hosts of the host-info are the content-servers of all these hosts, and
+     * its probes are sent to its first host.
+     *
+     * @param host the Host of the probes
+     * @param addresses the addresses of the content-servers of host
+     * @return the states of addresses
+     */
+    public static synchronized State[] statesOf(String host, String[] addresses)
+    {
+        State[] states = new State[addresses.length];
+        for (int i = 0 ; i < addresses.length ; i++)
+        {
+            State state = _states.get(addresses[i]);
+            if (state == null || !state.address.equals(addresses[i]))
+            {
+                final State newState = new State(addresses[i]);
+                _states.put(newState.address, newState);
+                _states.put(newState._httpAddress, newState);
+                _states.put(newState._httpsAddress, newState);
+                newState._probe = _wheel.schedule(newState._prober, 1000 + (long)(_random.nextDouble() * _checkInterval * 1000));
+
+                String labels = "server=\"" + newState.address + '"';
+                Metrics.gauge("htmlspeed_content_server_health", labels, "Health of content-server (0 ejected, 1 slow-start, 2 healthy)",
+                    new Metrics.Gauge()
+                    {
+                        @Override
+                        public long get()
+                        {
+                            return newState.getHealth();
+                        }
+                    });
+                Metrics.gauge("htmlspeed_content_server_ejections", labels, "Ejections of content-server",
+                    new Metrics.Gauge()
+                    {
+                        @Override
+                        public long get()
+                        {
+                            return newState.getTotalEjections();
+                        }
+                    });
+                Metrics.gauge("htmlspeed_content_server_outstanding", labels, "Outstanding requests of content-server",
+                    new Metrics.Gauge()
+                    {
+                        @Override
+                        public long get()
+                        {
+                            return newState.getOutstanding();
+                        }
+                    });
+                state = newState;
+            }
+            states[i] = state;
+        }
+
+        for (State state : states)
+        {
+            if (state._generation != _hostInfoGeneration)
+            {
+                state._generation = _hostInfoGeneration;
+                state._host = host;
+                state._peers = states;
+            }
+            else
+            {
+                state._peers = union(state._peers, states); // Another host of the content-server.
+            }
+        }
+
+        return states;
+    }
+
+    /**
+     * @return the states of peers and of states (each state once)
+     */
+    private static State[] union(State[] peers, State[] states)
+    {
+        ArrayList<State> union = new ArrayList<State>(peers.length + states.length);
+        union.addAll(Arrays.asList(peers));
+        for (State state : states)
+        {
+            if (!union.contains(state))
+                union.add(state);
+        }
+        return union.toArray(new State[union.size()]);
+    }
+
+    /**
+     * Stops checking the content-servers that are not in the host-info any more
+     * (called by ServiceUtils.setHostInfo when the states of all its hosts are set).
+     *
+     * @param states the states of all the content-servers of the host-info
+     */
+    public static synchronized void retainOnly(ArrayList<State> states)
+    {
+        _hostInfoGeneration++; // The next host-info sets new peers.
+
+        HashSet<State> retained = new HashSet<State>(states);
+        for (State state : new HashSet<State>(_states.values()))
+        {
+            if (!retained.contains(state))
+            {
+                state._isRemoved = true;
+                TimerWheel.Timeout probe = state._probe;
+                if (probe != null)
+                    _wheel.cancel(probe);
+                _states.remove(state.address, state);
+                _states.remove(state._httpAddress, state);
+                _states.remove(state._httpsAddress, state);
+                String labels = "server=\"" + state.address + '"';
+                Metrics.remove("htmlspeed_content_server_health", labels);
+                Metrics.remove("htmlspeed_content_server_ejections", labels);
+                Metrics.remove("htmlspeed_content_server_outstanding", labels);
+            }
+        }
+    }
+
+    /**
+     * @param address the address of a content-server (as in host-info or ip:port)
+     * @return the state of the content-server (null when not in host-info)
+     */
+    public static State stateOf(String address)
+    {
+        return (address != null ? _states.get(address) : null);
+    }
+
+    /**
+     * Counts a request sent to a content-server (called by ServiceUtils.setExchangeDestParams).
+     *
+     * @param address ip:port of the content-server
+     * @param isHttps true when the request is sent by https
+     */
+    public static void recordStart(String address, boolean isHttps)
+    {
+        State state = stateOf(address);
+        if (state != null)
+            state.onRequestStart(isHttps);
+    }
+
+    /**
+     * Counts a completed request of a content-server (called by HtmlSpeedHttpExchange).
+     *
+     * @param address ip:port of the content-server
+     * @param micros latency of the request
+     * @param isFailed true when the request has failed (5xx, communication failure or timeout)
+     */
+    public static void recordResult(String address, long micros, boolean isFailed)
+    {
+        State state = stateOf(address);
+        if (state != null)
+        {
+            long currentTime = System.currentTimeMillis();
+            state.onRequestEnd(micros, isFailed, currentTime);
+            state.recordResult(micros, isFailed, currentTime);
+        }
+    }
+
+    /**
+     * Counts a cancelled request of a content-server (called by HtmlSpeedHttpExchange).
+     *
+     * @param address ip:port of the content-server
+     */
+    public static void recordCancel(String address)
+    {
+        State state = stateOf(address);
+        if (state != null)
+            state.onRequestCancel();
+    }
+
+    /**
+     * Ejects a content-server whose communication has failed, unless all the other
+     * content-servers of its hosts are unavailable.
+     *
+     * @param address the address of the content-server (as in host-info or ip:port)
+     */
+    public static void reportFailure(String address)
+    {
+        State state = stateOf(address);
+        long currentTime = System.currentTimeMillis();
+        if (state != null && state.hasAvailablePeer(currentTime))
+            state.eject(currentTime, "communication failure");
+    }
+
+    /**
+     * Stops the probes (called by HtmlSpeedServlet.destroy()).
+     */
+    public static void stop()
+    {
+        _wheel.stop();
+    }
+
+    /**
+     * @return health of each content-server (reported by /htmlspeed/cache-stats)
+     */
+    public static synchronized String getStats()
+    {
+        TreeMap<String, State> sorted = new TreeMap<String, State>();
+        for (State state : _states.values())
+            sorted.put(state.address, state);
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("content-servers:");
+        for (State state : sorted.values())
+            sb.append("\n  ").append(state.toString());
+        return sb.toString();
+    }
+}
@@ -16,10 +16,21 @@ package com.htmlspeed.server;
  */
 public class CssRsrc extends Rsrc
 {
+    private static final long serialVersionUID = 1L; // See Rsrc.
+
     public boolean isInIEComment; // True when stylesheet is inside IE comment.
     public boolean isOptimized; // True after referenced images are inlined in the stylesheet.
     public boolean isInlinable; // True when stylesheet can be inlined in page.
 
+    /**
+     * @return true (origData is inlined in pages thus kept on heap).
+     */
+    @Override
+    protected boolean isOrigDataInlined()
+    {
+        return true;
+    }
+
     /**
      * Initializing isInlinable by scaning origData.
      *
@@ -0,0 +1,742 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DiskStore
+ *
+ * The second (disk) tier of the cache-structure. Resources evicted from
+ * memory by RsrcsList are demoted to the disk-store, and resources missing
+ * in memory are promoted back from it (see ServiceUtils.getFromCache).
+ *
+ * Resources are serialized into memory-mapped segment-files which are
+ * written sequentially. Each record holds the keys of the resource (in the
+ * format of ServiceUtils.toKey), so the index is reloaded on startup by
+ * scanning the segment-files, and cached resources (including their
+ * maxFreshTime and version-urls) survive a restart of the server.
+ * When the disk-store exceeds its maximum size, the oldest segment-file is
+ * dropped with all the resources it holds.
+ *
+ * Evicted resources are written by a background thread (at most MAX_QUEUED_DEMOTIONS
+ * are queued, further evicted resources are not demoted). When the server stops, the
+ * resources cached in memory are written too (see ServiceUtils.persistCachedRsrcs).
+ */
+public class DiskStore
+{
+    /**
+     * First int of each record (written last, so partially written records are ignored).
+     */
+    private static final int MAGIC = 0x48534453;
+
+    /**
+     * Size of record header: magic, record-length, meta-length.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Minimum/maximum size in bytes of a segment-file.
+     */
+    private static final int MIN_SEGMENT_SIZE = 1024*1024;
+    private static final int MAX_SEGMENT_SIZE = 64*1024*1024;
+
+    /**
+     * Max number of evicted resources waiting to be written.
+     */
+    private static final int MAX_QUEUED_DEMOTIONS = 256;
+
+    /**
+     * Max number of milli-seconds to wait for the queued demotions when the server stops.
+     */
+    private static final long FLUSH_TIMEOUT_IN_MILLIS = 30000;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    /**
+     * Open disk-stores by canonical path of directory (a directory is only used by a single store,
+     * also after the configuration is reloaded).
+     */
+    private static final HashMap<String, DiskStore> _stores = new HashMap<String, DiskStore>();
+
+    /**
+     * Writes the demoted resources of all the disk-stores (off the threads that evict them).
+     */
+    private static final ThreadPoolExecutor _writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                                            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_DEMOTIONS),
+                                                            new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "HtmlSpeedDiskWriter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A memory-mapped segment-file.
+     */
+    private static class Segment
+    {
+        int number; // Number of segment-file (segments are written by increasing numbers).
+        File file;
+        MappedByteBuffer buffer;
+        volatile boolean isDropped; // True after the segment-file has been deleted.
+        final AtomicInteger refs = new AtomicInteger(1); // Store + readers, unmapped when 0.
+
+        /**
+         * @return true when the segment can be read (release it after reading)
+         */
+        boolean acquire()
+        {
+            for (;;)
+            {
+                int r = refs.get();
+                if (r == 0)
+                    return false; // Dropped and unmapped.
+                if (refs.compareAndSet(r, r + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Releases the segment (unmapped by its last release).
+         */
+        void release()
+        {
+            if (refs.decrementAndGet() == 0)
+                unmap(buffer);
+        }
+    }
+
+    /**
+     * Location of a serialized resource.
+     */
+    private static class Entry
+    {
+        Segment segment;
+        int offset; // Offset of serialized resource in segment.
+        int length; // Length of serialized resource.
+        long maxFreshTime; // maxFreshTime of resource when demoted.
+        String md5; // origMd5 of resource when demoted.
+    }
+
+    /**
+     * The directory of the segment-files.
+     */
+    private final File _dir;
+
+    /**
+     * Maximum total size in bytes of all segment-files.
+     */
+    private volatile long _maxSize;
+
+    /**
+     * Size in bytes of new segment-files.
+     */
+    private final int _segmentSize;
+
+    /**
+     * The index: from key (ServiceUtils.toKey) to location of resource.
+     */
+    private final ConcurrentHashMap<String, Entry> _index = new ConcurrentHashMap<String, Entry>(8*1024, 0.75f, 64);
+
+    /**
+     * Segments from oldest to newest (last one is written). Guarded by this.
+     */
+    private final LinkedList<Segment> _segments = new LinkedList<Segment>();
+
+    /**
+     * Offset of next record in last segment. Guarded by this.
+     */
+    private int _writePos;
+
+    /**
+     * Returns the disk-store of directory dirPath, opening it (and loading its index) when not open.
+     *
+     * @param dirPath directory of the segment-files (created when missing)
+     * @param maxSize maximum total size in bytes of all segment-files
+     * @return the disk-store
+     * @throws IOException when the directory can't be used
+     */
+    public static DiskStore open(String dirPath, long maxSize) throws IOException
+    {
+        File dir = new File(dirPath).getCanonicalFile();
+        synchronized (_stores)
+        {
+            DiskStore store = _stores.get(dir.getPath());
+            if (store == null)
+            {
+                store = new DiskStore(dir, maxSize);
+                _stores.put(dir.getPath(), store);
+            }
+            else
+            {
+                store._maxSize = maxSize;
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Waits for the queued demotions, then flushes and closes all open disk-stores
+     * (called when the server stops).
+     */
+    public static void closeAll()
+    {
+        try
+        {
+            Future<?> flushed = _writer.submit(new Runnable()
+            {
+                public void run()
+                {
+                    // Executed after all the queued demotions.
+                }
+            });
+            flushed.get(FLUSH_TIMEOUT_IN_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (Exception e)
+        {
+            System.out.println("DiskStore: queued resources not written, " + e);
+        }
+
+        synchronized (_stores)
+        {
+            for (DiskStore store : _stores.values())
+                store.close();
+            _stores.clear();
+        }
+    }
+
+    /**
+     * CONSTRUCTOR: loads the index from existing segment-files of dir.
+     *
+     * @param dir directory of the segment-files
+     * @param maxSize maximum total size in bytes of all segment-files
+     */
+    private DiskStore(File dir, long maxSize) throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create directory " + dir.getPath());
+
+        _dir = dir;
+        _maxSize = maxSize;
+        _segmentSize = (int)Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxSize / 8));
+
+        loadIndex();
+    }
+
+    /**
+     * @return the directory of the segment-files
+     */
+    public String getDirPath()
+    {
+        return _dir.getPath();
+    }
+
+    /**
+     * @return number of keys in the index
+     */
+    public int getCount()
+    {
+        return _index.size();
+    }
+
+    /**
+     * @return number of bytes in all segment-files
+     */
+    public synchronized long getSize()
+    {
+        long size = 0;
+        for (Segment segment : _segments)
+            size += segment.buffer.capacity();
+        return size;
+    }
+
+    /**
+     * Queues rsrc to be written into the disk-store (called when rsrc is evicted from memory).
+     * The off-heap buffers of rsrc are retained until it is written.
+     *
+     * @param rsrc the demoted resource
+     * @param keys keys of rsrc in the cache-structure (see ServiceUtils.toKey)
+     */
+    public void demote(final Rsrc rsrc, final String[] keys)
+    {
+        if (isStored(rsrc, keys))
+            return;
+
+        final OffHeapBuffer[] retained = rsrc.retainOffHeap();
+        if (retained == null)
+            return; // Off-heap buffers of rsrc have already been released.
+
+        Runnable writer = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    persist(rsrc, keys);
+                }
+                finally
+                {
+                    release(retained);
+                }
+            }
+        };
+
+        try
+        {
+            _writer.execute(writer);
+        }
+        catch (RejectedExecutionException e)
+        {
+            release(retained); // Too many queued demotions.
+        }
+    }
+
+    /**
+     * Writes rsrc into the disk-store (by the current thread).
+     *
+     * @param rsrc the written resource
+     * @param keys keys of rsrc in the cache-structure (see ServiceUtils.toKey)
+     */
+    public void persist(Rsrc rsrc, String[] keys)
+    {
+        if (isStored(rsrc, keys))
+            return;
+
+        byte[] data;
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(rsrc.getTotalTimedBuffersSize() + 1024);
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(rsrc);
+            oos.close();
+            data = bos.toByteArray();
+        }
+        catch (IOException e)
+        {
+            return; // E.g. off-heap buffers of rsrc have already been released.
+        }
+
+        append(keys, rsrc.maxFreshTime, rsrc.origMd5, data);
+    }
+
+    /**
+     * @param rsrc a resource
+     * @param keys keys of rsrc in the cache-structure
+     * @return true when rsrc is in the disk-store (not modified since promoted from it)
+     */
+    private boolean isStored(Rsrc rsrc, String[] keys)
+    {
+        Entry prev = _index.get(keys[0]);
+        return prev != null && prev.maxFreshTime == rsrc.maxFreshTime &&
+                    (rsrc.origMd5 == null ? prev.md5 == null : rsrc.origMd5.equals(prev.md5));
+    }
+
+    /**
+     * @param buffers buffers retained by Rsrc.retainOffHeap
+     */
+    private static void release(OffHeapBuffer[] buffers)
+    {
+        for (OffHeapBuffer buffer : buffers)
+        {
+            if (buffer != null)
+                buffer.release();
+        }
+    }
+
+    /**
+     * Reads a resource from the disk-store (the resource stays in the disk-store).
+     *
+     * @param key key of resource (see ServiceUtils.toKey)
+     * @return a new instance of the resource (null when not found)
+     */
+    public Rsrc load(String key)
+    {
+        Entry entry = _index.get(key);
+        if (entry == null)
+            return null;
+
+        if (!entry.segment.acquire())
+            return null;
+        byte[] data = new byte[entry.length];
+        try
+        {
+            ByteBuffer src = entry.segment.buffer.duplicate();
+            src.position(entry.offset);
+            src.get(data);
+        }
+        finally
+        {
+            entry.segment.release();
+        }
+        if (entry.segment.isDropped)
+            return null;
+
+        try
+        {
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+            Object obj = ois.readObject();
+            ois.close();
+            if (obj instanceof Rsrc)
+                return (Rsrc)obj;
+        }
+        catch (IOException e)
+        {
+            // Written by an incompatible version of the server.
+        }
+        catch (ClassNotFoundException e)
+        {
+        }
+        _index.remove(key, entry);
+        return null;
+    }
+
+    /**
+     * Removes a resource from the disk-store.
+     *
+     * @param key key of resource (see ServiceUtils.toKey)
+     */
+    public void remove(String key)
+    {
+        if (_index.remove(key) != null)
+            append(new String[] {key}, 0, null, null); // So it isn't reloaded on startup.
+    }
+
+    /**
+     * Removes all resources from the disk-store.
+     */
+    public synchronized void clear()
+    {
+        _index.clear();
+        int number = _segments.isEmpty() ? 0 : _segments.getLast().number + 1;
+        while (!_segments.isEmpty())
+            dropSegment(_segments.removeFirst());
+        try
+        {
+            addSegment(number);
+        }
+        catch (IOException e)
+        {
+            System.out.println("DiskStore: " + e);
+        }
+    }
+
+    /**
+     * Flushes the written segment-file to disk.
+     */
+    public synchronized void close()
+    {
+        if (!_segments.isEmpty())
+            _segments.getLast().buffer.force();
+    }
+
+    /**
+     * Appends a record to the last segment.
+     *
+     * @param keys keys of resource
+     * @param maxFreshTime maxFreshTime of resource
+     * @param md5 origMd5 of resource
+     * @param data serialized resource (null for removal of keys)
+     */
+    private synchronized void append(String[] keys, long maxFreshTime, String md5, byte[] data)
+    {
+        byte[] meta;
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeLong(maxFreshTime);
+            dos.writeUTF(md5 == null ? "" : md5);
+            dos.writeBoolean(data != null);
+            dos.writeShort(keys.length);
+            for (String key : keys)
+                dos.writeUTF(key);
+            dos.close();
+            meta = bos.toByteArray();
+        }
+        catch (IOException e)
+        {
+            return; // Key too long.
+        }
+
+        int recordLen = meta.length + (data == null ? 0 : data.length);
+        if (HEADER_SIZE + recordLen > _segmentSize || _segments.isEmpty())
+            return; // Too large (or store is unusable).
+
+        try
+        {
+            if (_writePos + HEADER_SIZE + recordLen > _segments.getLast().buffer.capacity())
+            {
+                _segments.getLast().buffer.force();
+                addSegment(_segments.getLast().number + 1);
+                while (_segments.size() > 1 && getSize() > _maxSize)
+                    dropSegment(_segments.removeFirst());
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("DiskStore: " + e);
+            return;
+        }
+
+        Segment segment = _segments.getLast();
+        ByteBuffer dst = segment.buffer.duplicate();
+        dst.position(_writePos + 4);
+        dst.putInt(recordLen);
+        dst.putInt(meta.length);
+        dst.put(meta);
+        if (data != null)
+            dst.put(data);
+        segment.buffer.putInt(_writePos, MAGIC);
+
+        if (data != null)
+        {
+            for (String key : keys)
+            {
+                Entry entry = new Entry();
+                entry.segment = segment;
+                entry.offset = _writePos + HEADER_SIZE + meta.length;
+                entry.length = data.length;
+                entry.maxFreshTime = maxFreshTime;
+                entry.md5 = md5;
+                _index.put(key, entry);
+            }
+        }
+
+        _writePos += HEADER_SIZE + recordLen;
+    }
+
+    /**
+     * Loads the index by scanning the existing segment-files (oldest first).
+     */
+    private synchronized void loadIndex() throws IOException
+    {
+        File[] files = _dir.listFiles();
+        int[] numbers = new int[files == null ? 0 : files.length];
+        int count = 0;
+        for (int i = 0 ; i < numbers.length ; i++)
+        {
+            String name = files[i].getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+            {
+                try
+                {
+                    numbers[count++] = Integer.parseInt(
+                                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                }
+                catch (NumberFormatException e)
+                {
+                }
+            }
+        }
+        Arrays.sort(numbers, 0, count);
+
+        for (int i = 0 ; i < count ; i++)
+        {
+            Segment segment = mapSegment(numbers[i], 0);
+            _segments.add(segment);
+            _writePos = scanSegment(segment);
+        }
+
+        if (_segments.isEmpty())
+            addSegment(0);
+
+        while (_segments.size() > 1 && getSize() > _maxSize)
+            dropSegment(_segments.removeFirst());
+    }
+
+    /**
+     * Adds the records of segment to the index. The scan stops at the first truncated
+     * or corrupted record (e.g. written when the server crashed), the next record
+     * is written in its place.
+     *
+     * @param segment a segment-file
+     * @return offset after last valid record in segment
+     */
+    private int scanSegment(Segment segment)
+    {
+        MappedByteBuffer buffer = segment.buffer;
+        int pos = 0;
+        ArrayList<String> keys = new ArrayList<String>();
+        while (pos + HEADER_SIZE <= buffer.capacity() && buffer.getInt(pos) == MAGIC)
+        {
+            int recordLen = buffer.getInt(pos + 4);
+            int metaLen = buffer.getInt(pos + 8);
+            if (recordLen < metaLen || metaLen <= 0 || pos + HEADER_SIZE + recordLen > buffer.capacity())
+                break; // Corrupted record.
+
+            byte[] meta = new byte[metaLen];
+            ByteBuffer src = buffer.duplicate();
+            src.position(pos + HEADER_SIZE);
+            src.get(meta);
+
+            long maxFreshTime;
+            String md5;
+            boolean isRemoved;
+            keys.clear();
+            try
+            {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(meta));
+                maxFreshTime = dis.readLong();
+                md5 = dis.readUTF();
+                isRemoved = !dis.readBoolean();
+                int keysCount = dis.readShort();
+                for (int k = 0 ; k < keysCount ; k++)
+                    keys.add(dis.readUTF());
+            }
+            catch (IOException e)
+            {
+                System.out.println("DiskStore: corrupted record at " + pos + " of " + segment.file.getPath());
+                break;
+            }
+
+            for (String key : keys)
+            {
+                if (isRemoved)
+                {
+                    _index.remove(key);
+                }
+                else
+                {
+                    Entry entry = new Entry();
+                    entry.segment = segment;
+                    entry.offset = pos + HEADER_SIZE + metaLen;
+                    entry.length = recordLen - metaLen;
+                    entry.maxFreshTime = maxFreshTime;
+                    entry.md5 = md5.length() == 0 ? null : md5;
+                    _index.put(key, entry);
+                }
+            }
+
+            pos += HEADER_SIZE + recordLen;
+        }
+        return pos;
+    }
+
+    /**
+     * Creates a new (last) segment-file.
+     *
+     * @param number number of the new segment-file
+     */
+    private void addSegment(int number) throws IOException
+    {
+        _segments.add(mapSegment(number, _segmentSize));
+        _writePos = 0;
+    }
+
+    /**
+     * Maps a segment-file into memory.
+     *
+     * @param number number of segment-file
+     * @param size size of a new segment-file (0 for an existing segment-file)
+     * @return the mapped segment-file
+     */
+    private Segment mapSegment(int number, int size) throws IOException
+    {
+        Segment segment = new Segment();
+        segment.number = number;
+        segment.file = new File(_dir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+        try
+        {
+            if (size > 0)
+                raf.setLength(size);
+            segment.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        finally
+        {
+            raf.close(); // The mapping stays valid.
+        }
+        return segment;
+    }
+
+    /**
+     * Removes the entries of segment from the index and deletes its file.
+     *
+     * @param segment the dropped segment (already removed from _segments)
+     */
+    private void dropSegment(Segment segment)
+    {
+        segment.isDropped = true;
+        for (Iterator<Map.Entry<String, Entry>> it = _index.entrySet().iterator() ; it.hasNext() ;)
+        {
+            if (it.next().getValue().segment == segment)
+                it.remove();
+        }
+        segment.release(); // Unmapped now, or by the last reader.
+        if (!segment.file.delete())
+            System.out.println("DiskStore: can't delete " + segment.file.getPath());
+    }
+
+    /**
+     * Releases the memory-mapping of a dropped segment-file now, instead of when
+     * the buffer is collected (by sun.misc.Unsafe.invokeCleaner of Java 9+, or by
+     * the cleaner of the buffer in Java 8). The buffer must not be used after.
+     *
+     * @param buffer the mapped segment-file
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = null;
+            try
+            {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Java 8:
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        }
+        catch (Exception e)
+        {
+            // Unmapped when the buffer is collected.
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodings
+ *
+ * Pre-encoded representations of cached resources (property content.encoders).
+ *
+ * When a resource with a gziped body is cached, its body is encoded once in the
+ * background by each configured ContentEncoder (at maximal compression). Cache hits
+ * return the smallest representation accepted by the Accept-Encoding of the browser
+ * instead of the gziped body (see ServiceUtils.tryToUseCachedRsrc).
+ *
+ * The built-in encoder "gzip" gzips at the best compression level (the bodies gziped
+ * while servicing use the faster default level). Other encoders (e.g. br, zstd) are
+ * plugged in by class-name, so their native libraries are not needed by HtmlSpeed.
+ *
+ * The representations are accounted in the size of the cache (see RsrcsList).
+ */
+public class Encodings
+{
+    /**
+     * Max number of resources waiting to be encoded (more are not encoded).
+     */
+    private static final int MAX_QUEUED = 1000;
+
+    /**
+     * Bodies shorter than that are not encoded.
+     */
+    private static final int MIN_ENCODED_LEN = 1024;
+
+    /**
+     * Marks resources that have been queued (representations are not produced twice).
+     */
+    private static final Representation[] NONE = new Representation[0];
+
+    /**
+     * A pre-encoded representation of a resource.
+     */
+    public static class Representation
+    {
+        /**
+         * Content-coding of body (e.g. "br").
+         */
+        public final String encoding;
+
+        /**
+         * The encoded body.
+         */
+        public final byte[] body;
+
+        public Representation(String encoding, byte[] body)
+        {
+            this.encoding = encoding;
+            this.body = body;
+        }
+    }
+
+    /**
+     * The built-in encoder: gzip at the best compression level.
+     */
+    private static class BestGzipEncoder implements ContentEncoder
+    {
+        public String getEncoding()
+        {
+            return "gzip";
+        }
+
+        public byte[] encode(byte[] data)
+        {
+            return GzipCodec.gzip(data, GzipCodec.BEST);
+        }
+    }
+
+    private static volatile ContentEncoder[] _encoders = {};
+
+    private static final ThreadPoolExecutor _pool;
+
+    static
+    {
+        final AtomicInteger threadNum = new AtomicInteger();
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        _pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+                                    new ThreadFactory()
+                                    {
+                                        public Thread newThread(Runnable r)
+                                        {
+                                            Thread thread = new Thread(r, "Encodings-" + threadNum.incrementAndGet());
+                                            thread.setDaemon(true);
+                                            thread.setPriority(Thread.MIN_PRIORITY);
+                                            return thread;
+                                        }
+                                    });
+        _pool.allowCoreThreadTimeOut(true);
+    }
+
+    private static final AtomicLong _encoded = new AtomicLong(); // Number of encoded resources.
+    private static final AtomicLong _representations = new AtomicLong(); // Number of kept representations.
+    private static final AtomicLong _noRoom = new AtomicLong(); // Representations dropped for lack of room.
+    private static final AtomicLong _served = new AtomicLong(); // Cache hits served by a representation.
+    private static final AtomicLong _savedBytes = new AtomicLong(); // Bytes saved by served representations.
+
+    /**
+     * Sets the encoders (property content.encoders).
+     *
+     * @param names comma separated list of "gzip" and of class-names of ContentEncoder
+     *      implementations (null or "none" for no encoders, the default)
+     */
+    public static void setEncoders(String names)
+    {
+        if (names == null)
+            names = "none";
+
+        ArrayList<ContentEncoder> encoders = new ArrayList<ContentEncoder>();
+        for (String name : names.split(","))
+        {
+            name = name.trim();
+            if (name.length() == 0 || name.equalsIgnoreCase("none"))
+                continue;
+
+            if (name.equalsIgnoreCase("gzip"))
+            {
+                encoders.add(new BestGzipEncoder());
+                continue;
+            }
+
+            try
+            {
+                Class<? extends ContentEncoder> encoderClass = Class.forName(name).asSubclass(ContentEncoder.class);
+                encoders.add(encoderClass.getDeclaredConstructor().newInstance());
+            }
+            catch (Throwable e)
+            {
+                System.out.println("Illegal property: content.encoders " + name + " " + e);
+            }
+        }
+
+        _encoders = encoders.toArray(new ContentEncoder[encoders.size()]);
+    }
+
+    /**
+     * Queues the production of the representations of a cached resource.
+     *
+     * @param rsrc a resource that has been added to the cache
+     * @param configData used configuration
+     */
+    public static void encodeLater(final Rsrc rsrc, final ConfigData configData)
+    {
+        if (_encoders.length == 0 || rsrc.representations != null ||
+                rsrc instanceof ImageRsrc || rsrc instanceof FlashRsrc ||
+                (!rsrc.hasOptimGzip() && !rsrc.hasOrigGzip()))
+            return;
+
+        synchronized (rsrc)
+        {
+            if (rsrc.representations != null)
+                return;
+            rsrc.representations = NONE;
+        }
+
+        try
+        {
+            _pool.execute(new Runnable()
+            {
+                public void run()
+                {
+                    encode(rsrc, configData);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            rsrc.representations = null; // Queue is full, encoded when cached again.
+        }
+    }
+
+    /**
+     * Produces the representations of rsrc and adds them to rsrc.
+     *
+     * @param rsrc a cached resource
+     * @param configData used configuration
+     */
+    private static void encode(Rsrc rsrc, ConfigData configData)
+    {
+        byte[] gziped = rsrc.getServedGzip();
+        if (gziped == null || gziped.length < MIN_ENCODED_LEN)
+            return;
+
+        try
+        {
+            byte[] data = ("gzip".equals(rsrc.getServedGzipEncoding()) ?
+                                GzipCodec.ungzip(gziped) : GzipCodec.inflate(gziped));
+
+            ArrayList<Representation> representations = new ArrayList<Representation>();
+            for (ContentEncoder encoder : _encoders)
+            {
+                byte[] body = encoder.encode(data);
+                if (body != null && body.length < gziped.length)
+                    representations.add(new Representation(encoder.getEncoding(), body));
+            }
+
+            _encoded.incrementAndGet();
+            if (representations.isEmpty())
+                return;
+
+            Representation[] sorted = representations.toArray(new Representation[representations.size()]);
+            Arrays.sort(sorted, new Comparator<Representation>()
+            {
+                public int compare(Representation r1, Representation r2)
+                {
+                    return r1.body.length - r2.body.length;
+                }
+            });
+
+            if (configData.cache.rsrcsList.addRepresentations(rsrc, sorted))
+                _representations.addAndGet(sorted.length);
+            else
+                _noRoom.addAndGet(sorted.length);
+        }
+        catch (Exception e)
+        {
+            if (configData.isDebug)
+                System.out.println("Encoding failed: " + rsrc.url + " " + e);
+        }
+    }
+
+    /**
+     * @param rsrc a cached resource
+     * @param acceptEncoding the Accept-Encoding header of the request (may be null)
+     * @param servedLen length of the body that is served when no representation is selected
+     * @return the smallest representation of rsrc accepted by the browser (null when none)
+     */
+    public static Representation selectOf(Rsrc rsrc, String acceptEncoding, int servedLen)
+    {
+        Representation[] representations = rsrc.representations;
+        if (representations == null || acceptEncoding == null)
+            return null;
+
+        for (Representation representation : representations)
+        {
+            if (isAccepted(acceptEncoding, representation.encoding))
+            {
+                _served.incrementAndGet();
+                _savedBytes.addAndGet(servedLen - representation.body.length);
+                return representation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param acceptEncoding the Accept-Encoding header of a request
+     * @param encoding a content-coding
+     * @return true when encoding is accepted (its q-value is not 0)
+     */
+    public static boolean isAccepted(String acceptEncoding, String encoding)
+    {
+        boolean isAnyAccepted = false;
+        for (String part : acceptEncoding.split(","))
+        {
+            int semicolon = part.indexOf(';');
+            String coding = (semicolon < 0 ? part : part.substring(0, semicolon)).trim();
+            boolean isAccepted = (semicolon < 0 || qOf(part.substring(semicolon + 1)) > 0);
+
+            if (coding.equalsIgnoreCase(encoding))
+                return isAccepted;
+            if (coding.equals("*"))
+                isAnyAccepted = isAccepted;
+        }
+        return isAnyAccepted;
+    }
+
+    /**
+     * @param params the parameters of a content-coding in Accept-Encoding (e.g. "q=0.5")
+     * @return the q-value (1 when missing or illegal)
+     */
+    private static float qOf(String params)
+    {
+        int index = params.indexOf("q=");
+        if (index < 0)
+            return 1;
+        try
+        {
+            return Float.parseFloat(params.substring(index + 2).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return 1;
+        }
+    }
+
+    /**
+     * @param representations representations of a resource (may be null)
+     * @return the total size in bytes of representations
+     */
+    public static int sizeOf(Representation[] representations)
+    {
+        int total = 0;
+        if (representations != null)
+        {
+            for (Representation representation : representations)
+                total += representation.body.length;
+        }
+        return total;
+    }
+
+    /**
+     * @return statistics (reported by /htmlspeed/cache-stats)
+     */
+    public static String getStats()
+    {
+        return "encodings: encoded " + _encoded.get() +
+                ", representations " + _representations.get() +
+                ", no room " + _noRoom.get() +
+                ", queued " + _pool.getQueue().size() +
+                ", served " + _served.get() +
+                ", saved bytes " + _savedBytes.get();
+    }
+}
@@ -17,4 +17,5 @@ package com.htmlspeed.server;
  */
 public class FlashRsrc extends Rsrc
 {
+    private static final long serialVersionUID = 1L; // See Rsrc.
 }
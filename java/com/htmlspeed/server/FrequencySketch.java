@@ -0,0 +1,229 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+/**
+ * FrequencySketch
+ *
+ * An approximate access-frequency counter (TinyLFU) used by RsrcsList
+ * for deciding whether a newly loaded resource is admitted into the cache.
+ *
+ * A count-min sketch of 4-bit counters (16 counters in each long) with depth 4.
+ * A doorkeeper (bloom-filter) in front of the sketch absorbs resources that are
+ * accessed only once, so they never reach the counters. After a sample of
+ * accesses all counters are halved and the doorkeeper is cleared, so that
+ * frequencies of resources that are no longer popular decay.
+ *
+ * Counters are updated without locking: a lost increment only
+ * slightly reduces the accuracy of the estimated frequency.
+ */
+public class FrequencySketch
+{
+    /**
+     * Maximum value of a 4-bit counter.
+     */
+    public static final int MAX_FREQUENCY = 15;
+
+    /**
+     * Minimum/maximum number of longs in the sketch.
+     */
+    private static final int MIN_TABLE_SIZE = 1024;
+    private static final int MAX_TABLE_SIZE = 1 << 18;
+
+    /**
+     * Clears the high bit of each counter after shifting all the counters right by 1.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * Seeds of the 4 hash functions of the sketch.
+     */
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /**
+     * The counters (16 4-bit counters in each long).
+     */
+    private final long[] _table;
+
+    /**
+     * _table.length - 1
+     */
+    private final int _tableMask;
+
+    /**
+     * Bits of the doorkeeper bloom-filter.
+     */
+    private final long[] _doorkeeper;
+
+    /**
+     * Number of bits in the doorkeeper minus 1.
+     */
+    private final int _doorkeeperMask;
+
+    /**
+     * Number of recorded accesses after which the counters are halved.
+     */
+    private final int _sampleSize;
+
+    /**
+     * Number of recorded accesses since the last reset.
+     */
+    private int _size;
+
+    /**
+     * CONSTRUCTOR
+     *
+     * @param expectedEntries estimated number of cached resources
+     */
+    public FrequencySketch(int expectedEntries)
+    {
+        int tableSize = MIN_TABLE_SIZE;
+        while (tableSize < expectedEntries && tableSize < MAX_TABLE_SIZE)
+            tableSize <<= 1;
+
+        _table = new long[tableSize];
+        _tableMask = tableSize - 1;
+        _doorkeeper = new long[tableSize / 4]; // 16 bits per sketch entry
+        _doorkeeperMask = _doorkeeper.length * 64 - 1;
+        _sampleSize = 10 * tableSize;
+    }
+
+    /**
+     * Records a single access of the resource whose hash is specified.
+     *
+     * @param hash hash-code of url of the accessed resource (see CacheStructure.hashOf)
+     */
+    public void increment(int hash)
+    {
+        int h = spread(hash);
+
+        if (!putInDoorkeeper(h))
+        {
+            int start = (h & 3) << 2;
+            boolean isAdded = false;
+            for (int i = 0 ; i < 4 ; i++)
+                isAdded |= incrementAt(indexOf(h, i), start + i);
+            if (!isAdded)
+                return; // All counters are saturated.
+        }
+
+        if (++_size >= _sampleSize)
+            reset();
+    }
+
+    /**
+     * @param hash hash-code of url of a resource (see CacheStructure.hashOf)
+     * @return the estimated number of accesses of the resource (0 .. MAX_FREQUENCY + 1)
+     */
+    public int frequency(int hash)
+    {
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0 ; i < 4 ; i++)
+        {
+            int count = (int)((_table[indexOf(h, i)] >>> ((start + i) << 2)) & 0xfL);
+            if (count < frequency)
+                frequency = count;
+        }
+        return (isInDoorkeeper(h) ? frequency + 1 : frequency);
+    }
+
+    /**
+     * Clears all counters.
+     */
+    public synchronized void clear()
+    {
+        for (int i = 0 ; i < _table.length ; i++)
+            _table[i] = 0;
+        for (int i = 0 ; i < _doorkeeper.length ; i++)
+            _doorkeeper[i] = 0;
+        _size = 0;
+    }
+
+    /**
+     * Halves all counters and clears the doorkeeper.
+     */
+    private synchronized void reset()
+    {
+        if (_size < _sampleSize)
+            return; // Already reset by another thread.
+
+        for (int i = 0 ; i < _table.length ; i++)
+            _table[i] = (_table[i] >>> 1) & RESET_MASK;
+        for (int i = 0 ; i < _doorkeeper.length ; i++)
+            _doorkeeper[i] = 0;
+        _size = _size / 2;
+    }
+
+    /**
+     * Increments the counter at index (of long) and offset (of counter in the long).
+     *
+     * @return true when the counter has been incremented (was not saturated)
+     */
+    private boolean incrementAt(int index, int offset)
+    {
+        int shift = offset << 2;
+        long mask = 0xfL << shift;
+        long value = _table[index];
+        if ((value & mask) == mask)
+            return false;
+        _table[index] = value + (1L << shift);
+        return true;
+    }
+
+    /**
+     * @return index in _table of the counter of hash-function i
+     */
+    private int indexOf(int h, int i)
+    {
+        long hash = (h + SEEDS[i]) * SEEDS[i];
+        hash += (hash >>> 32);
+        return ((int)hash) & _tableMask;
+    }
+
+    /**
+     * Sets the 2 doorkeeper bits of h.
+     *
+     * @return true when h was not in the doorkeeper
+     */
+    private boolean putInDoorkeeper(int h)
+    {
+        int bit1 = h & _doorkeeperMask;
+        int bit2 = (h >>> 16 | h << 16) & _doorkeeperMask;
+        long word1 = _doorkeeper[bit1 >>> 6];
+        long word2 = _doorkeeper[bit2 >>> 6];
+        boolean isAbsent = (word1 & (1L << bit1)) == 0 || (word2 & (1L << bit2)) == 0;
+        if (isAbsent)
+        {
+            _doorkeeper[bit1 >>> 6] |= (1L << bit1);
+            _doorkeeper[bit2 >>> 6] |= (1L << bit2);
+        }
+        return isAbsent;
+    }
+
+    /**
+     * @return true when both doorkeeper bits of h are set
+     */
+    private boolean isInDoorkeeper(int h)
+    {
+        int bit1 = h & _doorkeeperMask;
+        int bit2 = (h >>> 16 | h << 16) & _doorkeeperMask;
+        return (_doorkeeper[bit1 >>> 6] & (1L << bit1)) != 0 &&
+                    (_doorkeeper[bit2 >>> 6] & (1L << bit2)) != 0;
+    }
+
+    /**
+     * Applies a supplemental hash function to defend against poor quality hash.
+     */
+    private static int spread(int x)
+    {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,533 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * GzipCodec
+ *
+ * Gzip/ungzip of resources and of optimized responses by pooled Deflater/Inflater
+ * instances and pooled work buffers, instead of a new GZIPOutputStream/GZIPInputStream
+ * (each holding native zlib state and a growing ByteArrayOutputStream) per call.
+ * Usually the only allocation is the returned array.
+ *
+ * The pools are shared by all threads (not thread-local), so virtual threads
+ * (see VirtualThreads) reuse them too.
+ *
+ * The compression level is configurable per content type (properties gzip.level.html,
+ * gzip.level.css, gzip.level.js).
+ */
+public class GzipCodec
+{
+    /**
+     * Content types selecting the compression level:
+     */
+    public static final int HTML = 0;
+    public static final int CSS = 1;
+    public static final int JS = 2;
+    public static final int OTHER = 3;
+    public static final int BEST = 4; // Pre-encoded representations (see Encodings).
+
+    private static final int[] _levels = {
+        Deflater.DEFAULT_COMPRESSION,
+        Deflater.DEFAULT_COMPRESSION,
+        Deflater.DEFAULT_COMPRESSION,
+        Deflater.DEFAULT_COMPRESSION,
+        Deflater.BEST_COMPRESSION
+    };
+
+    private static final int POOL_SIZE = 64;
+
+    /**
+     * Inlined fragments shorter than this are compressed with the page (see Encoder.writeDeflated).
+     */
+    public static final int MIN_SPLICED_LEN = 512;
+
+    /**
+     * Work buffers larger than this are not returned to the pool.
+     */
+    private static final int MAX_POOLED_BUFFER = 1024*1024;
+
+    private static final byte[] GZIP_HEADER = {
+        (byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final ArrayBlockingQueue<Deflater> _deflaters = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Inflater> _inflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final ArrayBlockingQueue<byte[]> _buffers = new ArrayBlockingQueue<byte[]>(POOL_SIZE);
+
+    private static final AtomicLong _gzips = new AtomicLong(); // Number of gziped contents.
+    private static final AtomicLong _ungzips = new AtomicLong(); // Number of ungziped contents.
+    private static final AtomicLong _createdDeflaters = new AtomicLong();
+    private static final AtomicLong _createdInflaters = new AtomicLong();
+    private static final AtomicLong _createdBuffers = new AtomicLong();
+    private static final AtomicLong _splicedFragments = new AtomicLong(); // Number of spliced fragments.
+    private static final AtomicLong _splicedBytes = new AtomicLong(); // Ungziped bytes of spliced fragments.
+
+    /**
+     * True when pre-deflated fragments are spliced into gziped pages (property gzip.splicing).
+     */
+    private static volatile boolean _isSplicing = true;
+
+    /**
+     * Sets the compression level of a content type.
+     *
+     * @param type HTML, CSS, JS, OTHER or BEST
+     * @param level 1 (fastest) .. 9 (best compression), -1 for the default level
+     */
+    public static void setLevel(int type, int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            level = Deflater.DEFAULT_COMPRESSION;
+        _levels[type] = level;
+    }
+
+    /**
+     * @param isSplicing true for splicing pre-deflated fragments into gziped pages
+     */
+    public static void setSplicing(boolean isSplicing)
+    {
+        _isSplicing = isSplicing;
+    }
+
+    /**
+     * @return true when pre-deflated fragments are spliced into gziped pages
+     */
+    public static boolean isSplicing()
+    {
+        return _isSplicing;
+    }
+
+    /**
+     * @param bytes the content to gzip
+     * @param type content type of bytes (HTML, CSS, JS, OTHER or BEST)
+     * @return bytes in gzip format
+     */
+    public static byte[] gzip(byte[] bytes, int type)
+    {
+        Encoder encoder = new Encoder(type, bytes.length);
+        try
+        {
+            encoder.write(bytes, 0, bytes.length);
+            return encoder.finish();
+        }
+        finally
+        {
+            encoder.close();
+        }
+    }
+
+    /**
+     * Ungzips content (all gzip members of content are ungziped).
+     * A truncated content is ungziped up to the truncation.
+     *
+     * @param gziped content in gzip format
+     * @return the ungziped content
+     * @throws IOException when gziped is not in gzip format
+     */
+    public static byte[] ungzip(byte[] gziped) throws IOException
+    {
+        return inflate(gziped, true);
+    }
+
+    /**
+     * Inflates content whose Content-Encoding is deflate (raw deflate data).
+     *
+     * @param deflated the deflated content
+     * @return the inflated content
+     * @throws IOException when deflated is corrupted
+     */
+    public static byte[] inflate(byte[] deflated) throws IOException
+    {
+        return inflate(deflated, false);
+    }
+
+    /**
+     * Deflates a fragment (e.g. an inlined resource) that is spliced into gziped pages
+     * by Encoder.writeDeflated. The fragment is deflated (at the best level) by a reset
+     * deflater, so it doesn't refer to preceding bytes, and ends by a sync-flush (on a
+     * byte boundary, not a final block).
+     *
+     * @param data contains the fragment
+     * @param off offset of fragment in data
+     * @param len length of fragment
+     * @return the deflated fragment
+     */
+    public static byte[] deflateFragment(byte[] data, int off, int len)
+    {
+        Deflater deflater = borrowDeflater(_levels[BEST]);
+        byte[] buff = borrowBuffer(len / 2);
+        int outLen = 0;
+        try
+        {
+            deflater.setInput(data, off, len);
+            while (true)
+            {
+                if (buff.length - outLen < 1024)
+                    buff = Arrays.copyOf(buff, buff.length * 2);
+                int space = buff.length - outLen;
+                int n = deflater.deflate(buff, outLen, space, Deflater.SYNC_FLUSH);
+                outLen += n;
+                if (n < space)
+                    break; // All input is deflated and flushed.
+            }
+            return Arrays.copyOf(buff, outLen);
+        }
+        finally
+        {
+            releaseBuffer(buff);
+            releaseDeflater(deflater);
+        }
+    }
+
+    /**
+     * @param header the start of gziped content
+     * @param off offset in header of the gzip header
+     * @param len number of available bytes in header (from off)
+     * @return length of the gzip header (-1 when the header is not complete)
+     * @throws IOException when header is not a gzip header
+     */
+    public static int gzipHeaderLenOf(byte[] header, int off, int len) throws IOException
+    {
+        if (len < 10)
+            return (-1);
+
+        if ((header[off] & 0xff) != 0x1f || (header[off + 1] & 0xff) != 0x8b || header[off + 2] != Deflater.DEFLATED)
+            throw new IOException("Not in gzip format");
+
+        int flags = header[off + 3] & 0xff;
+        int hlen = 10;
+        if ((flags & FEXTRA) != 0)
+        {
+            if (len < hlen + 2)
+                return (-1);
+            hlen += 2 + ((header[off + hlen] & 0xff) | ((header[off + hlen + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0)
+        {
+            while (hlen < len && header[off + hlen] != 0)
+                hlen++;
+            hlen++;
+        }
+        if ((flags & FCOMMENT) != 0)
+        {
+            while (hlen < len && header[off + hlen] != 0)
+                hlen++;
+            hlen++;
+        }
+        if ((flags & FHCRC) != 0)
+            hlen += 2;
+
+        return (hlen <= len ? hlen : (-1));
+    }
+
+    /**
+     * @return pool statistics (reported by /htmlspeed/cache-stats)
+     */
+    public static String getStats()
+    {
+        return "gzip: gziped " + _gzips.get() + ", ungziped " + _ungzips.get() +
+                ", created deflaters " + _createdDeflaters.get() +
+                ", created inflaters " + _createdInflaters.get() +
+                ", created buffers " + _createdBuffers.get() +
+                ", spliced fragments " + _splicedFragments.get() +
+                ", spliced bytes " + _splicedBytes.get();
+    }
+
+    /**
+     * @param in deflated/gziped content
+     * @param isGzip true when in is in gzip format
+     * @return the inflated content
+     */
+    private static byte[] inflate(byte[] in, boolean isGzip) throws IOException
+    {
+        _ungzips.incrementAndGet();
+
+        if (in.length == 0)
+            return new byte[0];
+
+        Inflater inflater = borrowInflater();
+        byte[] buff = borrowBuffer(in.length * 3);
+        int len = 0;
+        try
+        {
+            int off = 0;
+            while (off < in.length)
+            {
+                if (isGzip)
+                {
+                    int headerLen = gzipHeaderLenOf(in, off, in.length - off);
+                    if (headerLen < 0)
+                        break; // Truncated.
+                    off += headerLen;
+                }
+
+                inflater.reset();
+                inflater.setInput(in, off, in.length - off);
+                while (!inflater.finished() && !inflater.needsInput())
+                {
+                    if (len == buff.length)
+                        buff = Arrays.copyOf(buff, buff.length * 2);
+                    len += inflater.inflate(buff, len, buff.length - len);
+                    if (inflater.needsDictionary())
+                        throw new IOException("Unsupported deflate dictionary");
+                }
+
+                if (!isGzip || !inflater.finished())
+                    break; // Deflated content has a single member (or truncated).
+
+                // Skipping the trailer (crc and size), the following member is ungziped:
+                off = in.length - inflater.getRemaining() + 8;
+                if (off + 2 > in.length || (in[off] & 0xff) != 0x1f)
+                    break;
+            }
+
+            return Arrays.copyOf(buff, len);
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        finally
+        {
+            releaseBuffer(buff);
+            releaseInflater(inflater);
+        }
+    }
+
+    private static Deflater borrowDeflater(int level)
+    {
+        Deflater deflater = _deflaters.poll();
+        if (deflater == null)
+        {
+            deflater = new Deflater(level, true /*nowrap*/);
+            _createdDeflaters.incrementAndGet();
+        }
+        else
+        {
+            deflater.setLevel(level);
+        }
+        return deflater;
+    }
+
+    private static void releaseDeflater(Deflater deflater)
+    {
+        deflater.reset();
+        if (!_deflaters.offer(deflater))
+            deflater.end(); // Pool is full.
+    }
+
+    private static Inflater borrowInflater()
+    {
+        Inflater inflater = _inflaters.poll();
+        if (inflater == null)
+        {
+            inflater = new Inflater(true /*nowrap*/);
+            _createdInflaters.incrementAndGet();
+        }
+        return inflater;
+    }
+
+    private static void releaseInflater(Inflater inflater)
+    {
+        inflater.reset();
+        if (!_inflaters.offer(inflater))
+            inflater.end(); // Pool is full.
+    }
+
+    /**
+     * @param minLen minimal length of the buffer (the buffer may be shorter)
+     * @return a work buffer
+     */
+    private static byte[] borrowBuffer(int minLen)
+    {
+        byte[] buff = _buffers.poll();
+        if (buff == null)
+        {
+            buff = new byte[Math.min(Math.max(minLen, 32*1024), MAX_POOLED_BUFFER)];
+            _createdBuffers.incrementAndGet();
+        }
+        return buff;
+    }
+
+    private static void releaseBuffer(byte[] buff)
+    {
+        if (buff.length <= MAX_POOLED_BUFFER)
+            _buffers.offer(buff);
+    }
+
+    /**
+     * Encoder
+     *
+     * Gzips the content written to it by a pooled Deflater into a pooled buffer.
+     * The gziped content is returned by finish. close() must be called (after
+     * finish) for returning the deflater and the buffer to the pools.
+     */
+    public static class Encoder extends OutputStream
+    {
+        private Deflater _deflater;
+        private byte[] _buff;
+        private int _len;
+        private final CRC32 _crc = new CRC32();
+        private int _ungzipedLen = 0;
+
+        /**
+         * True when bytes have been written since the last splicing.
+         */
+        private boolean _isWritten = false;
+
+        /**
+         * Constructor
+         *
+         * @param type content type of the gziped content (HTML, CSS, JS, OTHER or BEST)
+         * @param estimatedLen estimated length of the ungziped content
+         */
+        public Encoder(int type, int estimatedLen)
+        {
+            _gzips.incrementAndGet();
+            _deflater = borrowDeflater(_levels[type]);
+            _buff = borrowBuffer(estimatedLen / 2);
+            System.arraycopy(GZIP_HEADER, 0, _buff, 0, GZIP_HEADER.length);
+            _len = GZIP_HEADER.length;
+        }
+
+        @Override
+        public void write(int b)
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            if (len <= 0)
+                return;
+
+            _crc.update(b, off, len);
+            _ungzipedLen += len;
+            _deflater.setInput(b, off, len);
+            while (!_deflater.needsInput())
+                deflate();
+            _isWritten = true;
+        }
+
+        /**
+         * Writes a fragment by splicing its pre-deflated blocks into the gziped content
+         * (instead of compressing the fragment again).
+         *
+         * @param b contains the fragment
+         * @param off offset of fragment in b
+         * @param len length of fragment
+         * @param deflated the fragment deflated by deflateFragment
+         */
+        public void writeDeflated(byte[] b, int off, int len, byte[] deflated)
+        {
+            if (_isWritten)
+            {
+                // Ending the current block on a byte boundary. The dictionary is reset, so
+                // the following bytes never refer to the bytes of the fragment:
+                while (true)
+                {
+                    ensureCapacity(1024);
+                    int space = _buff.length - _len;
+                    int n = _deflater.deflate(_buff, _len, space, Deflater.FULL_FLUSH);
+                    _len += n;
+                    if (n < space)
+                        break;
+                }
+                _isWritten = false;
+            }
+
+            ensureCapacity(deflated.length);
+            System.arraycopy(deflated, 0, _buff, _len, deflated.length);
+            _len += deflated.length;
+
+            _crc.update(b, off, len);
+            _ungzipedLen += len;
+
+            _splicedFragments.incrementAndGet();
+            _splicedBytes.addAndGet(len);
+        }
+
+        /**
+         * Completes the gzip format.
+         *
+         * @return the gziped content
+         */
+        public byte[] finish()
+        {
+            _deflater.finish();
+            while (!_deflater.finished())
+                deflate();
+
+            ensureCapacity(8);
+            writeInt((int)_crc.getValue());
+            writeInt(_ungzipedLen);
+
+            Metrics.GZIP_IN_BYTES.add(_ungzipedLen);
+            Metrics.GZIP_OUT_BYTES.add(_len);
+            return Arrays.copyOf(_buff, _len);
+        }
+
+        /**
+         * @return number of bytes of original (ungziped) content
+         */
+        public int getUngzipedLen()
+        {
+            return _ungzipedLen;
+        }
+
+        /**
+         * Returns the deflater and the buffer to the pools.
+         */
+        @Override
+        public void close()
+        {
+            if (_deflater != null)
+            {
+                releaseDeflater(_deflater);
+                releaseBuffer(_buff);
+                _deflater = null;
+                _buff = null;
+            }
+        }
+
+        private void deflate()
+        {
+            ensureCapacity(1024);
+            _len += _deflater.deflate(_buff, _len, _buff.length - _len);
+        }
+
+        private void ensureCapacity(int len)
+        {
+            if (_len + len > _buff.length)
+                _buff = Arrays.copyOf(_buff, Math.max(_buff.length * 2, _len + len));
+        }
+
+        private void writeInt(int value)
+        {
+            _buff[_len++] = (byte)value;
+            _buff[_len++] = (byte)(value >> 8);
+            _buff[_len++] = (byte)(value >> 16);
+            _buff[_len++] = (byte)(value >> 24);
+        }
+    }
+}
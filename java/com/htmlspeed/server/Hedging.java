@@ -0,0 +1,298 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedging
+ *
+ * Hedged requests of missing sub-resources (loaded by ServiceUtils.loadMissingRsrcs
+ * while the page waits for them): when a content-server has not responded within
+ * the hedge.percentile (default 95) latency of the sub-resources of its host, the
+ * request is sent again to another available content-server of the host-info. The
+ * first response wins (a failure wins only when the other request has failed too)
+ * and the other request is cancelled.
+ *
+ * The extra load of the content-servers is limited by hedge.budget: each request
+ * earns hedge.budget percent of a hedge, and a hedge is sent only when earned (up
+ * to 100 earned hedges are kept for bursts). 0 disables hedging.
+ *
+ * The latency of a host is its percentile in the last complete window of 10 seconds
+ * (of at least 20 successful requests), at least hedge.min.delay milli-seconds.
+ */
+public class Hedging
+{
+    /**
+     * Length of the windows of latencies.
+     */
+    private static final long WINDOW_IN_MILLIS = 10000;
+
+    /**
+     * Minimal number of latencies of a window for hedging.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * A hedge costs 1000 tokens, at most MAX_TOKENS are kept.
+     */
+    private static final long TOKENS_PER_HEDGE = 1000;
+    private static final long MAX_TOKENS = 100 * TOKENS_PER_HEDGE;
+
+    /**
+     * Schedules the hedges.
+     */
+    private static final TimerWheel _wheel = new TimerWheel("HtmlSpeedHedger", 10);
+
+    // See setHedging:
+    private static volatile int _budgetPercent = 0;
+    private static volatile int _percentile = 95;
+    private static volatile long _minDelayMillis = 10;
+
+    /**
+     * Earned hedges (in thousandths).
+     */
+    private static final AtomicLong _tokens = new AtomicLong(0);
+
+    /**
+     * Maps a host to the latencies of its sub-resources.
+     */
+    private static final ConcurrentHashMap<String, Latencies> _latencies = new ConcurrentHashMap<String, Latencies>();
+
+    private static final Metrics.Counter _hedges = Metrics.counter("htmlspeed_hedges_total", null,
+                                                    "Hedged requests of sub-resources");
+    private static final Metrics.Counter _hedgeWins = Metrics.counter("htmlspeed_hedge_wins_total", null,
+                                                    "Hedged requests responding before the original requests");
+    private static final Metrics.Counter _denied = Metrics.counter("htmlspeed_hedges_denied_total", null,
+                                                    "Hedges not sent because the budget was exhausted");
+
+    /**
+     * The request of a sub-resource and its hedge (when sent).
+     * Only the winner completes the load (decrements the load-lock).
+     */
+    public static class Race
+    {
+        private final TempRsrc _tempRsrc;
+        private final HtmlSpeedHttpExchange _primary;
+
+        // Guarded by this:
+        private HtmlSpeedHttpExchange _hedge = null;
+        private HtmlSpeedHttpExchange _winner = null;
+        private HtmlSpeedHttpExchange _failed = null; // A request that has failed while the other is pending.
+
+        /**
+         * @param tempRsrc the loaded sub-resource
+         * @param primary its request (tempRsrc.exchange)
+         */
+        public Race(TempRsrc tempRsrc, HtmlSpeedHttpExchange primary)
+        {
+            _tempRsrc = tempRsrc;
+            _primary = primary;
+        }
+
+        /**
+         * @return the first request
+         */
+        public HtmlSpeedHttpExchange getPrimary()
+        {
+            return _primary;
+        }
+
+        /**
+         * @param hedge the hedge (not sent yet)
+         * @return false when the race is over (the hedge must not be sent)
+         */
+        public synchronized boolean startHedge(HtmlSpeedHttpExchange hedge)
+        {
+            if (_winner != null || _failed != null || _hedge != null)
+                return false;
+            _hedge = hedge;
+            return true;
+        }
+
+        /**
+         * Called by a request of the race when completed.
+         *
+         * @param exchange the completed request
+         * @param isFailed true when exchange has failed
+         * @return true when exchange wins (it completes the load), false when it must be ignored
+         */
+        public boolean isWinner(HtmlSpeedHttpExchange exchange, boolean isFailed)
+        {
+            HtmlSpeedHttpExchange loser;
+            synchronized (this)
+            {
+                if (_winner != null)
+                    return false;
+
+                if (isFailed && _hedge != null && _failed == null)
+                {
+                    _failed = exchange; // Waiting for the other request.
+                    return false;
+                }
+
+                _winner = exchange;
+                _tempRsrc.exchange = exchange; // Read by the loader when the load-lock is released.
+                loser = (exchange == _primary ? _hedge : _primary);
+                if (loser == _failed)
+                    loser = null; // Already completed.
+            }
+
+            if (exchange != _primary)
+                _hedgeWins.increment();
+            if (loser != null)
+                loser.cancelLoser();
+            return true;
+        }
+    }
+
+    /**
+     * Latencies of the sub-resources of a host.
+     */
+    private static class Latencies
+    {
+        private Metrics.Histogram _window = new Metrics.Histogram(); // Guarded by this.
+        private long _windowStartTime = System.currentTimeMillis(); // Guarded by this.
+
+        /**
+         * Milli-seconds until a hedge is sent (0 when unknown).
+         */
+        private volatile long _delayMillis = 0;
+
+        private void record(long micros, long currentTime)
+        {
+            Metrics.Histogram window;
+            synchronized (this)
+            {
+                if (currentTime - _windowStartTime >= WINDOW_IN_MILLIS)
+                {
+                    _delayMillis = (_window.getCount() >= MIN_SAMPLES ?
+                                    Math.max(_minDelayMillis, _window.percentile(_percentile) / 1000) : 0);
+                    _window = new Metrics.Histogram();
+                    _windowStartTime = currentTime;
+                }
+                window = _window;
+            }
+            window.record(micros);
+        }
+    }
+
+    /**
+     * Sets the hedging (called by HtmlSpeedServlet).
+     *
+     * @param budgetPercent max percent of hedged requests, 0 disables hedging (property hedge.budget)
+     * @param percentile percentile of the latencies of a host after which a request is hedged (property hedge.percentile)
+     * @param minDelay min milli-seconds before a request is hedged (property hedge.min.delay)
+     */
+    public static void setHedging(int budgetPercent, int percentile, int minDelay)
+    {
+        _budgetPercent = Math.max(0, Math.min(100, budgetPercent));
+        _percentile = Math.max(50, Math.min(99, percentile));
+        _minDelayMillis = Math.max(1, minDelay);
+    }
+
+    /**
+     * @return true when the requests of missing sub-resources are hedged
+     */
+    public static boolean isEnabled()
+    {
+        return _budgetPercent > 0;
+    }
+
+    /**
+     * Schedules the hedge of a sent request (called by ServiceUtils.loadMissingRsrcs).
+     * The request earns its part of the budget.
+     *
+     * @param race the request and its hedge
+     * @param hedger sends the hedge (executed by the thread of the wheel, unless the race is over)
+     */
+    public static void watch(final Race race, final Runnable hedger)
+    {
+        long tokens = _tokens.addAndGet(_budgetPercent * TOKENS_PER_HEDGE / 100);
+        if (tokens > MAX_TOKENS)
+            _tokens.compareAndSet(tokens, MAX_TOKENS);
+
+        String host = race.getPrimary().getHost();
+        Latencies latencies = (host != null ? _latencies.get(host) : null);
+        long delay = (latencies != null ? latencies._delayMillis : 0);
+        if (delay == 0)
+            return; // Latency of the host is unknown.
+
+        _wheel.schedule(new Runnable()
+        {
+            public void run()
+            {
+                synchronized (race)
+                {
+                    if (race._winner != null || race._failed != null)
+                        return; // Completed.
+                }
+
+                while (true)
+                {
+                    long tokens = _tokens.get();
+                    if (tokens < TOKENS_PER_HEDGE)
+                    {
+                        _denied.increment();
+                        return;
+                    }
+                    if (_tokens.compareAndSet(tokens, tokens - TOKENS_PER_HEDGE))
+                        break;
+                }
+
+                _hedges.increment();
+                hedger.run();
+            }
+        }, delay);
+    }
+
+    /**
+     * Records the latency of a successful request of a sub-resource (called by HtmlSpeedHttpExchange).
+     *
+     * @param host the host of the sub-resource
+     * @param micros the latency
+     */
+    public static void recordLatency(String host, long micros)
+    {
+        if (host == null)
+            return;
+
+        Latencies latencies = _latencies.get(host);
+        if (latencies == null)
+        {
+            latencies = new Latencies();
+            Latencies existing = _latencies.putIfAbsent(host, latencies);
+            if (existing != null)
+                latencies = existing;
+        }
+        latencies.record(micros, System.currentTimeMillis());
+    }
+
+    /**
+     * Cancels the scheduled hedges (called by HtmlSpeedServlet.destroy()).
+     */
+    public static void stop()
+    {
+        _wheel.stop();
+    }
+
+    /**
+     * @return the hedges and the hedge delay of each host (reported by /htmlspeed/cache-stats)
+     */
+    public static String getStats()
+    {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("hedging (budget ").append(_budgetPercent).append("%): hedges ").append(_hedges.get())
+          .append(", wins ").append(_hedgeWins.get()).append(", denied ").append(_denied.get());
+        TreeMap<String, Latencies> sorted = new TreeMap<String, Latencies>(_latencies);
+        for (String host : sorted.keySet())
+            sb.append("\n  ").append(host).append(": after ").append(sorted.get(host)._delayMillis).append("ms");
+        return sb.toString();
+    }
+}
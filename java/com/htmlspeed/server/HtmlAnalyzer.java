@@ -242,6 +242,7 @@ public class HtmlAnalyzer
     private boolean _inIEComment = false;
 
     private boolean _inTag = false;
+    private int _tagFirst = (-1);
 
     private boolean _inStyle = false;
     private boolean _inStyleStart = false;
@@ -349,6 +350,21 @@ public class HtmlAnalyzer
     private int[] _out = new int[2000];
     private int _outLen = 0;
 
+    /**
+     * Offset in input where analysis continues (see analyzeChunk).
+     */
+    private int _pos = 0;
+
+    /**
+     * Length of the input: in[0 .. _inLen - 1] is valid (see analyzeChunk).
+     */
+    private int _inLen = 0;
+
+    /**
+     * Maps encountered urls to offsets in _out (see checkDuplicates).
+     */
+    private HashMap<String, Integer> _urlToOffset = new HashMap<String, Integer>(256);
+
     private String _base = null;
 
     /**
@@ -433,15 +449,55 @@ public class HtmlAnalyzer
                 return new int[0]; // input is java-script
         }
 
+        long startTime = System.nanoTime();
+
         _inStyle = context.isCss;
 
+        analyzeChunk(context, in, in.length);
+
+        ensureCapacity(1);
+        _out[_outLen] = EOF_KIND;
+
+        Metrics.ANALYZE_TIME.record((System.nanoTime() - startTime) / 1000);
+        return _out;
+    }
+
+    /**
+     * Continues the analysis of a html-page that is still being received
+     * (streaming, see HtmlStreamer): in[getPos() .. limit - 1] is analyzed.
+     *
+     * The result is appended to getOut()[0 .. getOutLen() - 1] (without EOF_KIND).
+     * Bytes after limit may be read ahead, so in should contain some bytes after
+     * limit unless it is the complete page.
+     *
+     * @param context service-context
+     * @param in the received part of the page (offsets in the result are offsets in in)
+     * @param limit analysis stops at this offset
+     */
+    public void analyzeChunk(ServiceContext context, byte[] in, int limit)
+    {
+        analyzeChunk(context, in, in.length, limit);
+    }
+
+    /**
+     * Like analyzeChunk(context, in, limit), when only in[0 .. inLen - 1] is received
+     * (in is a buffer that is filled while the page is received, see HtmlStreamer).
+     *
+     * @param context service-context
+     * @param in the received part of the page is in[0 .. inLen - 1]
+     * @param inLen number of received bytes in in
+     * @param limit analysis stops at this offset (limit <= inLen)
+     */
+    public void analyzeChunk(ServiceContext context, byte[] in, int inLen, int limit)
+    {
+        _inLen = inLen;
         boolean withATags = context.isServiceWithIframe;
         boolean withFormTags = context.isServiceWithIframe;
 
-        HashMap<String, Integer> urlToOffset = new HashMap<String, Integer>(256);
+        HashMap<String, Integer> urlToOffset = _urlToOffset;
 
-        int i = 0;
-        while (i < in.length)
+        int i = _pos;
+        while (i < limit)
         {
             switch (in[i])
             {
@@ -555,6 +611,7 @@ public class HtmlAnalyzer
                         else
                         {
                             _inTag = true;
+                            _tagFirst = i;
                             _inStyleAttr = false;
 
                             if (isMatching(in, i , STYLE_START))
@@ -676,7 +733,7 @@ public class HtmlAnalyzer
                                 continue;
                             }
 
-                            if(withATags && i+2 < in.length && (in[i+1] == 'a' || in[i+1] == 'A') && in[i+2] == ' ')
+                            if(withATags && i+2 < _inLen && (in[i+1] == 'a' || in[i+1] == 'A') && in[i+2] == ' ')
                             {
                                 _inAStart = true;
                                 _aStartFirst = i;
@@ -985,7 +1042,7 @@ public class HtmlAnalyzer
                     {
                         _inStyleAttr = true;
                         i += STYLE_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _styleAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -995,7 +1052,7 @@ public class HtmlAnalyzer
                     {
                         _inSrcAttr = true;
                         i += SRC_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _srcAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1012,7 +1069,7 @@ public class HtmlAnalyzer
                     {
                         _inRelAttr = true;
                         i += REL_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _relAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1029,7 +1086,7 @@ public class HtmlAnalyzer
                     {
                         _inMediaAttr = true;
                         i += MEDIA_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _mediaAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1046,7 +1103,7 @@ public class HtmlAnalyzer
                     {
                         _inTypeAttr = true;
                         i += TYPE_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _typeAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1056,7 +1113,7 @@ public class HtmlAnalyzer
                     {
                         _inTargetAttr = true;
                         i += TARGET_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _targetAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1074,9 +1131,9 @@ public class HtmlAnalyzer
                     {
                         _inEventAttr = true;
                         i += ONCLICK_ATTR.length;
-                        while (i < in.length && (in[i] != '='))
+                        while (i < _inLen && (in[i] != '='))
                             i++;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _eventAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1088,7 +1145,7 @@ public class HtmlAnalyzer
                     {
                         _inOnloadAttr = true;
                         i += ONLOAD_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _onloadAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1106,7 +1163,7 @@ public class HtmlAnalyzer
                     {
                         _inEventAttr = true;
                         i += HREF_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _eventAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1118,7 +1175,7 @@ public class HtmlAnalyzer
                     {
                         _inHrefAttr = true;
                         i += HREF_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _hrefAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1128,7 +1185,7 @@ public class HtmlAnalyzer
                     {
                         _inHttpEquivAttr = true;
                         i += HTTP_EQUIV_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _httpEquivAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1145,7 +1202,7 @@ public class HtmlAnalyzer
                     {
                         _inContentAttr = true;
                         i += CONTENT_ATTR.length;
-                        while (i < in.length && (in[i] == '=' || in[i] <= ' '))
+                        while (i < _inLen && (in[i] == '=' || in[i] <= ' '))
                             i++;
                         _inAttrWithoutQuotes = (in[i] != '"' && in[i] != '\'');
                         _contentAttrFirst = (_inAttrWithoutQuotes ? i : i + 1);
@@ -1240,13 +1297,13 @@ public class HtmlAnalyzer
                     else if ((_inStyle || _inStyleAttr) && _inCssBgd && isMatching(in, i, URL))
                     {
                         i += URL.length;
-                        while (i < in.length && (in[i] == '(' || in[i] <= ' ' || in[i] == '"' || in[i] == '\''))
+                        while (i < _inLen && (in[i] == '(' || in[i] <= ' ' || in[i] == '"' || in[i] == '\''))
                             i++;
                         int first = i;
                         int last = first;
-                        while (last < in.length && in[last] != ')' && in[last] != '"' && in[last] != '\'')
+                        while (last < _inLen && in[last] != ')' && in[last] != '"' && in[last] != '\'')
                             last++;
-                        if (last < in.length)
+                        if (last < _inLen)
                         {
                             ensureCapacity(CSS_IMG_INFO_LEN);
                             _out[_outLen] = CSS_IMG_KIND;
@@ -1269,11 +1326,49 @@ public class HtmlAnalyzer
             i++;
         }
 
-        ensureCapacity(1);
-        _out[_outLen] = EOF_KIND;
+        _pos = i;
+    }
+
+    /**
+     * @return offset in analyzed input where analysis continues (see analyzeChunk)
+     */
+    public int getPos()
+    {
+        return _pos;
+    }
+
+    /**
+     * Returns the offset up to which the input can be written to the browser: input
+     * before it is not referenced by results of following calls to analyzeChunk.
+     *
+     * @return getPos() or start of the tag/script that is being analyzed
+     */
+    public int getSafePos()
+    {
+        int safePos = _pos;
+        if ((_inScript || _inScriptStart || _inScriptEnd) && 0 <= _scriptStartFirst && _scriptStartFirst < safePos)
+            safePos = _scriptStartFirst;
+        if (_inTag && 0 <= _tagFirst && _tagFirst < safePos)
+            safePos = _tagFirst;
+        return safePos;
+    }
+
+    /**
+     * @return result of analysis (valid until next call to analyzeChunk)
+     */
+    public int[] getOut()
+    {
         return _out;
     }
 
+    /**
+     * @return number of elements in getOut() that hold result of analysis
+     */
+    public int getOutLen()
+    {
+        return _outLen;
+    }
+
     /**
      * @return href of base tag (null when no base tag in document).
      */
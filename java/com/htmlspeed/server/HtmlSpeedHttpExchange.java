@@ -6,17 +6,13 @@
  */
 package com.htmlspeed.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.client.HttpExchange;
 import org.eclipse.jetty.io.Buffer;
@@ -35,6 +31,8 @@ public class HtmlSpeedHttpExchange extends HttpExchange
 
     public long creationTime = System.currentTimeMillis();
 
+    private final long _creationNanos = System.nanoTime(); // Used for measuring the latency of the content-server.
+
     private LoadLock _lock;
 
     private OutputStream _out;
@@ -48,6 +46,11 @@ public class HtmlSpeedHttpExchange extends HttpExchange
      */
     private ServiceContext _context;
 
+    /**
+     * Streams the received html-page to the browser (null when not streamed).
+     */
+    private HtmlStreamer _streamer = null;
+
     /**
      * Value of passed Host http header
      */
@@ -93,6 +96,12 @@ public class HtmlSpeedHttpExchange extends HttpExchange
 
     private String _contentServerAddress; // The address of accessed content-server.
 
+    private final AtomicBoolean _isLatencyRecorded = new AtomicBoolean(false); // True when the completion has been counted.
+
+    private Hedging.Race _race; // Not null when the request of a missing sub-resource may be hedged.
+
+    private volatile boolean _isLoaded = false; // True when the load has completed (set before _lock.decCount()).
+
     boolean _isHtml = false; // True when configData.removeFromHtml is not null and http header Content-Type contains "text/html".
 
     boolean _isCss = false; // True when configData.removeFromCss is not null and http header Content-Type contains "text/css".
@@ -190,6 +199,22 @@ public class HtmlSpeedHttpExchange extends HttpExchange
         }
     }
 
+    /**
+     * @param streamer streams the received html-page to the browser (see HtmlStreamer)
+     */
+    public void setStreamer(HtmlStreamer streamer)
+    {
+        _streamer = streamer;
+    }
+
+    /**
+     * @return true when the response is modified by the replace params of a file-suffix
+     */
+    public boolean isFileReplacing()
+    {
+        return _indexOfFileSuffix >= 0;
+    }
+
     /**
      * Constructor
      *
@@ -239,7 +264,33 @@ public class HtmlSpeedHttpExchange extends HttpExchange
     {
         return _contentServerAddress;
     }
+
+    /**
+     * @param race the race of this request and its hedge (see Hedging)
+     */
+    public void setRace(Hedging.Race race)
+    {
+        _race = race;
+    }
+
+    /**
+     * Cancels this request when the other request of its race has won.
+     */
+    public void cancelLoser()
+    {
+        if (_isLatencyRecorded.compareAndSet(false, true))
+            ContentServerHealth.recordCancel(_contentServerAddress);
+        cancel();
+    }
     
+    /**
+     * @return true when the load has completed (the response, or the failure, is known)
+     */
+    public boolean isLoaded()
+    {
+        return _isLoaded;
+    }
+
     public int getResponseStatus()
     {
         return _responseStatus;
@@ -402,23 +453,10 @@ public class HtmlSpeedHttpExchange extends HttpExchange
             bytesOffset += len;
             _bytes = baos.toByteArray();
 
-            // Gzipping _bytes:
-            try
-            {
-                ByteArrayOutputStream oByteArr = new ByteArrayOutputStream(_bytes.length*3/4);
-                OutputStream oGzip = new GZIPOutputStream(oByteArr);
-                oGzip.write(_bytes);
-                oGzip.close();
-                _gzipedBytes = oByteArr.toByteArray();
-                _isGziped = true;
-                _isDeflated = false;
-            }
-            catch (IOException exc)
-            {
-                _gzipedBytes = null;
-                _isGziped = false;
-                _isDeflated = false;
-            }
+            // Gzipping _bytes (html-page or java-script):
+            _gzipedBytes = GzipCodec.gzip(_bytes, GzipCodec.OTHER);
+            _isGziped = true;
+            _isDeflated = false;
         }
     }
 
@@ -485,23 +523,9 @@ public class HtmlSpeedHttpExchange extends HttpExchange
                 // Gzipping modified _bytes:
                 if (_isGziped || _isDeflated)
                 {
-                    try
-                    {
-                        ByteArrayOutputStream oByteArr = new ByteArrayOutputStream(_bytes.length*3/4);
-                        OutputStream oGzip = new GZIPOutputStream(oByteArr);
-                        oGzip.write(_bytes);
-                        oGzip.close();
-                        _gzipedBytes = oByteArr.toByteArray();
-                        _isGziped = true;
-                        _isDeflated = false;
-                    }
-                    catch (IOException exc)
-                    {
-                        _gzipedBytes = null;
-                        _isGziped = false;
-                        _isDeflated = false;
-                        throw exc;
-                    }
+                    _gzipedBytes = GzipCodec.gzip(_bytes, GzipCodec.HTML);
+                    _isGziped = true;
+                    _isDeflated = false;
                 }
             }
         }
@@ -580,23 +604,9 @@ public class HtmlSpeedHttpExchange extends HttpExchange
                 // Gzipping modified _bytes:
                 if (_isGziped || _isDeflated)
                 {
-                    try
-                    {
-                        ByteArrayOutputStream oByteArr = new ByteArrayOutputStream(_bytes.length*3/4);
-                        OutputStream oGzip = new GZIPOutputStream(oByteArr);
-                        oGzip.write(_bytes);
-                        oGzip.close();
-                        _gzipedBytes = oByteArr.toByteArray();
-                        _isGziped = true;
-                        _isDeflated = false;
-                    }
-                    catch (IOException exc)
-                    {
-                        _gzipedBytes = null;
-                        _isGziped = false;
-                        _isDeflated = false;
-                        throw exc;
-                    }
+                    _gzipedBytes = GzipCodec.gzip(_bytes, GzipCodec.CSS);
+                    _isGziped = true;
+                    _isDeflated = false;
                 }
             }
         }
@@ -640,6 +650,17 @@ public class HtmlSpeedHttpExchange extends HttpExchange
     @Override
     protected void onResponseComplete() throws IOException
     {
+        recordLatency(false);
+        if (_race != null && !_race.isWinner(this, _responseStatus >= 500))
+            return; // The other request of the race completes the load.
+        pinSessions();
+
+        if (_streamer != null && _streamer.onComplete())
+        {
+            endLoad(); // Response already returned to browser.
+            return;
+        }
+
         if (_out instanceof ByteArrayOutputStream)
         {
             ByteArrayOutputStream baos = (ByteArrayOutputStream)_out;
@@ -657,12 +678,15 @@ public class HtmlSpeedHttpExchange extends HttpExchange
             removeFromHtml();
         else if (_context.configData.removeFromCss != null && _isCss)
             removeFromCss();
-        _lock.decCount();
+        endLoad();
     }
 
     @Override
     protected void onResponseContent(Buffer content) throws IOException
     {
+        if (_streamer != null && _streamer.onContent(content.asArray()))
+            return; // Streamed to the browser.
+
         content.writeTo(_out);
         if (_context.isRouter)
             _out.flush();
@@ -787,13 +811,16 @@ public class HtmlSpeedHttpExchange extends HttpExchange
     @Override
     protected void onConnectionFailed(Throwable ex)
     {
+        recordLatency(true);
+        if (_race != null && !_race.isWinner(this, true))
+            return; // The other request of the race completes the load.
         _responseStatus = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
         if (_context != null && _context.isRouter)
             _context.response.setStatus(_responseStatus);
         _isCommFailure = true;
         _responseReason = null;
         _lock.setError(true);
-        _lock.decCount();
+        endLoad();
     }
 
     @Override
@@ -811,81 +838,94 @@ public class HtmlSpeedHttpExchange extends HttpExchange
         }
         else
         {
+            recordLatency(true);
+            if (_race != null && !_race.isWinner(this, true))
+                return; // The other request of the race completes the load.
             _responseStatus = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
             if (_context != null && _context.isRouter)
                 _context.response.setStatus(_responseStatus);
             _isCommFailure = true;
             _responseReason = null;
             _lock.setError(true);
-            _lock.decCount();
+            endLoad();
         }
     }
 
     @Override
     protected void onExpire()
     {
+        recordLatency(true);
+        if (_race != null && !_race.isWinner(this, true))
+            return; // The other request of the race completes the load.
         _responseStatus = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
         if (_context != null && _context.isRouter)
             _context.response.setStatus(_responseStatus);
         _isCommFailure = true;
         _responseReason = null;
         _lock.setError(true);
+        endLoad();
+    }
+
+    /**
+     * Marks the load as completed and releases the loader.
+     */
+    private void endLoad()
+    {
+        _isLoaded = true;
         _lock.decCount();
     }
 
     /**
-     * Ungzip the response-content (only when its content-encoding is gzip).
+     * Records the latency of the content-server (see Metrics and the latencies
+     * of hedged sub-resources), and counts the request for the outlier detection
+     * and the load of ContentServerHealth (only once, even when the exchange is
+     * completed by several events or cancelled).
+     *
+     * @param isFailed true when the communication with the content-server has failed
      */
-    private void ungzipResponse()
+    private void recordLatency(boolean isFailed)
     {
-        if (_isGziped)
-        {
-            if (_gzipedBytes.length == 0)
-            {
-                _bytes = new byte[0];
-                return;
-            }
+        if (!_isLatencyRecorded.compareAndSet(false, true))
+            return;
 
-            try
-            {
-                MyByteArrayInputStream bais = new MyByteArrayInputStream(_gzipedBytes);
-                GZIPInputStream is = new GZIPInputStream(bais);
-                byte[] buff = new byte[16*10240];
-                ByteArrayOutputStream os = new ByteArrayOutputStream(_gzipedBytes.length * 2);
-                int n;
-                while (bais.getPos() < _gzipedBytes.length && (n = is.read(buff)) >= 0)
-                    os.write(buff, 0, n);
-                _bytes = os.toByteArray();
-
-                is.close();
-                os.close();
-            }
-            catch (IOException exc)
-            {
-                exc.printStackTrace();
-            }
-        }
-        else if (_isDeflated)
+        long micros = (System.nanoTime() - _creationNanos) / 1000;
+        Metrics.recordOriginLatency(_contentServerAddress, micros, isFailed);
+        ContentServerHealth.recordResult(_contentServerAddress, micros, isFailed || _responseStatus >= 500);
+        if (_race != null && !isFailed && _responseStatus < 500)
+            Hedging.recordLatency(_host, micros);
+    }
+
+    /**
+     * Sends the next requests of the sessions started by the response
+     * (Set-Cookie of property session.cookies) to the content-server.
+     */
+    private void pinSessions()
+    {
+        if (_setCookieCount == 0 || _context == null || _context.isOthers)
+            return;
+
+        String[] sessionCookies = _context.configData.sessionCookies;
+        if (sessionCookies == null)
+            return;
+
+        for (int i = 0 ; i < _setCookieCount ; i++)
         {
-            if (_gzipedBytes.length == 0)
-            {
-                _bytes = new byte[0];
-                return;
-            }
+            String session = LoadBalancer.sessionOfSetCookie(_responseHeaders.get(_setCookieIndexes[i] + 1), sessionCookies);
+            if (session != null)
+                LoadBalancer.pin(session, ContentServerHealth.stateOf(_contentServerAddress));
+        }
+    }
 
+    /**
+     * Ungzip the response-content (only when its content-encoding is gzip).
+     */
+    private void ungzipResponse()
+    {
+        if (_isGziped || _isDeflated)
+        {
             try
             {
-                InflaterInputStream is = new InflaterInputStream(
-                                                                    new ByteArrayInputStream(_gzipedBytes), new Inflater(true));
-                byte[] buff = new byte[16*10240];
-                ByteArrayOutputStream os = new ByteArrayOutputStream(_gzipedBytes.length * 2);
-                int n;
-                while ((n = is.read(buff)) >= 0)
-                    os.write(buff, 0, n);
-                _bytes = os.toByteArray();
-
-                is.close();
-                os.close();
+                _bytes = (_isGziped ? GzipCodec.ungzip(_gzipedBytes) : GzipCodec.inflate(_gzipedBytes));
             }
             catch (IOException exc)
             {
@@ -1044,42 +1084,11 @@ public class HtmlSpeedHttpExchange extends HttpExchange
         // Gzipping modified _bytes:
         if (_indexOfFileSuffix >= 0 && (_isGziped || _isDeflated))
         {
-            try
-            {
-                ByteArrayOutputStream oByteArr = new ByteArrayOutputStream(newOrig.length*3/4);
-                OutputStream oGzip = new GZIPOutputStream(oByteArr);
-                oGzip.write(newOrig);
-                oGzip.close();
-                _gzipedBytes = oByteArr.toByteArray();
-                _isGziped = true;
-                _isDeflated = false;
-            }
-            catch (IOException exc)
-            {
-                _gzipedBytes = null;
-                _isGziped = false;
-                _isDeflated = false;
-                throw exc;
-            }
+            _gzipedBytes = GzipCodec.gzip(newOrig, GzipCodec.OTHER);
+            _isGziped = true;
+            _isDeflated = false;
         }
         return newOrig;
     }
 
-    /**
-     * Adds getPos to ByteArrayInputStream.
-     * Needed for bypassing EOFException bug of GZIPInputStream.
-     */
-    private static class MyByteArrayInputStream extends ByteArrayInputStream
-    {
-        public MyByteArrayInputStream(byte[] bytes)
-        {
-            super(bytes);
-        }
-
-        public int getPos()
-        {
-            return pos;
-        }
-    }
-
 }
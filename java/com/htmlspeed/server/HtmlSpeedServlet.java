@@ -10,14 +10,15 @@
  */
 package com.htmlspeed.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.AsyncContext;
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -32,6 +33,7 @@ import org.eclipse.jetty.http.HttpSchemes;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 /**
@@ -110,6 +112,12 @@ public class HtmlSpeedServlet implements Servlet
      */
     private boolean _isWithFirstPlus = false;
 
+    /**
+     * True when the container thread is released while the content-server
+     * responds (requires async-supported servlet). Configuration property.
+     */
+    private volatile boolean _isAsyncService = true;
+
     /**
      * Maximum allowed redirects for services.
      * Usually 0 is good. The value 1 is used when
@@ -118,6 +126,12 @@ public class HtmlSpeedServlet implements Servlet
      */
     private int _maxRedirects = 0;
 
+    /**
+     * Refreshes in the background stale rsrcs that have been returned to browsers
+     * (stale-while-revalidate), see revalidateLater.
+     */
+    private static final BackLoadScheduler _revalidator = new BackLoadScheduler("HtmlSpeedRevalidator", 8, 2, 1000);
+
     public HtmlSpeedServlet()
     {
     }
@@ -149,6 +163,9 @@ public class HtmlSpeedServlet implements Servlet
             _log = createLogger();
             if (_context != null)
                 _context.setAttribute(SERVLET_NAME + ".Logger",_log);
+            ConnectionPools.setLogger(_log);
+            AutoRefresher.setLogger(_log);
+            BackLoadScheduler.setLogger(_log);
         }
         catch (Exception e)
         {
@@ -157,10 +174,10 @@ public class HtmlSpeedServlet implements Servlet
 
         ConfigUtils.loadLicense();
 
-        RefreshTimerTask.setServlet(this);
         ConfigUtils.setServlet(this);
         ConfigUtils.loadAllConfigFiles();
         ConfigUtils.startConfigBackThread();
+        Metrics.registerMBean();
 
     }
 
@@ -169,7 +186,13 @@ public class HtmlSpeedServlet implements Servlet
     {
         try
         {
-            ConfigUtils.destroyRefreshTimerTasks();
+            AutoRefresher.stop();
+            ContentServerHealth.stop();
+            ConnectionPools.stop();
+            Hedging.stop();
+            Metrics.unregisterMBean();
+            ServiceUtils.persistCachedRsrcs();
+            DiskStore.closeAll();
             _client.stop();
         }
         catch (Exception x)
@@ -190,6 +213,68 @@ public class HtmlSpeedServlet implements Servlet
         String addProxyHeaders = configData.getProperty("proxy.headers");
         ServiceUtils.setAddProxyHeaders(!"false".equalsIgnoreCase(addProxyHeaders)); // Default is false
 
+        String asyncService = configData.getProperty("async.service");
+        _isAsyncService = !"false".equalsIgnoreCase(asyncService); // Default is true
+
+        String virtualThreads = configData.getProperty("virtual.threads");
+        boolean isVirtualThreads = "true".equalsIgnoreCase(virtualThreads); // Default is false
+        if (isVirtualThreads != VirtualThreads.isEnabled())
+        {
+            VirtualThreads.setEnabled(isVirtualThreads);
+            recreateClientWhenExists = true;
+        }
+
+        ServiceUtils.setBackLoadLimits(
+                                    intProperty(configData, "back.loaders", 8),
+                                    intProperty(configData, "back.loaders.per.host", 2),
+                                    intProperty(configData, "back.queue.size", 1000));
+
+        RefreshAhead.setLimits(
+                            intProperty(configData, "refresh.ahead.loaders", 4),
+                            intProperty(configData, "refresh.ahead.budget", 10));
+
+        AutoRefresher.setLimits(
+                            intProperty(configData, "auto.refresh.loaders", 5),
+                            intProperty(configData, "auto.refresh.loaders.per.origin", 2),
+                            intProperty(configData, "auto.refresh.origin.interval", 500),
+                            intProperty(configData, "auto.refresh.jitter", 10));
+
+        ContentServerHealth.setChecks(
+                            intProperty(configData, "health.check.interval", 10),
+                            configData.getProperty("health.check.path"),
+                            intProperty(configData, "health.check.timeout", 2000),
+                            intProperty(configData, "health.check.unhealthy", 2),
+                            intProperty(configData, "health.check.healthy", 2));
+
+        ContentServerHealth.setOutlierDetection(
+                            intProperty(configData, "outlier.consecutive.failures", 5),
+                            intProperty(configData, "outlier.error.percent", 50),
+                            intProperty(configData, "outlier.min.requests", 20),
+                            intProperty(configData, "outlier.latency.factor", 5),
+                            intProperty(configData, "outlier.ejection.time", 10),
+                            intProperty(configData, "outlier.ejection.max.time", 300),
+                            intProperty(configData, "slow.start", 30));
+
+        LoadBalancer.setBalancer(configData.getProperty("load.balancer"));
+
+        ConnectionPools.setWarming(
+                            intProperty(configData, "connections.warm", 0),
+                            intProperty(configData, "connections.warm.interval", 30));
+
+        Hedging.setHedging(
+                            intProperty(configData, "hedge.budget", 0),
+                            intProperty(configData, "hedge.percentile", 95),
+                            intProperty(configData, "hedge.min.delay", 10));
+
+        GzipCodec.setLevel(GzipCodec.HTML, intProperty(configData, "gzip.level.html", -1));
+        GzipCodec.setLevel(GzipCodec.CSS, intProperty(configData, "gzip.level.css", -1));
+        GzipCodec.setLevel(GzipCodec.JS, intProperty(configData, "gzip.level.js", -1));
+
+        String gzipSplicing = configData.getProperty("gzip.splicing");
+        GzipCodec.setSplicing(!"false".equalsIgnoreCase(gzipSplicing)); // Default is true
+
+        Encodings.setEncoders(configData.getProperty("content.encoders"));
+
         String redirects = configData.getProperty("redirects");
         if (redirects != null)
         {
@@ -243,6 +328,29 @@ public class HtmlSpeedServlet implements Servlet
         }
     }
 
+    /**
+     * @param configData configuration holding the property
+     * @param name name of property
+     * @param defaultValue returned when property is missing or illegal
+     * @return the integer value of the property
+     */
+    private static int intProperty(ConfigData configData, String name, int defaultValue)
+    {
+        String value = configData.getProperty(name);
+        if (value == null)
+            return defaultValue;
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            System.out.println("Illegal property: " + name + " " + value);
+            return defaultValue;
+        }
+    }
+
     /**
      * Create and return a logger based on the ServletConfig for use in the
      * proxy servlet
@@ -288,12 +396,22 @@ public class HtmlSpeedServlet implements Servlet
             client.registerListener("com.htmlspeed.server.RedirectListener");
 
         String param = configData.getProperty("max.threads");
-        if (param == null)
-            client.setThreadPool(new QueuedThreadPool(2000));
+        ExecutorService virtualExecutor =
+                    (VirtualThreads.isEnabled() ? VirtualThreads.newExecutor(SERVLET_NAME + "-client-") : null);
+        if (virtualExecutor != null)
+        {
+            // A virtual thread per task (blocking doesn't hold platform threads):
+            client.setThreadPool(new ExecutorThreadPool(virtualExecutor));
+        }
         else
-            client.setThreadPool(new QueuedThreadPool(Integer.parseInt(param)));
+        {
+            if (param == null)
+                client.setThreadPool(new QueuedThreadPool(2000));
+            else
+                client.setThreadPool(new QueuedThreadPool(Integer.parseInt(param)));
 
-        ((QueuedThreadPool)client.getThreadPool()).setName(SERVLET_NAME);
+            ((QueuedThreadPool)client.getThreadPool()).setName(SERVLET_NAME);
+        }
 
         param = configData.getProperty("max.connections");
         if (param == null)
@@ -338,6 +456,9 @@ public class HtmlSpeedServlet implements Servlet
         client.start();
 
         _client = client;
+        AutoRefresher.setClient(client);
+        ContentServerHealth.setClient(client);
+        ConnectionPools.setClient(client);
     }
 
     /* ------------------------------------------------------------ */
@@ -425,7 +546,7 @@ public class HtmlSpeedServlet implements Servlet
             url += "?" + queryString;
         }
 
-        if (handleHtmlSpeedService(uri, response))
+        if (handleHtmlSpeedService(uri, configData, response))
             return;
 
         boolean isLicensedDomain = ServiceUtils.isLicensedDomain(host);
@@ -486,10 +607,6 @@ public class HtmlSpeedServlet implements Servlet
             return;
         }
 
-        byte[] responseToBrowser = null; // Cached/new optimized response to be returned to browser.
-        boolean isGziped = false; // True when response to browser is gziped
-        HtmlSpeedHttpExchange exchange = null; // Used for invoking http-service on content server.
-
         if (host == null)
         {
             response.setStatus(500);
@@ -497,18 +614,86 @@ public class HtmlSpeedServlet implements Servlet
         }
 
         boolean isMobileHome = configData.isMobileHome && isMobile && uri.equals("/");
+        context.isMobileHome = isMobileHome;
+        context.ieVersion = ieVersion;
 
+        boolean isHandedOver = false; // True when the service is handed over to loadFromContentServer.
         try
         {
 
-            if (!isRouter && !isPost && !isMobileHome && !(request instanceof RefreshServletRequest) &&
+            if (!isRouter && !isPost && !isMobileHome &&
                     ServiceUtils.tryToUseCachedRsrc(context))
             {
                 if (configData.isDebug)
-                    System.out.println("HOST: " + host + ", URL: " + url + ", from ip: " + request.getRemoteAddr() + " (found)");
+                    System.out.println("HOST: " + host + ", URL: " + url + ", from ip: " + request.getRemoteAddr() +
+                                        (context.isStale ? " (found - stale)" : " (found)"));
+                if (context.refreshRsrc == null || !context.refreshRsrc.isBeingRefreshed)
+                    return;
+
+                // A stale rsrc has been returned (stale-while-revalidate), the browser
+                // gets it now and the rsrc is refreshed in the background:
+                response.flushBuffer();
+                revalidateLater(context);
+                isHandedOver = true;
                 return;
             }
 
+            // Concurrent misses of a page wait for a single load of the page:
+            if (!isRouter && !isPost && !isMobileHome &&
+                    ServiceUtils.tryToJoinPageLoad(context, _isAsyncService && request.isAsyncSupported()))
+            {
+                if (configData.isDebug)
+                    System.out.println("HOST: " + host + ", URL: " + url + ", from ip: " + request.getRemoteAddr() + " (joined)");
+                return;
+            }
+
+            isHandedOver = true;
+        }
+        finally
+        {
+            if (!isHandedOver)
+            {
+                recoverFailedRefresh(context);
+                ServiceUtils.leavePageLoad(context);
+            }
+        }
+
+        loadFromContentServer(context, uri, queryString);
+
+        }
+        finally
+        {
+            if (configData != null)
+                configData.lock.readLock().unlock();
+
+            ConfigUtils.configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the requested url from the content-server, and processes the response
+     * (see serviceResponse). Called by service.
+     *
+     * @param context of current http-service
+     * @param uri the original uri of the request (with its query string)
+     * @param queryString the encoded query string of the request (null when none)
+     */
+    private void loadFromContentServer(ServiceContext context, String uri, String queryString)
+                                                                            throws ServletException, IOException
+    {
+        HttpServletRequest request = context.request;
+        ConfigData configData = context.configData;
+        String url = context.url;
+        String host = context.host;
+        boolean isPost = context.isPost;
+        boolean isIE = context.isIE;
+        int ieVersion = context.ieVersion;
+
+        HtmlSpeedHttpExchange exchange = null; // Used for invoking http-service on content server.
+
+        boolean isHandedOver = false; // True when the exchange is handed over to serviceResponse.
+        try
+        {
             String savedUri = uri;
             uri = null;
             uri = ServiceUtils.handleMsg(queryString, request, savedUri);
@@ -519,7 +704,7 @@ public class HtmlSpeedServlet implements Servlet
 
             boolean isVersionedRsrc = CacheUtils.isVersionUrl(uri);
             context.isVersionedRsrc = isVersionedRsrc;
-            String versionUrl = (isVersionedRsrc ? uri : null);
+            context.versionUrl = (isVersionedRsrc ? uri : null);
             if (isVersionedRsrc)
             {
                 url = CacheUtils.originalUrlOf(url);
@@ -545,25 +730,62 @@ public class HtmlSpeedServlet implements Servlet
 
             ServiceUtils.initExchange(context);
 
-            // When auto-refresh setting If-None-Match and If-Modified-Since headers in exchange:
-            if (!isRouter && request instanceof RefreshServletRequest)
+            // State-full html-pages may be returned to the browser while they are received:
+            if (configData.isStreamingHtml && !context.isRouter && !isPost && !isVersionedRsrc &&
+                    context.prevMd5 == null && context.refreshRsrc == null &&
+                    !(_isWithIframe && ((!isIE) || configData.ieMinContentFirst <= ieVersion) &&
+                            configData.isContentFirst(url, true /* wildcardsAllowed */)))
+                exchange.setStreamer(new HtmlStreamer(context));
+
+            boolean isAsync = _isAsyncService && request.isAsyncSupported();
+            context.isConfigLocked = !isAsync; // Locked by this thread while waiting for the exchange.
+
+            _client.send(exchange);
+
+            if (isAsync)
             {
-                synchronized (cache.globalLock)
+                // Releasing the container thread while the content-server responds (the response
+                // is processed by resumeService on a pooled thread, or on a virtual thread):
+                final AsyncContext asyncCtxt = request.startAsync();
+                asyncCtxt.setTimeout(0); // Expiry is handled by the timeout of _client.
+                final ServiceContext asyncContext = context;
+                final Executor resumeExecutor = new Executor()
+                {
+                    public void execute(Runnable task)
+                    {
+                        ExecutorService virtualExecutor = VirtualThreads.getExecutor();
+                        if (virtualExecutor != null)
+                        {
+                            try
+                            {
+                                virtualExecutor.execute(task);
+                                return;
+                            }
+                            catch (RejectedExecutionException e)
+                            {
+                                // Virtual threads have just been disabled.
+                            }
+                        }
+                        asyncCtxt.start(task);
+                    }
+                };
+                loadLock.runWhenCountIs0(new Runnable()
                 {
-                    RsrcIfc r = ServiceUtils.getFromCache(CacheUtils.FIRST_VISIT_VARIANT, url, configData);
-                    if (r instanceof PageRsrc)
+                    public void run()
                     {
-                        PageRsrc page = (PageRsrc)r;
-                        if (page.origEtag != null)
-                            exchange.setRequestHeader("If-None-Match", page.origEtag);
-                        if (page.origLastModified != null)
-                            exchange.setRequestHeader("If-Modified-Since", page.origLastModified);
+                        resumeExecutor.execute(new Runnable()
+                        {
+                            public void run()
+                            {
+                                resumeService(asyncContext, asyncCtxt, resumeExecutor);
+                            }
+                        });
                     }
-                }                
+                });
+                isHandedOver = true;
+                return;
             }
 
-            _client.send(exchange);
-
             // Waiting for http-service to complete:
             try
             {
@@ -573,7 +795,104 @@ public class HtmlSpeedServlet implements Servlet
             {
             }
 
-            if (isRouter)
+            isHandedOver = true;
+        }
+        finally
+        {
+            if (!isHandedOver)
+            {
+                recoverFailedRefresh(context);
+                ServiceUtils.leavePageLoad(context);
+            }
+        }
+
+        serviceResponse(context);
+    }
+
+    /**
+     * Refreshes in the background a stale rsrc that has been returned to the browser
+     * (stale-while-revalidate): the request completes now, and the rsrc is revalidated
+     * by _revalidator (see ServiceUtils.refreshStaleRsrc).
+     *
+     * @param context of current http-service (context.refreshRsrc is being refreshed)
+     */
+    private void revalidateLater(final ServiceContext context)
+    {
+        context.request = null; // Completed, may be recycled by the container.
+        context.response = null;
+        final TempRsrc refreshRsrc = context.refreshRsrc;
+
+        _revalidator.submit(new BackLoadScheduler.Job(context.host, refreshRsrc.url)
+        {
+            @Override
+            public void load()
+            {
+                boolean isRefreshed = false;
+                ConfigUtils.configLock.readLock().lock();
+                ConfigData configData = context.configData;
+                configData.lock.readLock().lock();
+                try
+                {
+                    isRefreshed = ServiceUtils.refreshStaleRsrc(refreshRsrc, context.client, configData);
+                }
+                catch (Exception e)
+                {
+                    LOG.warn("SERVER: failed revalidating " + refreshRsrc.url + " of " + context.host, e);
+                }
+                finally
+                {
+                    if (!isRefreshed)
+                        recoverFailedRefresh(context);
+
+                    configData.lock.readLock().unlock();
+                    ConfigUtils.configLock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public void cancel()
+            {
+                recoverFailedRefresh(context); // Rejected (too many queued refreshes).
+            }
+        });
+    }
+
+    /**
+     * Processes the response of the content-server (optimizing and caching it),
+     * and returns the response to the browser.
+     *
+     * Called by service when the exchange is completed, or by resumeService
+     * when the request is served asynchronously.
+     *
+     * @param context of current http-service (its exchange is completed)
+     */
+    private void serviceResponse(ServiceContext context) throws ServletException, IOException
+    {
+        final HttpServletRequest request = context.request;
+        final HttpServletResponse response = context.response;
+        ConfigData configData = context.configData;
+        CacheStructure cache = context.cache;
+        HtmlSpeedHttpExchange exchange = context.exchange;
+
+        String url = context.url;
+        String host = context.host;
+        char variant = context.variant;
+        boolean isRouter = context.isRouter;
+        boolean isPost = context.isPost;
+        boolean isIE = context.isIE;
+        boolean isIE8 = context.isIE8;
+        int ieVersion = context.ieVersion;
+        boolean isMobile = context.isMobile;
+        boolean isMobileHome = context.isMobileHome;
+        boolean isVersionedRsrc = context.isVersionedRsrc;
+        String versionUrl = context.versionUrl;
+
+        byte[] responseToBrowser = null; // Cached/new optimized response to be returned to browser.
+        boolean isGziped = false; // True when response to browser is gziped
+
+        try
+        {
+            if (isRouter || context.isStreamed)
                 return; // Resopose already sent to browser.
 
             //
@@ -646,6 +965,16 @@ public class HtmlSpeedServlet implements Servlet
             int status = exchange.getResponseStatus();
             context.status = status;
 
+            // Stale-if-error: returning the stale rsrc instead of the failure of its refresh:
+            if (!isRouter && status >= 500 && context.refreshRsrc != null && context.refreshRsrc.isBeingRefreshed &&
+                    configData.staleIfErrorOf(context.refreshRsrc.url) > 0)
+            {
+                recoverFailedRefresh(context);
+                if (context.refreshRsrc.replacer.maxFreshTime > System.currentTimeMillis() &&
+                        ServiceUtils.tryToUseCachedRsrc(context))
+                    return;
+            }
+
             if (isServiceWithIframe && status == 200)
                 exchange.handleLocationUpdates();
 
@@ -680,138 +1009,6 @@ public class HtmlSpeedServlet implements Servlet
             if (!isPost && !isRouter)
                 origMd5 = CacheUtils.md5Of(orig);
 
-            // Handling auto-refresh of state-less resources:
-            if (!isRouter && request instanceof RefreshServletRequest)
-            {
-                // Handling not modified pages:
-                synchronized (cache.globalLock)
-                {
-                    RsrcIfc r = ServiceUtils.getFromCache(CacheUtils.FIRST_VISIT_VARIANT, url, configData);
-                    if (r instanceof PageRsrc)
-                    {
-                        PageRsrc page = (PageRsrc)r;
-                        if (status == 304 || page.origMd5.equals(origMd5))
-                        {
-                            System.out.println("URL: " + url + " from ip: " + request.getRemoteAddr() + " (refreshed - not modified)");
-
-                            // Updating lastRefreshTime, maxAge, maxFreshTime of unmodified page:
-                            long maxAge = CacheUtils.maxAgeOf(exchange, true /* isKnownToBeStateLess*/, configData);
-                            long currentTime = System.currentTimeMillis();
-                            for (char vrnt : CacheUtils.ALL_VARIANTS)
-                            {
-                                r = ServiceUtils.getFromCache(vrnt, url, configData);
-                                if (r instanceof PageRsrc)
-                                {
-                                    page = (PageRsrc)r;
-                                    if (page != null)
-                                    {
-                                        page.lastRefreshTime = currentTime;
-                                        page.maxAge = maxAge;
-                                        page.maxFreshTime = page.lastRefreshTime + maxAge*1000;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-                
-                if (status == 200)
-                {
-                    ServiceUtils.processResponseHeaders(context);
-                    if (configData.isDebug)
-                        System.out.println("URL: " + url + " from ip: " + request.getRemoteAddr() + " (refreshed)");
-
-                    // Optimizing page:
-                    HtmlAnalyzer htmlAnalyzer = new HtmlAnalyzer();
-                    int[] info = htmlAnalyzer.analyze(context);
-                    context.info = info;
-                    context.base = (isCss ? url : htmlAnalyzer.getBase());
-                    if (context.base != null && !isCss && configData.hostsMap != null)
-                    {
-                        for (Map.Entry<String, String> entry : configData.hostsMap.entrySet())
-                        {
-                            if (context.base.contains(entry.getValue()))
-                            {
-                                context.base = context.base.replace(entry.getValue(), entry.getKey());
-                                break;
-                            }
-                        }
-                    }
-                    if ((isHtml || isCss) && context.base == null)
-                    {
-                        if (url.indexOf("://localhost") < 0 && url.indexOf("://fast.") < 0 &&
-                                url.indexOf("://localhost") < 0 && url.indexOf(ServiceUtils.getPrimeHost()) < 0)
-                            context.base = url;
-                    }
-
-                    // Setting http Content-Type header to value of meta:
-                    String metaContentType = htmlAnalyzer.getMetaContentType();
-                    int contentTypeIndex = exchange.getContentTypeIndex();
-                    if (isHtml && metaContentType != null && contentTypeIndex < 0)
-                    {
-                        exchange.setResponseContentType(metaContentType);
-                        responseHeaders = exchange.getResponseHeaders();
-                        response.setHeader("Content-Type", metaContentType);
-                        if (contentTypeIndex >= 0)
-                        {
-                            cachedHeaders.set(contentTypeIndex + 1, metaContentType);
-                        }
-                        else
-                        {
-                            cachedHeaders.add("Content-Type");
-                            cachedHeaders.add(metaContentType);
-                        }
-                    }
-
-                    for (char vrnt : CacheUtils.ALL_VARIANTS)
-                    {
-                        variant = vrnt;
-                        context.variant = variant;
-
-                        ServiceUtils.loadMissingRsrcs(context);
-                        ServiceUtils.optimizeStylesheets(context);
-
-                        if (isStateFull)
-                            return; // No need to add to cache (and missing rsrcs already loaded).
-
-                        htmlAnalyzer = null;
-
-                        if (CacheUtils.IE8_FIRST_PLUS_VISIT_VARIANT <= vrnt && vrnt <= CacheUtils.IE8_FORTH_VISIT_VARIANT)
-                            context.isServiceWithIframe = false;
-                        else
-                            context.isServiceWithIframe = isServiceWithIframe;
-
-                        responseToBrowser = ServiceUtils.buildResponseToBrowser(context, true /*isGziped*/);
-
-                        // Caching the new page/stylesheet:
-                        PageRsrc rsrc = new PageRsrc();
-                        rsrc.origData = orig;
-                        rsrc.optimGzip = responseToBrowser;
-                        rsrc.optimGzipEncoding = "gzip";
-                        rsrc.host = host;
-                        rsrc.variant = variant;
-                        rsrc.url = url;
-                        rsrc.origEtag = origEtag;
-                        rsrc.origLastModified = origLastModified;
-                        rsrc.origMd5 = origMd5;
-
-                        rsrc.httpHeaders = cachedHeaders.toArray(new String[cachedHeaders.size()]);
-
-                        long maxAge = CacheUtils.maxAgeOf(exchange, true /* isKnownToBeStateLess*/, configData);
-
-                        rsrc.lastRefreshTime = System.currentTimeMillis();
-                        rsrc.maxAge = maxAge;
-                        rsrc.maxFreshTime = rsrc.lastRefreshTime + maxAge*1000;
-                        synchronized (cache.globalLock)
-                        {
-                            ServiceUtils.putInCache(rsrc.variant, rsrc.url, rsrc, configData);
-                        }
-                    }
-                }
-
-                return; // Finished handling auto-refresh
-            }
-
             // Handling unmodified refreshed state-less resources:
             if (!isRouter && !isPost && context.refreshRsrc != null && context.refreshRsrc.isBeingRefreshed)
             {
@@ -892,52 +1089,21 @@ public class HtmlSpeedServlet implements Servlet
 
             // Correcting variant when out of range:
             if (!isRouter && isHtml)
-            {
-                int variantOffset = CacheUtils.offsetOf(variant);
-                if (isStateFull)
-                {
-                    if (variantOffset < configData.minStateFullVariant)
-                        variant += (configData.minStateFullVariant - variantOffset);
-                    else if (variantOffset > configData.maxStateFullVariant)
-                        variant -= (variantOffset - configData.maxStateFullVariant);
-                }
-                else
-                {
-                    if (variantOffset < configData.minStateLessVariant)
-                        variant += (configData.minStateLessVariant - variantOffset);
-                    else if (variantOffset > configData.maxStateLessVariant)
-                        variant -= (variantOffset - configData.maxStateLessVariant);
-                }
-            }
+                variant = CacheUtils.inRangeVariantOf(variant, isStateFull, configData);
 
             context.variant = variant;
 
             boolean noInline = false; // True when isCss is not inlinable because it contains not-inlined image.
 
+            GZIPOutputStream earlyOut = null; // Not null when the head of the page is returned before its resources are loaded.
+
             // Optimizing page/stylesheet:
             if(!isRouter && (isHtml || isCss) && status == 200)
             {
                 HtmlAnalyzer htmlAnalyzer = new HtmlAnalyzer();
                 int[] info = htmlAnalyzer.analyze(context);
                 context.info = info;
-                context.base = (isCss ? url : htmlAnalyzer.getBase());
-                if (context.base != null && !isCss && configData.hostsMap != null)
-                {
-                    for (Map.Entry<String, String> entry : configData.hostsMap.entrySet())
-                    {
-                        if (context.base.contains(entry.getValue()))
-                        {
-                            context.base = context.base.replace(entry.getValue(), entry.getKey());
-                            break;
-                        }
-                    }
-                }
-                if ((isHtml || isCss) && context.base == null)
-                {
-                    if (url.indexOf("://localhost") < 0 && url.indexOf("://fast.") < 0 &&
-                            url.indexOf("://localhost") < 0 && url.indexOf(ServiceUtils.getPrimeHost()) < 0)
-                        context.base = url;
-                }
+                context.base = ServiceUtils.baseOf(htmlAnalyzer.getBase(), context);
 
                 // Setting http Content-Type header to value of meta:
                 String metaContentType = htmlAnalyzer.getMetaContentType();
@@ -959,6 +1125,23 @@ public class HtmlSpeedServlet implements Servlet
                 }
                 htmlAnalyzer = null;
 
+                // Returning the head of the page while its resources are loaded:
+                if (isHtml && configData.isEarlyFlush && !isPost && !is304 && !context.isServiceWithIframe &&
+                        context.refreshRsrc == null)
+                {
+                    if (!isStateFull)
+                    {
+                        maxAge = CacheUtils.maxAgeOf(exchange, true /* isKnownToBeStateLess*/, configData);
+                        if (configData.minStateLessVariant != configData.maxStateLessVariant)
+                            response.setHeader("Cache-Control", "private, max-age=" + maxAge);
+                        else
+                            response.setHeader("Cache-Control", "max-age=" + maxAge);
+                    }
+                    response.setHeader("ETag", CacheUtils.toEtag(origEtag, origMd5, variant, isStateFull));
+
+                    earlyOut = ServiceUtils.earlyFlush(context);
+                }
+
                 noInline = ServiceUtils.loadMissingRsrcs(context);
 
                 if (isHtml)
@@ -967,6 +1150,9 @@ public class HtmlSpeedServlet implements Servlet
                 isGziped = true;
                 responseToBrowser = ServiceUtils.buildResponseToBrowser(context, isGziped);
 
+                if (earlyOut != null)
+                    ServiceUtils.writeRestToBrowser(context, earlyOut);
+
                 int maxOffset = isStateFull ? configData.maxStateFullVariant : configData.maxStateLessVariant;
 
                 if (!isRouter && isHtml && context.ungzipedResponseLen <= HALF_MEGA * 80 / 100)
@@ -1003,6 +1189,7 @@ public class HtmlSpeedServlet implements Servlet
             //
             if (!isRouter && !isPost && !isStateFull && status == 200 && origMd5 != null &&
                     (context.refreshRsrc == null || context.refreshRsrc.isBeingRefreshed) &&
+                    !context.isAssemblyLate && // The next service inlines the late resources.
                     (isHtml || isCss || isImage || isJavaScript || isFlash || isVersionedRsrc))
             {
                 Rsrc rsrc = null; // Cached or new page/stylesheet resource
@@ -1021,6 +1208,11 @@ public class HtmlSpeedServlet implements Servlet
                 else
                     rsrc = new JsRsrc();
 
+                if (context.refreshRsrc == null)
+                    cache.stats.recordMiss(rsrc.getClass(), context.variant);
+                else
+                    cache.stats.recordRefresh(rsrc.getClass(), context.variant);
+
                 if (orig != null)
                     rsrc.origData = orig;
 
@@ -1042,7 +1234,7 @@ public class HtmlSpeedServlet implements Servlet
                     else if (!exchange.isGziped() && !exchange.isDeflated() &&
                             orig != null && orig.length >= ServiceUtils.MIN_GZIP_LEN)
                     {
-                        js.origGzip = ServiceUtils.toGzip(js.origData);
+                        js.origGzip = ServiceUtils.toGzip(js.origData, GzipCodec.JS);
                         js.origGzipEncoding = "gzip";
                     }                                             
                 }
@@ -1068,7 +1260,7 @@ public class HtmlSpeedServlet implements Servlet
                     else if (!exchange.isGziped() && !exchange.isDeflated() &&
                             orig != null && orig.length >= ServiceUtils.MIN_GZIP_LEN)
                     {
-                        css.origGzip = ServiceUtils.toGzip(css.origData);
+                        css.origGzip = ServiceUtils.toGzip(css.origData, GzipCodec.CSS);
                         css.origGzipEncoding = "gzip";
                     }
                     css.optimGzip = responseToBrowser;
@@ -1152,7 +1344,7 @@ public class HtmlSpeedServlet implements Servlet
                     rsrc.lastRefreshTime = System.currentTimeMillis();
                     rsrc.maxAge = maxAge;
                     rsrc.maxFreshTime = rsrc.lastRefreshTime + maxAge*1000;
-                    synchronized (cache.globalLock)
+                    synchronized (cache.lockOf(rsrc.url))
                     {
                         ServiceUtils.putInCache(rsrc.variant, rsrc.url, rsrc, configData);
 
@@ -1165,6 +1357,9 @@ public class HtmlSpeedServlet implements Servlet
             if (is304)
                 return; // Status 304 has been returned and rsrc has been added to cache.
 
+            if (earlyOut != null)
+                return; // Response has been returned by earlyFlush and writeRestToBrowser.
+
             if (isVersionedRsrc)
                 maxAge = 31536000; // Cache for another year.
             if (maxAge >= 0)
@@ -1188,10 +1383,7 @@ public class HtmlSpeedServlet implements Servlet
                 else if (origMd5 != null)
                 {
                     // Setting etag to origEtag + {|[ + md5 + variant + }|]:
-                    char leftBrace = isHtml && isStateFull ? '{' : '[';
-                    char rightBrace = isHtml && isStateFull ? '}' : ']';
-                    etag = (origEtag != null ? origEtag : "") +
-                                    leftBrace + origMd5 + variant + rightBrace;
+                    etag = CacheUtils.toEtag(origEtag, origMd5, variant, isHtml && isStateFull);
                 }
                 else
                 {
@@ -1206,33 +1398,10 @@ public class HtmlSpeedServlet implements Servlet
         }
         finally
         {
-            // Recovering from a failure during refresh:
-            if (!isRouter && context.refreshRsrc != null && context.refreshRsrc.isBeingRefreshed)
-            {
-                // Rollback and postpone the refresh of rsrc by 1 minute:
-                synchronized (cache.globalLock)
-                {
-                    context.refreshRsrc.isBeingRefreshed = false;
-                    Rsrc rsrc = context.refreshRsrc.replacer;
-                    rsrc.isBeingLoaded = false;
-                    rsrc.lastRefreshTime = System.currentTimeMillis();
-                    rsrc.maxAge = 60;
-                    rsrc.maxFreshTime = rsrc.lastRefreshTime + 60*1000;
-                    ServiceUtils.putInCache(rsrc.variant, rsrc.url, rsrc, configData);
-
-                    // Notify waiters:
-                    if (context.refreshRsrc.waiters != null)
-                    {
-                        for (LoadLock w : context.refreshRsrc.waiters)
-                            w.decCount();
-                        context.refreshRsrc.waiters = null;
-                    }
-                }
-
-                System.out.println("URL: " + url + " from ip: " + request.getRemoteAddr() + " (refreshed - failed)");
-            }
+            recoverFailedRefresh(context);
+            ServiceUtils.leavePageLoad(context); // The page has been cached (when cachable).
         }
-            
+
         if (responseToBrowser == null)
         {
             if (!isRouter && context.info != null)
@@ -1258,14 +1427,107 @@ public class HtmlSpeedServlet implements Servlet
             response.setHeader("Content-Encoding", "gzip");
 
         response.getOutputStream().write(responseToBrowser);
+    }
 
+    /**
+     * Continues an asynchronous service when its exchange is completed (see service).
+     *
+     * The missing resources of a html-page are loaded before the page is processed
+     * (see ServiceUtils.preloadRsrcs): no thread waits for them, the service is
+     * resumed again when they are loaded.
+     *
+     * @param context of the resumed http-service
+     * @param asyncCtxt completed when the response is returned to the browser
+     * @param executor executes the loads of missing resources and the resumed service
+     *          (null when the resources are already loaded)
+     */
+    private void resumeService(final ServiceContext context, final AsyncContext asyncCtxt, Executor executor)
+    {
+        boolean isPreloading = false;
+        ConfigUtils.configLock.readLock().lock();
+        ConfigData configData = context.configData;
+        configData.lock.readLock().lock();
+        try
+        {
+            if (executor != null)
+            {
+                isPreloading = ServiceUtils.preloadRsrcs(context, executor, new Runnable()
+                {
+                    public void run()
+                    {
+                        resumeService(context, asyncCtxt, null);
+                    }
+                });
+                if (isPreloading)
+                    return;
+            }
+
+            serviceResponse(context);
+        }
+        catch (Exception e)
+        {
+            _log.debug(e);
+            if (!context.response.isCommitted())
+                context.response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         }
         finally
         {
-            if (configData != null)
-                configData.lock.readLock().unlock();
-
+            configData.lock.readLock().unlock();
             ConfigUtils.configLock.readLock().unlock();
+            if (!isPreloading)
+                asyncCtxt.complete();
+        }
+    }
+
+    /**
+     * Rolls back a refresh that has failed (postponing the refresh by 1 minute).
+     *
+     * When the url has a stale-if-error window, the stale rsrc is kept fresh no
+     * longer than the end of the window (measured from when it became stale).
+     *
+     * @param context of current http-service
+     */
+    private void recoverFailedRefresh(ServiceContext context)
+    {
+        if (!context.isRouter && context.refreshRsrc != null && context.refreshRsrc.isBeingRefreshed)
+        {
+            // Rollback and postpone the refresh of rsrc by 1 minute:
+            synchronized (context.cache.lockOf(context.refreshRsrc.url))
+            {
+                context.refreshRsrc.isBeingRefreshed = false;
+                Rsrc rsrc = context.refreshRsrc.replacer;
+                rsrc.isBeingLoaded = false;
+                rsrc.lastRefreshTime = System.currentTimeMillis();
+
+                long postponed = 60*1000;
+                long staleIfError = context.configData.staleIfErrorOf(rsrc.url);
+                if (staleIfError > 0)
+                {
+                    if (rsrc.staleTime == 0)
+                        rsrc.staleTime = Math.min(rsrc.maxFreshTime, rsrc.lastRefreshTime);
+                    postponed = Math.min(postponed, rsrc.staleTime + staleIfError - rsrc.lastRefreshTime);
+                    if (postponed > 0)
+                        context.cache.stats.recordStaleIfErrorHit();
+                    else
+                        postponed = 0; // Window is over, refreshed by next service.
+                }
+
+                rsrc.maxAge = postponed / 1000;
+                rsrc.maxFreshTime = rsrc.lastRefreshTime + postponed;
+                ServiceUtils.putInCache(rsrc.variant, rsrc.url, rsrc, context.configData);
+
+                // Notify waiters:
+                if (context.refreshRsrc.waiters != null)
+                {
+                    for (LoadLock w : context.refreshRsrc.waiters)
+                        w.decCount();
+                    context.refreshRsrc.waiters = null;
+                }
+            }
+
+            System.out.println("URL: " + context.url +
+                                (context.request != null ? " from ip: " + context.request.getRemoteAddr() : "") +
+                                " (refreshed - failed)");
         }
     }
 
@@ -1330,11 +1592,12 @@ public class HtmlSpeedServlet implements Servlet
      * Called by the method service to handle htmlspeed control requests.
      *
      * @param uri the uri of the servlet request
+     * @param configData configuration of requested domain
      * @param response the servlet response
      * @return true when uri is an html-speed request (which has been processed)
      * @throws IOException can happen when writing to output-stream of response
      */
-    private boolean handleHtmlSpeedService(String uri, HttpServletResponse response) throws IOException, ServletException
+    private boolean handleHtmlSpeedService(String uri, ConfigData configData, HttpServletResponse response) throws IOException, ServletException
     {
         if (uri.equals("/htmlspeed.html"))
         {
@@ -1359,6 +1622,49 @@ public class HtmlSpeedServlet implements Servlet
                 ConfigUtils.load(uri.substring("/htmlspeed/clean/".length()), true /* cleanCache */);
                 return true;
             }
+            else if (uri.startsWith("/htmlspeed/cache-stats"))
+            {
+                // Returning hit-ratios of cache of requested domain:
+                CacheStructure cache = configData.cache;
+                StringBuilder sb = new StringBuilder(1024);
+                sb.append("resources: ").append(cache.rsrcsList.getCount());
+                sb.append(", bytes: ").append(cache.rsrcsList.getTotalSize());
+                sb.append(", off-heap bytes: ").append(cache.rsrcsList.getOffHeapSize());
+                sb.append(", reserved direct bytes: ").append(OffHeapStore.getReservedBytes()).append('\n');
+                DiskStore diskStore = cache.diskStore;
+                if (diskStore != null)
+                {
+                    sb.append("disk resources: ").append(diskStore.getCount());
+                    sb.append(", disk bytes: ").append(diskStore.getSize()).append('\n');
+                }
+                sb.append(cache.stats.toString());
+                sb.append(ServiceUtils.getBackLoader().toString()).append('\n');
+                sb.append(GzipCodec.getStats()).append('\n');
+                sb.append(Encodings.getStats()).append('\n');
+                sb.append(RefreshAhead.getStats()).append('\n');
+                sb.append(AutoRefresher.getStats()).append('\n');
+                sb.append(ContentServerHealth.getStats()).append('\n');
+                sb.append(ConnectionPools.getStats()).append('\n');
+                sb.append(Hedging.getStats()).append('\n');
+                byte[] out = sb.toString().getBytes();
+                response.setHeader("Content-Type", "text/plain");
+                response.setHeader("Cache-Control", "no-cache");
+                response.setHeader("Content-Length", out.length + "");
+                response.setStatus(200);
+                response.getOutputStream().write(out);
+                return true;
+            }
+            else if (uri.startsWith("/htmlspeed/metrics"))
+            {
+                // Returning the metrics of the hot paths (see Metrics):
+                byte[] out = Metrics.toText().getBytes();
+                response.setHeader("Content-Type", "text/plain; version=0.0.4");
+                response.setHeader("Cache-Control", "no-cache");
+                response.setHeader("Content-Length", out.length + "");
+                response.setStatus(200);
+                response.getOutputStream().write(out);
+                return true;
+            }
             else if (uri.startsWith("/htmlspeed/init/"))
             {
                 // Replacing ReadLock by WriteLock and loading all config-files:
@@ -1461,20 +1767,7 @@ public class HtmlSpeedServlet implements Servlet
 
         try
         {
-            MyByteArrayInputStream bais = new MyByteArrayInputStream(gzipedBytes);
-            GZIPInputStream is = new GZIPInputStream(bais);
-            byte[] buff = new byte[16*10240];
-            ByteArrayOutputStream os = new ByteArrayOutputStream(gzipedBytes.length * 2);
-            int n;
-            while (bais.getPos() < gzipedBytes.length && (n = is.read(buff)) >= 0)
-                os.write(buff, 0, n);
-
-            byte [] bytes = os.toByteArray();
-
-            is.close();
-            os.close();
-
-            return bytes;
+            return GzipCodec.ungzip(gzipedBytes);
         }
         catch (IOException exc)
         {
@@ -1482,21 +1775,4 @@ public class HtmlSpeedServlet implements Servlet
         }
     }
 
-    /**
-     * Adds getPos to ByteArrayInputStream.
-     * Needed for bypassing EOFException bug of GZIPInputStream.
-     */
-    private static class MyByteArrayInputStream extends ByteArrayInputStream
-    {
-        public MyByteArrayInputStream(byte[] bytes)
-        {
-            super(bytes);
-        }
-
-        public int getPos()
-        {
-            return pos;
-        }
-    }
-
 }
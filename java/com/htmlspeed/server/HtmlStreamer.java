@@ -0,0 +1,410 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * HtmlStreamer
+ *
+ * Streams a state-full html-page to the browser while it is received from the
+ * content-server (property streaming.html).
+ *
+ * The received content is ungziped incrementally and analyzed by HtmlAnalyzer
+ * segment after segment. Each segment is optimized like a complete page (only
+ * resources that are already cached are inlined, missing resources are loaded in
+ * the background) and is written gziped to the browser and flushed, so the browser
+ * starts parsing the page (and loading its resources) before the page is complete.
+ *
+ * Called by HtmlSpeedHttpExchange on the thread of the http-client.
+ */
+public class HtmlStreamer
+{
+    /**
+     * The last LOOKAHEAD received bytes are not analyzed (unless the page is
+     * complete), since HtmlAnalyzer reads ahead (up to the end of a css url).
+     */
+    private static final int LOOKAHEAD = 1024;
+
+    /**
+     * Minimal number of analyzed bytes in segment (less are accumulated).
+     */
+    private static final int MIN_SEGMENT = 8*1024;
+
+    private final ServiceContext _context;
+
+    private final HtmlSpeedHttpExchange _exchange;
+
+    /**
+     * True after deciding if the page is streamed.
+     */
+    private boolean _isDecided = false;
+
+    /**
+     * True when the page is streamed to the browser.
+     */
+    private boolean _isStreaming = false;
+
+    /**
+     * True after a failure while streaming (the rest of the page is dropped).
+     */
+    private boolean _isFailed = false;
+
+    /**
+     * Ungzips the received content (null when content is not gziped/deflated).
+     */
+    private Inflater _inflater = null;
+
+    /**
+     * Received bytes of gzip header (null after the header is skipped).
+     */
+    private byte[] _gzipHeader = null;
+
+    /**
+     * The received (ungziped) content: _in[0 .. _inLen - 1].
+     */
+    private byte[] _in = new byte[32*1024];
+    private int _inLen = 0;
+
+    private HtmlAnalyzer _analyzer = null;
+
+    /**
+     * Number of elements of _analyzer.getOut() that have been handled.
+     */
+    private int _infoLen = 0;
+
+    /**
+     * Offset in _in of the first byte that is not yet written to the browser.
+     */
+    private int _iOrig = 0;
+
+    /**
+     * Gziped response to browser.
+     */
+    private GZIPOutputStream _out = null;
+
+    /**
+     * Constructor
+     *
+     * @param context service-context of the streamed page (its exchange is set)
+     */
+    public HtmlStreamer(ServiceContext context)
+    {
+        _context = context;
+        _exchange = context.exchange;
+    }
+
+    /**
+     * Handles received content.
+     *
+     * @param content received (possibly gziped) bytes
+     * @return true when the page is streamed (content need not be buffered by the exchange)
+     */
+    public boolean onContent(byte[] content)
+    {
+        if (_isDecided && !_isStreaming)
+            return false;
+
+        try
+        {
+            if (!_isDecided && _exchange.getResponseStatus() != 200)
+            {
+                _isDecided = true;
+                return false;
+            }
+
+            if (!_isFailed)
+                decode(content);
+
+            if (!_isDecided && _inLen >= LOOKAHEAD)
+                decide();
+
+            if (_isStreaming && !_isFailed)
+                process(false /*isLast*/);
+        }
+        catch (Exception e)
+        {
+            if (_context.configData.isDebug)
+                System.out.println("Streaming failed: " + _context.url + " " + e);
+            if (!_isStreaming)
+                _isDecided = true; // Page is handled by the servlet.
+            _isFailed = true;
+        }
+
+        return _isStreaming;
+    }
+
+    /**
+     * Called when the complete page is received.
+     *
+     * @return true when the page has been streamed to the browser
+     */
+    public boolean onComplete()
+    {
+        if (_inflater != null)
+            _inflater.end();
+
+        if (!_isStreaming)
+        {
+            _isDecided = true;
+            return false;
+        }
+
+        try
+        {
+            if (!_isFailed)
+                process(true /*isLast*/);
+            if (_out != null)
+            {
+                _out.finish();
+                _out.flush();
+            }
+            else if (!_context.response.isCommitted())
+            {
+                _context.response.setStatus(500); // Failed before sending headers.
+            }
+        }
+        catch (Exception e)
+        {
+            if (_context.configData.isDebug)
+                System.out.println("Streaming failed: " + _context.url + " " + e);
+        }
+
+        if (_context.configData.isDebug)
+            System.out.println("URL: " + _context.url + " streamed, " + _inLen + " bytes");
+
+        return true;
+    }
+
+    /**
+     * @return true when the page is streamed to the browser
+     */
+    public boolean isStreaming()
+    {
+        return _isStreaming;
+    }
+
+    /**
+     * Appends the ungziped content to _in.
+     *
+     * @param content received (possibly gziped) bytes
+     */
+    private void decode(byte[] content) throws IOException
+    {
+        if (_inflater == null && !_exchange.isGziped() && !_exchange.isDeflated())
+        {
+            ensureCapacity(content.length);
+            System.arraycopy(content, 0, _in, _inLen, content.length);
+            _inLen += content.length;
+            return;
+        }
+
+        if (_inflater == null)
+        {
+            _inflater = new Inflater(true);
+            _gzipHeader = (_exchange.isGziped() ? new byte[0] : null);
+        }
+
+        int off = 0;
+        if (_gzipHeader != null)
+        {
+            // Accumulating the gzip header until it can be skipped:
+            byte[] header = Arrays.copyOf(_gzipHeader, _gzipHeader.length + content.length);
+            System.arraycopy(content, 0, header, _gzipHeader.length, content.length);
+            int headerLen = GzipCodec.gzipHeaderLenOf(header, 0, header.length);
+            if (headerLen < 0)
+            {
+                _gzipHeader = header;
+                return;
+            }
+            _gzipHeader = null;
+            content = header;
+            off = headerLen;
+        }
+
+        if (_inflater.finished())
+            return; // gzip trailer.
+
+        _inflater.setInput(content, off, content.length - off);
+        try
+        {
+            while (!_inflater.finished() && !_inflater.needsInput())
+            {
+                ensureCapacity(8*1024);
+                int n = _inflater.inflate(_in, _inLen, _in.length - _inLen);
+                _inLen += n;
+                if (n == 0 && _inflater.needsDictionary())
+                    throw new IOException("Unsupported deflate dictionary");
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decides (by the response-headers and the first received bytes) if the page is
+     * streamed. A streamed page is never cached, so only state-full html-pages that
+     * need no processing of the complete page are streamed.
+     */
+    private void decide() throws IOException
+    {
+        _isDecided = true;
+
+        ConfigData configData = _context.configData;
+        String url = _context.url;
+
+        int ct = _exchange.getContentTypeIndex();
+        if (ct < 0 || !_exchange.getResponseHeaders()[ct + 1].toLowerCase().startsWith("text/html"))
+            return;
+
+        if (_exchange.isFileReplacing() || configData.defIsReplacing || configData.removeFromHtml != null)
+            return;
+
+        if (!_context.isMobileHome && !CacheUtils.isStateFull(url, _exchange, true /*isHtml*/, configData))
+            return;
+
+        if (!HtmlAnalyzer.isHtml(Arrays.copyOf(_in, LOOKAHEAD)))
+            return;
+
+        // Preparing the context like HtmlSpeedServlet.serviceResponse:
+        String[] responseHeaders = _exchange.getResponseHeaders();
+        _context.responseHeaders = responseHeaders;
+        _context.cachedHeaders = new ArrayList<String>(responseHeaders.length);
+        _context.isHtml = true;
+        _context.isCss = false;
+        _context.isStateFull = true;
+        _context.isServiceWithIframe = false;
+        _context.status = 200;
+        _context.variant = CacheUtils.inRangeVariantOf(_context.variant, true /*isStateFull*/, configData);
+
+        _analyzer = new HtmlAnalyzer();
+        _isStreaming = true;
+        _context.isStreamed = true; // Response is returned by this streamer.
+    }
+
+    /**
+     * Analyzes, optimizes and writes to the browser the received bytes that are
+     * ready (all received bytes when isLast).
+     *
+     * @param isLast true when the complete page is received
+     */
+    private void process(boolean isLast) throws IOException
+    {
+        int limit = (isLast ? _inLen : _inLen - LOOKAHEAD);
+        if (!isLast && limit - _analyzer.getPos() < MIN_SEGMENT)
+            return;
+
+        ConfigData configData = _context.configData;
+
+        if (_context.isConfigLocked)
+        {
+            // The servicing thread holds the locks while it waits for this exchange (locking
+            // them again could wait for a queued reload of the configuration, which waits for
+            // the servicing thread):
+            processSegment(limit, isLast);
+            return;
+        }
+
+        //
+        // The servicing thread has released the locks (asynchronous service). Not blocking
+        // the http-client, unless the page is complete:
+        //
+        Lock configLock = ConfigUtils.configLock.readLock();
+        if (!configLock.tryLock())
+        {
+            if (!isLast)
+                return;
+            configLock.lock();
+        }
+        try
+        {
+            Lock dataLock = configData.lock.readLock();
+            if (!dataLock.tryLock())
+            {
+                if (!isLast)
+                    return;
+                dataLock.lock();
+            }
+            try
+            {
+                processSegment(limit, isLast);
+            }
+            finally
+            {
+                dataLock.unlock();
+            }
+        }
+        finally
+        {
+            configLock.unlock();
+        }
+    }
+
+    /**
+     * Analyzes _in up to limit, and writes the optimized segment to the browser.
+     *
+     * @param limit offset in _in where analysis of segment stops
+     * @param isLast true when the complete page is received
+     */
+    private void processSegment(int limit, boolean isLast) throws IOException
+    {
+        byte[] in = _in; // Offsets in the results of the analysis are offsets in _in.
+
+        _analyzer.analyzeChunk(_context, in, _inLen, limit);
+
+        // The analysis result of the segment:
+        int[] out = _analyzer.getOut();
+        int outLen = _analyzer.getOutLen();
+        int[] info = new int[outLen - _infoLen + 1];
+        System.arraycopy(out, _infoLen, info, 0, outLen - _infoLen);
+        info[info.length - 1] = HtmlAnalyzer.EOF_KIND;
+        _infoLen = outLen;
+
+        _context.orig = in;
+        _context.info = info;
+        _context.base = ServiceUtils.baseOf(_analyzer.getBase(), _context);
+
+        ServiceUtils.loadMissingRsrcs(_context);
+
+        if (_out == null)
+        {
+            // Sending headers:
+            ServiceUtils.processResponseHeaders(_context);
+            _context.response.setHeader("Content-Encoding", "gzip");
+            _out = new GZIPOutputStream(_context.response.getOutputStream(), 8*1024, true /*syncFlush*/);
+        }
+
+        _iOrig = ServiceUtils.writeResponseToBrowser(_context, _out, _iOrig);
+
+        int safePos = (isLast ? _inLen : _analyzer.getSafePos());
+        if (_iOrig < safePos)
+        {
+            _out.write(in, _iOrig, safePos - _iOrig);
+            _iOrig = safePos;
+        }
+        _out.flush();
+    }
+
+    /**
+     * Ensures that _in has room for len more bytes.
+     *
+     * @param len number of bytes to be appended
+     */
+    private void ensureCapacity(int len)
+    {
+        if (_inLen + len > _in.length)
+            _in = Arrays.copyOf(_in, Math.max(_in.length * 2, _inLen + len));
+    }
+}
@@ -2,6 +2,8 @@ package com.htmlspeed.server;
 
 public class ImageRsrc extends Rsrc
 {
+    private static final long serialVersionUID = 1L; // See Rsrc.
+
     public boolean isStatic;
 
     public short width;
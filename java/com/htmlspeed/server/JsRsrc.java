@@ -16,10 +16,21 @@ package com.htmlspeed.server;
  */
 public class JsRsrc extends Rsrc
 {
+    private static final long serialVersionUID = 1L; // See Rsrc.
+
     public boolean isInIEComment; // True when JS is inside IE comment.
 
     public boolean isInlinable; // True when script can be inlined in page.
 
+    /**
+     * @return true (origData is inlined in pages thus kept on heap).
+     */
+    @Override
+    protected boolean isOrigDataInlined()
+    {
+        return true;
+    }
+
     /**
      * Initializing isInlinable by scaning origData.
      *
@@ -0,0 +1,481 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LoadBalancer
+ *
+ * Chooses the content-server of a request among the content-servers of its host
+ * (a Pool), without locking. The balancer is set by the property load.balancer:
+ *
+ * - round-robin (default): the requests are spread by the weights of the content-servers.
+ * - least-outstanding: the content-server with the least outstanding requests (per weight).
+ * - p2c: the less loaded of two random content-servers (power of two choices).
+ * - peak-ewma: p2c comparing the peak-EWMA of the latencies times the outstanding
+ *   requests (per weight), so slow content-servers receive less requests.
+ *
+ * Ejected content-servers are skipped (unless all are ejected), and the weight of
+ * a content-server in slow-start is reduced (see ContentServerHealth).
+ *
+ * Sticky sessions: when a request has a cookie of the property session.cookies,
+ * it is sent to the content-server that has set the cookie (or that has received
+ * the first request of the session), as long as the content-server is available.
+ */
+public abstract class LoadBalancer
+{
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String LEAST_OUTSTANDING = "least-outstanding";
+    public static final String POWER_OF_TWO_CHOICES = "p2c";
+    public static final String PEAK_EWMA = "peak-ewma";
+
+    /**
+     * Max number of remembered sessions (about 10% are forgotten when exceeded).
+     */
+    private static final int MAX_SESSIONS = 100000;
+
+    /**
+     * The balancer of the requests (property load.balancer).
+     */
+    private static volatile LoadBalancer _balancer = new RoundRobin();
+
+    /**
+     * Maps the value of a session cookie to the content-server of the session.
+     */
+    private static final ConcurrentHashMap<String, ContentServerHealth.State> _sessions =
+        new ConcurrentHashMap<String, ContentServerHealth.State>();
+
+    private static final Random _random = new Random();
+
+    /**
+     * The content-servers of a host (of HostInfo).
+     */
+    public static class Pool
+    {
+        /**
+         * states[i] is the state of content-server i.
+         */
+        public final ContentServerHealth.State[] states;
+
+        /**
+         * _weights[i] is the weight of content-server i (0 is never used).
+         */
+        private final int[] _weights;
+
+        /**
+         * Round-robin order of the content-servers (each appears its weight times, interleaved).
+         */
+        private final int[] _schedule;
+
+        /**
+         * Next index in _schedule.
+         */
+        private final AtomicInteger _next = new AtomicInteger(0);
+
+        /**
+         * @param states the states of the content-servers
+         * @param weights weights[i] is the weight of states[i] (when all are 0 all are used)
+         */
+        public Pool(ContentServerHealth.State[] states, byte[] weights)
+        {
+            this.states = states;
+            _weights = new int[states.length];
+            int total = 0;
+            for (int i = 0 ; i < states.length ; i++)
+            {
+                _weights[i] = Math.max(0, (int)weights[i]);
+                total += _weights[i];
+            }
+            if (total == 0)
+            {
+                for (int i = 0 ; i < states.length ; i++)
+                    _weights[i] = 1;
+                total = states.length;
+            }
+
+            // Smooth weighted round-robin (weights 2,1 are ordered 0,1,0):
+            _schedule = new int[total];
+            int[] current = new int[states.length];
+            for (int s = 0 ; s < total ; s++)
+            {
+                int max = 0;
+                for (int i = 0 ; i < states.length ; i++)
+                {
+                    current[i] += _weights[i];
+                    if (current[i] > current[max])
+                        max = i;
+                }
+                current[max] -= total;
+                _schedule[s] = max;
+            }
+        }
+
+        /**
+         * @param isAnyAvailable true when a content-server of the pool is available
+         * @return true when a request can be sent to content-server i
+         */
+        private boolean isCandidate(int i, boolean isAnyAvailable, long currentTime)
+        {
+            return _weights[i] > 0 && (!isAnyAvailable || states[i].isAvailable(currentTime));
+        }
+
+        /**
+         * @return the weight of content-server i reduced by its slow-start
+         */
+        private double weightOf(int i, long currentTime)
+        {
+            return _weights[i] * states[i].getSlowStartFactor(currentTime);
+        }
+
+        /**
+         * @return a random candidate that is not exclude (-1 when none)
+         */
+        private int randomCandidate(int exclude, boolean isAnyAvailable, long currentTime)
+        {
+            int start = _random.nextInt(states.length);
+            for (int k = 0 ; k < states.length ; k++)
+            {
+                int i = (start + k) % states.length;
+                if (i != exclude && isCandidate(i, isAnyAvailable, currentTime))
+                    return i;
+            }
+            return -1;
+        }
+
+        private int indexOf(ContentServerHealth.State state)
+        {
+            for (int i = 0 ; i < states.length ; i++)
+            {
+                if (states[i] == state)
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @param name the name of a balancer (as in property load.balancer)
+     * @return a new balancer (null when name is unknown)
+     */
+    public static LoadBalancer of(String name)
+    {
+        if (ROUND_ROBIN.equals(name))
+            return new RoundRobin();
+        if (LEAST_OUTSTANDING.equals(name))
+            return new LeastOutstanding();
+        if (POWER_OF_TWO_CHOICES.equals(name))
+            return new PowerOfTwoChoices();
+        if (PEAK_EWMA.equals(name))
+            return new PeakEwma();
+        return null;
+    }
+
+    /**
+     * Sets the balancer of the requests (called by HtmlSpeedServlet).
+     *
+     * @param name property load.balancer (null for the default)
+     */
+    public static void setBalancer(String name)
+    {
+        LoadBalancer balancer = of(name != null ? name.trim() : ROUND_ROBIN);
+        if (balancer == null)
+        {
+            System.out.println("SERVER: unknown load.balancer: " + name + ", using " + ROUND_ROBIN);
+            balancer = new RoundRobin();
+        }
+        _balancer = balancer;
+    }
+
+    /**
+     * @return the balancer of the requests
+     */
+    public static LoadBalancer getBalancer()
+    {
+        return _balancer;
+    }
+
+    /**
+     * @return the name of the balancer (as in property load.balancer)
+     */
+    public abstract String getName();
+
+    /**
+     * @param pool the content-servers
+     * @param isAnyAvailable true when a content-server of the pool is available
+     * @param currentTime current time
+     * @return index of the chosen candidate (-1 when none)
+     */
+    protected abstract int select(Pool pool, boolean isAnyAvailable, long currentTime);
+
+    /**
+     * Chooses the content-server of a request.
+     *
+     * @param pool the content-servers of the host
+     * @param session value of the session cookie of the request (null when none)
+     * @param currentTime current time
+     * @return index in pool.states of the chosen content-server
+     */
+    public final int choose(Pool pool, String session, long currentTime)
+    {
+        if (session != null)
+        {
+            int i = pool.indexOf(_sessions.get(session));
+            if (i >= 0 && pool.states[i].isAvailable(currentTime))
+                return i;
+        }
+
+        boolean isAnyAvailable = false;
+        for (int i = 0 ; i < pool.states.length && !isAnyAvailable ; i++)
+            isAnyAvailable = pool.isCandidate(i, true, currentTime);
+
+        int i = select(pool, isAnyAvailable, currentTime);
+        if (i < 0)
+            i = pool._schedule[0];
+
+        if (session != null)
+            pin(session, pool.states[i]);
+
+        return i;
+    }
+
+    /**
+     * Chooses the content-server of a hedged request (see Hedging): the available
+     * content-server, other than the one of the original request, with the least
+     * outstanding requests per weight.
+     *
+     * @param pool the content-servers of the host
+     * @param excluded the content-server of the original request
+     * @param currentTime current time
+     * @return index in pool.states of the chosen content-server (-1 when none)
+     */
+    public static int chooseOther(Pool pool, ContentServerHealth.State excluded, long currentTime)
+    {
+        int best = -1;
+        double bestLoad = 0;
+        for (int i = 0 ; i < pool.states.length ; i++)
+        {
+            if (pool.states[i] != excluded && pool.isCandidate(i, true, currentTime))
+            {
+                double load = (pool.states[i].getOutstanding() + 1) / pool.weightOf(i, currentTime);
+                if (best < 0 || load < bestLoad)
+                {
+                    best = i;
+                    bestLoad = load;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Sends the next requests of a session to a content-server.
+     *
+     * @param session value of the session cookie
+     * @param state the content-server of the session
+     */
+    public static void pin(String session, ContentServerHealth.State state)
+    {
+        if (state == null)
+            return;
+
+        if (_sessions.put(session, state) == null && _sessions.size() > MAX_SESSIONS)
+        {
+            // Forgetting about 10% of the sessions (in no particular order):
+            Iterator<String> iter = _sessions.keySet().iterator();
+            for (int k = 0 ; k < MAX_SESSIONS / 10 && iter.hasNext() ; k++)
+            {
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * @param cookies value of Cookie http-header (may be null)
+     * @param sessionCookies names of session cookies (property session.cookies)
+     * @return value of the first session cookie in cookies (null when none)
+     */
+    public static String sessionOf(String cookies, String[] sessionCookies)
+    {
+        if (cookies == null)
+            return null;
+
+        int start = 0;
+        while (start < cookies.length())
+        {
+            int end = cookies.indexOf(';', start);
+            if (end < 0)
+                end = cookies.length();
+            String session = valueOf(cookies, start, end, sessionCookies);
+            if (session != null)
+                return session;
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @param setCookie value of Set-Cookie http-header
+     * @param sessionCookies names of session cookies (property session.cookies)
+     * @return the value of the set cookie (null when not a session cookie)
+     */
+    public static String sessionOfSetCookie(String setCookie, String[] sessionCookies)
+    {
+        int end = setCookie.indexOf(';');
+        return valueOf(setCookie, 0, (end < 0 ? setCookie.length() : end), sessionCookies);
+    }
+
+    /**
+     * @return value of cookie name=value in s (between start and end), null when
+     *         name is not a session cookie or value is empty
+     */
+    private static String valueOf(String s, int start, int end, String[] sessionCookies)
+    {
+        int equals = s.indexOf('=', start);
+        if (equals < 0 || equals >= end)
+            return null;
+
+        String name = s.substring(start, equals).trim();
+        for (String sessionCookie : sessionCookies)
+        {
+            if (sessionCookie.equals(name))
+            {
+                String value = s.substring(equals + 1, end).trim();
+                return (value.length() > 0 ? value : null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Weighted round-robin.
+     */
+    private static class RoundRobin extends LoadBalancer
+    {
+        @Override
+        public String getName()
+        {
+            return ROUND_ROBIN;
+        }
+
+        @Override
+        protected int select(Pool pool, boolean isAnyAvailable, long currentTime)
+        {
+            int candidate = -1; // Last candidate skipped by its slow-start.
+            for (int k = 0 ; k < pool._schedule.length ; k++)
+            {
+                int i = pool._schedule[(pool._next.getAndIncrement() & Integer.MAX_VALUE) % pool._schedule.length];
+                if (pool.isCandidate(i, isAnyAvailable, currentTime))
+                {
+                    if (_random.nextDouble() < pool.states[i].getSlowStartFactor(currentTime))
+                        return i;
+                    candidate = i;
+                }
+            }
+            return candidate;
+        }
+    }
+
+    /**
+     * The least outstanding requests per weight (ties are broken randomly).
+     */
+    private static class LeastOutstanding extends LoadBalancer
+    {
+        @Override
+        public String getName()
+        {
+            return LEAST_OUTSTANDING;
+        }
+
+        @Override
+        protected int select(Pool pool, boolean isAnyAvailable, long currentTime)
+        {
+            int length = pool.states.length;
+            int start = _random.nextInt(length);
+            int best = -1;
+            double bestLoad = 0;
+            for (int k = 0 ; k < length ; k++)
+            {
+                int i = (start + k) % length;
+                if (pool.isCandidate(i, isAnyAvailable, currentTime))
+                {
+                    double load = (pool.states[i].getOutstanding() + 1) / pool.weightOf(i, currentTime);
+                    if (best < 0 || load < bestLoad)
+                    {
+                        best = i;
+                        bestLoad = load;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The less loaded of two random content-servers.
+     */
+    private static class PowerOfTwoChoices extends LoadBalancer
+    {
+        @Override
+        public String getName()
+        {
+            return POWER_OF_TWO_CHOICES;
+        }
+
+        @Override
+        protected int select(Pool pool, boolean isAnyAvailable, long currentTime)
+        {
+            int a = pool.randomCandidate(-1, isAnyAvailable, currentTime);
+            int b = (a >= 0 ? pool.randomCandidate(a, isAnyAvailable, currentTime) : -1);
+            if (b < 0)
+                return a;
+            return (isLessLoaded(pool, b, a, currentTime) ? b : a);
+        }
+
+        /**
+         * @return true when content-server b is less loaded than content-server a
+         */
+        protected boolean isLessLoaded(Pool pool, int b, int a, long currentTime)
+        {
+            return (pool.states[b].getOutstanding() + 1) / pool.weightOf(b, currentTime) <
+                   (pool.states[a].getOutstanding() + 1) / pool.weightOf(a, currentTime);
+        }
+    }
+
+    /**
+     * Power of two choices by the peak-EWMA of the latencies times the outstanding requests.
+     */
+    private static class PeakEwma extends PowerOfTwoChoices
+    {
+        @Override
+        public String getName()
+        {
+            return PEAK_EWMA;
+        }
+
+        @Override
+        protected boolean isLessLoaded(Pool pool, int b, int a, long currentTime)
+        {
+            double aMicros = pool.states[a].getPeakEwmaMicros(currentTime);
+            double bMicros = pool.states[b].getPeakEwmaMicros(currentTime);
+            if (aMicros <= 0 || bMicros <= 0)
+            {
+                // Unknown latency (no request yet) is assumed equal to the other:
+                if (aMicros <= 0 && bMicros <= 0)
+                    return super.isLessLoaded(pool, b, a, currentTime);
+                aMicros = Math.max(aMicros, bMicros);
+                bMicros = aMicros;
+            }
+            return bMicros * (pool.states[b].getOutstanding() + 1) / pool.weightOf(b, currentTime) <
+                   aMicros * (pool.states[a].getOutstanding() + 1) / pool.weightOf(a, currentTime);
+        }
+    }
+}
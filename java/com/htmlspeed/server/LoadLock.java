@@ -1,52 +1,171 @@
 package com.htmlspeed.server;
 
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LoadLock
+ *
+ * Counts pending loads; waiters are released when the count drops to 0.
+ *
+ * Implemented by ReentrantLock/Condition instead of wait/notify, so a waiting
+ * virtual thread is unmounted from its carrier thread (see VirtualThreads).
+ */
 public class LoadLock
 {
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    private final Condition _isCount0 = _lock.newCondition();
+
     private int _count;
 
-    private boolean _isError = false;
+    private volatile boolean _isError = false;
+
+    private ArrayList<Runnable> _whenCountIs0; // Executed (once each) when count drops to 0.
 
     public void waitUntilCountIs0() throws InterruptedException
     {
-        synchronized (this)
+        long startTime = 0; // Set when waiting.
+        _lock.lock();
+        try
+        {
+            while (_count > 0)
+            {
+                if (startTime == 0)
+                    startTime = System.nanoTime();
+                _isCount0.await();
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+            if (startTime != 0)
+                Metrics.LOAD_LOCK_WAIT.record((System.nanoTime() - startTime) / 1000);
+        }
+    }
+
+    /**
+     * @param timeoutMillis max number of milli-seconds to wait
+     * @return false when timed-out before count dropped to 0
+     */
+    public boolean waitUntilCountIs0(long timeoutMillis) throws InterruptedException
+    {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long startTime = 0; // Set when waiting.
+        _lock.lock();
+        try
         {
             while (_count > 0)
-                wait();
+            {
+                if (nanos <= 0)
+                    return false;
+                if (startTime == 0)
+                    startTime = System.nanoTime();
+                nanos = _isCount0.awaitNanos(nanos);
+            }
+            return true;
+        }
+        finally
+        {
+            _lock.unlock();
+            if (startTime != 0)
+                Metrics.LOAD_LOCK_WAIT.record((System.nanoTime() - startTime) / 1000);
         }
     }
 
     public int getCount()
     {
-        synchronized (this)
+        _lock.lock();
+        try
         {
             return _count;
         }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
     public void setCount(int count)
     {
-        synchronized (this)
+        _lock.lock();
+        try
         {
             _count = count;
         }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
     public void incCount()
     {
-        synchronized (this)
+        _lock.lock();
+        try
         {
             ++_count;
         }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
     public void decCount()
     {
-        synchronized (this)
+        ArrayList<Runnable> tasks = null;
+        _lock.lock();
+        try
         {
             --_count;
             if (_count <= 0)
-                    notify();
+            {
+                _isCount0.signalAll();
+                tasks = _whenCountIs0;
+                _whenCountIs0 = null;
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+        if (tasks != null)
+        {
+            for (Runnable task : tasks)
+                task.run();
+        }
+    }
+
+    /**
+     * Executes task when count drops to 0 (instead of waiting for it).
+     * When count is already 0 the task is executed immediately by current thread,
+     * otherwise it is executed by the thread that decrements count to 0 (after the
+     * tasks registered before it, e.g. by the service loading a page and by the
+     * services that joined the load).
+     *
+     * @param task executed once
+     */
+    public void runWhenCountIs0(Runnable task)
+    {
+        _lock.lock();
+        try
+        {
+            if (_count > 0)
+            {
+                if (_whenCountIs0 == null)
+                    _whenCountIs0 = new ArrayList<Runnable>(2);
+                _whenCountIs0.add(task);
+                return;
+            }
+        }
+        finally
+        {
+            _lock.unlock();
         }
+        task.run();
     }
 
     public boolean isError()
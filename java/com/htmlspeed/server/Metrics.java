@@ -0,0 +1,627 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Metrics
+ *
+ * Process-wide registry of the metrics of the hot paths: counters, histograms
+ * of durations and gauges. Recording is cheap enough for every service:
+ *
+ * - A Counter is striped (cells on separate cache-lines, the cell is chosen by
+ *   the id of the thread), so concurrent services rarely update the same cell.
+ * - A Histogram has log-linear buckets (like HDR histograms): 32 buckets for
+ *   each power of two, so percentiles are accurate to about 3%. Recording is
+ *   an increment of a bucket, with no locks and no allocations.
+ *
+ * A metric is identified by a name and optional labels (name="value" pairs).
+ * The metrics are exposed as text by /htmlspeed/metrics (see toText) and by the
+ * JMX MBean com.htmlspeed:type=Metrics (registered by HtmlSpeedServlet.init).
+ */
+public class Metrics
+{
+    /**
+     * Number of cells of a counter (a power of two).
+     */
+    private static final int STRIPES = stripesOf(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Distance between cells of a counter (8 longs are a cache-line).
+     */
+    private static final int PAD = 8;
+
+    /**
+     * Name of the JMX MBean.
+     */
+    private static final String MBEAN_NAME = "com.htmlspeed:type=Metrics";
+
+    /**
+     * Kinds of cache events (see recordCacheEvent).
+     */
+    public static final int HIT_EVENT = 0;
+    public static final int MISS_EVENT = 1;
+    public static final int REFRESH_EVENT = 2;
+
+    private static final String[] CACHE_EVENT_NAMES = {
+        "htmlspeed_cache_hits_total", "htmlspeed_cache_misses_total", "htmlspeed_cache_refreshes_total"};
+
+    /**
+     * Size classes of evicted resources (see RsrcsList).
+     */
+    private static final String[] SIZE_CLASS_NAMES = {"large", "medium", "small", "tiny"};
+
+    /**
+     * A striped counter.
+     */
+    public static class Counter
+    {
+        private final AtomicLongArray _cells = new AtomicLongArray(STRIPES * PAD);
+
+        public void add(long delta)
+        {
+            _cells.addAndGet(stripeOf() * PAD, delta);
+        }
+
+        public void increment()
+        {
+            add(1);
+        }
+
+        public long get()
+        {
+            long sum = 0;
+            for (int s = 0 ; s < STRIPES ; s++)
+                sum += _cells.get(s * PAD);
+            return sum;
+        }
+    }
+
+    /**
+     * A histogram of non-negative values (e.g. durations in micro-seconds).
+     */
+    public static class Histogram
+    {
+        /**
+         * Number of bits of the sub-bucket of a power of two.
+         */
+        private static final int SUB_BITS = 5;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        /**
+         * Highest power of two of recorded values (larger values are recorded as the max).
+         */
+        private static final int MAX_EXPONENT = 40;
+
+        private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+        private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+        private final Counter _count = new Counter();
+        private final Counter _sum = new Counter();
+        private final AtomicLong _max = new AtomicLong();
+
+        public void record(long value)
+        {
+            if (value < 0)
+                value = 0;
+            _buckets.incrementAndGet(indexOf(Math.min(value, MAX_VALUE)));
+            _count.increment();
+            _sum.add(value);
+
+            long max = _max.get();
+            while (value > max && !_max.compareAndSet(max, value))
+                max = _max.get();
+        }
+
+        public long getCount()
+        {
+            return _count.get();
+        }
+
+        public long getSum()
+        {
+            return _sum.get();
+        }
+
+        public long getMax()
+        {
+            return _max.get();
+        }
+
+        /**
+         * @param percent 0..100
+         * @return the value of the percentile (0 when nothing has been recorded)
+         */
+        public long percentile(double percent)
+        {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0 ; i < BUCKETS ; i++)
+            {
+                counts[i] = _buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+
+            long rank = Math.max(1, (long)Math.ceil(percent / 100 * total));
+            long seen = 0;
+            for (int i = 0 ; i < BUCKETS ; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(valueOf(i), _max.get());
+            }
+            return _max.get();
+        }
+
+        /**
+         * @param value 0..MAX_VALUE
+         * @return index of the bucket of value
+         */
+        private static int indexOf(long value)
+        {
+            if (value < SUB_BUCKETS)
+                return (int)value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int)(value >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+            return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @param index index of a bucket
+         * @return the middle value of the bucket
+         */
+        private static long valueOf(int index)
+        {
+            if (index < SUB_BUCKETS)
+                return index;
+            int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+            long lowest = (long)(SUB_BUCKETS + sub) << shift;
+            return lowest + ((1L << shift) - 1) / 2;
+        }
+    }
+
+    /**
+     * A value read when the metrics are exposed (e.g. a queue depth).
+     */
+    public static abstract class Gauge
+    {
+        public abstract long get();
+    }
+
+    /**
+     * Maps name{labels} to a Counter, Histogram or Gauge.
+     */
+    private static final ConcurrentHashMap<String, Object> _metrics = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Maps a name to its description.
+     */
+    private static final ConcurrentHashMap<String, String> _helps = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The cache counters, indexed by (event * KIND_NAMES.length + kind) * 128 + variant
+     * (created when first used).
+     */
+    private static final AtomicReferenceArray<Counter> _cacheCounters =
+                    new AtomicReferenceArray<Counter>(CACHE_EVENT_NAMES.length * CacheStats.KIND_NAMES.length * 128);
+
+    /**
+     * Time of HtmlAnalyzer.analyze of a page or a style-sheet.
+     */
+    public static final Histogram ANALYZE_TIME = histogram("htmlspeed_analyze_micros", null,
+                                                    "Time of analyzing a page or a style-sheet");
+
+    /**
+     * Time of ServiceUtils.buildResponseToBrowser.
+     */
+    public static final Histogram BUILD_TIME = histogram("htmlspeed_build_response_micros", null,
+                                                    "Time of building an optimized response");
+
+    /**
+     * Bytes gziped by GzipCodec (before and after compression).
+     */
+    public static final Counter GZIP_IN_BYTES = counter("htmlspeed_gzip_in_bytes_total", null,
+                                                    "Bytes compressed by gzip");
+    public static final Counter GZIP_OUT_BYTES = counter("htmlspeed_gzip_out_bytes_total", null,
+                                                    "Bytes produced by gzip");
+
+    /**
+     * Time waited by LoadLock waiters (only waits that were not already over).
+     */
+    public static final Histogram LOAD_LOCK_WAIT = histogram("htmlspeed_load_lock_wait_micros", null,
+                                                    "Time waited for loads of resources");
+
+    /**
+     * Pages returned before all their resources were loaded (see property assembly.deadline),
+     * and their resources that were loaded in the background.
+     */
+    public static final Counter LATE_PAGES = counter("htmlspeed_late_pages_total", null,
+                                                    "Pages assembled without resources loaded after the deadline");
+    public static final Counter LATE_RSRCS = counter("htmlspeed_late_rsrcs_total", null,
+                                                    "Resources loaded after the assembly deadline of their page");
+
+    /**
+     * Evicted resources, indexed by size class.
+     */
+    private static final Counter[] _evictions = new Counter[SIZE_CLASS_NAMES.length];
+
+    /**
+     * The registered MBean (null when not registered).
+     */
+    private static ObjectName _mbeanName = null;
+
+    static
+    {
+        for (int c = 0 ; c < SIZE_CLASS_NAMES.length ; c++)
+            _evictions[c] = counter("htmlspeed_evictions_total", "size=\"" + SIZE_CLASS_NAMES[c] + "\"",
+                                    "Resources evicted from the cache by size class");
+
+        _helps.put(CACHE_EVENT_NAMES[HIT_EVENT], "Cache hits by kind of resource and variant");
+        _helps.put(CACHE_EVENT_NAMES[MISS_EVENT], "Cache misses by kind of resource and variant");
+        _helps.put(CACHE_EVENT_NAMES[REFRESH_EVENT], "Cached resources refreshed from the content-server");
+
+        gauge("htmlspeed_back_load_queue_depth", null, "Jobs queued for the background loaders", new Gauge()
+        {
+            @Override
+            public long get()
+            {
+                return ServiceUtils.getBackLoader().getQueueDepth();
+            }
+        });
+        gauge("htmlspeed_back_load_active", null, "Jobs executed by the background loaders", new Gauge()
+        {
+            @Override
+            public long get()
+            {
+                return ServiceUtils.getBackLoader().getActiveCount();
+            }
+        });
+    }
+
+    /**
+     * @param name name of a counter
+     * @param labels comma separated name="value" pairs (null when none)
+     * @param help description of the counter
+     * @return the counter (created when first requested)
+     */
+    public static Counter counter(String name, String labels, String help)
+    {
+        return (Counter)metricOf(name, labels, help, new Counter());
+    }
+
+    /**
+     * @param name name of a histogram
+     * @param labels comma separated name="value" pairs (null when none)
+     * @param help description of the histogram
+     * @return the histogram (created when first requested)
+     */
+    public static Histogram histogram(String name, String labels, String help)
+    {
+        Object metric = _metrics.get(keyOf(name, labels));
+        return (Histogram)(metric != null ? metric : metricOf(name, labels, help, new Histogram()));
+    }
+
+    /**
+     * Registers a gauge (replaces a gauge of the same name and labels).
+     *
+     * @param name name of the gauge
+     * @param labels comma separated name="value" pairs (null when none)
+     * @param help description of the gauge
+     * @param gauge read when the metrics are exposed
+     */
+    public static void gauge(String name, String labels, String help, Gauge gauge)
+    {
+        _helps.put(name, help);
+        _metrics.put(keyOf(name, labels), gauge);
+    }
+
+    /**
+     * Removes a metric (e.g. of a content-server that is not used any more).
+     *
+     * @param name name of the metric
+     * @param labels comma separated name="value" pairs (null when none)
+     */
+    public static void remove(String name, String labels)
+    {
+        _metrics.remove(keyOf(name, labels));
+    }
+
+    private static Object metricOf(String name, String labels, String help, Object created)
+    {
+        String key = keyOf(name, labels);
+        Object metric = _metrics.get(key);
+        if (metric == null)
+        {
+            if (help != null)
+                _helps.putIfAbsent(name, help);
+            metric = _metrics.putIfAbsent(key, created);
+            if (metric == null)
+                metric = created;
+        }
+        return metric;
+    }
+
+    private static String keyOf(String name, String labels)
+    {
+        return (labels == null ? name : name + '{' + labels + '}');
+    }
+
+    /**
+     * Counts a cache event (called by CacheStats).
+     *
+     * @param event HIT_EVENT, MISS_EVENT or REFRESH_EVENT
+     * @param kind kind of resource (see CacheStats)
+     * @param variant variant of a page (CacheUtils.NON_PAGE_VARIANT for other resources)
+     */
+    public static void recordCacheEvent(int event, int kind, char variant)
+    {
+        int index = (event * CacheStats.KIND_NAMES.length + kind) * 128 + (variant & 127);
+        Counter counter = _cacheCounters.get(index);
+        if (counter == null)
+        {
+            counter = counter(CACHE_EVENT_NAMES[event],
+                                "kind=\"" + CacheStats.KIND_NAMES[kind] + "\",variant=\"" + variant + '"', null);
+            _cacheCounters.set(index, counter);
+        }
+        counter.increment();
+    }
+
+    /**
+     * Counts an evicted resource by its size class.
+     *
+     * @param size size of the timed-buffers of the evicted resource
+     */
+    public static void recordEviction(long size)
+    {
+        int sizeClass = 3;
+        if (size >= RsrcsList.MIN_LARGE_BUFFER)
+            sizeClass = 0;
+        else if (size >= RsrcsList.MIN_MEDIUM_BUFFER)
+            sizeClass = 1;
+        else if (size >= RsrcsList.MIN_SMALL_BUFFER)
+            sizeClass = 2;
+        _evictions[sizeClass].increment();
+    }
+
+    /**
+     * Records the latency of a request sent to a content-server.
+     *
+     * @param address address of the content-server (ip:port)
+     * @param micros micro-seconds from the creation of the exchange until its completion
+     * @param isFailed true when the communication has failed
+     */
+    public static void recordOriginLatency(String address, long micros, boolean isFailed)
+    {
+        String labels = "server=\"" + (address != null ? address : "unknown") + '"';
+        histogram("htmlspeed_origin_latency_micros", labels, "Latency of requests to content-servers").record(micros);
+        if (isFailed)
+            counter("htmlspeed_origin_failures_total", labels, "Failed requests to content-servers").increment();
+    }
+
+    /**
+     * @return all the metrics in the text format of Prometheus (histograms as summaries)
+     */
+    public static String toText()
+    {
+        TreeMap<String, Object> sorted = new TreeMap<String, Object>(_metrics);
+        StringBuilder sb = new StringBuilder(sorted.size() * 64);
+        String lastName = null;
+        for (Map.Entry<String, Object> entry : sorted.entrySet())
+        {
+            String key = entry.getKey();
+            int brace = key.indexOf('{');
+            String name = (brace < 0 ? key : key.substring(0, brace));
+            String labels = (brace < 0 ? null : key.substring(brace + 1, key.length() - 1));
+            Object metric = entry.getValue();
+
+            if (!name.equals(lastName))
+            {
+                String help = _helps.get(name);
+                if (help != null)
+                    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                sb.append("# TYPE ").append(name).append(' ');
+                sb.append(metric instanceof Counter ? "counter" : (metric instanceof Gauge ? "gauge" : "summary")).append('\n');
+                lastName = name;
+            }
+
+            if (metric instanceof Histogram)
+            {
+                Histogram histogram = (Histogram)metric;
+                String prefix = (labels == null ? "{" : '{' + labels + ',');
+                sb.append(name).append(prefix).append("quantile=\"0.5\"} ").append(histogram.percentile(50)).append('\n');
+                sb.append(name).append(prefix).append("quantile=\"0.9\"} ").append(histogram.percentile(90)).append('\n');
+                sb.append(name).append(prefix).append("quantile=\"0.99\"} ").append(histogram.percentile(99)).append('\n');
+                sb.append(name).append(prefix).append("quantile=\"1\"} ").append(histogram.getMax()).append('\n');
+                String suffix = (labels == null ? " " : '{' + labels + "} ");
+                sb.append(name).append("_sum").append(suffix).append(histogram.getSum()).append('\n');
+                sb.append(name).append("_count").append(suffix).append(histogram.getCount()).append('\n');
+            }
+            else
+            {
+                sb.append(key).append(' ').append(valueOf(metric)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the values of all the metrics by JMX attribute names (histograms are
+     *      flattened to count, p50, p90, p99 and max)
+     */
+    private static LinkedHashMap<String, Long> snapshot()
+    {
+        TreeMap<String, Object> sorted = new TreeMap<String, Object>(_metrics);
+        LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Object> entry : sorted.entrySet())
+        {
+            String name = entry.getKey().replace('{', '.').replace(',', '.').replace("}", "").replace("\"", "");
+            Object metric = entry.getValue();
+            if (metric instanceof Histogram)
+            {
+                Histogram histogram = (Histogram)metric;
+                values.put(name + ".count", Long.valueOf(histogram.getCount()));
+                values.put(name + ".p50", Long.valueOf(histogram.percentile(50)));
+                values.put(name + ".p90", Long.valueOf(histogram.percentile(90)));
+                values.put(name + ".p99", Long.valueOf(histogram.percentile(99)));
+                values.put(name + ".max", Long.valueOf(histogram.getMax()));
+            }
+            else
+            {
+                values.put(name, Long.valueOf(valueOf(metric)));
+            }
+        }
+        return values;
+    }
+
+    private static long valueOf(Object metric)
+    {
+        if (metric instanceof Counter)
+            return ((Counter)metric).get();
+        try
+        {
+            return ((Gauge)metric).get();
+        }
+        catch (RuntimeException e)
+        {
+            return 0; // E.g. the gauged object is not initialized yet.
+        }
+    }
+
+    /**
+     * The JMX view of the metrics (read-only attributes, one per value).
+     */
+    private static class MetricsMBean implements DynamicMBean
+    {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException
+        {
+            Long value = snapshot().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes)
+        {
+            LinkedHashMap<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes)
+            {
+                Long value = values.get(attribute);
+                if (value != null)
+                    list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList(); // All are read-only.
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+        {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo()
+        {
+            ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : snapshot().keySet())
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            return new MBeanInfo(Metrics.class.getName(), "HtmlSpeed metrics",
+                                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                                null, new MBeanOperationInfo[0], null);
+        }
+    }
+
+    /**
+     * Registers the MBean com.htmlspeed:type=Metrics (called by HtmlSpeedServlet.init).
+     */
+    public static synchronized void registerMBean()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(new MetricsMBean(), name);
+            _mbeanName = name;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace(); // Metrics are still exposed by /htmlspeed/metrics.
+        }
+    }
+
+    /**
+     * Unregisters the MBean (called by HtmlSpeedServlet.destroy).
+     */
+    public static synchronized void unregisterMBean()
+    {
+        if (_mbeanName == null)
+            return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(_mbeanName);
+        }
+        catch (Exception e)
+        {
+        }
+        _mbeanName = null;
+    }
+
+    /**
+     * @return the cell of the current thread
+     */
+    private static int stripeOf()
+    {
+        long id = Thread.currentThread().getId();
+        return (int)((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+
+    /**
+     * @param processors number of processors
+     * @return number of cells of a counter: a power of two, at least 2*processors, 4..64
+     */
+    private static int stripesOf(int processors)
+    {
+        int stripes = 4;
+        while (stripes < 2 * processors && stripes < 64)
+            stripes <<= 1;
+        return stripes;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OffHeapBuffer
+ *
+ * An immutable array of bytes stored outside of the java heap (see OffHeapStore).
+ *
+ * The buffer is reference counted. The cache-structure holds the initial reference,
+ * and releases it when the owning resource leaves the cache. A service that writes
+ * the buffer to a response retains it before writing and releases it afterwards,
+ * so the memory is only reused after the last writer has finished.
+ */
+public class OffHeapBuffer
+{
+    /**
+     * Size of the per-thread buffer used for copying to output-streams.
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 16*1024;
+
+    /**
+     * Per-thread buffer used for copying to output-streams
+     * (avoids allocating a heap copy of the whole buffer).
+     */
+    private static final ThreadLocal<byte[]> _transferBuffer = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * The memory holding the bytes (position 0, capacity >= _length).
+     */
+    private final ByteBuffer _chunk;
+
+    /**
+     * Number of bytes in this buffer.
+     */
+    private final int _length;
+
+    /**
+     * The slab of _chunk in OffHeapStore (null when _chunk is not pooled).
+     */
+    private final OffHeapStore.Slab _slab;
+
+    /**
+     * Number of references. The memory is returned to the store when it drops to 0.
+     */
+    private final AtomicInteger _refCount = new AtomicInteger(1);
+
+    /**
+     * CONSTRUCTOR (called by OffHeapStore).
+     *
+     * @param chunk memory holding the bytes
+     * @param length number of bytes in chunk
+     * @param slab slab of chunk (null when not pooled)
+     */
+    OffHeapBuffer(ByteBuffer chunk, int length, OffHeapStore.Slab slab)
+    {
+        _chunk = chunk;
+        _length = length;
+        _slab = slab;
+    }
+
+    /**
+     * @return number of bytes in this buffer
+     */
+    public int length()
+    {
+        return _length;
+    }
+
+    /**
+     * @return number of bytes of direct memory occupied by this buffer (its whole chunk)
+     */
+    public int footprint()
+    {
+        return _chunk.capacity();
+    }
+
+    /**
+     * Adds a reference to this buffer.
+     *
+     * @return false when the buffer has already been released (and must not be used)
+     */
+    public boolean retain()
+    {
+        while (true)
+        {
+            int count = _refCount.get();
+            if (count <= 0)
+                return false;
+            if (_refCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Removes a reference from this buffer. The last release returns the memory to the store.
+     */
+    public void release()
+    {
+        if (_refCount.decrementAndGet() == 0)
+            OffHeapStore.free(_chunk, _slab);
+    }
+
+    /**
+     * @return true when the last reference to this buffer has been released
+     */
+    public boolean isReleased()
+    {
+        return _refCount.get() <= 0;
+    }
+
+    /**
+     * Writes the bytes of this buffer to out (the caller should retain this buffer).
+     *
+     * @param out the output-stream
+     * @throws IOException when thrown by out
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        ByteBuffer src = _chunk.duplicate(); // Independent position (concurrent writers).
+        src.position(0);
+        src.limit(_length);
+        byte[] transfer = _transferBuffer.get();
+        while (src.hasRemaining())
+        {
+            int n = Math.min(src.remaining(), transfer.length);
+            src.get(transfer, 0, n);
+            out.write(transfer, 0, n);
+        }
+    }
+
+    /**
+     * @return a heap copy of the bytes of this buffer (the caller should retain this buffer)
+     */
+    public byte[] toByteArray()
+    {
+        byte[] bytes = new byte[_length];
+        ByteBuffer src = _chunk.duplicate();
+        src.position(0);
+        src.get(bytes, 0, _length);
+        return bytes;
+    }
+}
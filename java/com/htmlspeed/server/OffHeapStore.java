@@ -0,0 +1,216 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OffHeapStore
+ *
+ * Slab allocator of direct (off-heap) memory for bodies of cached resources.
+ *
+ * Direct memory is allocated in slabs of SLAB_SIZE bytes. Each slab is cut into
+ * chunks of a single power-of-2 size-class (1K .. 1M). Freed chunks are returned
+ * to their slab and reused. When all the chunks of a slab are free, and another
+ * slab of its size-class has free chunks, the slab is dropped (its direct memory
+ * is freed by the garbage collector). Buffers larger than the largest size-class
+ * get their own direct ByteBuffer (freed by the garbage collector).
+ *
+ * A body occupies its whole chunk (see footprintOf), which is what the cache
+ * counts for it (see Rsrc.getOffHeapBuffersSize).
+ *
+ * Keeping the bodies off-heap keeps the old generation small, so full-GC
+ * pauses don't grow with the size of the cache.
+ */
+public class OffHeapStore
+{
+    /**
+     * log2 of smallest size-class (1K bytes).
+     */
+    private static final int MIN_CLASS_BITS = 10;
+
+    /**
+     * log2 of largest size-class (1M bytes).
+     */
+    private static final int MAX_CLASS_BITS = 20;
+
+    /**
+     * Size in bytes of a slab (a single direct allocation).
+     */
+    private static final int SLAB_SIZE = 4*1024*1024;
+
+    /**
+     * A direct allocation cut into chunks of a single size-class.
+     */
+    static class Slab
+    {
+        /**
+         * The free chunks (guarded by the lock of the size-class).
+         */
+        private final ArrayList<ByteBuffer> _freeChunks;
+
+        /**
+         * Number of chunks of the slab.
+         */
+        private final int _chunkCount;
+
+        private Slab(int chunkSize)
+        {
+            ByteBuffer memory = ByteBuffer.allocateDirect(SLAB_SIZE);
+            _chunkCount = SLAB_SIZE / chunkSize;
+            _freeChunks = new ArrayList<ByteBuffer>(_chunkCount);
+            for (int pos = 0 ; pos + chunkSize <= SLAB_SIZE ; pos += chunkSize)
+            {
+                memory.limit(pos + chunkSize);
+                memory.position(pos);
+                _freeChunks.add(memory.slice());
+            }
+        }
+    }
+
+    /**
+     * Slabs of each size-class that have free chunks. Each list is the lock of its size-class.
+     */
+    private static final ArrayList<ArrayList<Slab>> _partialSlabs = newPartialSlabs();
+
+    /**
+     * Total bytes of direct memory allocated by the store (slabs and unpooled buffers).
+     */
+    private static final AtomicLong _reservedBytes = new AtomicLong();
+
+    /**
+     * Total bytes of chunks that are currently in use.
+     */
+    private static final AtomicLong _usedBytes = new AtomicLong();
+
+    private static ArrayList<ArrayList<Slab>> newPartialSlabs()
+    {
+        ArrayList<ArrayList<Slab>> lists = new ArrayList<ArrayList<Slab>>(MAX_CLASS_BITS - MIN_CLASS_BITS + 1);
+        for (int i = MIN_CLASS_BITS ; i <= MAX_CLASS_BITS ; i++)
+            lists.add(new ArrayList<Slab>());
+        return lists;
+    }
+
+    /**
+     * Copies bytes into off-heap memory.
+     *
+     * @param bytes the copied bytes
+     * @return the off-heap copy (holding a single reference)
+     */
+    public static OffHeapBuffer store(byte[] bytes)
+    {
+        int len = bytes.length;
+        int sizeClass = sizeClassOf(len);
+        ByteBuffer chunk;
+        Slab slab = null;
+
+        if (sizeClass < 0)
+        {
+            chunk = ByteBuffer.allocateDirect(len);
+            _reservedBytes.addAndGet(len);
+        }
+        else
+        {
+            ArrayList<Slab> partialSlabs = _partialSlabs.get(sizeClass);
+            synchronized (partialSlabs)
+            {
+                if (partialSlabs.isEmpty())
+                {
+                    partialSlabs.add(new Slab(1 << (sizeClass + MIN_CLASS_BITS)));
+                    _reservedBytes.addAndGet(SLAB_SIZE);
+                }
+                slab = partialSlabs.get(partialSlabs.size() - 1);
+                chunk = slab._freeChunks.remove(slab._freeChunks.size() - 1);
+                if (slab._freeChunks.isEmpty())
+                    partialSlabs.remove(partialSlabs.size() - 1);
+            }
+        }
+        _usedBytes.addAndGet(chunk.capacity());
+
+        ByteBuffer dst = chunk.duplicate();
+        dst.clear();
+        dst.put(bytes, 0, len);
+
+        return new OffHeapBuffer(chunk, len, slab);
+    }
+
+    /**
+     * Returns a chunk to its slab (called by OffHeapBuffer.release).
+     * A slab whose chunks are all free is dropped, unless it is the only
+     * slab of its size-class that has free chunks.
+     *
+     * @param chunk the freed chunk
+     * @param slab slab of chunk (null when not pooled)
+     */
+    static void free(ByteBuffer chunk, Slab slab)
+    {
+        _usedBytes.addAndGet(-chunk.capacity());
+        if (slab == null)
+        {
+            _reservedBytes.addAndGet(-chunk.capacity()); // Freed by the garbage collector.
+            return;
+        }
+
+        ArrayList<Slab> partialSlabs = _partialSlabs.get(sizeClassOf(chunk.capacity()));
+        synchronized (partialSlabs)
+        {
+            slab._freeChunks.add(chunk);
+            if (slab._freeChunks.size() == 1)
+                partialSlabs.add(slab); // Was full.
+
+            if (slab._freeChunks.size() == slab._chunkCount && partialSlabs.size() > 1)
+            {
+                partialSlabs.remove(slab);
+                _reservedBytes.addAndGet(-SLAB_SIZE); // Freed by the garbage collector.
+            }
+        }
+    }
+
+    /**
+     * @param len number of bytes of a body
+     * @return number of bytes of direct memory that the body occupies when stored
+     */
+    public static int footprintOf(int len)
+    {
+        int sizeClass = sizeClassOf(len);
+        return (sizeClass < 0 ? len : 1 << (sizeClass + MIN_CLASS_BITS));
+    }
+
+    /**
+     * @return total bytes of direct memory allocated by the store
+     */
+    public static long getReservedBytes()
+    {
+        return _reservedBytes.get();
+    }
+
+    /**
+     * @return total bytes of direct memory currently holding cached bodies
+     */
+    public static long getUsedBytes()
+    {
+        return _usedBytes.get();
+    }
+
+    /**
+     * @param len required number of bytes
+     * @return index of smallest size-class that fits len (-1 when larger than all size-classes)
+     */
+    private static int sizeClassOf(int len)
+    {
+        int bits = MIN_CLASS_BITS;
+        while ((1 << bits) < len)
+        {
+            bits++;
+            if (bits > MAX_CLASS_BITS)
+                return -1;
+        }
+        return bits - MIN_CLASS_BITS;
+    }
+}
@@ -16,6 +16,8 @@ package com.htmlspeed.server;
  */
 public class PageRsrc extends Rsrc
 {
+    private static final long serialVersionUID = 1L; // See Rsrc.
+
     /**
      * Few PageRsrc instances may be created for the same
      * content-server's page, depending on the browser-kind.
@@ -0,0 +1,288 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.client.HttpClient;
+
+/**
+ * RefreshAhead
+ *
+ * Revalidates hot cached resources in the background before they expire, so
+ * that popular pages are not refreshed while a browser is waiting.
+ *
+ * A cache hit of a resource that expires within refresh.ahead.window seconds
+ * offers the resource (see ServiceUtils.findFreshCachedRsrc). The resource is
+ * revalidated when its decayed number of hits (see Rsrc.decayedHits) reaches
+ * refresh.ahead.min.hits and the global budget of origin-requests allows it.
+ *
+ * A revalidation is a conditional GET (If-None-Match / If-Modified-Since) executed
+ * by a BackLoadScheduler. When the content-server returns 304, or returns the same
+ * content (same md5), the freshness of all the cached variants of the resource is
+ * extended. The optimized variants of a modified page are cached (see
+ * ServiceUtils.refreshRevalidatedPage). Any other modified resource expires, so
+ * it is refreshed by its next request (in the background when it has a
+ * stale-while-revalidate window).
+ *
+ * Auto-refreshed pages (auto-refreshed.txt) are refreshed by AutoRefresher instead.
+ */
+public class RefreshAhead
+{
+    /**
+     * Executes the revalidations (each one is a job).
+     */
+    private static final BackLoadScheduler _scheduler = new BackLoadScheduler("HtmlSpeedRefreshAhead", 4, 2, 1000);
+
+    /**
+     * Max number of revalidations per second of all domains (property refresh.ahead.budget).
+     */
+    private static int _budget = 10;
+
+    /**
+     * Number of revalidations that can be started now (at most _budget).
+     */
+    private static double _tokens = 0;
+
+    /**
+     * The last time _tokens has been refilled.
+     */
+    private static long _refillTime = 0;
+
+    // Metrics:
+    private static final AtomicLong _offered = new AtomicLong(); // Submitted revalidations.
+    private static final AtomicLong _overBudget = new AtomicLong(); // Revalidations skipped by the budget.
+    private static final AtomicLong _extended = new AtomicLong(); // Revalidated resources (not modified).
+    private static final AtomicLong _modified = new AtomicLong(); // Modified resources (re-cached or expired).
+    private static final AtomicLong _failed = new AtomicLong(); // Failed revalidations.
+
+    /**
+     * A revalidation of a cached resource.
+     */
+    private static class RevalidationJob extends BackLoadScheduler.Job
+    {
+        private final String _key;
+        private final Rsrc _rsrc;
+        private final HttpClient _client;
+        private final ConfigData _configData;
+
+        public RevalidationJob(String key, Rsrc rsrc, HttpClient client, ConfigData configData)
+        {
+            super(rsrc.host, rsrc.url);
+            _key = key;
+            _rsrc = rsrc;
+            _client = client;
+            _configData = configData;
+        }
+
+        @Override
+        public void load()
+        {
+            try
+            {
+                revalidate(_rsrc, _client, _configData);
+            }
+            catch (Exception e)
+            {
+                _failed.incrementAndGet(); // Not retried (retries are not in the budget).
+            }
+            finally
+            {
+                _scheduler.unmarkQueued(_key);
+            }
+        }
+
+        @Override
+        public void cancel()
+        {
+            _scheduler.unmarkQueued(_key);
+        }
+    }
+
+    /**
+     * Sets the limits of revalidations.
+     *
+     * @param maxLoaders max number of concurrent revalidations (property refresh.ahead.loaders)
+     * @param budget max number of revalidations per second (property refresh.ahead.budget)
+     */
+    public static synchronized void setLimits(int maxLoaders, int budget)
+    {
+        _scheduler.setLimits(maxLoaders, 2, 1000);
+        _budget = Math.max(0, budget);
+        _tokens = Math.min(_tokens, _budget);
+    }
+
+    /**
+     * Called on a cache hit of rsrc that expires within the refresh-ahead window.
+     * Submits a revalidation of rsrc when it is hot and the budget allows it.
+     *
+     * @param context the service that found rsrc in the cache
+     * @param rsrc a fresh cached resource
+     * @param currentTime saves a lot of calls to System.currentTimeMillis
+     */
+    public static void offer(ServiceContext context, Rsrc rsrc, long currentTime)
+    {
+        ConfigData configData = context.configData;
+
+        if (rsrc.isBeingLoaded || rsrc.origMd5 == null ||
+                currentTime - rsrc.refreshAheadTime < configData.refreshAheadWindow*1000 ||
+                rsrc.decayedHitsAt(currentTime) < configData.refreshAheadMinHits)
+            return;
+
+        String key = configData.domain + ' ' + rsrc.variant + rsrc.url;
+        if (_scheduler.isQueued(key))
+            return;
+
+        if (!takeBudget(currentTime))
+        {
+            _overBudget.incrementAndGet();
+            return;
+        }
+
+        if (!_scheduler.markQueued(key))
+            return;
+
+        rsrc.refreshAheadTime = currentTime; // Offered once within the window.
+        _offered.incrementAndGet();
+        if (configData.isDebug)
+            System.out.println("Refresh-ahead: " + rsrc.url);
+        _scheduler.submit(new RevalidationJob(key, rsrc, context.client, configData));
+    }
+
+    /**
+     * @param currentTime current time in milli-seconds
+     * @return true when a revalidation can be started (it is deducted from the budget)
+     */
+    private static synchronized boolean takeBudget(long currentTime)
+    {
+        _tokens = Math.min(_budget, _tokens + (currentTime - _refillTime) * _budget / 1000.0);
+        _refillTime = currentTime;
+        if (_tokens < 1)
+            return false;
+        _tokens--;
+        return true;
+    }
+
+    /**
+     * Revalidates rsrc with the content-server, and extends the freshness of its
+     * cached variants when it is not modified. A modified page is optimized and
+     * cached, and any other modified resource is expired.
+     *
+     * @param rsrc the revalidated resource
+     * @param client used for invoking the content-server
+     * @param configData configuration of the domain of rsrc
+     * @throws Exception when interrupted
+     */
+    private static void revalidate(Rsrc rsrc, HttpClient client, ConfigData configData) throws Exception
+    {
+        ServiceContext context = new ServiceContext();
+        context.configData = configData;
+        context.cache = configData.cache;
+        context.client = client;
+        context.url = rsrc.url;
+        context.host = rsrc.host;
+
+        LoadLock loadLock = new LoadLock();
+        loadLock.setCount(1);
+        HtmlSpeedHttpExchange exchange = new HtmlSpeedHttpExchange(loadLock, context);
+        context.exchange = exchange;
+        ServiceUtils.initRevalidationExchange(context, exchange, rsrc);
+
+        client.send(exchange);
+        loadLock.waitUntilCountIs0(); // Expiry is handled by the timeout of client.
+
+        int status = exchange.getResponseStatus();
+        if (status == 200)
+        {
+            byte[] orig = exchange.getUngzipedResponseContent();
+            if (rsrc instanceof PageRsrc)
+            {
+                exchange.setHtmlReplaceParams();
+                orig = exchange.replace(orig);
+            }
+            if (!rsrc.origMd5.equals(CacheUtils.md5Of(orig)))
+            {
+                _modified.incrementAndGet();
+                if (rsrc instanceof PageRsrc)
+                    ServiceUtils.refreshRevalidatedPage(context);
+                else
+                    expire(rsrc, configData);
+                return;
+            }
+        }
+        else if (status != 304)
+        {
+            if (exchange.isCommFailure())
+                ServiceUtils.reportUnhealthyContentServer(exchange.getContentServerAddress());
+            _failed.incrementAndGet();
+            return;
+        }
+
+        long maxAge = CacheUtils.maxAgeOf(exchange, true /* isKnownToBeStateLess*/, configData);
+        if (maxAge <= 0)
+        {
+            _modified.incrementAndGet(); // Is not cachable any more.
+            return;
+        }
+
+        // Extending the freshness of the unmodified variants:
+        char[] variants = (rsrc instanceof PageRsrc ? CacheUtils.ALL_VARIANTS : new char[]{rsrc.variant});
+        long currentTime = System.currentTimeMillis();
+        synchronized (configData.cache.lockOf(rsrc.url))
+        {
+            for (char vrnt : variants)
+            {
+                RsrcIfc r = ServiceUtils.getFromMemory(vrnt, rsrc.url, configData);
+                if (r instanceof Rsrc && !((Rsrc)r).isBeingLoaded && rsrc.origMd5.equals(((Rsrc)r).origMd5))
+                {
+                    Rsrc variantRsrc = (Rsrc)r;
+                    variantRsrc.lastRefreshTime = currentTime;
+                    variantRsrc.maxAge = maxAge;
+                    variantRsrc.maxFreshTime = currentTime + maxAge*1000;
+                    variantRsrc.staleTime = 0;
+                }
+            }
+        }
+        _extended.incrementAndGet();
+        configData.cache.stats.recordRefresh(rsrc.getClass(), rsrc.variant);
+
+        if (configData.isDebug)
+            System.out.println("URL: " + rsrc.url + " (refreshed ahead - not modified)");
+    }
+
+    /**
+     * Expires a modified resource, so that its next request refreshes it.
+     *
+     * @param rsrc the modified resource
+     * @param configData configuration of the domain of rsrc
+     */
+    private static void expire(Rsrc rsrc, ConfigData configData)
+    {
+        long currentTime = System.currentTimeMillis();
+        synchronized (configData.cache.lockOf(rsrc.url))
+        {
+            RsrcIfc r = ServiceUtils.getFromMemory(rsrc.variant, rsrc.url, configData);
+            if (r == rsrc && !rsrc.isBeingLoaded && rsrc.maxFreshTime > currentTime)
+                rsrc.maxFreshTime = currentTime;
+        }
+
+        if (configData.isDebug)
+            System.out.println("URL: " + rsrc.url + " (refreshed ahead - modified, expired)");
+    }
+
+    /**
+     * @return statistics (reported by /htmlspeed/cache-stats)
+     */
+    public static String getStats()
+    {
+        return "refresh-ahead: offered " + _offered.get() +
+                ", over budget " + _overBudget.get() +
+                ", not modified " + _extended.get() +
+                ", modified " + _modified.get() +
+                ", failed " + _failed.get() +
+                ", " + _scheduler.toString();
+    }
+}
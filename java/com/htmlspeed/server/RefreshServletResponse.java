@@ -18,7 +18,9 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * RefreshServletResponse
  *
- * Passed to HtmlSpeedServlet.service when refreshing a state-less page.
+ * Discards the response of a refresh: of an auto-refreshed page (see
+ * ServiceUtils.refreshPage), or of a stale resource already returned to
+ * the browser (stale-while-revalidate).
  *
  * @author  Eldad Zamler
  * @version $Revision: 1.3 $$Date: 2012/12/28 11:43:20 $
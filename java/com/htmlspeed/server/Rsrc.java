@@ -6,6 +6,9 @@
  */
 package com.htmlspeed.server;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -13,22 +16,37 @@ import java.io.Serializable;
  *
  * The base-class of all cached resources.
  *
- * The variables maxFreshTime, lastRefreshTime, isBeingLoaded of cached
- * resources are only allowed to be read/write while cache.globalLock is locked.
- *.
+ * The variables maxFreshTime, lastRefreshTime, staleTime, isBeingLoaded of cached
+ * resources are only allowed to be modified while cache.lockOf(url) is locked.
+ * They are volatile so that cache hits can read them without locking.
+ *
  * Other variables of cached resources are not allowed to be modified.
  * Instead of modifying them, the entire resource instance is replaced.
+ * The only exceptions are representations, deflatedFragment and isFragmentRefused,
+ * that are set once (see RsrcsList.addRepresentations, addDeflatedFragment) after the
+ * resource is cached.
  *
  * @author  Eldad Zamler
  * @version $Revision: 1.30 $$Date: 2013/08/21 09:05:28 $
  */
 public abstract class Rsrc implements RsrcIfc, Serializable
 {
+    /**
+     * Version of the serialized form (see DiskStore). Modified only when
+     * resources written by former versions can't be read.
+     */
+    private static final long serialVersionUID = 1L;
+
     /**
      * 14 days (in milli-seconds) are considered recent-time.
      */
     public static final long RECENT_TIME_MILLIS = 1000*3600*24*14;
 
+    /**
+     * Half-life (5 minutes in milli-seconds) of the hits counted by decayedHits.
+     */
+    public static final long HITS_HALF_LIFE_MILLIS = 1000*60*5;
+
     public String host; // Domain from which rsrc has been loaded.
 
     public String url; // Full http[s] url of style-sheet.
@@ -45,13 +63,23 @@ public abstract class Rsrc implements RsrcIfc, Serializable
      */
     public byte[] versionUrlBytes;
 
-    public boolean isBeingLoaded; // True when resource is being loaded or refreshed.
+    public volatile boolean isBeingLoaded; // True when resource is being loaded or refreshed.
 
     public long maxAge; // max-age of rsrc when last loaded or refreshed.
-    public long maxFreshTime; // Until when this rsrc is fresh.
-    public long lastRefreshTime; // Load or last-refresh time.
+    public volatile long maxFreshTime; // Until when this rsrc is fresh.
+    public volatile long lastRefreshTime; // Load or last-refresh time.
+    public transient volatile long staleTime; // When rsrc became stale (0 when fresh or refreshed).
     public long lastUsageTime = System.currentTimeMillis(); // The last time when the resource has been used.
 
+    /**
+     * Number of hits as of lastUsageTime, where the weight of each hit is halved every
+     * HITS_HALF_LIFE_MILLIS (see recordHit). Updated without locking: a lost update only
+     * slightly reduces the accuracy of the hit-rate (used by RefreshAhead).
+     */
+    public transient volatile float decayedHits;
+
+    public transient volatile long refreshAheadTime; // Last time offered to RefreshAhead (0 when never).
+
     public String[] httpHeaders;
                     //
                     // Pairs of (header-name, value) to be returned to browsers,
@@ -69,31 +97,305 @@ public abstract class Rsrc implements RsrcIfc, Serializable
     public String origGzipEncoding; // When origGzip != null equals "gzip" or "deflate"
     public String optimGzipEncoding; // When optimGzip != null equals "gzip" or "deflate"
 
+    //
+    // When the resource is cached with off-heap storage, bodies that are only served
+    // (never inlined) are moved to these buffers and the heap arrays are set to null.
+    // Use the accessors bellow (hasXxx, getXxxLength) instead of the arrays.
+    //
+    public transient volatile OffHeapBuffer origDataBuffer; // origData (not for css/js).
+    public transient volatile OffHeapBuffer origGzipBuffer; // origGzip
+    public transient volatile OffHeapBuffer optimGzipBuffer; // optimGzip
+
     public char variant; // variant of resource.
 
     /**
-     * A more recently accessed instance.
+     * Pre-encoded representations of the served body (optimGzip, else origGzip) produced
+     * in the background at maximal compression (see Encodings), sorted by size. Only
+     * representations that are smaller than the served body are kept.
+     * Null until produced (never persisted by DiskStore, produced again when promoted).
+     */
+    public transient volatile Encodings.Representation[] representations;
+
+    /**
+     * The inlined form of this resource (ImageRsrc.base64Data, JsRsrc.origData or
+     * CssRsrc.optimData) deflated by GzipCodec.deflateFragment, spliced into the gziped
+     * pages that inline it (see ServiceUtils.writeInlined). Null until first inlined.
+     */
+    public transient volatile byte[] deflatedFragment;
+
+    /**
+     * True when the cache has no room for deflatedFragment (it is not deflated again,
+     * the inlined form of this resource is compressed with each page).
      */
-    private Rsrc _next;
+    public transient volatile boolean isFragmentRefused;
 
     /**
-     * A less recently accessed instance.
+     * Reference bit used by the CLOCK eviction of RsrcsList.
+     * Set when the resource is accessed, cleared by the clock-hand.
      */
-    private Rsrc _prev;
+    private transient volatile boolean _isReferenced;
 
     /**
      * @return the total-size of all timed-buffers.
      */
     public int getTotalTimedBuffersSize()
     {
-        int total = 0;
+        int total = getOffHeapBuffersSize();
         total += (origData != null ? origData.length : 0);
         total += (origGzip != null ? origGzip.length : 0);
         total += (optimData != null ? optimData.length : 0);
         total += (optimGzip != null ? optimGzip.length : 0);
+        total += Encodings.sizeOf(representations);
+        byte[] fragment = deflatedFragment;
+        total += (fragment != null ? fragment.length : 0);
         return total;
     }
 
+    /**
+     * @return the size of the timed-buffers that are stored off-heap (the direct memory they occupy).
+     */
+    public int getOffHeapBuffersSize()
+    {
+        int total = 0;
+        total += (origDataBuffer != null ? origDataBuffer.footprint() : 0);
+        total += (origGzipBuffer != null ? origGzipBuffer.footprint() : 0);
+        total += (optimGzipBuffer != null ? optimGzipBuffer.footprint() : 0);
+        return total;
+    }
+
+    /**
+     * @return the total-size of all timed-buffers after moveOffHeap (bodies moved
+     *          off-heap occupy whole chunks, see OffHeapStore.footprintOf)
+     */
+    public synchronized int getTotalSizeOffHeap()
+    {
+        int total = getTotalTimedBuffersSize();
+        if (origGzip != null && origGzipBuffer == null)
+            total += OffHeapStore.footprintOf(origGzip.length) - origGzip.length;
+        if (optimGzip != null && optimGzipBuffer == null)
+            total += OffHeapStore.footprintOf(optimGzip.length) - optimGzip.length;
+        if (origData != null && origDataBuffer == null && !isOrigDataInlined())
+            total += OffHeapStore.footprintOf(origData.length) - origData.length;
+        return total;
+    }
+
+    /**
+     * @return true when origData is inlined in containers (must stay on heap).
+     */
+    protected boolean isOrigDataInlined()
+    {
+        return false;
+    }
+
+    /**
+     * Moves the bodies that are only served (never inlined) to off-heap buffers.
+     * Called by RsrcsList before the resource is published in the cache-structure.
+     */
+    public synchronized void moveOffHeap()
+    {
+        if (origGzip != null && origGzipBuffer == null)
+        {
+            origGzipBuffer = OffHeapStore.store(origGzip);
+            origGzip = null;
+        }
+        if (optimGzip != null && optimGzipBuffer == null)
+        {
+            optimGzipBuffer = OffHeapStore.store(optimGzip);
+            optimGzip = null;
+        }
+        if (origData != null && origDataBuffer == null && !isOrigDataInlined())
+        {
+            origDataBuffer = OffHeapStore.store(origData);
+            origData = null;
+        }
+    }
+
+    /**
+     * Releases the reference of the cache-structure to the off-heap buffers.
+     * Called by RsrcsList when the resource leaves the cache.
+     */
+    public void releaseOffHeap()
+    {
+        if (origDataBuffer != null)
+            origDataBuffer.release();
+        if (origGzipBuffer != null)
+            origGzipBuffer.release();
+        if (optimGzipBuffer != null)
+            optimGzipBuffer.release();
+    }
+
+    /**
+     * Adds a reference to each of the off-heap buffers, so they stay readable after
+     * the resource leaves the cache (see DiskStore.demote). The caller releases them.
+     *
+     * @return the retained buffers (null elements for bodies on the heap), null when
+     *          any of the buffers has already been released
+     */
+    public OffHeapBuffer[] retainOffHeap()
+    {
+        OffHeapBuffer[] buffers = {origDataBuffer, origGzipBuffer, optimGzipBuffer};
+        for (int i = 0 ; i < buffers.length ; i++)
+        {
+            if (buffers[i] != null && !buffers[i].retain())
+            {
+                for (int j = 0 ; j < i ; j++)
+                {
+                    if (buffers[j] != null)
+                        buffers[j].release();
+                }
+                return null;
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * @return true when any of the off-heap buffers has been released (resource can't be served)
+     */
+    public boolean isOffHeapReleased()
+    {
+        return (origDataBuffer != null && origDataBuffer.isReleased()) ||
+                    (origGzipBuffer != null && origGzipBuffer.isReleased()) ||
+                    (optimGzipBuffer != null && optimGzipBuffer.isReleased());
+    }
+
+    /**
+     * Serializes the resource (see DiskStore). Bodies stored off-heap are written as byte arrays.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        out.writeObject(bytesOf(origDataBuffer));
+        out.writeObject(bytesOf(origGzipBuffer));
+        out.writeObject(bytesOf(optimGzipBuffer));
+    }
+
+    /**
+     * Deserializes the resource (see DiskStore). All bodies are read into the heap.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        byte[] bytes = (byte[])in.readObject();
+        if (bytes != null)
+            origData = bytes;
+        bytes = (byte[])in.readObject();
+        if (bytes != null)
+            origGzip = bytes;
+        bytes = (byte[])in.readObject();
+        if (bytes != null)
+            optimGzip = bytes;
+    }
+
+    /**
+     * @param buffer an off-heap buffer (may be null)
+     * @return a heap copy of buffer (null when buffer is null)
+     * @throws IOException when buffer has already been released
+     */
+    private static byte[] bytesOf(OffHeapBuffer buffer) throws IOException
+    {
+        if (buffer == null)
+            return null;
+        if (!buffer.retain())
+            throw new IOException("Released off-heap buffer");
+        try
+        {
+            return buffer.toByteArray();
+        }
+        finally
+        {
+            buffer.release();
+        }
+    }
+
+    /**
+     * @return the gziped body served to browsers (optimGzip, else origGzip) as a heap
+     *      array (null when missing or released)
+     */
+    public byte[] getServedGzip()
+    {
+        try
+        {
+            if (hasOptimGzip())
+                return (optimGzip != null ? optimGzip : bytesOf(optimGzipBuffer));
+            if (hasOrigGzip())
+                return (origGzip != null ? origGzip : bytesOf(origGzipBuffer));
+        }
+        catch (IOException e)
+        {
+            // Released meanwhile (resource has left the cache).
+        }
+        return null;
+    }
+
+    /**
+     * @return the Content-Encoding of getServedGzip ("gzip" or "deflate")
+     */
+    public String getServedGzipEncoding()
+    {
+        return (hasOptimGzip() ? optimGzipEncoding : origGzipEncoding);
+    }
+
+    /**
+     * @return true when origData is available (on or off heap)
+     */
+    public boolean hasOrigData()
+    {
+        return origDataBuffer != null || origData != null;
+    }
+
+    /**
+     * @return length of origData (on or off heap, 0 when missing)
+     */
+    public int getOrigDataLength()
+    {
+        OffHeapBuffer buffer = origDataBuffer;
+        if (buffer != null)
+            return buffer.length();
+        byte[] data = origData;
+        return (data != null ? data.length : 0);
+    }
+
+    /**
+     * @return true when optimGzip is available (on or off heap)
+     */
+    public boolean hasOptimGzip()
+    {
+        return optimGzipBuffer != null || optimGzip != null;
+    }
+
+    /**
+     * @return length of optimGzip (on or off heap, 0 when missing)
+     */
+    public int getOptimGzipLength()
+    {
+        OffHeapBuffer buffer = optimGzipBuffer;
+        if (buffer != null)
+            return buffer.length();
+        byte[] data = optimGzip;
+        return (data != null ? data.length : 0);
+    }
+
+    /**
+     * @return true when origGzip is available (on or off heap)
+     */
+    public boolean hasOrigGzip()
+    {
+        return origGzipBuffer != null || origGzip != null;
+    }
+
+    /**
+     * @return length of origGzip (on or off heap, 0 when missing)
+     */
+    public int getOrigGzipLength()
+    {
+        OffHeapBuffer buffer = origGzipBuffer;
+        if (buffer != null)
+            return buffer.length();
+        byte[] data = origGzip;
+        return (data != null ? data.length : 0);
+    }
+
     /**
      * @return true when resource is being loaded or refreshed.
      */
@@ -111,6 +413,29 @@ public abstract class Rsrc implements RsrcIfc, Serializable
         return currentTime - lastUsageTime < RECENT_TIME_MILLIS;
     }
 
+    /**
+     * Records a cache hit of this resource.
+     *
+     * @param currentTime value returned by System.currentTimeMillis (saves a lot of invocations)
+     */
+    public void recordHit(long currentTime)
+    {
+        decayedHits = decayedHitsAt(currentTime) + 1;
+        lastUsageTime = currentTime;
+    }
+
+    /**
+     * @param currentTime value returned by System.currentTimeMillis (saves a lot of invocations)
+     * @return the decayed number of hits of this resource at currentTime
+     */
+    public float decayedHitsAt(long currentTime)
+    {
+        long elapsed = currentTime - lastUsageTime;
+        if (elapsed <= 0)
+            return decayedHits;
+        return (float)(decayedHits * Math.pow(0.5, (double)elapsed / HITS_HALF_LIFE_MILLIS));
+    }
+
     /**
      * @return The host from which resource has been loaded
      */
@@ -144,43 +469,26 @@ public abstract class Rsrc implements RsrcIfc, Serializable
     }
 
     /**
-     * @return the next timed-buffer in the linked-list (more recent)
+     * Marks this resource as recently accessed.
+     * Only written when not already set so that hits don't keep dirtying the cache-line.
      */
-    public Rsrc getNext()
+    public void markReferenced()
     {
-        return _next;
+        if (!_isReferenced)
+            _isReferenced = true;
     }
 
     /**
-     * Assign new value to property next.
-     *
-     * The next timed-buffer in the linked-list (more recent)
-     *
-     * @param next new value of property
-     */
-    public void setNext(Rsrc next)
-    {
-        _next = next;
-    }
-
-    /**
-     * @return the previous timed-buffer in the linked-list (less recent)
-     */
-    public Rsrc getPrev()
-    {
-        return _prev;
-    }
-
-    /**
-     * Assign new value to property prev.
-     *
-     * The prev timed-buffer in the linked-list (more recent)
+     * Clears the reference bit (a second chance given by the clock-hand).
      *
-     * @param next new value of property
+     * @return true when this resource has been accessed since the previous call
      */
-    public void setPrev(Rsrc prev)
+    public boolean clearReferenced()
     {
-        _prev = prev;
+        if (!_isReferenced)
+            return false;
+        _isReferenced = false;
+        return true;
     }
 
 }
@@ -4,15 +4,27 @@
  */
 package com.htmlspeed.server;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
 * RsrcsList.java
  *
  * Created on 13 Feb 2012
  *
- * A doubly-linked-list of timed-buffers, ordered by last access time.
+ * The cached resources, evicted by an approximate-LRU (CLOCK) policy.
+ *
+ * Accessing a cached resource only sets its reference bit (see Rsrc.markReferenced),
+ * so cache hits never write to shared state of the list. A clock-hand sweeps the
+ * resources when room is needed, giving a second chance to referenced resources.
  *
  * @author  Eldad Zamler
- * @version $Revision: 1.9 $$Date: 2013/08/21 12:29:05 $
+ * @version $Revision: 1.10 $$Date: 2013/08/21 12:29:05 $
  */
 public class RsrcsList
 {
@@ -32,6 +44,11 @@ public class RsrcsList
      */
     public static final int MIN_SMALL_BUFFER = 200;
 
+    /**
+     * Maximum number of iterations of makeRoom.
+     */
+    private static final int MAX_ITERATIONS = 4;
+
     /**
      * Number of milli-seconds in one day
      */
@@ -40,27 +57,39 @@ public class RsrcsList
     /**
      * The last time when not recently used resources have been removed.
      */
-    private static long _lastUnusedRemovalTime = 0;
+    private static volatile long _lastUnusedRemovalTime = 0;
+
+    /**
+     * Maps each resource in this list to its size when added.
+     */
+    private final ConcurrentHashMap<Rsrc, Integer> _rsrcs = new ConcurrentHashMap<Rsrc, Integer>(8*1024, 0.75f, 64);
+
+    /**
+     * Current number of resources in this list
+     */
+    private final AtomicInteger _count = new AtomicInteger();
 
     /**
-     * The least-recently-accest instance in the doubly-linked-list
+     * Total size in bytes of all timed-buffers in this list (on and off heap)
      */
-    public Rsrc head;
+    private final AtomicLong _totalSize = new AtomicLong();
 
     /**
-     * The most-recently-accest instance in the doubly-linked-list
+     * Total size in bytes of timed-buffers in this list that are stored off-heap
      */
-    public Rsrc tail;
+    private final AtomicLong _offHeapSize = new AtomicLong();
 
     /**
-     * Current number of timed-buffers in this list
+     * Locked by the thread that makes room. Other threads that need room meanwhile
+     * wait for it (threads that find room add their resources without locking).
      */
-    public volatile int count = 0;
+    private final ReentrantLock _evictionLock = new ReentrantLock();
 
     /**
-     * Total size in bytes of all timed-buffers in this list
+     * The clock-hand (only accessed while _evictionLock is locked).
+     * Null when a new sweep should start.
      */
-    private long _totalSize = 0;
+    private Iterator<Rsrc> _hand;
 
     /**
      * The used configuration
@@ -77,108 +106,205 @@ public class RsrcsList
         _configData = configData;
     }
 
+    /**
+     * @return current number of resources in this list
+     */
+    public int getCount()
+    {
+        return _count.get();
+    }
+
+    /**
+     * @return total size in bytes of all timed-buffers in this list (on and off heap)
+     */
+    public long getTotalSize()
+    {
+        return _totalSize.get();
+    }
+
+    /**
+     * @return total size in bytes of timed-buffers in this list that are stored off-heap
+     */
+    public long getOffHeapSize()
+    {
+        return _offHeapSize.get();
+    }
+
+    /**
+     * @return total size in bytes of timed-buffers in this list that are stored on the heap
+     */
+    public long getHeapSize()
+    {
+        return _totalSize.get() - _offHeapSize.get();
+    }
+
+    /**
+     * @return the resources in this list (a weakly consistent view)
+     */
+    public Set<Rsrc> getRsrcs()
+    {
+        return _rsrcs.keySet();
+    }
+
+    /**
+     * @param rsrc a resource
+     * @return true when rsrc is in this list
+     */
+    public boolean contains(Rsrc rsrc)
+    {
+        return _rsrcs.containsKey(rsrc);
+    }
+
     /**
      * Removes all element from list.
      */
-    public synchronized void clear()
+    public void clear()
     {
-        head = null;
-        tail = null;
-        count = 0;
-        _totalSize = 0;
+        for (Rsrc rsrc : _rsrcs.keySet())
+            remove(rsrc);
     }
 
     /**
-     * Adds buff to linked-list (after tail)
+     * Adds rsrc to list.
+     *
+     * When room must be made for rsrc and the admission policy is enabled, rsrc is
+     * only admitted when its estimated access-frequency is not lower than the frequency
+     * of any of the resources that would be evicted to make room for it.
      *
-     * @param buff the added timed-buffer
+     * @param rsrc the added resource
+     * @return false when rsrc has been rejected by the admission policy
      */
-    public synchronized void add(Rsrc rsrc)
+    public boolean add(Rsrc rsrc)
     {
-        int rsrcLen = rsrc.getTotalTimedBuffersSize();
+        if (_rsrcs.containsKey(rsrc))
+            return true; // Already added (e.g. also cached by its version-url).
+
+        if (rsrc.isOffHeapReleased())
+            return false; // Has already left the cache (its bodies are gone).
+
+        int rsrcLen = (_configData.isOffHeap ? rsrc.getTotalSizeOffHeap() : rsrc.getTotalTimedBuffersSize());
 
-        makeRoom(rsrcLen);
+        // The size of rsrc is added to _totalSize when room is made for it:
+        if (!makeRoom(rsrc, rsrcLen))
+        {
+            _configData.cache.stats.recordReject(rsrc.getClass());
+            return false;
+        }
+
+        if (_configData.isOffHeap)
+            rsrc.moveOffHeap();
 
-        if (tail == null)
+        if (_rsrcs.putIfAbsent(rsrc, Integer.valueOf(rsrcLen)) == null)
         {
-            head = rsrc;
-            tail = rsrc;
-            rsrc.setPrev(null);
-            rsrc.setNext(null);
+            rsrc.markReferenced();
+            _count.incrementAndGet();
+            _offHeapSize.addAndGet(rsrc.getOffHeapBuffersSize());
         }
         else
         {
-            rsrc.setPrev(tail);
-            tail.setNext(rsrc);
-            rsrc.setNext(null);
-            tail = rsrc;
+            _totalSize.addAndGet(-rsrcLen); // Added meanwhile by another thread.
         }
+        return true;
+    }
 
-        ++count;
-
-        _totalSize += rsrcLen;
+    /**
+     * Removes rsrc from list. The off-heap buffers of rsrc are released
+     * (they are freed when the services that currently write them finish).
+     *
+     * @param rsrc the removed resource
+     */
+    public void remove(Rsrc rsrc)
+    {
+        Integer rsrcLen = _rsrcs.remove(rsrc);
+        if (rsrcLen != null)
+        {
+            _count.decrementAndGet();
+            _totalSize.addAndGet(-rsrcLen.intValue());
+            _offHeapSize.addAndGet(-rsrc.getOffHeapBuffersSize());
+            rsrc.releaseOffHeap();
+        }
     }
 
-    public synchronized void remove(Rsrc rsrc)
+    /**
+     * Sets the pre-encoded representations of rsrc (see Encodings), adding their size
+     * to the size of rsrc. Resources are not evicted to make room for representations.
+     *
+     * @param rsrc a resource in this list
+     * @param representations the representations of rsrc
+     * @return false when rsrc has left this list or there is no room for representations
+     */
+    public boolean addRepresentations(Rsrc rsrc, Encodings.Representation[] representations)
     {
-        
-        if (rsrc.getPrev() != null)
-            rsrc.getPrev().setNext(rsrc.getNext());
-        if (rsrc.getNext() != null)
-            rsrc.getNext().setPrev(rsrc.getPrev());
-        if (head == rsrc)
-            head = rsrc.getNext();
-        if (tail == rsrc)
-            tail = rsrc.getPrev();
-
-        rsrc.setNext(null);
-        rsrc.setPrev(null);
-
-        --count;
-
-        _totalSize -= rsrc.getTotalTimedBuffersSize();
+        Integer rsrcLen = _rsrcs.get(rsrc);
+        if (rsrcLen == null)
+            return false;
+
+        int addedLen = Encodings.sizeOf(representations);
+        if (!reserve(addedLen))
+            return false;
+
+        // The size of rsrc is only modified when it hasn't left the list meanwhile:
+        if (!_rsrcs.replace(rsrc, rsrcLen, Integer.valueOf(rsrcLen.intValue() + addedLen)))
+        {
+            _totalSize.addAndGet(-addedLen);
+            return false;
+        }
+        rsrc.representations = representations;
+        return true;
     }
 
     /**
-     * Moved rsrc to end of linked-list.
+     * Sets the deflated inlined form of rsrc (see ServiceUtils.writeInlined), adding its
+     * size to the size of rsrc. Resources are evicted to make room for it (like for a new
+     * resource, the admission policy compares rsrc with the victims).
      *
-     * @param rsrc moved rsrc
+     * When deflatedFragment is not admitted rsrc.isFragmentRefused is set, so the
+     * inlined form of rsrc is not deflated again.
+     *
+     * @param rsrc a resource in this list
+     * @param deflatedFragment the deflated inlined form of rsrc
+     * @return false when rsrc has left this list or deflatedFragment is not admitted
      */
-    public synchronized void moveToEnd(Rsrc rsrc)
+    public boolean addDeflatedFragment(Rsrc rsrc, byte[] deflatedFragment)
     {
-        if (tail == rsrc)
-            return;
-
-        // Removing buff from linked-list:
-        if (rsrc.getPrev() != null)
-            rsrc.getPrev().setNext(rsrc.getNext());
-        if (rsrc.getNext() != null)
-            rsrc.getNext().setPrev(rsrc.getPrev());
-        if (head == rsrc)
-            head = rsrc.getNext();
-        if (tail == rsrc)
-            tail = rsrc.getPrev();
-
-        rsrc.setNext(null);
-        rsrc.setPrev(null);
-
-        // Adding buff to linked-list:
-        if (tail == null)
+        if (!_rsrcs.containsKey(rsrc) || rsrc.deflatedFragment != null)
+            return false;
+
+        int addedLen = deflatedFragment.length;
+        if (!makeRoom(rsrc, addedLen))
         {
-            head = rsrc;
-            tail = rsrc;
-            rsrc.setPrev(null);
-            rsrc.setNext(null);
+            rsrc.isFragmentRefused = true;
+            return false;
         }
-        else
+
+        // The size of rsrc is only modified while it is in the list (retrying when its size
+        // has been modified meanwhile, e.g. by addRepresentations):
+        while (true)
         {
-            rsrc.setPrev(tail);
-            tail.setNext(rsrc);
-            rsrc.setNext(null);
-            tail = rsrc;
+            Integer rsrcLen = _rsrcs.get(rsrc);
+            if (rsrcLen == null || rsrc.deflatedFragment != null)
+            {
+                _totalSize.addAndGet(-addedLen); // Left the list, or added by another thread.
+                return false;
+            }
+            if (_rsrcs.replace(rsrc, rsrcLen, Integer.valueOf(rsrcLen.intValue() + addedLen)))
+            {
+                rsrc.deflatedFragment = deflatedFragment;
+                return true;
+            }
         }
     }
 
+    /**
+     * Records an access to rsrc (only its reference bit is set).
+     *
+     * @param rsrc accessed rsrc
+     */
+    public void touch(Rsrc rsrc)
+    {
+        rsrc.markReferenced();
+    }
+
     /**
      * When total size of all currently cached timed-buffer plus sizeOfNewTimedBuffer
      * is greater than maxCacheTotalSize, enough timed-buffers are freed to make room.
@@ -188,17 +314,75 @@ public class RsrcsList
      *
      * When makeRoom needs to free timed-buffers,
      * it uses the following iterative algorithm:
-     *      In each iteration (there are maximum 4 iterations), only the least recently accessed
-     *      25% of the buffers are scaned (or all the buffer when there are less than 1000 buffers).
-     *      Buffers are freed until usage of heap-size drops bellow lowerCacheTotalSize. First
-     *      only scaned large resources are freed.Than only medium-sized resources are freed, and
-     *      finally small rsrcs are freed.
+     *      In each iteration (there are maximum 4 iterations), the clock-hand advances over
+     *      25% of the resources. Referenced resources get a second chance (their bit is cleared)
+     *      and resources being loaded are pinned. The remaining resources are candidates and
+     *      are freed until usage of heap-size drops bellow lowerCacheTotalSize. First only
+     *      large candidates are freed. Than only medium-sized resources are freed, than small
+     *      rsrcs, and finally tiny rsrcs.
+     *
+     * The size of the new buffer is added to the total size when room is made for it
+     * (so concurrent threads don't use the same room).
      *
-     * @param newTimedBufferSize the size of the new buffer that is going to be cached
+     * @param candidate the resource that is going to be cached
+     * @param sizeOfNewTimedBuffer the size of the new buffer that is going to be cached
+     * @return false when candidate is rejected by the admission policy (nothing is freed), or
+     *          when the sweeps haven't made enough room (maxCacheTotalSize is never exceeded)
      */
-    private void makeRoom(int sizeOfNewTimedBuffer)
+    private boolean makeRoom(Rsrc candidate, int sizeOfNewTimedBuffer)
     {
-        final int BUFFS_IN_ITERATION = count / 4;
+        long currentTime = System.currentTimeMillis();
+        boolean isDailyRemoval = currentTime - _lastUnusedRemovalTime > DAY_IN_MILLIS;
+
+        if (!isDailyRemoval && reserve(sizeOfNewTimedBuffer))
+            return true;
+
+        _evictionLock.lock(); // Waiting when another thread is making room.
+        try
+        {
+            if (!isDailyRemoval && reserve(sizeOfNewTimedBuffer))
+                return true; // Made by the other thread.
+
+            if (!makeRoomLocked(candidate, sizeOfNewTimedBuffer, currentTime))
+                return false;
+
+            return reserve(sizeOfNewTimedBuffer); // False when not enough room has been made.
+        }
+        finally
+        {
+            _evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Adds size to the total size when it remains within maxCacheTotalSize.
+     *
+     * @param size the size of the new buffer that is going to be cached
+     * @return false when there is no room for size
+     */
+    private boolean reserve(int size)
+    {
+        while (true)
+        {
+            long totalSize = _totalSize.get();
+            if (totalSize + size > _configData.maxCacheTotalSize)
+                return false;
+            if (_totalSize.compareAndSet(totalSize, totalSize + size))
+                return true;
+        }
+    }
+
+    /**
+     * Called by makeRoom while _evictionLock is locked.
+     *
+     * @param candidate the resource that is going to be cached
+     * @param sizeOfNewTimedBuffer the size of the new buffer that is going to be cached
+     * @param currentTime value returned by System.currentTimeMillis
+     * @return false when candidate is rejected by the admission policy
+     */
+    private boolean makeRoomLocked(Rsrc candidate, int sizeOfNewTimedBuffer, long currentTime)
+    {
+        final int BUFFS_IN_ITERATION = Math.max(_count.get() / 4, 1);
 
         int iterNum = 0; // Curr iteration number.
 
@@ -214,26 +398,18 @@ public class RsrcsList
         int tinyBuffsSize = 0;
 
         // Once a day removing not recently accessed buffers:
-        long currentTime = System.currentTimeMillis();
         if (currentTime - _lastUnusedRemovalTime > DAY_IN_MILLIS)
         {
             _lastUnusedRemovalTime = currentTime;
 
-            Rsrc rsrc = head;
-            while (rsrc != null)
+            for (Rsrc rsrc : _rsrcs.keySet())
             {
-                Rsrc nextRsrc = rsrc.getNext();
-                if (!rsrc.isRecentlyUsed(currentTime))
+                if (!rsrc.isRecentlyUsed(currentTime) && !rsrc.isBeingLoaded() && rsrc != candidate)
                 {
-                    int rsrcSize = rsrc.getTotalTimedBuffersSize();
                     unusedBuffsCount++;
-                    unusedBuffsSize += rsrcSize;
-                    ServiceUtils.removeFromCache(rsrc.getVariant(), rsrc.getUrl(), _configData);
-                    String versionUrl = rsrc.getVersionUrl();
-                    if (versionUrl != null)
-                        ServiceUtils.removeFromCache(rsrc.getVariant(), versionUrl, _configData);
+                    unusedBuffsSize += rsrc.getTotalTimedBuffersSize();
+                    evict(rsrc);
                 }
-                 rsrc = nextRsrc;
             }
         }
 
@@ -241,89 +417,88 @@ public class RsrcsList
         // If used-heap grow above maxCacheTotalSize then we free
         // enough buffers so that used-heap drops bellow lowerCacheTotalSize:
         //
-        if (_totalSize + sizeOfNewTimedBuffer > _configData.maxCacheTotalSize)
+        if (_totalSize.get() + sizeOfNewTimedBuffer > _configData.maxCacheTotalSize)
         {
-            while (_totalSize + sizeOfNewTimedBuffer  > _configData.lowerCacheTotalSize)
+            ArrayList<Rsrc> large = new ArrayList<Rsrc>();
+            ArrayList<Rsrc> medium = new ArrayList<Rsrc>();
+            ArrayList<Rsrc> small = new ArrayList<Rsrc>();
+            ArrayList<Rsrc> tiny = new ArrayList<Rsrc>();
+
+            while (_totalSize.get() + sizeOfNewTimedBuffer  > _configData.lowerCacheTotalSize &&
+                        iterNum < MAX_ITERATIONS)
             {
                 iterNum++;
 
-                final int scanSize = (count < BUFFS_IN_ITERATION ? count : BUFFS_IN_ITERATION);
-
-                // The timed-buffer following the last scaned buffer in current iteration (null when all buffers are scaned):
-                Rsrc lastRsrc = head;
+                // Advancing the clock-hand and collecting candidates by size:
+                large.clear();
+                medium.clear();
+                small.clear();
+                tiny.clear();
+                for (int i = 0 ; i < BUFFS_IN_ITERATION ; i++)
+                {
+                    if (_hand == null || !_hand.hasNext())
+                    {
+                        _hand = _rsrcs.keySet().iterator();
+                        if (!_hand.hasNext())
+                            break;
+                    }
+                    Rsrc currRsrc = _hand.next();
+                    if (currRsrc == candidate || currRsrc.isBeingLoaded() || currRsrc.clearReferenced())
+                        continue; // The candidate (already in list when its size grows) isn't a victim.
+                    int rsrcSize = currRsrc.getTotalTimedBuffersSize();
+                    if (rsrcSize > MIN_LARGE_BUFFER)
+                        large.add(currRsrc);
+                    else if (rsrcSize > MIN_MEDIUM_BUFFER)
+                        medium.add(currRsrc);
+                    else if (rsrcSize > MIN_SMALL_BUFFER)
+                        small.add(currRsrc);
+                    else
+                        tiny.add(currRsrc);
+                }
 
-                for (int i = 1 ; i < scanSize && lastRsrc != null ; i++)
-                    lastRsrc = lastRsrc.getNext();
+                // Admission: victims should not be more popular than the candidate:
+                if (iterNum == 1 && _configData.isAdmissionFilter &&
+                        !isAdmitted(candidate, sizeOfNewTimedBuffer, large, medium, small, tiny))
+                    return false;
 
                 // Free large timed-buffers:
-                for (Rsrc currRsrc = head, nextRsrc = null ;
-                        _totalSize + sizeOfNewTimedBuffer > _configData.lowerCacheTotalSize && currRsrc != lastRsrc ;
-                        currRsrc = nextRsrc)
+                for (Rsrc currRsrc : large)
                 {
-                    nextRsrc = currRsrc.getNext();
-                    int rsrcSize = currRsrc.getTotalTimedBuffersSize();
-                    if (rsrcSize > MIN_LARGE_BUFFER && !currRsrc.isBeingLoaded())
-                    {
-                        largeBuffsCount++;
-                        largeBuffsSize += rsrcSize;
-                        ServiceUtils.removeFromCache(currRsrc.getVariant(), currRsrc.getUrl(), _configData);
-                        String versionUrl = currRsrc.getVersionUrl();
-                        if (versionUrl != null)
-                            ServiceUtils.removeFromCache(currRsrc.getVariant(), versionUrl, _configData);
-                    }
+                    if (_totalSize.get() + sizeOfNewTimedBuffer <= _configData.lowerCacheTotalSize)
+                        break;
+                    largeBuffsCount++;
+                    largeBuffsSize += currRsrc.getTotalTimedBuffersSize();
+                    evict(currRsrc);
                 }
 
                 // Free medium-sized timed-buffers:
-                for (Rsrc currRsrc = head, nextRsrc = null ;
-                        _totalSize + sizeOfNewTimedBuffer > _configData.lowerCacheTotalSize && currRsrc != lastRsrc ;
-                        currRsrc = nextRsrc)
+                for (Rsrc currRsrc : medium)
                 {
-                    nextRsrc = currRsrc.getNext();
-                    int rsrcSize = currRsrc.getTotalTimedBuffersSize();
-                    if (rsrcSize > MIN_MEDIUM_BUFFER && !currRsrc.isBeingLoaded())
-                    {
-                        mediumBuffsCount++;
-                        mediumBuffsSize += rsrcSize;
-                        ServiceUtils.removeFromCache(currRsrc.getVariant(), currRsrc.getUrl(), _configData);
-                        String versionUrl = currRsrc.getVersionUrl();
-                        if (versionUrl != null)
-                            ServiceUtils.removeFromCache(currRsrc.getVariant(), versionUrl, _configData);
-                    }
+                    if (_totalSize.get() + sizeOfNewTimedBuffer <= _configData.lowerCacheTotalSize)
+                        break;
+                    mediumBuffsCount++;
+                    mediumBuffsSize += currRsrc.getTotalTimedBuffersSize();
+                    evict(currRsrc);
                 }
 
                 // Free small-sized timed-buffers:
-                for (Rsrc currRsrc = head, nextRsrc = null ;
-                        _totalSize + sizeOfNewTimedBuffer > _configData.lowerCacheTotalSize && currRsrc != lastRsrc ;
-                        currRsrc = nextRsrc)
+                for (Rsrc currRsrc : small)
                 {
-                    nextRsrc = currRsrc.getNext();
-                    int rsrcSize = currRsrc.getTotalTimedBuffersSize();
-                    if (rsrcSize > MIN_SMALL_BUFFER && !currRsrc.isBeingLoaded())
-                    {
-                        smallBuffsCount++;
-                        smallBuffsSize += rsrcSize;
-                        ServiceUtils.removeFromCache(currRsrc.getVariant(), currRsrc.getUrl(), _configData);
-                        String versionUrl = currRsrc.getVersionUrl();
-                        if (versionUrl != null)
-                            ServiceUtils.removeFromCache(currRsrc.getVariant(), versionUrl, _configData);
-                    }
+                    if (_totalSize.get() + sizeOfNewTimedBuffer <= _configData.lowerCacheTotalSize)
+                        break;
+                    smallBuffsCount++;
+                    smallBuffsSize += currRsrc.getTotalTimedBuffersSize();
+                    evict(currRsrc);
                 }
 
                 // Free remaining timed-buffers:
-                for (Rsrc currRsrc = head, nextRsrc = null ;
-                        _totalSize + sizeOfNewTimedBuffer > _configData.lowerCacheTotalSize && currRsrc != lastRsrc ;
-                        currRsrc = nextRsrc)
+                for (Rsrc currRsrc : tiny)
                 {
-                    nextRsrc = currRsrc.getNext();
-                    if (!currRsrc.isBeingLoaded())
-                    {
-                        tinyBuffsCount++;
-                        tinyBuffsSize += currRsrc.getTotalTimedBuffersSize();
-                        ServiceUtils.removeFromCache(currRsrc.getVariant(), currRsrc.getUrl(), _configData);
-                        String versionUrl = currRsrc.getVersionUrl();
-                        if (versionUrl != null)
-                            ServiceUtils.removeFromCache(currRsrc.getVariant(), versionUrl, _configData);
-                    }
+                    if (_totalSize.get() + sizeOfNewTimedBuffer <= _configData.lowerCacheTotalSize)
+                        break;
+                    tinyBuffsCount++;
+                    tinyBuffsSize += currRsrc.getTotalTimedBuffersSize();
+                    evict(currRsrc);
                 }
             }
         }
@@ -344,6 +519,69 @@ public class RsrcsList
             sb.append(" (").append(tinyBuffsSize/(1024*1024)).append(" Mbytes).\n");
         }
         */
+
+        return true;
+    }
+
+    /**
+     * TinyLFU admission. The victims are taken in the order in which makeRoom frees
+     * them, until enough room is made for the candidate. Larger candidates therefore
+     * compete with more victims.
+     *
+     * @param candidate the resource that is going to be cached
+     * @param candidateSize size of candidate
+     * @param large large victims (freed first)
+     * @param medium medium-sized victims
+     * @param small small victims
+     * @param tiny tiny victims (freed last)
+     * @return false when any of the victims is more frequently accessed than candidate
+     */
+    private boolean isAdmitted(
+                                Rsrc candidate,
+                                int candidateSize,
+                                ArrayList<Rsrc> large,
+                                ArrayList<Rsrc> medium,
+                                ArrayList<Rsrc> small,
+                                ArrayList<Rsrc> tiny)
+    {
+        if (candidate.url == null)
+            return true;
+
+        FrequencySketch sketch = _configData.cache.sketch;
+        int candidateFreq = sketch.frequency(CacheStructure.hashOf(candidate.url));
+
+        ArrayList<ArrayList<Rsrc>> classes = new ArrayList<ArrayList<Rsrc>>(4);
+        classes.add(large);
+        classes.add(medium);
+        classes.add(small);
+        classes.add(tiny);
+
+        long freed = 0;
+        for (ArrayList<Rsrc> victims : classes)
+        {
+            for (Rsrc victim : victims)
+            {
+                if (victim.url != null && sketch.frequency(CacheStructure.hashOf(victim.url)) > candidateFreq)
+                    return false;
+                freed += victim.getTotalTimedBuffersSize();
+                if (freed >= candidateSize)
+                    return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes rsrc (and its versioned url) from the cache-structure,
+     * demoting it to the disk-store when there is one.
+     *
+     * @param rsrc the evicted resource
+     */
+    private void evict(Rsrc rsrc)
+    {
+        Metrics.recordEviction(rsrc.getTotalTimedBuffersSize());
+        ServiceUtils.evictFromCache(rsrc, _configData);
+        remove(rsrc); // In case rsrc has already been replaced in cache-structure.
     }
 
 }
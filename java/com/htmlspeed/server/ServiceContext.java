@@ -9,6 +9,7 @@ package com.htmlspeed.server;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.concurrent.Executor;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.client.HttpClient;
@@ -160,6 +161,17 @@ public class ServiceContext
      */
     public TempRsrc refreshRsrc;
 
+    /**
+     * Allocated by ServiceUtils.tryToJoinPageLoad when the current service loads a
+     * missed page that concurrent services wait for (released by leavePageLoad).
+     */
+    public LoadLock pageLoad;
+
+    /**
+     * The key of pageLoad in cache.pageLoads.
+     */
+    public String pageLoadKey;
+
     /**
      * Set by ServiceUtils.findFreshCachedRsrc.
      * The time when freshness of cached resource expires.
@@ -172,6 +184,19 @@ public class ServiceContext
      */
     public long maxAge;
 
+    /**
+     * Set by ServiceUtils.findFreshCachedRsrc.
+     * True when the found resource is stale (returned while it is refreshed).
+     */
+    public boolean isStale;
+
+    /**
+     * Set by ServiceUtils.loadMissingRsrcs.
+     * True when resources of the page were not loaded by the assembly deadline (they are
+     * not inlined, so the returned page is not cached).
+     */
+    public boolean isAssemblyLate;
+
     /**
      * True when browser is IE.
      */
@@ -226,4 +251,52 @@ public class ServiceContext
      * The configuration for host
      */
     public ConfigData configData;
+
+    /**
+     * Version of IE browser (see ServiceUtils.ieVersion).
+     */
+    public int ieVersion;
+
+    /**
+     * True when the home-page is requested by a mobile browser (and configData.isMobileHome).
+     */
+    public boolean isMobileHome;
+
+    /**
+     * The requested version-url (null when !isVersionedRsrc).
+     */
+    public String versionUrl;
+
+    /**
+     * True when the response was streamed to the browser while it was received (see HtmlStreamer).
+     */
+    public boolean isStreamed;
+
+    /**
+     * True when the servicing thread holds the read locks of the configuration while it
+     * waits for the exchange (synchronous service), so HtmlStreamer doesn't lock them again.
+     */
+    public volatile boolean isConfigLocked;
+
+    /**
+     * True when refreshing an auto-refreshed page (see ServiceUtils.refreshPage), request is null.
+     */
+    public boolean isRefresh;
+
+    /**
+     * Set by ServiceUtils.preloadRsrcs while it starts the loads of the resources of an
+     * asynchronously served page (null otherwise): counts the loads that have not ended.
+     */
+    public LoadLock preloadLock;
+
+    /**
+     * Executes the completion of the loads started by ServiceUtils.preloadRsrcs.
+     */
+    public Executor preloadExecutor;
+
+    /**
+     * Set by ServiceUtils.preloadRsrcs: the assembly deadline of the page (0 when none),
+     * see configData.assemblyDeadline.
+     */
+    public long assemblyDeadlineTime;
 }
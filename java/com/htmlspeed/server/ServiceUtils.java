@@ -6,7 +6,6 @@
  */
 package com.htmlspeed.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,15 +13,22 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPOutputStream;
 import javax.crypto.Cipher;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.client.Address;
@@ -53,6 +59,12 @@ public class ServiceUtils
 
     private static final String EMPTY_STRING = "";
 
+    /**
+     * Request attribute of a service that is dispatched again after it has waited
+     * asynchronously for the load of its page by a concurrent service (see tryToJoinPageLoad).
+     */
+    private static final String JOINED_ATTRIBUTE = "com.htmlspeed.server.joined";
+
     private static final byte[] ABOUT_BLANK = new byte[]{'a','b','o','u','t',':','b','l','a','n','k'};
 
     private static final String BASE_TARGET = "<base  target=\"_parent\">";
@@ -177,12 +189,13 @@ public class ServiceUtils
     /**
      * List of hosts and their routing information as definied in configuration.
      */
-    private static HostInfo[] _hostInfos = null;
+    private static volatile HostInfo[] _hostInfos = null;
 
     /**
-     * Maps boosted domain/sub-domain to its routing information.
+     * Maps boosted domain/sub-domain to its routing information
+     * (replaced by setHostInfo, never modified when used by chooseAddresses).
      */
-    private static HashMap<String, HostInfo> _hostToHostInfo = null;
+    private static volatile HashMap<String, HostInfo> _hostToHostInfo = null;
 
     /**
      * Uri's from this host are not prefixed in cache.rsrcs by "(host-name)".
@@ -214,22 +227,9 @@ public class ServiceUtils
         public byte[] weights = null;
 
         /**
-         * _commFailureTimes[i] is the last time when communication
-         * with _addresses[i] has failed, or 0 when the content-server
-         * is currently healthy.
-         */
-        public long[] commFailureTimes = null;
-
-        /**
-         * Next request will be routed to _addresses[_iAddresses]
-         * iff _rWeights > 0
-         */
-        public int iAddresses = 0;
-
-        /**
-         * Remaining number of requests to route to _addresses[_iAddresses].
+         * The health and load of the content-servers (pool.states[i] is the state of addresses[i]).
          */
-        public int rWeights;
+        public LoadBalancer.Pool pool = null;
     }
 
     /**
@@ -238,15 +238,31 @@ public class ServiceUtils
     private static final int REFRESH_GAP_IN_MILLIS = 5000;
 
     /**
-     * Queue of collections of temp-rsrcs to be loaded by the background-thread.
+     * The background loaders are responsible for loading rsrcs of statefull pages/style-sheets
+     * (see properties back.loaders, back.loaders.per.host and back.queue.size).
+     */
+    private static final BackLoadScheduler _backLoader = new BackLoadScheduler("HtmlSpeedBackLoader", 8, 2, 1000);
+
+    /**
+     * Completes the loads of rsrcs that were not loaded by the assembly deadline of their page
+     * (see property assembly.deadline), after the page has been returned.
      */
-    private static LinkedBlockingQueue<BackThreadLoadInfo> _blockingQueue =
-                            new LinkedBlockingQueue<BackThreadLoadInfo>();
+    private static final ExecutorService _lateLoadsCompleter = Executors.newFixedThreadPool(2, new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "HtmlSpeedLateLoads");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /**
-     * The background-thread is responsible for loading rsrcs of statefull pages/style-sheets.
+     * Resumes the asynchronously served pages by their assembly deadline (see preloadRsrcs),
+     * and the services waiting asynchronously for a page load by the join timeout (see
+     * tryToJoinPageLoad).
      */
-    private static BackThread _backThread = null;
+    private static final TimerWheel _wheel = new TimerWheel("HtmlSpeedServiceWheel", 10);
 
     /**
      * Last time exit-now msg has been checked.
@@ -258,6 +274,11 @@ public class ServiceUtils
      */
     private static boolean _addProxyHeaders = false;
 
+    /**
+     * The response of refreshed pages (discarded, shared by all the refreshes).
+     */
+    private static final HttpServletResponse _discardedResponse = new RefreshServletResponse();
+
     /**
      * Sets value or property withFirstPlus (true when FIRST_PLUS_VISIT is enabled).
      *
@@ -278,6 +299,26 @@ public class ServiceUtils
         _addProxyHeaders = addProxyHeaders;
     }
 
+    /**
+     * Sets the limits of the background loaders.
+     *
+     * @param maxLoaders max number of concurrent background loads (property back.loaders)
+     * @param maxPerHost max number of concurrent background loads from a single host (property back.loaders.per.host)
+     * @param maxQueued max number of queued background loads (property back.queue.size)
+     */
+    public static void setBackLoadLimits(int maxLoaders, int maxPerHost, int maxQueued)
+    {
+        _backLoader.setLimits(maxLoaders, maxPerHost, maxQueued);
+    }
+
+    /**
+     * @return the scheduler of the background loaders (used for reporting queue-depth and wait-time)
+     */
+    public static BackLoadScheduler getBackLoader()
+    {
+        return _backLoader;
+    }
+
     /**
      * Assigns new value to property withIframe
      * @param isWithIframe new value of property
@@ -307,6 +348,10 @@ public class ServiceUtils
      * page, generates the required page-variant (context.variant) and
      * adds it to the cache.
      *
+     * When true is returned while context.refreshRsrc is being refreshed, a stale
+     * resource has been returned (stale-while-revalidate) and the service should
+     * still refresh it.
+     *
      * @param context service-context
      * @return true when a cached resource has been returned to calling browser
      * @throws IOException can occur when accessing the response
@@ -361,6 +406,7 @@ public class ServiceUtils
         boolean isGziped = false; // True when response is Gziped
         String contentEncoding = null; // When isGziped equals "gzip" or "deflate"
         byte[] cachedContent = null; // Content to return to browser (when not null)
+        OffHeapBuffer cachedBuffer = null; // Content to return to browser when stored off-heap (retained)
         String[] cachedHttpHeaders = null; // Headers of found cached resource.
 
         long currentTime = System.currentTimeMillis();
@@ -371,6 +417,9 @@ public class ServiceUtils
 
         if (rsrc != null)
         {
+            context.cache.stats.recordHit(rsrc.getClass(), variant);
+            if (context.isStale)
+                context.cache.stats.recordStaleHit();
 
             if (!(rsrc instanceof PageRsrc))
             {
@@ -378,7 +427,7 @@ public class ServiceUtils
                 context.variant = variant;
             }
 
-            isGziped = rsrc.optimGzip != null;
+            isGziped = rsrc.hasOptimGzip();
             if (isGziped)
                 contentEncoding = rsrc.optimGzipEncoding;
 
@@ -387,8 +436,8 @@ public class ServiceUtils
             else
                 maxAge = (rsrcMaxFreshTime - currentTime) / 1000;
 
-            if (maxAge < 0)
-                maxAge = 0;
+            if (maxAge < 0 || context.isStale)
+                maxAge = 0; // Stale rsrc is not cached by browser.
 
             // Resource not-modified:
             if (etag != null && rsrc.origMd5 != null && etag.contains(rsrc.origMd5))
@@ -435,7 +484,7 @@ public class ServiceUtils
                 else
                     maxAge = (rsrcMaxFreshTime - currentTime) / 1000;
 
-                if (maxAge < 0)
+                if (maxAge < 0 || context.isStale)
                     maxAge = 0;
             }
 
@@ -447,36 +496,234 @@ public class ServiceUtils
             // from content-server and added to the cache-structure.
             //
 
-            if(System.currentTimeMillis() < rsrcMaxFreshTime)
+            if(context.isStale || System.currentTimeMillis() < rsrcMaxFreshTime)
             {
                 cachedHttpHeaders = rsrc.httpHeaders;
 
-                if (rsrc.optimGzip != null)
+                if (rsrc.hasOptimGzip())
                 {
                     isGziped = true;
                     contentEncoding = rsrc.optimGzipEncoding;
                     cachedContent = rsrc.optimGzip;
+                    cachedBuffer = rsrc.optimGzipBuffer;
                 }
-                else if (rsrc.origGzip != null)
+                else if (rsrc.hasOrigGzip())
                 {
                     isGziped = true;
                     contentEncoding = rsrc.origGzipEncoding;
                     cachedContent = rsrc.origGzip;
+                    cachedBuffer = rsrc.origGzipBuffer;
                 }
                 else if (rsrc.optimData != null)
                 {
                     isGziped = false;
                     cachedContent = rsrc.optimData;
                 }
-                else if (rsrc.origData != null)
+                else if (rsrc.hasOrigData())
                 {
                     isGziped = false;
                     cachedContent = rsrc.origData;
+                    cachedBuffer = rsrc.origDataBuffer;
+                }
+
+                if (isGziped)
+                {
+                    // Pre-encoded representation (smaller than the gziped body):
+                    int servedLen = (cachedBuffer != null ? cachedBuffer.length() : cachedContent.length);
+                    Encodings.Representation representation =
+                                Encodings.selectOf(rsrc, request.getHeader("Accept-Encoding"), servedLen);
+                    if (representation != null)
+                    {
+                        contentEncoding = representation.encoding;
+                        cachedContent = representation.body;
+                        cachedBuffer = null;
+                    }
+                }
+
+                if (cachedBuffer != null)
+                {
+                    cachedContent = null;
+                    if (!cachedBuffer.retain())
+                        cachedBuffer = null; // Evicted meanwhile (loaded again from content-server).
                 }
             }
         }
 
+        if (cachedBuffer != null)
+        {
+            try
+            {
+                addCachedRsrcHeaders(context, rsrc, cachedHttpHeaders, etag, maxAge, isVersioned, isGziped, contentEncoding);
+                response.setHeader("Content-Length", cachedBuffer.length() + "");
+                response.setStatus(200);
+                cachedBuffer.writeTo(response.getOutputStream());
+            }
+            finally
+            {
+                cachedBuffer.release();
+            }
+            return true;
+        }
+
         if (cachedContent != null)
+        {
+            addCachedRsrcHeaders(context, rsrc, cachedHttpHeaders, etag, maxAge, isVersioned, isGziped, contentEncoding);
+            response.setHeader("Content-Length", cachedContent.length + "");
+            response.setStatus(200);
+            response.getOutputStream().write(cachedContent);
+            return true;
+        }
+
+        context.variant = savedVariant;
+        return false;
+    }
+
+    /**
+     * Called after tryToUseCachedRsrc returned false. Concurrent misses of a page are
+     * loaded once: the first service loads the page (context.pageLoad is allocated),
+     * the other services wait for it and return the page it has cached.
+     *
+     * A waiting service loads the page by itself when the wait times out (property
+     * page.load.join.timeout), or when the page hasn't been cached (e.g. state-full).
+     *
+     * When isAsync, a waiting service doesn't hold its thread: the request is dispatched
+     * again (AsyncContext.dispatch) when the load ends or the wait times out, and the
+     * dispatched service returns the cached page, or loads the page by itself (it doesn't
+     * join again).
+     *
+     * @param context service-context
+     * @param isAsync true when the request may be served asynchronously
+     * @return true when the page cached by a concurrent service has been returned to browser,
+     *          or when the service is dispatched again when the load ends
+     * @throws IOException can occur when accessing the response
+     */
+    public static boolean tryToJoinPageLoad(ServiceContext context, boolean isAsync) throws IOException
+    {
+        final CacheStructure cache = context.cache;
+        final ConfigData configData = context.configData;
+        final String url = context.url;
+
+        if (configData.pageLoadJoinTimeout <= 0 || context.refreshRsrc != null ||
+                cache.isStateFull(url, configData))
+            return false;
+
+        final HttpServletRequest request = context.request;
+        if (request != null && request.getAttribute(JOINED_ATTRIBUTE) != null)
+            return false; // Dispatched again after the wait (the cached page hasn't been found).
+
+        String key = toKey(context.variant, url);
+        LoadLock pageLoad = new LoadLock();
+        pageLoad.setCount(1);
+        LoadLock loader = cache.pageLoads.putIfAbsent(key, pageLoad);
+        if (loader == null)
+        {
+            // Current service loads the page:
+            context.pageLoad = pageLoad;
+            context.pageLoadKey = key;
+            return false;
+        }
+
+        if (isAsync)
+        {
+            // Waiting without holding the thread:
+            final char variant = context.variant;
+            final AsyncContext asyncCtxt = request.startAsync();
+            asyncCtxt.setTimeout(0); // Expiry is handled by the join timeout.
+            final AtomicBoolean isResumed = new AtomicBoolean(false);
+            final TimerWheel.Timeout timeout = _wheel.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    if (!isResumed.compareAndSet(false, true))
+                        return;
+                    cache.stats.recordJoinTimeout();
+                    request.setAttribute(JOINED_ATTRIBUTE, Boolean.FALSE);
+                    asyncCtxt.dispatch();
+                }
+            }, configData.pageLoadJoinTimeout);
+            loader.runWhenCountIs0(new Runnable()
+            {
+                public void run()
+                {
+                    if (!isResumed.compareAndSet(false, true))
+                        return;
+                    _wheel.cancel(timeout);
+                    if (getFromMemory(variant, url, configData) instanceof Rsrc)
+                        cache.stats.recordJoinedLoad();
+                    else
+                        cache.stats.recordJoinFallback();
+                    request.setAttribute(JOINED_ATTRIBUTE, Boolean.TRUE);
+                    asyncCtxt.dispatch();
+                }
+            });
+            return true;
+        }
+
+        try
+        {
+            if (!loader.waitUntilCountIs0(configData.pageLoadJoinTimeout))
+            {
+                cache.stats.recordJoinTimeout();
+                return false;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            return false;
+        }
+
+        if (tryToUseCachedRsrc(context))
+        {
+            cache.stats.recordJoinedLoad();
+            return true;
+        }
+
+        cache.stats.recordJoinFallback();
+        return false;
+    }
+
+    /**
+     * Releases the services waiting for the load of context.pageLoad (see tryToJoinPageLoad).
+     * Called when the loaded page has been cached (or has failed).
+     *
+     * @param context service-context
+     */
+    public static void leavePageLoad(ServiceContext context)
+    {
+        LoadLock pageLoad = context.pageLoad;
+        if (pageLoad == null)
+            return;
+
+        context.pageLoad = null;
+        context.cache.pageLoads.remove(context.pageLoadKey, pageLoad);
+        pageLoad.decCount();
+    }
+
+    /**
+     * Adds the http-headers of a cached resource to the response to browser.
+     *
+     * @param context of current http-service
+     * @param rsrc the returned cached resource
+     * @param cachedHttpHeaders headers of rsrc
+     * @param etag ETag returned to browser (when rsrc is not versioned)
+     * @param maxAge max-age returned to browser
+     * @param isVersioned true when the requested url is versioned
+     * @param isGziped true when the returned content is gziped
+     * @param contentEncoding when isGziped equals "gzip" or "deflate"
+     */
+    private static void addCachedRsrcHeaders(
+                                            ServiceContext context,
+                                            Rsrc rsrc,
+                                            String[] cachedHttpHeaders,
+                                            String etag,
+                                            long maxAge,
+                                            boolean isVersioned,
+                                            boolean isGziped,
+                                            String contentEncoding)
+    {
+        HttpServletResponse response = context.response;
+        ConfigData configData = context.configData;
+
         {
             boolean foundVaryHeader = false;
 
@@ -499,13 +746,11 @@ public class ServiceUtils
                     //      Expires not used (max-age is used instead),
                     //      no cookies are sent to browser for stateless rsrcs.
                 }
-                else if (rsrc instanceof PageRsrc && header.equals("vary") )
+                else if (header.equals("vary") )
                 {
                     foundVaryHeader = true;
-                    if (cachedHttpHeaders[h+1].toLowerCase().contains("user-agent"))
-                        response.addHeader(cachedHttpHeaders[h], cachedHttpHeaders[h+1]);
-                    else
-                        response.addHeader(cachedHttpHeaders[h], cachedHttpHeaders[h+1] + ",User-Agent");
+                    response.addHeader(cachedHttpHeaders[h],
+                                varyOf(cachedHttpHeaders[h+1], rsrc instanceof PageRsrc, isGziped));
                 }
                 else
                 {
@@ -526,31 +771,43 @@ public class ServiceUtils
                     response.setHeader("Cache-Control", "private, max-age=" + maxAge);
                 else
                     response.setHeader("Cache-Control", "max-age=" + maxAge);
-
-                if (rsrc instanceof PageRsrc && !foundVaryHeader)
-                    response.addHeader("Vary", "User-Agent");
             }
 
+            if (!foundVaryHeader && (isGziped || (rsrc instanceof PageRsrc && !isVersioned)))
+                response.addHeader("Vary", varyOf(null, rsrc instanceof PageRsrc && !isVersioned, isGziped));
+
             if (isGziped)
                 response.setHeader("Content-Encoding", contentEncoding);
-            response.setHeader("Content-Length", cachedContent.length + "");
-            response.setStatus(200);
-            response.getOutputStream().write(cachedContent);
-            return true;
         }
+    }
 
-        context.variant = savedVariant;
-        return false;
+    /**
+     * @param vary value of Vary header of the content-server (null when missing)
+     * @param isUserAgent true when the response depends on User-Agent (html-pages)
+     * @param isAcceptEncoding true when the response depends on Accept-Encoding
+     * @return the value of Vary header returned to browser
+     */
+    public static String varyOf(String vary, boolean isUserAgent, boolean isAcceptEncoding)
+    {
+        String lowerVary = (vary != null ? vary.toLowerCase() : "");
+        StringBuilder sb = new StringBuilder(vary != null ? vary : "");
+        if (isUserAgent && !lowerVary.contains("user-agent"))
+            sb.append(sb.length() > 0 ? "," : "").append("User-Agent");
+        if (isAcceptEncoding && !lowerVary.contains("accept-encoding") && !lowerVary.contains("*"))
+            sb.append(sb.length() > 0 ? "," : "").append("Accept-Encoding");
+        return sb.toString();
     }
 
     /**
      * Tries to find in the cache the fresh resource: context.variant + context.url.
      * If refresh of resource must be initiated then context.refreshRsrc is allocated.
      * When must waits to refresher, the method waits until refersh is finished.
+     * Within the stale-while-revalidate window of url the stale resource is returned
+     * instead (context.isStale is set), even when context.refreshRsrc is allocated.
      *
      * @param context of current http-service
      * @param currentTime saves a lot of calls to System.currentTimeMillis
-     * @return a fresh cached resource when found (null otherwise).
+     * @return a fresh (or stale) cached resource when found (null otherwise).
      */
     private static Rsrc findFreshCachedRsrc(ServiceContext context, long currentTime)
     {
@@ -563,12 +820,40 @@ public class ServiceUtils
         Rsrc rsrc = null; // Not null when a fresh cached resource is found.
         context.maxFreshTime = 0; // Unknown until rsrc is found.
         context.maxAge = 0;
+        context.isStale = false;
         
         LoadLock waiter = null; // used for waiting to refresher of rsrc (when not null).
 
-        synchronized (cache.globalLock)
+        cache.recordAccess(url);
+
+        // Lock-free path of cache hits of fresh resources:
+        RsrcIfc hit = getFromCache(variant, url, configData);
+        if (hit instanceof Rsrc)
         {
-            RsrcIfc r = getFromCache(variant, url, configData);
+            rsrc = (Rsrc)hit;
+            boolean isAutoRefreshed = (rsrc instanceof PageRsrc && ConfigUtils.isAutoRefreshedPage(((PageRsrc)rsrc).url));
+            long freshTime = maxServerSideFreshTimeOf(rsrc, configData);
+            if (isAutoRefreshed || freshTime - currentTime >= REFRESH_GAP_IN_MILLIS)
+            {
+                rsrc.recordHit(currentTime);
+                context.maxFreshTime = rsrc.maxFreshTime;
+                context.maxAge = rsrc.maxAge;
+
+                // Hot resources are revalidated before they expire:
+                if (!isAutoRefreshed && freshTime - currentTime < configData.refreshAheadWindow*1000)
+                    RefreshAhead.offer(context, rsrc, currentTime);
+                return rsrc;
+            }
+            rsrc = null;
+        }
+        else if (hit == null)
+        {
+            return null;
+        }
+
+        synchronized (cache.lockOf(url))
+        {
+            RsrcIfc r = getFromMemory(variant, url, configData);
 
             if (r instanceof TempRsrc)
             {
@@ -583,6 +868,13 @@ public class ServiceUtils
                         context.maxFreshTime = rsrc.maxFreshTime;
                         context.maxAge = rsrc.maxAge;
                     }
+                    else if (isStaleWhileRevalidate(tmpRsrc.replacer, currentTime, configData))
+                    {
+                        // Can use refreshed stale rsrc (stale-while-revalidate):
+                        rsrc = tmpRsrc.replacer;
+                        context.maxFreshTime = rsrc.maxFreshTime;
+                        context.isStale = true;
+                    }
                     else
                     {
                         waiter = new LoadLock();
@@ -596,7 +888,7 @@ public class ServiceUtils
             else if (r instanceof Rsrc)
             {
                 rsrc = (Rsrc)r;
-                rsrc.lastUsageTime = currentTime;
+                rsrc.recordHit(currentTime);
                 context.maxFreshTime = rsrc.maxFreshTime;
                 context.maxAge = rsrc.maxAge;
 
@@ -605,16 +897,26 @@ public class ServiceUtils
                     return rsrc; // Auto-refreshed rsrc is assumed to be fresh.
                 }
 
-                // Forcing upper-limit on server-side max-age:
-                long maxServerSideFreshTime = rsrc.maxFreshTime;
-                final long maxServerSideMaxAge = configData.maxServerSideMaxAge;
-                if (maxServerSideMaxAge > 0 && (rsrc.maxFreshTime - rsrc.lastRefreshTime) > maxServerSideMaxAge*1000)
+                if (maxServerSideFreshTimeOf(rsrc, configData) - currentTime < REFRESH_GAP_IN_MILLIS)
                 {
-                    maxServerSideFreshTime = rsrc.lastRefreshTime + maxServerSideMaxAge*1000;
-                }
+                    if (rsrc.staleTime == 0)
+                        rsrc.staleTime = maxServerSideFreshTimeOf(rsrc, configData);
+
+                    boolean isStale = isStaleWhileRevalidate(rsrc, currentTime, configData);
+
+                    if (context.refreshRsrc != null && context.refreshRsrc.isBeingRefreshed)
+                    {
+                        // Current service already refreshes another variant of url:
+                        if (isStale)
+                        {
+                            context.isStale = true;
+                            return rsrc;
+                        }
+                        context.maxFreshTime = 0;
+                        context.maxAge = 0;
+                        return null;
+                    }
 
-                if (maxServerSideFreshTime - currentTime < REFRESH_GAP_IN_MILLIS)
-                {
                     // Current service should refresh the rsrc:
                     rsrc.isBeingLoaded = true;
                     TempRsrc tmpRsrc = new TempRsrc();
@@ -626,6 +928,14 @@ public class ServiceUtils
                     tmpRsrc.isVersioned = rsrc.versionUrl != null;
                     context.refreshRsrc = tmpRsrc;
                     putInCache(variant, url, tmpRsrc, configData);
+
+                    if (isStale)
+                    {
+                        // The stale rsrc is returned and then refreshed (see HtmlSpeedServlet.service):
+                        context.isStale = true;
+                        return rsrc;
+                    }
+
                     context.maxFreshTime = 0;
                     context.maxAge = 0;
                     return null;
@@ -645,25 +955,56 @@ public class ServiceUtils
             }
 
             // Trying to use the just refreshed resource:
-            synchronized (cache.globalLock)
+            RsrcIfc r = getFromCache(variant, url, configData);
+            if (r instanceof Rsrc)
             {
-                RsrcIfc r = getFromCache(variant, url, configData);
-                if (r instanceof Rsrc)
-                {
-                    rsrc = (Rsrc) r;
-                    context.maxFreshTime = rsrc.maxFreshTime;
-                    context.maxAge = rsrc.maxAge;
-                }
-                else
-                {
-                    rsrc = null;
-                }
+                rsrc = (Rsrc) r;
+                context.maxFreshTime = rsrc.maxFreshTime;
+                context.maxAge = rsrc.maxAge;
+            }
+            else
+            {
+                rsrc = null;
             }
         }
 
         return rsrc;
     }
 
+    /**
+     * @param rsrc a cached resource that is being refreshed, or should be refreshed
+     * @param currentTime saves a lot of calls to System.currentTimeMillis
+     * @param configData used configuration
+     * @return true when rsrc may be returned to browsers while it is refreshed
+     *      (within the stale-while-revalidate window of its url)
+     */
+    private static boolean isStaleWhileRevalidate(Rsrc rsrc, long currentTime, ConfigData configData)
+    {
+        long staleWhileRevalidate = configData.staleWhileRevalidateOf(rsrc.url);
+        if (staleWhileRevalidate <= 0)
+            return false;
+
+        long staleTime = (rsrc.staleTime != 0 ? rsrc.staleTime : maxServerSideFreshTimeOf(rsrc, configData));
+        return currentTime < staleTime + staleWhileRevalidate;
+    }
+
+    /**
+     * Forces upper-limit on server-side max-age of rsrc.
+     *
+     * @param rsrc a cached resource
+     * @param configData used configuration
+     * @return the time until rsrc is considered fresh by the html-speed server
+     */
+    private static long maxServerSideFreshTimeOf(Rsrc rsrc, ConfigData configData)
+    {
+        long maxFreshTime = rsrc.maxFreshTime;
+        long lastRefreshTime = rsrc.lastRefreshTime;
+        final long maxServerSideMaxAge = configData.maxServerSideMaxAge;
+        if (maxServerSideMaxAge > 0 && (maxFreshTime - lastRefreshTime) > maxServerSideMaxAge*1000)
+            return lastRefreshTime + maxServerSideMaxAge*1000;
+        return maxFreshTime;
+    }
+
     /**
      * Initializes context.exchange before routing
      * the executed http-request to the content server.
@@ -876,7 +1217,7 @@ public class ServiceUtils
 
         CacheStructure cache = configData.cache;
 
-        synchronized (cache.globalLock)
+        synchronized (cache.lockOf(tmpRsrc.url))
         {
             if (modifiedRsrc != null)
             {
@@ -890,6 +1231,7 @@ public class ServiceUtils
             rsrc.isBeingLoaded = false;
             rsrc.lastRefreshTime = System.currentTimeMillis();
             rsrc.maxFreshTime = rsrc.lastRefreshTime + maxAge*1000;
+            rsrc.staleTime = 0;
             rsrc.lastUsageTime = rsrc.lastRefreshTime;
             rsrc.maxAge = maxAge;
             rsrc.host = tmpRsrc.host;
@@ -928,6 +1270,9 @@ public class ServiceUtils
 
         boolean foundVaryHeader = false;
 
+        // Only browsers accepting gzip aren't routed, the content-encoding is set by the servlet:
+        boolean isEncoded = !isRouter && status == 200;
+
         long minMaxAge = configData.minStateLessMaxAge;
         final long minMaxAgeForContentFirst = (minMaxAge < 32 ? minMaxAge : 32);
 
@@ -973,13 +1318,10 @@ public class ServiceUtils
                 }
             }
 
-            if (isHtml && header.equals("vary") )
+            if ((isHtml || isEncoded) && header.equals("vary") )
             {
                 foundVaryHeader = true;
-                if (responseHeaders[h+1].toLowerCase().contains("user-agent"))
-                    response.addHeader(responseHeaders[h], responseHeaders[h+1]);
-                else
-                    response.addHeader(responseHeaders[h], responseHeaders[h+1] + ",User-Agent");
+                response.addHeader(responseHeaders[h], varyOf(responseHeaders[h+1], isHtml, isEncoded));
             }
             else if (!header.equals("date"))
             {
@@ -987,8 +1329,8 @@ public class ServiceUtils
             }
         }
 
-        if (isHtml && !foundVaryHeader)
-            response.addHeader("Vary", "User-Agent");
+        if ((isHtml || isEncoded) && !foundVaryHeader)
+            response.addHeader("Vary", varyOf(null, isHtml, isEncoded));
 
         if (isRouter)
         {
@@ -1025,6 +1367,85 @@ public class ServiceUtils
             response.setStatus(status);
     }
 
+    /**
+     * Starts the loads of the missing resources of an asynchronously served html-page
+     * (see HtmlSpeedServlet.resumeService), so no thread waits for them: resumer
+     * assembles the page when the loads end, and finds the resources in the cache.
+     *
+     * The page is analyzed here to find its resources, and analyzed again when it is
+     * assembled. When configData.assemblyDeadline is set, resumer is called by the
+     * deadline, and the assembly doesn't wait for the loads that have not ended (see
+     * loadMissingRsrcsIntoCache). The images of stylesheets that are not optimized yet
+     * are still loaded by the assembly (once per stylesheet, see optimizeStylesheets).
+     *
+     * @param context http-service context (its exchange is completed)
+     * @param executor executes the completion of the loads, and resumer
+     * @param resumer assembles the page (called once)
+     * @return true when resumer is called when the loads end, false when there is nothing
+     *          to wait for (resumer is not called)
+     * @throws IOException
+     */
+    public static boolean preloadRsrcs(ServiceContext context, final Executor executor, final Runnable resumer)
+                                                                                    throws IOException
+    {
+        HtmlSpeedHttpExchange exchange = context.exchange;
+        int ct = exchange.getContentTypeIndex();
+        if (context.isRouter || context.isStreamed || exchange.getResponseStatus() != 200 || ct < 0 ||
+                !exchange.getResponseHeaders()[ct + 1].toLowerCase().startsWith("text/html"))
+            return false;
+
+        // The resources of state-full pages are loaded by the background loaders (not waited for):
+        if (context.isMobileHome ||
+                (!context.isVersionedRsrc && CacheUtils.isStateFull(context.url, exchange, true, context.configData)))
+            return false;
+
+        ConfigData configData = context.configData;
+        if (configData.assemblyDeadline > 0 && context.refreshRsrc == null)
+            context.assemblyDeadlineTime = System.currentTimeMillis() + configData.assemblyDeadline;
+
+        // Analyzing the page (as HtmlSpeedServlet.serviceResponse does):
+        context.isHtml = true;
+        exchange.setHtmlReplaceParams();
+        context.orig = exchange.replace(exchange.getUngzipedResponseContent());
+        HtmlAnalyzer htmlAnalyzer = new HtmlAnalyzer();
+        context.info = htmlAnalyzer.analyze(context);
+        context.base = baseOf(htmlAnalyzer.getBase(), context);
+
+        // Starting the loads (see loadMissingRsrcsIntoCache):
+        LoadLock preloadLock = new LoadLock();
+        preloadLock.setCount(1);
+        context.preloadLock = preloadLock;
+        context.preloadExecutor = executor;
+        try
+        {
+            loadMissingRsrcs(context);
+        }
+        finally
+        {
+            context.preloadLock = null;
+            context.preloadExecutor = null;
+        }
+
+        if (preloadLock.getCount() == 1)
+            return false; // All the resources are cached.
+
+        final AtomicBoolean isResumed = new AtomicBoolean(false);
+        Runnable resumeOnce = new Runnable()
+        {
+            public void run()
+            {
+                if (isResumed.compareAndSet(false, true))
+                    executor.execute(resumer);
+            }
+        };
+
+        if (context.assemblyDeadlineTime > 0)
+            _wheel.schedule(resumeOnce, Math.max(1, context.assemblyDeadlineTime - System.currentTimeMillis()));
+        preloadLock.runWhenCountIs0(resumeOnce);
+        preloadLock.decCount();
+        return true;
+    }
+
     /**
      * Finds needed cached resources and load missing resources.
      *
@@ -1075,244 +1496,216 @@ public class ServiceUtils
                                                 new BackThreadLoadInfo(context.client, url, context.requestHost);
         LoadLock rsrcsLoadLock = new LoadLock();
         LoadLock rsrcsWaitLock = new LoadLock();
-        synchronized(cache.globalLock)
+        while (i < info.length)
         {
-            while (i < info.length)
-            {
-                if (info[i] == HtmlAnalyzer.EOF_KIND)
-                    break;
-
-                int dupInfo = 0;
-                boolean replace = false;
-
-                if (info[i] == HtmlAnalyzer.IMG_KIND)
-                {
-                    dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
-                    replace = true;
-                    int srcFirst = info[i + HtmlAnalyzer.IMG_SRC_FIRST];
-                    int srcLast = info[i + HtmlAnalyzer.IMG_SRC_LAST];
-                    String path =  (srcFirst < 0 || srcLast < srcFirst ? "" : new String(orig, srcFirst, srcLast - srcFirst, "UTF-8"));
-                    String validUrl = toValidUrl(path, context);
-                    if (path.length() == 0 || path.equals("about:blank") || path.startsWith("data:") || path.contains("#") ||
-                            cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
-                                variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
-                                variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT)
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
-                    allRsrcs[iAll] = checkRsrc(
-                                                        context, currentTime, path, validUrl, ImageRsrc.class,
-                                                        rsrcsToLoad, backThreadLoadInfo,
-                                                        rsrcsLoadLock, rsrcsWaitLock, false);
-                }
-
-                else if(info[i] == HtmlAnalyzer.CSS_IMG_KIND)
-                {
-                    dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
-                    replace = true;
-                    int srcFirst = info[i + HtmlAnalyzer.CSS_IMG_FIRST];
-                    int srcLast = info[i + HtmlAnalyzer.CSS_IMG_LAST];
-                    String path =  (srcFirst < 0 || srcLast < srcFirst ? "" : new String(orig, srcFirst, srcLast - srcFirst, "UTF-8"));
-                    String validUrl = toValidUrl(path, context);
-                    if (path.length() == 0 || path.equals("about:blank") || path.startsWith("data:") ||
-                            cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
-                                variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
-                                variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT)
-                    {
-                        if (!path.startsWith("http:") && !path.startsWith("https:"))
-                            noInline = true;
+            if (info[i] == HtmlAnalyzer.EOF_KIND)
+                break;
 
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
-                    allRsrcs[iAll] = checkRsrc(
-                                                    context, currentTime, path, validUrl, ImageRsrc.class,
-                                                    rsrcsToLoad, backThreadLoadInfo,
-                                                    rsrcsLoadLock, rsrcsWaitLock, false);
-                }
+            int dupInfo = 0;
+            boolean replace = false;
 
-                else if(info[i] == HtmlAnalyzer.INPUT_KIND)
+            if (info[i] == HtmlAnalyzer.IMG_KIND)
+            {
+                dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
+                replace = true;
+                int srcFirst = info[i + HtmlAnalyzer.IMG_SRC_FIRST];
+                int srcLast = info[i + HtmlAnalyzer.IMG_SRC_LAST];
+                String path =  (srcFirst < 0 || srcLast < srcFirst ? "" : new String(orig, srcFirst, srcLast - srcFirst, "UTF-8"));
+                String validUrl = toValidUrl(path, context);
+                if (path.length() == 0 || path.equals("about:blank") || path.startsWith("data:") || path.contains("#") ||
+                        cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
+                            variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
+                            variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT)
                 {
-                    dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
-                    replace = true;
-                    int srcFirst = info[i + HtmlAnalyzer.INPUT_SRC_FIRST];
-                    int srcLast = info[i + HtmlAnalyzer.INPUT_SRC_LAST];
-                    String path =  (srcFirst < 0 || srcLast < srcFirst ? "" : new String(orig, srcFirst, srcLast - srcFirst, "UTF-8"));
-                    String validUrl = toValidUrl(path, context);
-                    if (path.length() == 0 || path.equals("about:blank") || path.startsWith("data:") || path.contains("#") ||
-                            cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
-                                variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
-                                variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT)
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
-                    allRsrcs[iAll] = checkRsrc(
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
+                }
+                allRsrcs[iAll] = checkRsrc(
                                                     context, currentTime, path, validUrl, ImageRsrc.class,
                                                     rsrcsToLoad, backThreadLoadInfo,
                                                     rsrcsLoadLock, rsrcsWaitLock, false);
-                }
+            }
 
-                else if(info[i] == HtmlAnalyzer.SCRIPT_KIND)
+            else if(info[i] == HtmlAnalyzer.CSS_IMG_KIND)
+            {
+                dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
+                replace = true;
+                int srcFirst = info[i + HtmlAnalyzer.CSS_IMG_FIRST];
+                int srcLast = info[i + HtmlAnalyzer.CSS_IMG_LAST];
+                String path =  (srcFirst < 0 || srcLast < srcFirst ? "" : new String(orig, srcFirst, srcLast - srcFirst, "UTF-8"));
+                String validUrl = toValidUrl(path, context);
+                if (path.length() == 0 || path.equals("about:blank") || path.startsWith("data:") ||
+                        cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
+                            variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
+                            variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT)
                 {
-                    dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
-                    replace = true;
-                    int srcFirst = info[i + HtmlAnalyzer.SCRIPT_SRC_FIRST];
-                    int srcLast = info[i + HtmlAnalyzer.SCRIPT_SRC_LAST];
-                    String path =  (srcFirst < 0 || srcLast < srcFirst ? "" : new String(orig, srcFirst, srcLast - srcFirst));
-                    String validUrl = toValidUrl(path, context);
-                    if (srcFirst < 0 || dupInfo != 0 || path.contains("#") ||
-                            cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
-                                variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
-                                variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT)
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
-                    allRsrcs[iAll] = checkRsrc(
-                                                    context, currentTime, path, validUrl, JsRsrc.class, rsrcsToLoad,
-                                                    backThreadLoadInfo, rsrcsLoadLock, rsrcsWaitLock,
-                                                    info[i + HtmlAnalyzer.SCRIPT_IN_IE_COMMENT] == 1);
+                    if (!path.startsWith("http:") && !path.startsWith("https:"))
+                        noInline = true;
+
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
                 }
+                allRsrcs[iAll] = checkRsrc(
+                                                context, currentTime, path, validUrl, ImageRsrc.class,
+                                                rsrcsToLoad, backThreadLoadInfo,
+                                                rsrcsLoadLock, rsrcsWaitLock, false);
+            }
 
-                else if(info[i] == HtmlAnalyzer.LINK_KIND)
-                {
-                    dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
-                    replace = true;
-                    int hrefFirst = info[i + HtmlAnalyzer.LINK_HREF_FIRST];
-                    int hrefLast = info[i + HtmlAnalyzer.LINK_HREF_LAST];
-                    if (hrefFirst < 0 || hrefLast <= hrefFirst || dupInfo != 0)
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
-
-                    int relFirst = info[i + HtmlAnalyzer.LINK_REL_FIRST];
-                    int relLast = info[i + HtmlAnalyzer.LINK_REL_LAST];
-                    if (relFirst < 0 || relLast <= relFirst)
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
-                    String rel = new String(orig, relFirst, relLast - relFirst, "UTF-8").toLowerCase();
-                    if (!rel.equals("stylesheet"))
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
-
-                    int typeFirst = info[i + HtmlAnalyzer.LINK_TYPE_FIRST];
-                    int typeLast = info[i + HtmlAnalyzer.LINK_TYPE_LAST];
-                    String type = "text/css";
-                    if (0 <= typeFirst && typeFirst < typeLast)
-                        type =   new String(orig, typeFirst, typeLast - typeFirst, "UTF-8").toLowerCase();
-                    if (!type.equals("text/css"))
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
-
-                    int mediaFirst = info[i + HtmlAnalyzer.LINK_MEDIA_FIRST];
-                    int mediaLast = info[i + HtmlAnalyzer.LINK_MEDIA_LAST];
-                    String media = "all";
-                    if (0 <= mediaFirst && mediaFirst < mediaLast)
-                        media = new String(orig, mediaFirst, mediaLast - mediaFirst, "UTF-8").toLowerCase();
-                    if (!media.equals("all") && !media.contains("screen"))
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
+            else if(info[i] == HtmlAnalyzer.INPUT_KIND)
+            {
+                dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
+                replace = true;
+                int srcFirst = info[i + HtmlAnalyzer.INPUT_SRC_FIRST];
+                int srcLast = info[i + HtmlAnalyzer.INPUT_SRC_LAST];
+                String path =  (srcFirst < 0 || srcLast < srcFirst ? "" : new String(orig, srcFirst, srcLast - srcFirst, "UTF-8"));
+                String validUrl = toValidUrl(path, context);
+                if (path.length() == 0 || path.equals("about:blank") || path.startsWith("data:") || path.contains("#") ||
+                        cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
+                            variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
+                            variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT)
+                {
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
+                }
+                allRsrcs[iAll] = checkRsrc(
+                                                context, currentTime, path, validUrl, ImageRsrc.class,
+                                                rsrcsToLoad, backThreadLoadInfo,
+                                                rsrcsLoadLock, rsrcsWaitLock, false);
+            }
 
-                    String href = new String(orig, hrefFirst, hrefLast - hrefFirst, "UTF-8");
-                    String validUrl = toValidUrl(href, context);
-                    if (cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
+            else if(info[i] == HtmlAnalyzer.SCRIPT_KIND)
+            {
+                dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
+                replace = true;
+                int srcFirst = info[i + HtmlAnalyzer.SCRIPT_SRC_FIRST];
+                int srcLast = info[i + HtmlAnalyzer.SCRIPT_SRC_LAST];
+                String path =  (srcFirst < 0 || srcLast < srcFirst ? "" : new String(orig, srcFirst, srcLast - srcFirst));
+                String validUrl = toValidUrl(path, context);
+                if (srcFirst < 0 || dupInfo != 0 || path.contains("#") ||
+                        cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
                             variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
-                            variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT || validUrl.contains("#"))
-                    {
-                        i += HtmlAnalyzer.INFO_LENS[info[i]];
-                         iAll++;
-                        continue;
-                    }
+                            variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT)
+                {
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
+                }
+                allRsrcs[iAll] = checkRsrc(
+                                                context, currentTime, path, validUrl, JsRsrc.class, rsrcsToLoad,
+                                                backThreadLoadInfo, rsrcsLoadLock, rsrcsWaitLock,
+                                                info[i + HtmlAnalyzer.SCRIPT_IN_IE_COMMENT] == 1);
+            }
 
-                    allRsrcs[iAll] = checkRsrc(
-                                                    context, currentTime, href, validUrl, CssRsrc.class, rsrcsToLoad,
-                                                    backThreadLoadInfo, rsrcsLoadLock, rsrcsWaitLock,
-                                                    info[i + HtmlAnalyzer.LINK_IN_IE_COMMENT] == 1);
+            else if(info[i] == HtmlAnalyzer.LINK_KIND)
+            {
+                dupInfo = info[i + HtmlAnalyzer.DUPLICATES_INFO];
+                replace = true;
+                int hrefFirst = info[i + HtmlAnalyzer.LINK_HREF_FIRST];
+                int hrefLast = info[i + HtmlAnalyzer.LINK_HREF_LAST];
+                if (hrefFirst < 0 || hrefLast <= hrefFirst || dupInfo != 0)
+                {
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
                 }
 
-                //
-                // Replacing ImgRsrc, JsRsrc, CssRsrc resources by TempRsrcs.
-                // The field tmpRsrc.replacer points to the replaced cached-rsrc:
-                //
-                if (replace)
+                int relFirst = info[i + HtmlAnalyzer.LINK_REL_FIRST];
+                int relLast = info[i + HtmlAnalyzer.LINK_REL_LAST];
+                if (relFirst < 0 || relLast <= relFirst)
                 {
-                    if (allRsrcs[iAll] instanceof TempRsrc)
-                    {
-                        TempRsrc tmpRsrc = (TempRsrc)allRsrcs[iAll];
-                        tmpRsrc.isDuplicated = (dupInfo != 0);
-                    }
-                    else if (allRsrcs[iAll] != null)
-                    {
-                        TempRsrc tmpRsrc = new TempRsrc();
-                        tmpRsrc.replacer = (Rsrc)allRsrcs[iAll];
-                        tmpRsrc.host = tmpRsrc.replacer.host;
-                        tmpRsrc.url = tmpRsrc.replacer.url;
-                        tmpRsrc.isDuplicated = (dupInfo != 0);
-                        allRsrcs[iAll] = tmpRsrc;
-                    }
-                    iAll++;
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
+                }
+                String rel = new String(orig, relFirst, relLast - relFirst, "UTF-8").toLowerCase();
+                if (!rel.equals("stylesheet"))
+                {
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
                 }
 
-                i += HtmlAnalyzer.INFO_LENS[info[i]];
-            }
-        }
+                int typeFirst = info[i + HtmlAnalyzer.LINK_TYPE_FIRST];
+                int typeLast = info[i + HtmlAnalyzer.LINK_TYPE_LAST];
+                String type = "text/css";
+                if (0 <= typeFirst && typeFirst < typeLast)
+                    type =   new String(orig, typeFirst, typeLast - typeFirst, "UTF-8").toLowerCase();
+                if (!type.equals("text/css"))
+                {
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
+                }
 
-        // Enqueuing rsrcs to be loaded by the background-thread:
-        if (backThreadLoadInfo.tmpRsrcs != null)
-        {
-            while (true)
-            {
-                try
+                int mediaFirst = info[i + HtmlAnalyzer.LINK_MEDIA_FIRST];
+                int mediaLast = info[i + HtmlAnalyzer.LINK_MEDIA_LAST];
+                String media = "all";
+                if (0 <= mediaFirst && mediaFirst < mediaLast)
+                    media = new String(orig, mediaFirst, mediaLast - mediaFirst, "UTF-8").toLowerCase();
+                if (!media.equals("all") && !media.contains("screen"))
                 {
-                    _blockingQueue.put(backThreadLoadInfo);
-                    break;
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
                 }
-                catch (InterruptedException e)
+
+                String href = new String(orig, hrefFirst, hrefLast - hrefFirst, "UTF-8");
+                String validUrl = toValidUrl(href, context);
+                if (cache.isStateFull(validUrl, configData) || variant == CacheUtils.FORTH_VISIT_VARIANT ||
+                        variant == CacheUtils.IE8_FORTH_VISIT_VARIANT ||
+                        variant == CacheUtils.MOBILE_FORTH_VISIT_VARIANT || validUrl.contains("#"))
                 {
-                    try
-                    {
-                    Thread.sleep(1000);
-                    }
-                    catch (Exception exc)
-                    {
-                    }
+                    i += HtmlAnalyzer.INFO_LENS[info[i]];
+                     iAll++;
+                    continue;
                 }
+
+                allRsrcs[iAll] = checkRsrc(
+                                                context, currentTime, href, validUrl, CssRsrc.class, rsrcsToLoad,
+                                                backThreadLoadInfo, rsrcsLoadLock, rsrcsWaitLock,
+                                                info[i + HtmlAnalyzer.LINK_IN_IE_COMMENT] == 1);
             }
 
-            synchronized (ServiceUtils.class)
+            //
+            // Replacing ImgRsrc, JsRsrc, CssRsrc resources by TempRsrcs.
+            // The field tmpRsrc.replacer points to the replaced cached-rsrc:
+            //
+            if (replace)
             {
-                if (_backThread == null || !_backThread.isAlive())
+                if (allRsrcs[iAll] instanceof TempRsrc)
+                {
+                    TempRsrc tmpRsrc = (TempRsrc)allRsrcs[iAll];
+                    tmpRsrc.isDuplicated = (dupInfo != 0);
+                }
+                else if (allRsrcs[iAll] != null)
                 {
-                    _backThread = new BackThread("HtmlSpeedServiceUtils");
-                    _backThread.start();
+                    TempRsrc tmpRsrc = new TempRsrc();
+                    tmpRsrc.replacer = (Rsrc)allRsrcs[iAll];
+                    tmpRsrc.host = tmpRsrc.replacer.host;
+                    tmpRsrc.url = tmpRsrc.replacer.url;
+                    tmpRsrc.isDuplicated = (dupInfo != 0);
+                    allRsrcs[iAll] = tmpRsrc;
                 }
+                iAll++;
             }
+
+            i += HtmlAnalyzer.INFO_LENS[info[i]];
+        }
+
+        // Enqueuing rsrcs to be loaded by the background loaders:
+        if (backThreadLoadInfo.jobs != null)
+        {
+            for (BackLoadJob job : backThreadLoadInfo.jobs.values())
+                _backLoader.submit(job); // Rejected job is rolled back (loaded by a later service).
         }
 
         loadMissingRsrcsIntoCache(
                                         context,
-                                        request.getProtocol(),
-                                        request.getRemoteAddr(),
+                                        (request != null ? request.getProtocol() : "HTTP/1.1"),
+                                        (request != null ? request.getRemoteAddr() : "refresh"),
                                         rsrcsToLoad,
                                         rsrcsLoadLock,
                                         rsrcsWaitLock);
@@ -1406,16 +1799,16 @@ public class ServiceUtils
                     {
                         // Nothing is inlined from forth visit.
                     }
-                    else if(replacer.origData == null)
+                    else if(!replacer.hasOrigData())
                     {
                     }
-                    else if((tempRsrc.isDuplicated && replacer.origData.length > 256) ||
+                    else if((tempRsrc.isDuplicated && replacer.getOrigDataLength() > 256) ||
                                 tempRsrc.isStateFull ||
                                 (replacer instanceof ImageRsrc && ((ImageRsrc)replacer).base64Data == null) ||
                                 ((isIE8 || isCss) && replacer instanceof ImageRsrc &&
                                     ((ImageRsrc)replacer).base64Data.length > 32*1024) ||
-                                (replacer.origData.length >= configData.minHugeBuffer) ||
-                                (replacer.origData.length >= 8*1024 && isMobile) ||
+                                (replacer.getOrigDataLength() >= configData.minHugeBuffer) ||
+                                (replacer.getOrigDataLength() >= 8*1024 && isMobile) ||
                                 (isCss && configData.isNoInline(tempRsrc.url)))
                     {
                         if (isCss)
@@ -1451,24 +1844,24 @@ public class ServiceUtils
                             }
                             else if (replacer instanceof JsRsrc)
                             {
-                                if (replacer.origData.length >= configData.minLargeBuffer &&
-                                        replacer.origData.length < configData.minHugeBuffer)
+                                if (replacer.getOrigDataLength() >= configData.minLargeBuffer &&
+                                        replacer.getOrigDataLength() < configData.minHugeBuffer)
                                     counts[COUNTS_LARGE_JS]++;
-                                else if (replacer.origData.length >= configData.minMediumBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minMediumBuffer)
                                     counts[COUNTS_MEDIUM_JS]++;
-                                else if (replacer.origData.length >= configData.minSmallBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minSmallBuffer)
                                     counts[COUNTS_SMALL_JS]++;
                                 else
                                     counts[COUNTS_TINY_JS]++;
                             }
                             else if (replacer instanceof ImageRsrc)
                             {
-                                if (replacer.origData.length >= configData.minLargeBuffer &&
-                                        replacer.origData.length < configData.minHugeBuffer)
+                                if (replacer.getOrigDataLength() >= configData.minLargeBuffer &&
+                                        replacer.getOrigDataLength() < configData.minHugeBuffer)
                                     counts[COUNTS_LARGE_IMG]++;
-                                else if (replacer.origData.length >= configData.minMediumBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minMediumBuffer)
                                     counts[COUNTS_MEDIUM_IMG]++;
-                                else if (replacer.origData.length >= configData.minSmallBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minSmallBuffer)
                                     counts[COUNTS_SMALL_IMG]++;
                                 else
                                     counts[COUNTS_TINY_IMG]++;
@@ -1486,20 +1879,20 @@ public class ServiceUtils
                             }
                             else if (replacer instanceof JsRsrc)
                             {
-                                if (replacer.origData.length >= configData.minHugeBuffer)
+                                if (replacer.getOrigDataLength() >= configData.minHugeBuffer)
                                 {
                                 }
-                                else if (replacer.origData.length >= configData.minLargeBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minLargeBuffer)
                                 {
                                     if (counts[COUNTS_LARGE_JS]-- > 0)
                                         allRsrcs[a] = replacer;
                                 }
-                                else if (replacer.origData.length >= configData.minMediumBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minMediumBuffer)
                                 {
                                     if (counts[COUNTS_MEDIUM_JS]-- > 0)
                                         allRsrcs[a] = replacer;
                                 }
-                                else if (replacer.origData.length >= configData.minSmallBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minSmallBuffer)
                                 {
                                     if (counts[COUNTS_SMALL_JS]-- > 0)
                                         allRsrcs[a] = replacer;
@@ -1512,10 +1905,10 @@ public class ServiceUtils
                             }
                             else if (replacer instanceof ImageRsrc)
                             {
-                                if (replacer.origData.length >= configData.minHugeBuffer)
+                                if (replacer.getOrigDataLength() >= configData.minHugeBuffer)
                                 {
                                 }
-                                else if (replacer.origData.length >= configData.minLargeBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minLargeBuffer)
                                 {
                                     if (counts[COUNTS_LARGE_IMG]-- > 0 ||
                                             variant == CacheUtils.FIRST_PLUS_VISIT_VARIANT ||
@@ -1523,7 +1916,7 @@ public class ServiceUtils
                                             variant == CacheUtils.MOBILE_FIRST_PLUS_VISIT_VARIANT)
                                         allRsrcs[a] = replacer;
                                 }
-                                else if (replacer.origData.length >= configData.minMediumBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minMediumBuffer)
                                 {
                                     if (counts[COUNTS_MEDIUM_IMG]-- > 0 ||
                                             variant == CacheUtils.FIRST_PLUS_VISIT_VARIANT ||
@@ -1531,7 +1924,7 @@ public class ServiceUtils
                                             variant == CacheUtils.MOBILE_FIRST_PLUS_VISIT_VARIANT)
                                         allRsrcs[a] = replacer;
                                 }
-                                else if (replacer.origData.length >= configData.minSmallBuffer)
+                                else if (replacer.getOrigDataLength() >= configData.minSmallBuffer)
                                 {
                                     if (counts[COUNTS_SMALL_IMG]-- > 0 ||
                                             variant == CacheUtils.FIRST_PLUS_VISIT_VARIANT ||
@@ -1570,6 +1963,12 @@ public class ServiceUtils
      * Called when current service loads missing rsrcs of requested state-less url,
      * or when background-thread loads missing rsrcs of requested state-full urls.
      *
+     * When configData.assemblyDeadline is set, a service of a page waits for the loads
+     * until the deadline: the rsrcs that are not loaded by then are replaced in
+     * context.allRsrcs by rsrcs that are not inlined (see lateRsrcOf), and their loads
+     * are completed in the background (inserted into the cache-structure for the next
+     * services of the page).
+     *
      * @param context http-service context
      * @param defaultProtocol http protocol (example HTTP/1.1)
      * @param requestRemoteAddr client invoking http-request
@@ -1579,220 +1978,156 @@ public class ServiceUtils
      * @throws IOException 
      */
     private static void loadMissingRsrcsIntoCache(
-                                                    ServiceContext context,
+                                                    final ServiceContext context,
                                                     String protocol,
-                                                    String requestRemoteAddr,
+                                                    final String requestRemoteAddr,
                                                     TempRsrc[] rsrcsToLoad,
                                                     LoadLock rsrcsLoadLock,
                                                     LoadLock rsrcsWaitLock
                                                     ) throws IOException
     {
-        CacheStructure cache = context.cache;
         boolean isHttps = context.isHttps;
         String url = context.url;
         ConfigData configData = context.configData;
 
+        // Preloading the resources of a page (see preloadRsrcs), the loads end without waiting:
+        final LoadLock preloadLock = context.preloadLock;
+        if (preloadLock != null)
+        {
+            if (rsrcsLoadLock.getCount() > 0)
+            {
+                loadMissingRsrcs(context, rsrcsToLoad, isHttps, protocol, rsrcsLoadLock);
+
+                final TempRsrc[] loadedRsrcs = rsrcsToLoad;
+                final Executor executor = context.preloadExecutor;
+                preloadLock.incCount();
+                rsrcsLoadLock.runWhenCountIs0(new Runnable()
+                {
+                    public void run()
+                    {
+                        executor.execute(new Runnable()
+                        {
+                            public void run()
+                            {
+                                try
+                                {
+                                    completeLoads(context, loadedRsrcs, requestRemoteAddr);
+                                }
+                                catch (Exception e)
+                                {
+                                    System.out.println("SERVER: failed completing loads of: " + context.url + ", " + e);
+                                }
+                                finally
+                                {
+                                    preloadLock.decCount();
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+
+            if (rsrcsWaitLock != null && rsrcsWaitLock.getCount() > 0)
+            {
+                preloadLock.incCount();
+                rsrcsWaitLock.runWhenCountIs0(new Runnable()
+                {
+                    public void run()
+                    {
+                        preloadLock.decCount();
+                    }
+                });
+            }
+            return;
+        }
+
+        // Style-sheets and refreshes are not returned to browsers, so they wait for all the loads:
+        long deadline = 0;
+        if (configData.assemblyDeadline > 0 && !context.isCss && context.request != null &&
+                !context.isRefresh && context.refreshRsrc == null)
+            deadline = (context.assemblyDeadlineTime > 0 ?
+                                context.assemblyDeadlineTime : System.currentTimeMillis() + configData.assemblyDeadline);
+
+        int lateCount = 0;
+
         // Loading missing resources:
         if (rsrcsLoadLock.getCount() > 0)
         {
             loadMissingRsrcs(context, rsrcsToLoad, isHttps, protocol, rsrcsLoadLock);
 
             // Waiting for load to finish:
+            boolean isLoaded = true;
             try
             {
                 if (configData.isDebug)
                     System.out.println("Start waiting for rsrcLoadLock, " + url);
 
-                rsrcsLoadLock.waitUntilCountIs0();
+                if (deadline > 0)
+                    isLoaded = rsrcsLoadLock.waitUntilCountIs0(Math.max(1, deadline - System.currentTimeMillis()));
+                else
+                    rsrcsLoadLock.waitUntilCountIs0();
 
                 if (configData.isDebug)
-                    System.out.println("End waiting for rsrcLoadLock, " + url);
+                    System.out.println("End waiting for rsrcLoadLock, " + url + (isLoaded ? "" : " (deadline)"));
             }
             catch (InterruptedException e)
             {
             }
 
-            // Preparing replacers of loaded resources before insertion into cache-structure:
-            for (RsrcIfc r : rsrcsToLoad)
+            if (isLoaded)
             {
-                if (!(r instanceof TempRsrc))
-                    continue;
-
-                TempRsrc tr = (TempRsrc)r;
-
-                if (tr.exchange == null)
-                    continue; // Loader already handled end-of-load.
-
-                if (tr.exchange.getResponseStatus() == 200 &&
-                        CacheUtils.isStateFull(tr.url, tr.exchange, false /*isHtml*/, configData))
+                completeLoads(context, rsrcsToLoad, requestRemoteAddr);
+            }
+            else
+            {
+                // Separating the late loads (decided once, a late load may end meanwhile):
+                TempRsrc[] loadedRsrcs = new TempRsrc[rsrcsToLoad.length];
+                final TempRsrc[] lateRsrcs = new TempRsrc[rsrcsToLoad.length];
+                int loadedCount = 0;
+                for (TempRsrc tr : rsrcsToLoad)
                 {
-                    tr.isStateFull = true;
-                    continue;
+                    if (tr == null)
+                        break;
+                    HtmlSpeedHttpExchange exchange = tr.exchange;
+                    if (exchange == null || exchange.isLoaded())
+                        loadedRsrcs[loadedCount++] = tr;
+                    else
+                        lateRsrcs[lateCount++] = tr;
                 }
 
-                if (_isWithIframe &&  !context.isRouter && tr.exchange.getResponseStatus() == 200 &&
-                        tr.replacer instanceof JsRsrc && !context.isIE8 &&
-                        configData.isContentFirst(tr.url, false /* wildcardsAllowed */))
-                    tr.exchange.handleLocationUpdates();
-
-                if (tr.exchange.isCommFailure())
-                    reportUnhealthyContentServer(tr.exchange.getContentServerAddress());
-
-                if (tr.isBeingRefreshed && tr.exchange.getResponseStatus() == 304)
-                {
-                    long maxAge = CacheUtils.maxAgeOf(tr.exchange, !tr.isStateFull, configData);
-                    endRefreshAndNotifyWaiters(tr.exchange, tr, null, maxAge, configData);
-                    tr.exchange = null;
-                    if (configData.isDebug)
-                        System.out.println("URL: " + tr.url + " from ip: " + requestRemoteAddr + " (refreshed)");
-                }
-                else if (tr.exchange.getResponseStatus() == 200 && tr.exchange.getUngzipedResponseContent() != null)
+                // The page is built without the late rsrcs:
+                HashSet<TempRsrc> lates = new HashSet<TempRsrc>(Arrays.asList(lateRsrcs).subList(0, lateCount));
+                RsrcIfc[] allRsrcs = context.allRsrcs;
+                for (int a = 0 ; a < allRsrcs.length ; a++)
                 {
-                    // Load succeeded:
-                    tr.replacer.host = tr.host;
-                    tr.replacer.variant = CacheUtils.NON_PAGE_VARIANT;
-                    tr.replacer.url = tr.url;
-                    tr.replacer.origData = tr.exchange.getUngzipedResponseContent();
-                    tr.replacer.httpHeaders = tr.exchange.getResponseHeaders();
-                    if (tr.exchange.isGziped())
-                    {
-                        tr.replacer.origGzip = tr.exchange.getResponseContent();
-                        tr.replacer.origGzipEncoding = "gzip";
-                    }
-                    else if (tr.exchange.isDeflated())
-                    {
-                        tr.replacer.origGzip = tr.exchange.getResponseContent();
-                        tr.replacer.origGzipEncoding = "deflate";
-                    }
-                    else if (tr.replacer instanceof JsRsrc || tr.replacer instanceof CssRsrc)
-                    {
-                        if (!tr.exchange.isGziped() && !tr.exchange.isDeflated() &&
-                                tr.exchange.getUngzipedResponseContent().length >= MIN_GZIP_LEN)
-                        {
-                            tr.replacer.origGzip = toGzip(tr.replacer.origData);
-                            tr.replacer.origGzipEncoding = "gzip";
-                        }                                             
-                    }
-
-                    if (tr.replacer instanceof ImageRsrc)
-                    {
-                        ImageRsrc ir = (ImageRsrc)tr.replacer;
-                        String mime = new ImageAnalyzer(ir.origData).getMime();
-                        if (mime != null)
-                        {
-                            tr.replacer.versionUrl =
-                                    CacheUtils.versionUrlOf(
-                                                        context.host, tr.url,
-                                                        CacheUtils.NON_PAGE_VARIANT, ir.origData, tr.exchange, configData);
-                            if (configData.jpegMin >= 0 && ir.origData.length >= configData.jpegMin && mime.endsWith("jpeg"))
-                            {
-                                ir.origData = ImageUtils.optimizedJpeg(ir.origData, configData);
-                                ir.isOptimized = true;
-                            }
-                            ir.base64Data = ("data:" + mime + ";base64," +
-                                                ImageUtils.encode(ir.origData)).getBytes();
-                        }
-                    }
-                    else if (tr.replacer instanceof JsRsrc)
-                    {
-                        tr.replacer.versionUrl =
-                                CacheUtils.versionUrlOf(
-                                                    context.host, tr.url,
-                                                    CacheUtils.NON_PAGE_VARIANT, tr.replacer.origData, tr.exchange, configData);
-                        JsRsrc jsRsrc = (JsRsrc)tr.replacer;
-                        jsRsrc.isInIEComment = tr.isInIEComment;
-                        jsRsrc.checkInlinable(configData);
-                    }
-                    else if (tr.replacer instanceof CssRsrc)
-                    {
-                        CssRsrc cssRsrc = (CssRsrc)tr.replacer;
-                        cssRsrc.isInIEComment = tr.isInIEComment;
-                        cssRsrc.url = tr.url;
-                        cssRsrc.checkInlinable(configData);
-                    }
-
-                    long maxAge = CacheUtils.maxAgeOf(tr.exchange, !tr.isStateFull, configData);
-                    tr.replacer.lastRefreshTime = System.currentTimeMillis();
-                    tr.replacer.maxFreshTime = tr.replacer.lastRefreshTime + maxAge*1000;
-                    tr.replacer.origEtag =
-                            (tr.exchange.getEtagIndex() >= 0 ?
-                                tr.exchange.getResponseHeaders()[
-                                                    tr.exchange.getEtagIndex() + 1] :
-                                null);
-                    tr.replacer.origLastModified =
-                            (tr.exchange.getLastModifiedIndex() >= 0 ?
-                                tr.exchange.getResponseHeaders()[
-                                                    tr.exchange.getLastModifiedIndex() + 1] :
-                                null);
-                    tr.replacer.origMd5 = CacheUtils.md5Of(tr.replacer.origData);
-                    if (tr.replacer.versionUrl != null)
-                        tr.replacer.versionUrlBytes = tr.replacer.versionUrl.getBytes();
-
+                    if (allRsrcs[a] instanceof TempRsrc && lates.contains(allRsrcs[a]))
+                        allRsrcs[a] = lateRsrcOf((TempRsrc)allRsrcs[a], true /* isOwnLoad */);
                 }
-            }
 
-            // Replacing TempRsrc instances in cache-structure by replacers:
-            synchronized (cache.globalLock)
-            {
-                for (RsrcIfc r : rsrcsToLoad)
+                Metrics.LATE_RSRCS.add(lateCount);
+                rsrcsLoadLock.runWhenCountIs0(new Runnable()
                 {
-                    if (!(r instanceof TempRsrc))
-                        continue;
-
-                    TempRsrc tr = (TempRsrc)r;
-
-                    if (tr.exchange != null &&
-                            !tr.isStateFull &&
-                            tr.exchange.getResponseStatus() == 200 &&
-                            tr.exchange.getUngzipedResponseContent() != null)
-                    {
-                        // Load succeeded:
-                        putInCache(tr.replacer.variant, tr.replacer.url, tr.replacer, configData);
-                        if (tr.replacer.versionUrl != null)
-                            putInCache(tr.replacer.variant, tr.replacer.versionUrl, tr.replacer, configData);
-                        tr.replacer.isBeingLoaded = false;
-
-                        if (tr.isBeingRefreshed && configData.isDebug)
-                            System.out.println("URL: " + tr.url + " from ip: " + requestRemoteAddr+ " (refreshed - modified)");
-                    }
-                    else
+                    public void run()
                     {
-                        if (tr.isBeingRefreshed)
+                        _lateLoadsCompleter.execute(new Runnable()
                         {
-                            // Rollback and postpone the refresh of rsrc by 1 minute:
-                            synchronized (cache.globalLock)
+                            public void run()
                             {
-                                tr.isBeingRefreshed = false;
-                                Rsrc rsrc = tr.replacer;
-                                rsrc.isBeingLoaded = false;
-                                rsrc.lastRefreshTime = System.currentTimeMillis();
-                                rsrc.maxFreshTime = rsrc.lastRefreshTime + 60*1000;
-                                putInCache(CacheUtils.NON_PAGE_VARIANT, tr.url, rsrc, configData);
+                                try
+                                {
+                                    completeLoads(context, lateRsrcs, requestRemoteAddr);
+                                }
+                                catch (Exception e)
+                                {
+                                    System.out.println("SERVER: failed completing late loads of: " + context.url + ", " + e);
+                                }
                             }
-                        }
-                        else
-                        {
-                            removeFromCache(CacheUtils.NON_PAGE_VARIANT, tr.url, configData);
-
-                            if (tr.replacer.versionUrl != null)
-                                removeFromCache(CacheUtils.NON_PAGE_VARIANT, tr.replacer.versionUrl, configData);
-
-                            if (tr.isStateFull)
-                                cache.addStateFull(tr.url);
-                        }
-                    }
-
-                    if (tr.waiters != null)
-                    {
-                        for (LoadLock w : tr.waiters)
-                            w.decCount(); // Notifying waiters
-                        tr.waiters = null;
+                        });
                     }
+                });
 
-                    tr.exchange = null;
-                }
+                completeLoads(context, loadedRsrcs, requestRemoteAddr);
             }
-
         }
 
         try
@@ -1802,7 +2137,11 @@ public class ServiceUtils
                 if (configData.isDebug)
                     System.out.println("Start waiting for rsrcWaitLock, " + url);
 
-                rsrcsWaitLock.waitUntilCountIs0();
+                if (deadline > 0 &&
+                        !rsrcsWaitLock.waitUntilCountIs0(Math.max(1, deadline - System.currentTimeMillis())))
+                    lateCount += detachLateWaits(context, rsrcsWaitLock);
+                else if (deadline == 0)
+                    rsrcsWaitLock.waitUntilCountIs0();
 
                 if (configData.isDebug)
                     System.out.println("End waiting for rsrcWaitLock, " + url);
@@ -1812,86 +2151,358 @@ public class ServiceUtils
         {
         }
 
+        if (lateCount > 0)
+        {
+            if (!context.isAssemblyLate)
+                Metrics.LATE_PAGES.increment();
+            context.isAssemblyLate = true;
+            if (configData.isDebug)
+                System.out.println("Assembled page without " + lateCount + " late resources, " + url);
+        }
     }
 
     /**
-     * Optimizing stylesheet used by current html page by inlining images
+     * Replaces in context.allRsrcs the rsrcs loaded by other services that are still
+     * being loaded by the assembly deadline (the other services complete them).
      *
-     * @param context service-context
-     * @throws IOException
+     * @param context http-service context
+     * @param rsrcsWaitLock used for waiting for end of loads initiated by other threads
+     * @return number of replaced rsrcs
      */
-    public static void optimizeStylesheets(ServiceContext context) throws IOException
+    private static int detachLateWaits(ServiceContext context, LoadLock rsrcsWaitLock)
     {
-        int[] info = context.info;
+        CacheStructure cache = context.cache;
         RsrcIfc[] allRsrcs = context.allRsrcs;
-        ConfigData configData = context.configData;
-
-        int iAll = 0;
-        int i = 0;
-        while (i < info.length)
+        int lateCount = 0;
+        for (int a = 0 ; a < allRsrcs.length ; a++)
         {
-            if (info[i] == HtmlAnalyzer.EOF_KIND)
-                break;
+            if (!(allRsrcs[a] instanceof TempRsrc))
+                continue;
 
-            if (info[i] == HtmlAnalyzer.LINK_KIND && allRsrcs[iAll] instanceof CssRsrc)
+            TempRsrc tr = (TempRsrc)allRsrcs[a];
+            synchronized (cache.lockOf(tr.url))
             {
-                CssRsrc cssRsrc = (CssRsrc)allRsrcs[iAll];
-
-                // Loading images referenced by stylesheet:
-                if (!cssRsrc.isOptimized)
+                if (tr.waiters != null && tr.waiters.contains(rsrcsWaitLock))
                 {
-                    cssRsrc.isOptimized = true;
-                    if (configData.isDebug)
-                        System.out.println("Loading images of stylesheet: " + cssRsrc.url);
-                    ServiceContext cssContext = new ServiceContext();
-                    cssContext.client = context.client;
-                    cssContext.cache = context.cache;
-                    cssContext.isCss = true;
-                    cssContext.variant = CacheUtils.NON_PAGE_VARIANT;
-                    cssContext.isHtml = false;
-                    cssContext.isHttps = context.isHttps;
-                    cssContext.isServiceWithIframe = false;
-                    cssContext.base = context.base;
-                    cssContext.isStateFull = false;
-                    cssContext.orig = cssRsrc.origData;
-                    cssContext.host = context.host;
-                    cssContext.requestHost = context.requestHost;
-                    cssContext.configData = context.configData;
-
-                    HtmlAnalyzer cssAnalyzer = new HtmlAnalyzer();
-                    int[] cssInfo = cssAnalyzer.analyze(cssContext);
-                    cssContext.info = cssInfo;
-
-                    cssContext.request = context.request;
-                    cssContext.base = cssRsrc.url;
-                    cssContext.url = cssRsrc.url;
-
-                    boolean noInline = ServiceUtils.loadMissingRsrcs(cssContext);
-                    if (noInline)
-                        cssRsrc.isInlinable = false;
-
-                    if (cssRsrc.isInlinable)
-                    {
-                        byte[] optimData = ServiceUtils.buildResponseToBrowser(cssContext, false /* isGziped */);
-                        cssRsrc.optimData = optimData;
-                        cssRsrc.optimGzip = toGzip(optimData);
-                        cssRsrc.optimGzipEncoding = "gzip";
-                    }
-                    else
-                    {
-                        byte[] optimGzip = ServiceUtils.buildResponseToBrowser(cssContext, true /* isGziped */);
-                        cssRsrc.optimGzip = optimGzip;
-                        cssRsrc.optimGzipEncoding = "gzip";
-                    }
+                    allRsrcs[a] = lateRsrcOf(tr, false /* isOwnLoad */);
+                    lateCount++;
                 }
-
-                if (!cssRsrc.isInlinable && allRsrcs[iAll] instanceof CssRsrc)
-                    allRsrcs[iAll] = null;
             }
+        }
+        return lateCount;
+    }
 
-            if (info[i] == HtmlAnalyzer.IMG_KIND ||
-                    info[i] == HtmlAnalyzer.CSS_IMG_KIND ||
-                    info[i] == HtmlAnalyzer.INPUT_KIND ||
+    /**
+     * @param tr a rsrc that is not loaded by the assembly deadline of the page
+     * @param isOwnLoad true when tr is loaded by current service
+     * @return the rsrc used by the page instead of tr: the cached rsrc when tr refreshes it
+     *          (the loader of tr does not modify it), otherwise an empty rsrc that is not
+     *          inlined (the original url, or its cdn url, is referenced by the page)
+     */
+    private static TempRsrc lateRsrcOf(TempRsrc tr, boolean isOwnLoad)
+    {
+        TempRsrc lateRsrc = new TempRsrc();
+        lateRsrc.host = tr.host;
+        lateRsrc.url = tr.url;
+        lateRsrc.cdnUrl = tr.cdnUrl;
+        lateRsrc.cdnSslUrl = tr.cdnSslUrl;
+        lateRsrc.isInIEComment = tr.isInIEComment;
+        lateRsrc.isDuplicated = tr.isDuplicated;
+        if (isOwnLoad && tr.isBeingRefreshed)
+        {
+            lateRsrc.replacer = tr.replacer;
+        }
+        else
+        {
+            try { lateRsrc.replacer = tr.replacer.getClass().getDeclaredConstructor().newInstance(); } catch (Exception e){}
+            lateRsrc.replacer.host = tr.host;
+            lateRsrc.replacer.url = tr.url;
+            lateRsrc.replacer.variant = CacheUtils.NON_PAGE_VARIANT;
+        }
+        return lateRsrc;
+    }
+
+    /**
+     * Prepares the replacers of loaded rsrcs and inserts them into the cache-structure
+     * (failed loads are removed from the cache-structure), and notifies their waiters.
+     *
+     * @param context http-service context
+     * @param loadedRsrcs the loaded resources (ends with null when shorter)
+     * @param requestRemoteAddr client invoking http-request
+     * @throws IOException
+     */
+    private static void completeLoads(ServiceContext context, TempRsrc[] loadedRsrcs, String requestRemoteAddr)
+                                                                                            throws IOException
+    {
+        CacheStructure cache = context.cache;
+        ConfigData configData = context.configData;
+
+        // Preparing replacers of loaded resources before insertion into cache-structure:
+        for (RsrcIfc r : loadedRsrcs)
+        {
+            if (!(r instanceof TempRsrc))
+                continue;
+
+            TempRsrc tr = (TempRsrc)r;
+
+            if (tr.exchange == null)
+                continue; // Loader already handled end-of-load.
+
+            if (tr.exchange.getResponseStatus() == 200 &&
+                    CacheUtils.isStateFull(tr.url, tr.exchange, false /*isHtml*/, configData))
+            {
+                tr.isStateFull = true;
+                continue;
+            }
+
+            if (_isWithIframe &&  !context.isRouter && tr.exchange.getResponseStatus() == 200 &&
+                    tr.replacer instanceof JsRsrc && !context.isIE8 &&
+                    configData.isContentFirst(tr.url, false /* wildcardsAllowed */))
+                tr.exchange.handleLocationUpdates();
+
+            if (tr.exchange.isCommFailure())
+                reportUnhealthyContentServer(tr.exchange.getContentServerAddress());
+
+            if (tr.isBeingRefreshed && tr.exchange.getResponseStatus() == 304)
+            {
+                long maxAge = CacheUtils.maxAgeOf(tr.exchange, !tr.isStateFull, configData);
+                endRefreshAndNotifyWaiters(tr.exchange, tr, null, maxAge, configData);
+                tr.exchange = null;
+                if (configData.isDebug)
+                    System.out.println("URL: " + tr.url + " from ip: " + requestRemoteAddr + " (refreshed)");
+            }
+            else if (tr.exchange.getResponseStatus() == 200 && tr.exchange.getUngzipedResponseContent() != null)
+            {
+                // Load succeeded:
+                if (tr.isBeingRefreshed)
+                {
+                    // Cached rsrc instances are never modified, the modified rsrc replaces it:
+                    Rsrc refreshed = tr.replacer;
+                    try { tr.replacer = refreshed.getClass().getDeclaredConstructor().newInstance(); } catch (Exception e){}
+                    tr.replacer.isBeingLoaded = true;
+                    cache.rsrcsList.remove(refreshed);
+                }
+                tr.replacer.host = tr.host;
+                tr.replacer.variant = CacheUtils.NON_PAGE_VARIANT;
+                tr.replacer.url = tr.url;
+                tr.replacer.origData = tr.exchange.getUngzipedResponseContent();
+                tr.replacer.httpHeaders = tr.exchange.getResponseHeaders();
+                if (tr.exchange.isGziped())
+                {
+                    tr.replacer.origGzip = tr.exchange.getResponseContent();
+                    tr.replacer.origGzipEncoding = "gzip";
+                }
+                else if (tr.exchange.isDeflated())
+                {
+                    tr.replacer.origGzip = tr.exchange.getResponseContent();
+                    tr.replacer.origGzipEncoding = "deflate";
+                }
+                else if (tr.replacer instanceof JsRsrc || tr.replacer instanceof CssRsrc)
+                {
+                    if (!tr.exchange.isGziped() && !tr.exchange.isDeflated() &&
+                            tr.exchange.getUngzipedResponseContent().length >= MIN_GZIP_LEN)
+                    {
+                        tr.replacer.origGzip = toGzip(tr.replacer.origData,
+                                                        tr.replacer instanceof JsRsrc ? GzipCodec.JS : GzipCodec.CSS);
+                        tr.replacer.origGzipEncoding = "gzip";
+                    }                                             
+                }
+
+                if (tr.replacer instanceof ImageRsrc)
+                {
+                    ImageRsrc ir = (ImageRsrc)tr.replacer;
+                    String mime = new ImageAnalyzer(ir.origData).getMime();
+                    if (mime != null)
+                    {
+                        tr.replacer.versionUrl =
+                                CacheUtils.versionUrlOf(
+                                                    context.host, tr.url,
+                                                    CacheUtils.NON_PAGE_VARIANT, ir.origData, tr.exchange, configData);
+                        if (configData.jpegMin >= 0 && ir.origData.length >= configData.jpegMin && mime.endsWith("jpeg"))
+                        {
+                            ir.origData = ImageUtils.optimizedJpeg(ir.origData, configData);
+                            ir.isOptimized = true;
+                        }
+                        ir.base64Data = ("data:" + mime + ";base64," +
+                                            ImageUtils.encode(ir.origData)).getBytes();
+                    }
+                }
+                else if (tr.replacer instanceof JsRsrc)
+                {
+                    tr.replacer.versionUrl =
+                            CacheUtils.versionUrlOf(
+                                                context.host, tr.url,
+                                                CacheUtils.NON_PAGE_VARIANT, tr.replacer.origData, tr.exchange, configData);
+                    JsRsrc jsRsrc = (JsRsrc)tr.replacer;
+                    jsRsrc.isInIEComment = tr.isInIEComment;
+                    jsRsrc.checkInlinable(configData);
+                }
+                else if (tr.replacer instanceof CssRsrc)
+                {
+                    CssRsrc cssRsrc = (CssRsrc)tr.replacer;
+                    cssRsrc.isInIEComment = tr.isInIEComment;
+                    cssRsrc.url = tr.url;
+                    cssRsrc.checkInlinable(configData);
+                }
+
+                long maxAge = CacheUtils.maxAgeOf(tr.exchange, !tr.isStateFull, configData);
+                tr.replacer.lastRefreshTime = System.currentTimeMillis();
+                tr.replacer.maxFreshTime = tr.replacer.lastRefreshTime + maxAge*1000;
+                tr.replacer.origEtag =
+                        (tr.exchange.getEtagIndex() >= 0 ?
+                            tr.exchange.getResponseHeaders()[
+                                                tr.exchange.getEtagIndex() + 1] :
+                            null);
+                tr.replacer.origLastModified =
+                        (tr.exchange.getLastModifiedIndex() >= 0 ?
+                            tr.exchange.getResponseHeaders()[
+                                                tr.exchange.getLastModifiedIndex() + 1] :
+                            null);
+                tr.replacer.origMd5 = CacheUtils.md5Of(tr.replacer.origData);
+                if (tr.replacer.versionUrl != null)
+                    tr.replacer.versionUrlBytes = tr.replacer.versionUrl.getBytes();
+
+            }
+        }
+
+        // Replacing TempRsrc instances in cache-structure by replacers:
+        for (RsrcIfc r : loadedRsrcs)
+        {
+            if (!(r instanceof TempRsrc))
+                continue;
+
+            TempRsrc tr = (TempRsrc)r;
+
+            synchronized (cache.lockOf(tr.url))
+            {
+                if (tr.exchange != null &&
+                        !tr.isStateFull &&
+                        tr.exchange.getResponseStatus() == 200 &&
+                        tr.exchange.getUngzipedResponseContent() != null)
+                {
+                    // Load succeeded:
+                    putInCache(tr.replacer.variant, tr.replacer.url, tr.replacer, configData);
+                    if (tr.replacer.versionUrl != null)
+                        putInCache(tr.replacer.variant, tr.replacer.versionUrl, tr.replacer, configData);
+                    tr.replacer.isBeingLoaded = false;
+
+                    if (tr.isBeingRefreshed && configData.isDebug)
+                        System.out.println("URL: " + tr.url + " from ip: " + requestRemoteAddr+ " (refreshed - modified)");
+                }
+                else
+                {
+                    if (tr.isBeingRefreshed)
+                    {
+                        // Rollback and postpone the refresh of rsrc by 1 minute:
+                        tr.isBeingRefreshed = false;
+                        Rsrc rsrc = tr.replacer;
+                        rsrc.isBeingLoaded = false;
+                        rsrc.lastRefreshTime = System.currentTimeMillis();
+                        rsrc.maxFreshTime = rsrc.lastRefreshTime + 60*1000;
+                        putInCache(CacheUtils.NON_PAGE_VARIANT, tr.url, rsrc, configData);
+                    }
+                    else
+                    {
+                        removeFromCache(CacheUtils.NON_PAGE_VARIANT, tr.url, configData);
+
+                        if (tr.replacer.versionUrl != null)
+                            removeFromCache(CacheUtils.NON_PAGE_VARIANT, tr.replacer.versionUrl, configData);
+
+                        if (tr.isStateFull)
+                            cache.addStateFull(tr.url);
+                    }
+                }
+
+                if (tr.waiters != null)
+                {
+                    for (LoadLock w : tr.waiters)
+                        w.decCount(); // Notifying waiters
+                    tr.waiters = null;
+                }
+
+                tr.exchange = null;
+            }
+        }
+    }
+
+    /**
+     * Optimizing stylesheet used by current html page by inlining images
+     *
+     * @param context service-context
+     * @throws IOException
+     */
+    public static void optimizeStylesheets(ServiceContext context) throws IOException
+    {
+        int[] info = context.info;
+        RsrcIfc[] allRsrcs = context.allRsrcs;
+        ConfigData configData = context.configData;
+
+        int iAll = 0;
+        int i = 0;
+        while (i < info.length)
+        {
+            if (info[i] == HtmlAnalyzer.EOF_KIND)
+                break;
+
+            if (info[i] == HtmlAnalyzer.LINK_KIND && allRsrcs[iAll] instanceof CssRsrc)
+            {
+                CssRsrc cssRsrc = (CssRsrc)allRsrcs[iAll];
+
+                // Loading images referenced by stylesheet:
+                if (!cssRsrc.isOptimized)
+                {
+                    cssRsrc.isOptimized = true;
+                    if (configData.isDebug)
+                        System.out.println("Loading images of stylesheet: " + cssRsrc.url);
+                    ServiceContext cssContext = new ServiceContext();
+                    cssContext.client = context.client;
+                    cssContext.cache = context.cache;
+                    cssContext.isCss = true;
+                    cssContext.variant = CacheUtils.NON_PAGE_VARIANT;
+                    cssContext.isHtml = false;
+                    cssContext.isHttps = context.isHttps;
+                    cssContext.isServiceWithIframe = false;
+                    cssContext.base = context.base;
+                    cssContext.isStateFull = false;
+                    cssContext.orig = cssRsrc.origData;
+                    cssContext.host = context.host;
+                    cssContext.requestHost = context.requestHost;
+                    cssContext.configData = context.configData;
+
+                    HtmlAnalyzer cssAnalyzer = new HtmlAnalyzer();
+                    int[] cssInfo = cssAnalyzer.analyze(cssContext);
+                    cssContext.info = cssInfo;
+
+                    cssContext.request = context.request;
+                    cssContext.base = cssRsrc.url;
+                    cssContext.url = cssRsrc.url;
+
+                    boolean noInline = ServiceUtils.loadMissingRsrcs(cssContext);
+                    if (noInline)
+                        cssRsrc.isInlinable = false;
+
+                    if (cssRsrc.isInlinable)
+                    {
+                        byte[] optimData = ServiceUtils.buildResponseToBrowser(cssContext, false /* isGziped */);
+                        cssRsrc.optimData = optimData;
+                        cssRsrc.optimGzip = toGzip(optimData, GzipCodec.CSS);
+                        cssRsrc.optimGzipEncoding = "gzip";
+                    }
+                    else
+                    {
+                        byte[] optimGzip = ServiceUtils.buildResponseToBrowser(cssContext, true /* isGziped */);
+                        cssRsrc.optimGzip = optimGzip;
+                        cssRsrc.optimGzipEncoding = "gzip";
+                    }
+                }
+
+                if (!cssRsrc.isInlinable && allRsrcs[iAll] instanceof CssRsrc)
+                    allRsrcs[iAll] = null;
+            }
+
+            if (info[i] == HtmlAnalyzer.IMG_KIND ||
+                    info[i] == HtmlAnalyzer.CSS_IMG_KIND ||
+                    info[i] == HtmlAnalyzer.INPUT_KIND ||
                     info[i] == HtmlAnalyzer.SCRIPT_KIND ||
                     info[i] == HtmlAnalyzer.LINK_KIND)
                 iAll++;
@@ -1902,17 +2513,12 @@ public class ServiceUtils
 
     /**
      * @param bytes src array of byte
+     * @param type content type of bytes (GzipCodec.HTML, CSS, JS or OTHER)
      * @return bytes converted to gzip
-     * @throws IOException
      */
-    public static byte[] toGzip(byte[] bytes) throws IOException
+    public static byte[] toGzip(byte[] bytes, int type)
     {
-        ByteArrayOutputStream oByteArr = new ByteArrayOutputStream(bytes.length*3/4);
-        OutputStream oGzip = new GZIPOutputStream(oByteArr);
-        oGzip.write(bytes);
-        oGzip.close();
-        byte[] out = oByteArr.toByteArray();
-        return out;
+        return GzipCodec.gzip(bytes, type);
     }
 
     /**
@@ -1922,19 +2528,7 @@ public class ServiceUtils
      */
     public static byte[] toUngzip(byte[] bytes) throws IOException
     {
-        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-        GZIPInputStream is = new GZIPInputStream(bais);
-        byte[] buff = new byte[16*10240];
-        ByteArrayOutputStream os = new ByteArrayOutputStream(bytes.length * 2);
-        int n;
-        while ((n = is.read(buff)) >= 0)
-        {
-            os.write(buff, 0, n);
-        }
-        byte[] out = os.toByteArray();
-        is.close();
-        os.close();
-        return out;
+        return GzipCodec.ungzip(bytes);
     }
 
     /**
@@ -1945,6 +2539,49 @@ public class ServiceUtils
      * @return response gziped content to be returned to browser
      */
     public static byte[] buildResponseToBrowser(ServiceContext context, boolean isGziped) throws IOException
+    {
+        byte[] orig = context.orig;
+        long startTime = System.nanoTime();
+
+        if (!isGziped)
+        {
+            ByteArrayOutputStream oByteArr = new ByteArrayOutputStream(orig.length*5/4);
+            int iOrig = writeResponseToBrowser(context, oByteArr, 0);
+            if (iOrig < orig.length)
+                oByteArr.write(orig, iOrig, orig.length - iOrig);
+            byte[] content = oByteArr.toByteArray();
+            context.ungzipedResponseLen = content.length;
+            Metrics.BUILD_TIME.record((System.nanoTime() - startTime) / 1000);
+            return content;
+        }
+
+        GzipCodec.Encoder oGzip = new GzipCodec.Encoder(context.isCss ? GzipCodec.CSS : GzipCodec.HTML, orig.length);
+        try
+        {
+            int iOrig = writeResponseToBrowser(context, oGzip, 0);
+            if (iOrig < orig.length)
+                oGzip.write(orig, iOrig, orig.length - iOrig);
+            byte[] gzipedContent = oGzip.finish();
+            context.ungzipedResponseLen = oGzip.getUngzipedLen();
+            Metrics.BUILD_TIME.record((System.nanoTime() - startTime) / 1000);
+            return gzipedContent;
+        }
+        finally
+        {
+            oGzip.close();
+        }
+    }
+
+    /**
+     * Writes the optimized context.orig[iOrig ..] to out, up to the end of the last
+     * element of context.info (the rest of context.orig is not written).
+     *
+     * @param context service-context
+     * @param out the optimized response is written to it
+     * @param iOrig offset in context.orig of first written byte
+     * @return offset in context.orig of first byte that is not written
+     */
+    public static int writeResponseToBrowser(ServiceContext context, OutputStream out, int iOrig) throws IOException
     {
         byte[] orig = context.orig;
         RsrcIfc[] allRsrcs = context.allRsrcs;
@@ -1959,9 +2596,7 @@ public class ServiceUtils
 
         // Inlining resources:
         int iAll = 0;
-        ByteArrayOutputStream oByteArr = new ByteArrayOutputStream(orig.length*3/4);
-        OutputStream oGzip = (isGziped ? new OurGZIPOutputStream(oByteArr) : oByteArr);
-        int iOrig = 0;
+        OutputStream oGzip = out;
         int i = 0;
         while (i < info.length)
         {
@@ -1996,8 +2631,7 @@ public class ServiceUtils
                 int srcLast = info[i + HtmlAnalyzer.IMG_SRC_LAST];
                 oGzip.write(orig, iOrig, srcFirst - iOrig);
                 ImageRsrc imgRsrc = (ImageRsrc)allRsrcs[iAll];
-                byte[] imgBytes = imgRsrc.base64Data;
-                oGzip.write(imgBytes, 0, imgBytes.length);
+                writeInlined(oGzip, imgRsrc, imgRsrc.base64Data, 0, configData);
                 iOrig = srcLast;
             }
 
@@ -2032,8 +2666,7 @@ public class ServiceUtils
                 int srcLast = info[i + HtmlAnalyzer.CSS_IMG_LAST];
                 oGzip.write(orig, iOrig, srcFirst - iOrig);
                 ImageRsrc imgRsrc = (ImageRsrc)allRsrcs[iAll];
-                byte[] imgBytes = imgRsrc.base64Data;
-                oGzip.write(imgBytes, 0, imgBytes.length);
+                writeInlined(oGzip, imgRsrc, imgRsrc.base64Data, 0, configData);
                 iOrig = srcLast;
             }
 
@@ -2068,8 +2701,7 @@ public class ServiceUtils
                 int srcLast = info[i + HtmlAnalyzer.INPUT_SRC_LAST];
                 oGzip.write(orig, iOrig, srcFirst - iOrig);
                 ImageRsrc imgRsrc = (ImageRsrc)allRsrcs[iAll];
-                byte[] imgBytes = imgRsrc.base64Data;
-                oGzip.write(imgBytes, 0, imgBytes.length);
+                writeInlined(oGzip, imgRsrc, imgRsrc.base64Data, 0, configData);
                 iOrig = srcLast;
             }
 
@@ -2296,7 +2928,7 @@ public class ServiceUtils
                     while (offset < 3 && jsBytes[offset] < 0)
                         offset++; // First 3 bytes in UTF8 are EF BB BF (EF FF for Big-endian UTF16, and FF FE for little endian UTF16)
                 }
-                oGzip.write(jsBytes, offset, jsBytes.length - offset);
+                writeInlined(oGzip, jsRsrc, jsBytes, offset, configData);
                 if (isServiceWithIframe  && isRealyJs(orig, info, i))
                 {
                     oGzip.write('\n');
@@ -2527,7 +3159,7 @@ public class ServiceUtils
                     while (offset < 3 && optimBytes[offset] < 0)
                         offset++; // First 3 bytes in UTF8 are EF BB BF (EF FF for Big-endian UTF16, and FF FE for little endian UTF16)
                 }
-                oGzip.write(optimBytes, offset, optimBytes.length - offset);
+                writeInlined(oGzip, cssRsrc, optimBytes, offset, configData);
                 oGzip.write(STYLE_END_BYTES, 0, STYLE_END_BYTES.length);
                 iOrig = linkLast;
             }
@@ -2572,18 +3204,149 @@ public class ServiceUtils
 
             i += HtmlAnalyzer.INFO_LENS[info[i]];
         }
-        if (iOrig < orig.length)
-            oGzip.write(orig, iOrig, orig.length - iOrig);
-        oGzip.close();
 
-        byte[] gzipedContent = oByteArr.toByteArray();
+        return iOrig;
+    }
+
+    /**
+     * Writes the inlined form of a resource to the response. When the response is gziped
+     * by GzipCodec.Encoder, the deflated inlined form is spliced into the response (property
+     * gzip.splicing), so inlined resources are compressed once instead of once per page.
+     *
+     * @param out the optimized response is written to it
+     * @param rsrc the inlined resource
+     * @param bytes the inlined form of rsrc
+     * @param offset offset in bytes of the first inlined byte
+     * @param configData used configuration
+     */
+    private static void writeInlined(OutputStream out, Rsrc rsrc, byte[] bytes, int offset, ConfigData configData)
+                                                                                        throws IOException
+    {
+        int len = bytes.length - offset;
+        if (!(out instanceof GzipCodec.Encoder) || !GzipCodec.isSplicing() || len < GzipCodec.MIN_SPLICED_LEN)
+        {
+            out.write(bytes, offset, len);
+            return;
+        }
+
+        RsrcsList rsrcsList = configData.cache.rsrcsList;
+        if (rsrc.deflatedFragment == null && !rsrc.isFragmentRefused && rsrcsList.contains(rsrc))
+            rsrcsList.addDeflatedFragment(rsrc, GzipCodec.deflateFragment(bytes, offset, len));
 
-        if (oGzip instanceof OurGZIPOutputStream)
-            context.ungzipedResponseLen = ((OurGZIPOutputStream)oGzip).getUnzipedContentLen();
+        // Only a kept deflated form is spliced (otherwise each page would deflate rsrc again):
+        byte[] deflated = rsrc.deflatedFragment;
+        if (deflated == null)
+            out.write(bytes, offset, len);
         else
-            context.ungzipedResponseLen = gzipedContent.length;
+            ((GzipCodec.Encoder)out).writeDeflated(bytes, offset, len, deflated);
+    }
+
+    /**
+     * Returns to the browser the start of a html-page before its resources are loaded
+     * (property early.flush): up to the end of the head start-tag and of the link tags
+     * that immediately follow it. The style-sheets of these link tags (that are not
+     * inlined) are preloaded by the browser via Link headers.
+     *
+     * The response headers (except Content-Encoding) must be set before calling this
+     * method. The rest of the page is returned by writeRestToBrowser.
+     *
+     * @param context service-context (context.info and context.base are set)
+     * @return the gziped response to browser (null when page doesn't start by a head tag)
+     */
+    public static GZIPOutputStream earlyFlush(ServiceContext context) throws IOException
+    {
+        byte[] orig = context.orig;
+        int[] info = context.info;
+        HttpServletResponse response = context.response;
+
+        int infoLen = earlyFlushInfoLenOf(info);
+        if (infoLen == 0)
+            return null;
+
+        for (int i = 0 ; i < infoLen ; i += HtmlAnalyzer.INFO_LENS[info[i]])
+        {
+            if (info[i] != HtmlAnalyzer.LINK_KIND || info[i + HtmlAnalyzer.LINK_IN_IE_COMMENT] == 1)
+                continue;
+
+            int hrefFirst = info[i + HtmlAnalyzer.LINK_HREF_FIRST];
+            int hrefLast = info[i + HtmlAnalyzer.LINK_HREF_LAST];
+            int relFirst = info[i + HtmlAnalyzer.LINK_REL_FIRST];
+            int relLast = info[i + HtmlAnalyzer.LINK_REL_LAST];
+            if (hrefFirst < 0 || hrefLast <= hrefFirst || relFirst < 0 || relLast <= relFirst)
+                continue;
+            String rel = new String(orig, relFirst, relLast - relFirst, "UTF-8");
+            String href = new String(orig, hrefFirst, hrefLast - hrefFirst, "UTF-8");
+            if (rel.equalsIgnoreCase("stylesheet") && !href.startsWith("data:"))
+                response.addHeader("Link", "<" + toValidUrl(href, context) + ">; rel=preload; as=style");
+        }
+
+        response.setHeader("Content-Encoding", "gzip");
+        GZIPOutputStream out = new GZIPOutputStream(response.getOutputStream(), 8*1024, true /*syncFlush*/);
+        out.write(orig, 0, earlyFlushLenOf(info, infoLen));
+        out.flush();
+        return out;
+    }
+
+    /**
+     * Returns to the browser the rest of a html-page whose start was returned by earlyFlush.
+     *
+     * @param context service-context (resources of context.info are loaded)
+     * @param out returned by earlyFlush
+     */
+    public static void writeRestToBrowser(ServiceContext context, GZIPOutputStream out) throws IOException
+    {
+        byte[] orig = context.orig;
+        int[] info = context.info;
+        RsrcIfc[] allRsrcs = context.allRsrcs;
+
+        int infoLen = earlyFlushInfoLenOf(info);
+        int flushedRsrcs = (infoLen - HtmlAnalyzer.HEAD_INFO_LEN) / HtmlAnalyzer.LINK_INFO_LEN; // Link tags.
+
+        // Writing the rest by the entries of info that follow the flushed entries:
+        context.info = Arrays.copyOfRange(info, infoLen, info.length);
+        context.allRsrcs = Arrays.copyOfRange(allRsrcs, flushedRsrcs, allRsrcs.length);
+        try
+        {
+            int iOrig = writeResponseToBrowser(context, out, earlyFlushLenOf(info, infoLen));
+            if (iOrig < orig.length)
+                out.write(orig, iOrig, orig.length - iOrig);
+            out.finish();
+            out.flush();
+        }
+        finally
+        {
+            context.info = info;
+            context.allRsrcs = allRsrcs;
+        }
+    }
+
+    /**
+     * @param info output from parser
+     * @return number of elements at start of info that are returned by earlyFlush
+     *          (head start-tag followed by link tags, 0 when info doesn't start by head)
+     */
+    private static int earlyFlushInfoLenOf(int[] info)
+    {
+        if (info[0] != HtmlAnalyzer.HEAD_KIND)
+            return 0;
 
-        return gzipedContent;
+        int i = HtmlAnalyzer.HEAD_INFO_LEN;
+        while (info[i] == HtmlAnalyzer.LINK_KIND)
+            i += HtmlAnalyzer.LINK_INFO_LEN;
+        return i;
+    }
+
+    /**
+     * @param info output from parser
+     * @param infoLen returned by earlyFlushInfoLenOf(info)
+     * @return number of bytes of the html-page that are returned by earlyFlush
+     */
+    private static int earlyFlushLenOf(int[] info, int infoLen)
+    {
+        if (infoLen == HtmlAnalyzer.HEAD_INFO_LEN)
+            return info[HtmlAnalyzer.HEAD_START_LAST];
+
+        return info[infoLen - HtmlAnalyzer.LINK_INFO_LEN + HtmlAnalyzer.LINK_LAST];
     }
 
     /**
@@ -2623,7 +3386,7 @@ public class ServiceUtils
             throw new IllegalArgumentException("Null or empty parts");
 
         _primeHost = parts[0];
-        _hostToHostInfo = new HashMap<String, HostInfo>();
+        HashMap<String, HostInfo> hostToHostInfo = new HashMap<String, HostInfo>();
 
         if (parts.length == 1)
         {
@@ -2631,11 +3394,11 @@ public class ServiceUtils
             hostInfo.hosts = new String[]{_primeHost};
             hostInfo.addresses = hostInfo.hosts;
             hostInfo.weights = new byte[]{1};
-            hostInfo.commFailureTimes = new long[hostInfo.addresses.length];
-            hostInfo.iAddresses = 0;
-            hostInfo.rWeights = hostInfo.weights[0];
+            hostInfo.pool = new LoadBalancer.Pool(ContentServerHealth.statesOf(_primeHost, hostInfo.addresses), hostInfo.weights);
             _hostInfos = new HostInfo[]{hostInfo};
-            _hostToHostInfo.put(_primeHost, hostInfo);
+            hostToHostInfo.put(_primeHost, hostInfo);
+            _hostToHostInfo = hostToHostInfo;
+            ContentServerHealth.retainOnly(new ArrayList<ContentServerHealth.State>(Arrays.asList(hostInfo.pool.states)));
             return;
         }
 
@@ -2682,8 +3445,8 @@ public class ServiceUtils
         groups[gIndex++] = gCount;
         gCount = 0;
 
-        _hostInfos = new HostInfo[gIndex/2];
-        int hIndex = 0; // Next index in _hostInfos.
+        HostInfo[] hostInfos = new HostInfo[gIndex/2];
+        int hIndex = 0; // Next index in hostInfos.
 
         int pIndex = 0;
         gIndex = 0;
@@ -2691,13 +3454,13 @@ public class ServiceUtils
         while (groups[gIndex] > 0)
         {
             HostInfo hostInfo = new HostInfo();
-            _hostInfos[hIndex++] = hostInfo;
+            hostInfos[hIndex++] = hostInfo;
 
             hostInfo.hosts = new String[groups[gIndex]];
             for (int h = 0 ; h < groups[gIndex] ; h++)
             {
                 hostInfo.hosts[h] = parts[pIndex++];
-                _hostToHostInfo.put(hostInfo.hosts[h], hostInfo);
+                hostToHostInfo.put(hostInfo.hosts[h], hostInfo);
             }
             gIndex++;
 
@@ -2721,37 +3484,30 @@ public class ServiceUtils
                 }
             }
 
-            hostInfo.commFailureTimes = new long[hostInfo.addresses.length];
-            hostInfo.iAddresses = 0;
-            hostInfo.rWeights = hostInfo.weights[0];
+            hostInfo.pool = new LoadBalancer.Pool(ContentServerHealth.statesOf(hostInfo.hosts[0], hostInfo.addresses), hostInfo.weights);
             gIndex++;
         }
-    }
+
+        _hostInfos = hostInfos;
+        _hostToHostInfo = hostToHostInfo;
+
+        ArrayList<ContentServerHealth.State> states = new ArrayList<ContentServerHealth.State>();
+        for (HostInfo hostInfo : hostInfos)
+            states.addAll(Arrays.asList(hostInfo.pool.states));
+        ContentServerHealth.retainOnly(states);
+    }
 
     /**
      * Reporting an unhealthy content-server.
      *
-     * The reported content server will not be accessed for a
-     * few minutes, unless all content-servers are unhealthy.
+     * The reported content server is ejected (see ContentServerHealth),
+     * unless all content-servers are unhealthy.
      *
      * @param address the address of failed content-server
      */
-    public static synchronized void reportUnhealthyContentServer(String address)
+    public static void reportUnhealthyContentServer(String address)
     {
-        for (HostInfo hostInfo : _hostInfos)
-        {
-            for (int i = 0 ; i < hostInfo.addresses.length ; i++)
-            {
-                if (hostInfo.addresses[i].equals(address))
-                {
-                    if (hostInfo.commFailureTimes[i] == 0)
-                        System.out.println("SERVER: detected unhealthy content-server: " + address);
-
-                    hostInfo.commFailureTimes[i] = System.currentTimeMillis();
-                    break;
-                }
-            }
-        }
+        ContentServerHealth.reportFailure(address);
     }
 
     /**
@@ -2807,69 +3563,74 @@ public class ServiceUtils
     }
 
     /**
-     * Spreads the load between the content-servers of host (using their weights).
-     * Unhealthy content-servers are skiped for 2 minutes.
+     * Spreads the load between the content-servers of host (by the balancer
+     * of property load.balancer, see LoadBalancer). Ejected content-servers are
+     * skiped, and resumed content-servers receive a growing part of their
+     * requests (see ContentServerHealth). Not locking (called on each request).
      *
      * @param host the domain/sub-domain of the content-servers.
+     * @param session value of the session cookie of the request (null when none)
      * @return selected content-server belonging to host (or host when external).
      */
-    private static synchronized String chooseAddresses(String host)
+    private static String chooseAddresses(String host, String session)
     {
-        long currentTime = System.currentTimeMillis();
+        HostInfo hostInfo = hostInfoOf(host);
+        if (hostInfo == null)
+            return host;
 
-        boolean notAllFailed = false; // True when exists an 'i' such that _commFailureTimes[i] == 0.
+        int i = LoadBalancer.getBalancer().choose(hostInfo.pool, session, System.currentTimeMillis());
+        return hostInfo.addresses[i];
+    }
 
-        HostInfo hostInfo = _hostToHostInfo.get(host);
+    /**
+     * @param host the domain/sub-domain of the content-servers.
+     * @param address the content-server of the original request
+     * @return another available content-server belonging to host (null when none)
+     */
+    private static String chooseOtherAddress(String host, String address)
+    {
+        HostInfo hostInfo = hostInfoOf(host);
+        if (hostInfo == null)
+            return null;
+
+        int i = LoadBalancer.chooseOther(hostInfo.pool, ContentServerHealth.stateOf(address), System.currentTimeMillis());
+        return (i >= 0 ? hostInfo.addresses[i] : null);
+    }
+
+    /**
+     * @param host the domain/sub-domain of the content-servers.
+     * @return the routing information of host (null when external)
+     */
+    private static HostInfo hostInfoOf(String host)
+    {
+        HashMap<String, HostInfo> hostToHostInfo = _hostToHostInfo;
+
+        HostInfo hostInfo = hostToHostInfo.get(host);
 
         if (hostInfo == null)
         {
             // Trying to use default mapping for sub-domains:
             int firstPeriod = host.indexOf('.');
             if (firstPeriod > 0)
-                hostInfo = _hostToHostInfo.get(host.substring(firstPeriod));
+                hostInfo = hostToHostInfo.get(host.substring(firstPeriod));
         }
 
-        if (hostInfo == null)
-        {
-            if (host.equals("localhost"))
-                hostInfo = _hostToHostInfo.get(_primeHost);
-            else
-                return host;
-        }
-
-        //
-        // Calculating notAllFailed and resuming usage of content
-        // servers that have failed more than 2 minutes ago:
-        //
-        for (int t = 0 ; t < hostInfo.commFailureTimes.length ; t++)
-        {
-            long commFailureTime = hostInfo.commFailureTimes[t];
+        if (hostInfo == null && host.equals("localhost"))
+            hostInfo = hostToHostInfo.get(_primeHost);
 
-            if (commFailureTime == 0)
-            {
-                notAllFailed = true;
-            }
-            else
-            {
-                long deltaTime = currentTime - commFailureTime;
-                if (deltaTime > 120000 ||  deltaTime < 0)
-                {
-                    System.out.println("SERVER: resuming access to content-server: " + hostInfo.addresses[t]);
-                    hostInfo.commFailureTimes[t] = 0;
-                    notAllFailed = true;
-                }
-            }
-        }
-
-        while (hostInfo.rWeights <= 0 || (notAllFailed && hostInfo.commFailureTimes[hostInfo.iAddresses] != 0))
-        {
-            if (++hostInfo.iAddresses >= hostInfo.addresses.length)
-                hostInfo.iAddresses = 0;
-            hostInfo.rWeights = hostInfo.weights[hostInfo.iAddresses];
-        }    
+        return hostInfo;
+    }
 
-        --hostInfo.rWeights;
-        return  hostInfo.addresses[hostInfo.iAddresses];
+    /**
+     * @param context service context
+     * @return value of the session cookie (property session.cookies) sent by the browser (null when none)
+     */
+    private static String sessionOf(ServiceContext context)
+    {
+        String[] sessionCookies = context.configData.sessionCookies;
+        if (sessionCookies == null || context.request == null)
+            return null;
+        return LoadBalancer.sessionOf(context.request.getHeader("Cookie"), sessionCookies);
     }
 
     /**
@@ -2901,216 +3662,755 @@ public class ServiceUtils
                                         boolean isInIEComment)
     {
         boolean isStateFull = context.isStateFull; // When requested url is state-full missing-rsrcs are loaded by back-thread.
-        boolean isRefreshRequest = context.request instanceof RefreshServletRequest;
+        boolean isRefreshRequest = context.isRefresh;
         ConfigData configData = context.configData;
 
         int rsrcHostFirst = validUrl.indexOf("//") + 2;
         int rsrcHostLast = validUrl.indexOf('/', rsrcHostFirst);
         String rsrcHost = validUrl.substring(rsrcHostFirst, rsrcHostLast);
 
-        RsrcIfc rsrc = getFromCache(CacheUtils.NON_PAGE_VARIANT, validUrl, configData);
+        CacheStructure cache = context.cache;
+        boolean isPreload = (context.preloadLock != null); // The accesses are recorded by the assembly.
+        if (!isPreload)
+            cache.recordAccess(validUrl);
 
-        boolean isFullPath = path.startsWith("http"); // Only full-path rsrcs are loaded by the back-thread.
+        String backLoadKey = configData.domain + ' ' + validUrl; // Identifies rsrc in _backLoader.
 
-        if (rsrc != null)
+        if (cache.diskStore != null)
+            getFromCache(CacheUtils.NON_PAGE_VARIANT, validUrl, configData); // Promoting from the disk-store before locking.
+
+        synchronized (cache.lockOf(validUrl))
         {
-            if (rsrc instanceof TempRsrc)
+            RsrcIfc rsrc = getFromMemory(CacheUtils.NON_PAGE_VARIANT, validUrl, configData);
+
+            boolean isFullPath = path.startsWith("http"); // Only full-path rsrcs are loaded by the back-thread.
+
+            if (rsrc != null)
             {
-                if (isStateFull && !isRefreshRequest)
-                {
-                    return null; // Not waiting for end of load of rsrc.
-                }
-                TempRsrc tmpRsrc = (TempRsrc)rsrc;
-                if (tmpRsrc.loader == null)
+                if (rsrc instanceof TempRsrc)
                 {
-                    tmpRsrc.loader = rsrcLoadLock;
-                    rsrcsToLoad[rsrcLoadLock.getCount()] = tmpRsrc;
-                    tmpRsrc.replacer = null;
-                    try { tmpRsrc.replacer = (Rsrc) replacerCls.newInstance(); } catch (Exception e){}
-                    tmpRsrc.replacer.isBeingLoaded = true;
-                    rsrcLoadLock.incCount();
-                    if (configData.isDebug)
-                        System.out.println("Reloading missing resource: " + validUrl);
+                    if (isStateFull && !isRefreshRequest)
+                    {
+                        return null; // Not waiting for end of load of rsrc.
+                    }
+                    TempRsrc tmpRsrc = (TempRsrc)rsrc;
+                    if (tmpRsrc.loader == null)
+                    {
+                        tmpRsrc.loader = rsrcLoadLock;
+                        rsrcsToLoad[rsrcLoadLock.getCount()] = tmpRsrc;
+                        tmpRsrc.replacer = null;
+                        try { tmpRsrc.replacer = (Rsrc) replacerCls.newInstance(); } catch (Exception e){}
+                        tmpRsrc.replacer.isBeingLoaded = true;
+                        rsrcLoadLock.incCount();
+                        cache.stats.recordMiss(replacerCls, CacheUtils.NON_PAGE_VARIANT);
+                        if (configData.isDebug)
+                            System.out.println("Reloading missing resource: " + validUrl);
+                    }
+                    else
+                    {
+                        if (tmpRsrc.waiters == null)
+                            tmpRsrc.waiters = new ArrayList<LoadLock>();
+                        tmpRsrc.waiters.add(rsrcWaitLock);
+                        rsrcWaitLock.incCount();
+                        if (configData.isDebug)
+                            System.out.println("Waiting for resource: " + validUrl);
+                    }
+                    return tmpRsrc;
                 }
                 else
                 {
-                    if (tmpRsrc.waiters == null)
-                        tmpRsrc.waiters = new ArrayList<LoadLock>();
-                    tmpRsrc.waiters.add(rsrcWaitLock);
-                    rsrcWaitLock.incCount();
+                    Rsrc r = (Rsrc)rsrc;
+
+                    r.lastUsageTime = currentTime;
+
+                    if (maxServerSideFreshTimeOf(r, configData) - currentTime < REFRESH_GAP_IN_MILLIS)
+                    {
+                        // Current service should refresh the rsrc:
+                        if (isStateFull && !isRefreshRequest && !isFullPath)
+                        {
+                            return null;
+                        }
+                        if (isStateFull && !isRefreshRequest && !_backLoader.markQueued(backLoadKey))
+                        {
+                            return null; // Already queued for the background loaders.
+                        }
+                        TempRsrc tmpRsrc = new TempRsrc();
+                        tmpRsrc.isBeingRefreshed = true; // Marks refresh of existing rsrc
+                        tmpRsrc.host = rsrcHost;
+                        tmpRsrc.url = r.url;
+                        if (r instanceof JsRsrc)
+                            tmpRsrc.isInIEComment = ((JsRsrc)r).isInIEComment;
+                        else if (r instanceof CssRsrc)
+                            tmpRsrc.isInIEComment = ((CssRsrc)r).isInIEComment;
+                        tmpRsrc.replacer = r;
+                        r.isBeingLoaded = true;
+                        putInCache(CacheUtils.NON_PAGE_VARIANT, r.url, tmpRsrc, configData);
+                        if (isStateFull && !isRefreshRequest)
+                        {
+                            backThreadLoadInfo.add(tmpRsrc, backLoadKey);
+                            if (configData.isDebug)
+                                System.out.println("Back-thread is refreshing cached resource: " + validUrl);
+                            return null;
+                        }
+                        else
+                        {
+                            tmpRsrc.loader = rsrcLoadLock;
+                            rsrcsToLoad[rsrcLoadLock.getCount()] = tmpRsrc;
+                            rsrcLoadLock.incCount();
+                            if (configData.isDebug)
+                                System.out.println("Refreshing cached resource: " + validUrl);
+                            return tmpRsrc;
+                        }
+                    }
+                    if (!isPreload)
+                        cache.stats.recordHit(r.getClass(), CacheUtils.NON_PAGE_VARIANT);
                     if (configData.isDebug)
-                        System.out.println("Waiting for resource: " + validUrl);
+                        System.out.println("Found cached resource: " + validUrl);
+                    return rsrc;
                 }
-                return tmpRsrc;
             }
             else
             {
-                Rsrc r = (Rsrc)rsrc;
-
-                r.lastUsageTime = currentTime;
-
-                // Forcing upper-limit on server-side max-age:
-                long maxServerSideFreshTime = r.maxFreshTime;
-                final long maxServerSideMaxAge = configData.maxServerSideMaxAge;
-                if (maxServerSideMaxAge > 0 && (r.maxFreshTime - r.lastRefreshTime) > maxServerSideMaxAge*1000)
+                if (isStateFull && !isRefreshRequest && (context.host.equals(rsrcHost) || isLicensedDomain(rsrcHost)))
+                {
+                    return null; // Rsrc will be separately loaded by browser
+                }
+                if (isStateFull && !isRefreshRequest && !_backLoader.markQueued(backLoadKey))
                 {
-                    maxServerSideFreshTime = r.lastRefreshTime + maxServerSideMaxAge*1000;
+                    return null; // Already queued for the background loaders.
                 }
+                cache.stats.recordMiss(replacerCls, CacheUtils.NON_PAGE_VARIANT);
+                TempRsrc tmpRsrc = new TempRsrc();
+                tmpRsrc.host = rsrcHost;
+                tmpRsrc.url = validUrl;
+                tmpRsrc.isInIEComment = isInIEComment;
+                try { tmpRsrc.replacer = (Rsrc) replacerCls.newInstance(); } catch (Exception e){}
+                tmpRsrc.replacer.isBeingLoaded = true;
+                tmpRsrc.replacer.variant = CacheUtils.NON_PAGE_VARIANT;
+                putInCache(CacheUtils.NON_PAGE_VARIANT, validUrl, tmpRsrc, configData);
+                if (isStateFull && !isRefreshRequest)
+                {
+                    backThreadLoadInfo.add(tmpRsrc, backLoadKey);
+                    return null;
+                }
+                else
+                {
+                    tmpRsrc.loader = rsrcLoadLock;
+                    rsrcsToLoad[rsrcLoadLock.getCount()] = tmpRsrc;
+                    rsrcLoadLock.incCount();
+                    return tmpRsrc;
+                }
+            }
+        }
+    }
 
-                if (maxServerSideFreshTime - currentTime < REFRESH_GAP_IN_MILLIS)
+    private static void loadMissingRsrcs(
+                                        ServiceContext context,
+                                        RsrcIfc[] rsrcsToLoad,
+                                        boolean isHttps,
+                                        String protocol,
+                                        LoadLock rsrcLoadLock
+                                        ) throws IOException
+    {
+        HttpClient client = context.client;
+        ConfigData configData = context.configData;
+
+        for (int i = 0 ; i < rsrcsToLoad.length ; i++)
+        {
+            RsrcIfc r = rsrcsToLoad[i];
+
+            if (r == null)
+                break;
+
+            if (!(r instanceof TempRsrc))
+                continue;
+
+            TempRsrc tempRsrc = (TempRsrc)r;
+
+            if (tempRsrc.loader != rsrcLoadLock || tempRsrc.exchange != null)
+                continue;
+
+            HtmlSpeedHttpExchange exchange = newRsrcExchange(context, tempRsrc, protocol, rsrcLoadLock, null);
+
+            // The request may be hedged when the content-server is slow (see Hedging):
+            Hedging.Race race = (Hedging.isEnabled() && !context.isOthers ? new Hedging.Race(tempRsrc, exchange) : null);
+            exchange.setRace(race);
+
+            if (configData.isDebug)
+                System.out.println("Loading missing resource: " + tempRsrc.url);
+            tempRsrc.exchange = exchange;
+            try
+            {
+                client.send(exchange);
+                if (race != null)
+                    Hedging.watch(race, new Hedger(context, tempRsrc, protocol, rsrcLoadLock, race));
+            }
+            catch (Exception exc)
+            {
+                synchronized (configData.cache.lockOf(tempRsrc.url))
                 {
-                    // Current service should refresh the rsrc:
-                    if (isStateFull && !isRefreshRequest && !isFullPath)
-                    {
-                        return null;
-                    }
-                    TempRsrc tmpRsrc = new TempRsrc();
-                    tmpRsrc.isBeingRefreshed = true; // Marks refresh of existing rsrc
-                    tmpRsrc.host = rsrcHost;
-                    tmpRsrc.url = r.url;
-                    if (r instanceof JsRsrc)
-                        tmpRsrc.isInIEComment = ((JsRsrc)r).isInIEComment;
-                    else if (r instanceof CssRsrc)
-                        tmpRsrc.isInIEComment = ((CssRsrc)r).isInIEComment;
-                    tmpRsrc.replacer = r;
-                    r.isBeingLoaded = true;
-                    putInCache(CacheUtils.NON_PAGE_VARIANT, r.url, tmpRsrc, configData);
-                    if (isStateFull && !isRefreshRequest)
-                    {
-                        tmpRsrc.loader = backThreadLoadInfo.loadLock;
-                        backThreadLoadInfo.loadLock.incCount();
-                        backThreadLoadInfo.add(tmpRsrc);
-                        if (configData.isDebug)
-                            System.out.println("Back-thread is refreshing cached resource: " + validUrl);
-                        return null;
-                    }
-                    else
+                    if (tempRsrc.waiters != null)
                     {
-                        tmpRsrc.loader = rsrcLoadLock;
-                        rsrcsToLoad[rsrcLoadLock.getCount()] = tmpRsrc;
-                        rsrcLoadLock.incCount();
-                        if (configData.isDebug)
-                            System.out.println("Refreshing cached resource: " + validUrl);
-                        return tmpRsrc;
+                        for (LoadLock w : tempRsrc.waiters)
+                            w.decCount(); // tempRsrc.origData is null so load has failed.
+                        tempRsrc.waiters = null;
                     }
                 }
-                if (configData.isDebug)
-                    System.out.println("Found cached resource: " + validUrl);
-                return rsrc;
             }
         }
+    }
+
+    /**
+     * Creates the exchange of a missing resource.
+     *
+     * @param context http-service context
+     * @param tempRsrc the loaded resource
+     * @param protocol http protocol (example HTTP/1.1)
+     * @param rsrcLoadLock decremented when the load is completed
+     * @param hedgedAddress the content-server of the hedged request when creating a hedge (otherwise null)
+     * @return the exchange (null when a hedge has no available content-server)
+     */
+    private static HtmlSpeedHttpExchange newRsrcExchange(
+                                        ServiceContext context,
+                                        TempRsrc tempRsrc,
+                                        String protocol,
+                                        LoadLock rsrcLoadLock,
+                                        String hedgedAddress
+                                        ) throws IOException
+    {
+        HtmlSpeedHttpExchange exchange = new HtmlSpeedHttpExchange(rsrcLoadLock, context);
+
+        if (!setExchangeDestParams(
+                                    context,
+                                    false /* isPost*/,
+                                    exchange,
+                                    tempRsrc.url,
+                                    tempRsrc.host,
+                                    hedgedAddress))
+            return null;
+
+        exchange.setVersion(protocol);
+        exchange.addRequestHeader("User-Agent", "Mozilla/5.0 (X11; Linux i686 on x86_64; rv:9.0.1) Gecko/20100101 Firefox/9.0.1");
+        if (tempRsrc.replacer instanceof ImageRsrc)
+            exchange.addRequestHeader("Accept", "image/png,image/*;q=0.8,*/*;q=0.5");
         else
+            exchange.addRequestHeader("Accept", "*/*");
+        exchange.addRequestHeader("Accept-Language", "en-us,en;q=0.5 ");
+        exchange.addRequestHeader("Accept-Encoding", "gzip");
+        exchange.addRequestHeader("Accept-Charset", "ISO-8859-1,utf-8;q=0.7,*;q=0.7");
+        exchange.addRequestHeader("Connection", "keep-alive");
+        exchange.addRequestHeader("Referer", context.url);
+
+        if (tempRsrc.isBeingRefreshed)
         {
-            if (isStateFull && !isRefreshRequest && (context.host.equals(rsrcHost) || isLicensedDomain(rsrcHost)))
+            Rsrc rsrc = (Rsrc)tempRsrc.replacer;
+
+            if (rsrc.origEtag != null)
+                exchange.setRequestHeader("If-None-Match", rsrc.origEtag);
+
+            if (rsrc.origLastModified != null)
+                exchange.setRequestHeader("If-Modified-Since", rsrc.origLastModified);
+        }
+
+        return exchange;
+    }
+
+    /**
+     * Sends the hedge of the request of a missing resource to another content-server
+     * (executed by Hedging when the content-server of the request is slow).
+     */
+    private static class Hedger implements Runnable
+    {
+        private final ServiceContext _context;
+        private final TempRsrc _tempRsrc;
+        private final String _protocol;
+        private final LoadLock _rsrcLoadLock;
+        private final Hedging.Race _race;
+
+        Hedger(ServiceContext context, TempRsrc tempRsrc, String protocol, LoadLock rsrcLoadLock, Hedging.Race race)
+        {
+            _context = context;
+            _tempRsrc = tempRsrc;
+            _protocol = protocol;
+            _rsrcLoadLock = rsrcLoadLock;
+            _race = race;
+        }
+
+        public void run()
+        {
+            HtmlSpeedHttpExchange hedge;
+            try
             {
-                return null; // Rsrc will be separately loaded by browser
+                hedge = newRsrcExchange(_context, _tempRsrc, _protocol, _rsrcLoadLock,
+                                        _race.getPrimary().getContentServerAddress());
             }
-            TempRsrc tmpRsrc = new TempRsrc();
-            tmpRsrc.host = rsrcHost;
-            tmpRsrc.url = validUrl;
-            tmpRsrc.isInIEComment = isInIEComment;
-            try { tmpRsrc.replacer = (Rsrc) replacerCls.newInstance(); } catch (Exception e){}
-            tmpRsrc.replacer.isBeingLoaded = true;
-            tmpRsrc.replacer.variant = CacheUtils.NON_PAGE_VARIANT;
-            putInCache(CacheUtils.NON_PAGE_VARIANT, validUrl, tmpRsrc, configData);
-            if (isStateFull && !isRefreshRequest)
+            catch (IOException exc)
             {
-                tmpRsrc.loader = backThreadLoadInfo.loadLock;
-                backThreadLoadInfo.loadLock.incCount();
-                backThreadLoadInfo.add(tmpRsrc);
-                return null;
+                return;
             }
-            else
+
+            if (hedge == null)
+                return; // No other available content-server.
+
+            hedge.setRace(_race);
+            if (!_race.startHedge(hedge))
             {
-                tmpRsrc.loader = rsrcLoadLock;
-                rsrcsToLoad[rsrcLoadLock.getCount()] = tmpRsrc;
-                rsrcLoadLock.incCount();
-                return tmpRsrc;
+                hedge.cancelLoser(); // Already completed.
+                return;
             }
+
+            if (_context.configData.isDebug)
+                System.out.println("Hedging missing resource: " + _tempRsrc.url + " to " + hedge.getContentServerAddress());
+            try
+            {
+                _context.client.send(hedge);
+            }
+            catch (Exception exc)
+            {
+                hedge.onConnectionFailed(exc); // Lost, unless the request has failed too.
+            }
+        }
+    }
+
+    /**
+     * Refreshes an auto-refreshed page (see AutoRefresher). The page is loaded from
+     * the content-server, and when it is modified its optimized variants are cached.
+     * The freshness of an unmodified page is extended. Missing resources of a state-
+     * full page are loaded (the page is not cached).
+     *
+     * There is no browser: context.request is null and the response is discarded.
+     *
+     * @param url full url of the refreshed page
+     * @param client used for invoking the content-server
+     * @throws IOException when failed
+     */
+    public static void refreshPage(String url, HttpClient client) throws IOException
+    {
+        int hostFirst = url.indexOf("//") + 2;
+        int hostLast = url.indexOf('/', hostFirst);
+        if (hostLast < 0)
+            return; // Not a full url.
+        String host = url.substring(hostFirst, hostLast);
+
+        ConfigData configData = null;
+        ConfigUtils.configLock.readLock().lock();
+        try
+        {
+            configData = ConfigUtils.getConfigData(host);
+            configData.lock.readLock().lock();
+
+            if (configData == ConfigUtils.routerConfig || !isLicensedDomain(host) ||
+                    (configData.isStateFull(url) && configData.indexOfFileSuffixes(url) < 0))
+                return; // The page is routed (not optimized).
+
+            ServiceContext context = new ServiceContext();
+            context.requestHost = host;
+            context.host = host;
+            context.url = url;
+            context.cache = configData.cache;
+            context.client = client;
+            context.response = _discardedResponse;
+            context.isRefresh = true;
+            context.isHttps = url.startsWith("https");
+            context.configData = configData;
+
+            if (configData.isDebug)
+                System.out.println("HOST: " + host + ", URL: " + url + " (refreshing)");
+
+            LoadLock loadLock = new LoadLock();
+            loadLock.setCount(1);
+            HtmlSpeedHttpExchange exchange = new HtmlSpeedHttpExchange(loadLock, context);
+            context.exchange = exchange;
+
+            // Setting If-None-Match and If-Modified-Since headers of the cached page:
+            RsrcIfc r = getFromCache(CacheUtils.FIRST_VISIT_VARIANT, url, configData);
+            PageRsrc cachedPage = (r instanceof PageRsrc ? (PageRsrc)r : null);
+            initConditionalExchange(context, exchange, url, host, true /* isPage */,
+                                    (cachedPage != null ? cachedPage.origEtag : null),
+                                    (cachedPage != null ? cachedPage.origLastModified : null));
+
+            client.send(exchange);
+
+            try
+            {
+                loadLock.waitUntilCountIs0(); // Expiry is handled by the timeout of client.
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            refreshResponse(context);
+            configData.cache.stats.recordRefresh(PageRsrc.class, CacheUtils.FIRST_VISIT_VARIANT);
         }
+        finally
+        {
+            if (configData != null)
+                configData.lock.readLock().unlock();
 
+            ConfigUtils.configLock.readLock().unlock();
+        }
     }
 
-    private static void loadMissingRsrcs(
-                                        ServiceContext context,
-                                        RsrcIfc[] rsrcsToLoad,
-                                        boolean isHttps,
-                                        String protocol,
-                                        LoadLock rsrcLoadLock
-                                        ) throws IOException
+    /**
+     * Caches the optimized variants of a modified page received by a revalidation
+     * (see RefreshAhead), as refreshPage does with the page it loads. Nothing is
+     * cached when the configuration of the domain has been reloaded meanwhile.
+     *
+     * @param context context of the revalidation (its exchange is completed)
+     * @throws IOException when failed
+     */
+    public static void refreshRevalidatedPage(ServiceContext context) throws IOException
+    {
+        String host = context.host;
+        String url = context.url;
+
+        ConfigData configData = null;
+        ConfigUtils.configLock.readLock().lock();
+        try
+        {
+            configData = ConfigUtils.getConfigData(host);
+            configData.lock.readLock().lock();
+
+            if (configData != context.configData || !isLicensedDomain(host) ||
+                    (configData.isStateFull(url) && configData.indexOfFileSuffixes(url) < 0))
+                return;
+
+            context.requestHost = host;
+            context.response = _discardedResponse;
+            context.isRefresh = true;
+            context.isHttps = url.startsWith("https");
+
+            if (configData.isDebug)
+                System.out.println("HOST: " + host + ", URL: " + url + " (refreshed ahead - modified)");
+
+            refreshResponse(context);
+        }
+        finally
+        {
+            if (configData != null)
+                configData.lock.readLock().unlock();
+
+            ConfigUtils.configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Refreshes a stale rsrc that has been returned to the browser (stale-while-
+     * revalidate, see HtmlSpeedServlet.revalidateLater). The rsrc is revalidated
+     * with the content-server, and the freshness of an unmodified rsrc is extended.
+     * A modified page is optimized and cached (see refreshResponse), and any other
+     * modified resource is removed from the cache, to be loaded by its next request.
+     *
+     * There is no browser: the conditional request is built from the cached rsrc,
+     * and the response is discarded. The caller holds the read-locks of the config.
+     *
+     * @param refreshRsrc the temp-rsrc of the refresh (allocated by findFreshCachedRsrc)
+     * @param client used for invoking the content-server
+     * @param configData configuration of the domain of the rsrc
+     * @return false when failed (the refresh should be rolled back by the caller)
+     * @throws IOException when failed
+     * @throws InterruptedException when interrupted
+     */
+    public static boolean refreshStaleRsrc(TempRsrc refreshRsrc, HttpClient client, ConfigData configData)
+                                                                    throws IOException, InterruptedException
+    {
+        Rsrc rsrc = refreshRsrc.replacer;
+        String url = refreshRsrc.url;
+        String host = refreshRsrc.host;
+        CacheStructure cache = configData.cache;
+
+        ServiceContext context = new ServiceContext();
+        context.requestHost = host;
+        context.host = host;
+        context.url = url;
+        context.cache = cache;
+        context.client = client;
+        context.response = _discardedResponse;
+        context.isRefresh = true;
+        context.isHttps = url.startsWith("https");
+        context.configData = configData;
+
+        LoadLock loadLock = new LoadLock();
+        loadLock.setCount(1);
+        HtmlSpeedHttpExchange exchange = new HtmlSpeedHttpExchange(loadLock, context);
+        context.exchange = exchange;
+        initRevalidationExchange(context, exchange, rsrc);
+
+        client.send(exchange);
+        loadLock.waitUntilCountIs0(); // Expiry is handled by the timeout of client.
+
+        int status = exchange.getResponseStatus();
+        boolean isModified = false;
+        if (status == 200)
+        {
+            byte[] orig = exchange.getUngzipedResponseContent();
+            if (rsrc instanceof PageRsrc)
+            {
+                exchange.setHtmlReplaceParams();
+                orig = exchange.replace(orig);
+            }
+            isModified = !rsrc.origMd5.equals(CacheUtils.md5Of(orig));
+        }
+        else if (status != 304)
+        {
+            if (exchange.isCommFailure())
+                reportUnhealthyContentServer(exchange.getContentServerAddress());
+            return false;
+        }
+
+        long maxAge = CacheUtils.maxAgeOf(exchange, true /* isKnownToBeStateLess*/, configData);
+
+        if (!isModified && maxAge > 0)
+        {
+            endRefreshAndNotifyWaiters(exchange, refreshRsrc, null, maxAge, configData);
+            cache.stats.recordRefresh(rsrc.getClass(), rsrc.variant);
+            if (configData.isDebug)
+                System.out.println("URL: " + url + " (revalidated - not modified)");
+            return true;
+        }
+
+        if (isModified && rsrc instanceof PageRsrc)
+        {
+            if (configData.isDebug)
+                System.out.println("HOST: " + host + ", URL: " + url + " (revalidated - modified)");
+            refreshResponse(context); // Replaces the temp-rsrc by the optimized variants.
+            cache.stats.recordRefresh(PageRsrc.class, rsrc.variant);
+        }
+
+        // Ending the refresh, a rsrc that hasn't been replaced is loaded by its next request:
+        boolean isRemoved = false;
+        synchronized (cache.lockOf(url))
+        {
+            refreshRsrc.isBeingRefreshed = false;
+            rsrc.isBeingLoaded = false;
+            if (getFromMemory(rsrc.variant, url, configData) == refreshRsrc)
+            {
+                removeFromCache(rsrc.variant, url, configData);
+                if (rsrc.versionUrl != null)
+                    removeFromCache(rsrc.variant, rsrc.versionUrl, configData);
+                isRemoved = true;
+            }
+
+            if (refreshRsrc.waiters != null)
+            {
+                for (LoadLock w : refreshRsrc.waiters)
+                    w.decCount();
+                refreshRsrc.waiters = null;
+            }
+        }
+
+        if (isRemoved && configData.isDebug)
+            System.out.println("URL: " + url + " (revalidated - modified, removed)");
+        return true;
+    }
+
+    /**
+     * Processes the response of the content-server to the refresh of a page.
+     *
+     * @param context context of the refresh (its exchange is completed)
+     * @throws IOException when failed
+     */
+    private static void refreshResponse(ServiceContext context) throws IOException
     {
-        HttpClient client = context.client;
         ConfigData configData = context.configData;
+        CacheStructure cache = context.cache;
+        HtmlSpeedHttpExchange exchange = context.exchange;
+        String url = context.url;
+
+        String[] responseHeaders = exchange.getResponseHeaders();
+        context.responseHeaders = responseHeaders;
+
+        int ct = exchange.getContentTypeIndex();
+        String contentType = (ct >= 0 ? responseHeaders[ct + 1].toLowerCase() : "");
+        boolean isHtml = contentType.length() == 0 || contentType.startsWith("text/html"); // Requested as text/html.
+        context.isHtml = isHtml;
+
+        ArrayList<String> cachedHeaders = new ArrayList<String>(responseHeaders.length);
+        context.cachedHeaders = cachedHeaders;
+
+        context.isCss = (!isHtml && contentType.startsWith("text/css"));
+        if (!isHtml)
+            context.variant = CacheUtils.NON_PAGE_VARIANT;
+
+        boolean isStateFull = CacheUtils.isStateFull(url, exchange, isHtml, configData);
+        context.isStateFull = isStateFull;
+
+        boolean isServiceWithIframe = _isWithIframe && isHtml && configData.isContentFirst(url, true /* wildcardsAllowed */);
+        context.isServiceWithIframe = isServiceWithIframe;
+
+        int status = exchange.getResponseStatus();
+        context.status = status;
+
+        if (isServiceWithIframe && status == 200)
+            exchange.handleLocationUpdates();
+
+        byte[] orig = exchange.getUngzipedResponseContent();
+
+        if (isHtml)
+        {
+            exchange.setHtmlReplaceParams();
+            orig = exchange.replace(orig);
+        }
+        context.orig = orig;
+
+        String origEtag =
+                    (exchange.getEtagIndex() >= 0 ?
+                            exchange.getResponseHeaders()[exchange.getEtagIndex() + 1] :
+                            null);
+
+        String origLastModified =
+                    (exchange.getLastModifiedIndex() >= 0 ?
+                            exchange.getResponseHeaders()[exchange.getLastModifiedIndex() + 1] :
+                            null);
+
+        String origMd5 = CacheUtils.md5Of(orig);
+
+        // Handling not modified pages:
+        synchronized (cache.lockOf(url))
+        {
+            RsrcIfc r = getFromMemory(CacheUtils.FIRST_VISIT_VARIANT, url, configData);
+            if (r instanceof PageRsrc)
+            {
+                PageRsrc page = (PageRsrc)r;
+                if (status == 304 || page.origMd5.equals(origMd5))
+                {
+                    System.out.println("URL: " + url + " (refreshed - not modified)");
+
+                    // Updating lastRefreshTime, maxAge, maxFreshTime of unmodified page:
+                    long maxAge = CacheUtils.maxAgeOf(exchange, true /* isKnownToBeStateLess*/, configData);
+                    long currentTime = System.currentTimeMillis();
+                    for (char vrnt : CacheUtils.ALL_VARIANTS)
+                    {
+                        r = getFromMemory(vrnt, url, configData);
+                        if (r instanceof PageRsrc)
+                        {
+                            page = (PageRsrc)r;
+                            page.lastRefreshTime = currentTime;
+                            page.maxAge = maxAge;
+                            page.maxFreshTime = page.lastRefreshTime + maxAge*1000;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (status != 200)
+            return;
 
-        for (int i = 0 ; i < rsrcsToLoad.length ; i++)
-        {
-            RsrcIfc r = rsrcsToLoad[i];
+        processResponseHeaders(context);
+        if (configData.isDebug)
+            System.out.println("URL: " + url + " (refreshed)");
 
-            if (r == null)
-                break;
+        // Optimizing page:
+        HtmlAnalyzer htmlAnalyzer = new HtmlAnalyzer();
+        int[] info = htmlAnalyzer.analyze(context);
+        context.info = info;
+        context.base = baseOf(htmlAnalyzer.getBase(), context);
 
-            if (!(r instanceof TempRsrc))
-                continue;
+        // Setting http Content-Type header to value of meta:
+        String metaContentType = htmlAnalyzer.getMetaContentType();
+        if (isHtml && metaContentType != null && exchange.getContentTypeIndex() < 0)
+        {
+            exchange.setResponseContentType(metaContentType);
+            cachedHeaders.add("Content-Type");
+            cachedHeaders.add(metaContentType);
+        }
+        htmlAnalyzer = null;
 
-            TempRsrc tempRsrc = (TempRsrc)r;
+        long maxAge = CacheUtils.maxAgeOf(exchange, true /* isKnownToBeStateLess*/, configData);
 
-            if (tempRsrc.loader != rsrcLoadLock || tempRsrc.exchange != null)
-                continue;
+        for (char vrnt : CacheUtils.ALL_VARIANTS)
+        {
+            context.variant = vrnt;
 
-            HtmlSpeedHttpExchange exchange = new HtmlSpeedHttpExchange(rsrcLoadLock, context);
+            loadMissingRsrcs(context);
+            optimizeStylesheets(context);
 
-            setExchangeDestParams(
-                                        context,
-                                        false /* isPost*/,
-                                        exchange,
-                                        tempRsrc.url,
-                                        tempRsrc.host);
-
-            exchange.setVersion(protocol);
-            exchange.addRequestHeader("User-Agent", "Mozilla/5.0 (X11; Linux i686 on x86_64; rv:9.0.1) Gecko/20100101 Firefox/9.0.1");
-            if (tempRsrc.replacer instanceof ImageRsrc)
-                exchange.addRequestHeader("Accept", "image/png,image/*;q=0.8,*/*;q=0.5");
+            if (isStateFull)
+                return; // No need to add to cache (and missing rsrcs already loaded).
+
+            if (CacheUtils.IE8_FIRST_PLUS_VISIT_VARIANT <= vrnt && vrnt <= CacheUtils.IE8_FORTH_VISIT_VARIANT)
+                context.isServiceWithIframe = false;
             else
-                exchange.addRequestHeader("Accept", "*/*");
-            exchange.addRequestHeader("Accept-Language", "en-us,en;q=0.5 ");
-            exchange.addRequestHeader("Accept-Encoding", "gzip");
-            exchange.addRequestHeader("Accept-Charset", "ISO-8859-1,utf-8;q=0.7,*;q=0.7");
-            exchange.addRequestHeader("Connection", "keep-alive");
-            exchange.addRequestHeader("Referer", context.url);
+                context.isServiceWithIframe = isServiceWithIframe;
 
-            if (tempRsrc.isBeingRefreshed)
-            {
-                Rsrc rsrc = (Rsrc)tempRsrc.replacer;
+            byte[] responseToBrowser = buildResponseToBrowser(context, true /*isGziped*/);
 
-                if (rsrc.origEtag != null)
-                    exchange.setRequestHeader("If-None-Match", rsrc.origEtag);
+            // Caching the new page:
+            PageRsrc rsrc = new PageRsrc();
+            rsrc.origData = orig;
+            rsrc.optimGzip = responseToBrowser;
+            rsrc.optimGzipEncoding = "gzip";
+            rsrc.host = context.host;
+            rsrc.variant = vrnt;
+            rsrc.url = url;
+            rsrc.origEtag = origEtag;
+            rsrc.origLastModified = origLastModified;
+            rsrc.origMd5 = origMd5;
 
-                if (rsrc.origLastModified != null)
-                    exchange.setRequestHeader("If-Modified-Since", rsrc.origLastModified);
-            }
+            rsrc.httpHeaders = cachedHeaders.toArray(new String[cachedHeaders.size()]);
 
-            if (configData.isDebug)
-                System.out.println("Loading missing resource: " + tempRsrc.url);
-            tempRsrc.exchange = exchange;
-            try
-            {
-                client.send(exchange);
-            }
-            catch (Exception exc)
+            rsrc.lastRefreshTime = System.currentTimeMillis();
+            rsrc.maxAge = maxAge;
+            rsrc.maxFreshTime = rsrc.lastRefreshTime + maxAge*1000;
+            synchronized (cache.lockOf(rsrc.url))
             {
-                synchronized (configData.cache.globalLock)
-                {
-                    if (tempRsrc.waiters != null)
-                    {
-                        for (LoadLock w : tempRsrc.waiters)
-                            w.decCount(); // tempRsrc.origData is null so load has failed.
-                        tempRsrc.waiters = null;
-                    }
-                }
+                putInCache(rsrc.variant, rsrc.url, rsrc, configData);
             }
         }
     }
 
+    /**
+     * Initializes an exchange revalidating a cached resource with the content-server
+     * (a conditional GET, see RefreshAhead).
+     *
+     * @param context context of the revalidation (configData, url and host)
+     * @param exchange to be initialized
+     * @param rsrc the revalidated resource
+     */
+    public static void initRevalidationExchange(ServiceContext context, HtmlSpeedHttpExchange exchange, Rsrc rsrc)
+    {
+        initConditionalExchange(context, exchange, rsrc.url, rsrc.host, rsrc instanceof PageRsrc,
+                                rsrc.origEtag, rsrc.origLastModified);
+    }
+
+    /**
+     * Initializes a GET exchange of the content-server with no browser request
+     * (revalidations and refreshes).
+     *
+     * @param context context of the exchange (configData)
+     * @param exchange to be initialized
+     * @param url full url of the requested resource
+     * @param host domain of url
+     * @param isPage true when a page is requested
+     * @param etag value of If-None-Match (null when none)
+     * @param lastModified value of If-Modified-Since (null when none)
+     */
+    private static void initConditionalExchange(
+                                            ServiceContext context,
+                                            HtmlSpeedHttpExchange exchange,
+                                            String url,
+                                            String host,
+                                            boolean isPage,
+                                            String etag,
+                                            String lastModified)
+    {
+        setExchangeDestParams(context, false /* isPost*/, exchange, url, host);
+
+        exchange.addRequestHeader("User-Agent", "Mozilla/5.0 (X11; Linux i686 on x86_64; rv:9.0.1) Gecko/20100101 Firefox/9.0.1");
+        exchange.addRequestHeader("Accept", isPage ? "text/html,*/*;q=0.8" : "*/*");
+        exchange.addRequestHeader("Accept-Language", "en-us,en;q=0.5 ");
+        exchange.addRequestHeader("Accept-Encoding", "gzip");
+        exchange.addRequestHeader("Connection", "keep-alive");
+
+        if (etag != null)
+            exchange.setRequestHeader("If-None-Match", etag);
+
+        if (lastModified != null)
+            exchange.setRequestHeader("If-Modified-Since", lastModified);
+    }
+
     /**
      * @return the prime-host (domain)
      */
@@ -3135,11 +4435,34 @@ public class ServiceUtils
                                             HtmlSpeedHttpExchange exchange,
                                             String url,
                                             String host)
+    {
+        setExchangeDestParams(context, isPost, exchange, url, host, null);
+    }
+
+    /**
+     * Initializes destination attributes of Exchange:
+     *                  schema, method, address requestURI, host
+     *
+     * @param context current http service context
+     * @param isPost true when post method should be used
+     * @param exchange to be initialzed
+     * @param url full http-url of requested resource
+     * @param host domain of http service
+     * @param hedgedAddress the content-server of the hedged request when exchange is a hedge (otherwise null)
+     * @return false when exchange is a hedge and there is no other available content-server
+     */
+    private static boolean setExchangeDestParams(
+                                            ServiceContext context,
+                                            boolean isPost,
+                                            HtmlSpeedHttpExchange exchange,
+                                            String url,
+                                            String host,
+                                            String hedgedAddress)
     {
         ConfigData configData = context.configData;
         boolean usingHttps = url.startsWith("https");
 
-        String othersAddress = (context.isOthers ? chooseAddresses(OTHERS_DOMAIN) : null);
+        String othersAddress = (context.isOthers ? chooseAddresses(OTHERS_DOMAIN, null) : null);
         if (OTHERS_DOMAIN.equals(othersAddress))
             othersAddress = null;
 
@@ -3161,7 +4484,16 @@ public class ServiceUtils
         exchange.addRequestHeader("Host", host);
         exchange.setMethod(isPost ? "POST" : "GET");
 
-        String address = (othersAddress != null ? othersAddress : chooseAddresses(host));
+        String address;
+        if (othersAddress != null)
+            address = othersAddress;
+        else if (hedgedAddress != null)
+            address = chooseOtherAddress(host, hedgedAddress);
+        else
+            address = chooseAddresses(host, sessionOf(context));
+
+        if (address == null)
+            return false;
 
         if ((!configData.isSslLocalhost) && address.contains("127.0.0.1")) // Original webserver on same machine
             usingHttps = false;
@@ -3183,6 +4515,8 @@ public class ServiceUtils
             }
         }
         exchange.setContentServerAddress(address);
+        ContentServerHealth.recordStart(address, usingHttps);
+        ConnectionPools.use(address, usingHttps);
         exchange.setAddress(Address.from(address));
 
         int indDblSlash = (url.charAt(5) == '/' ? 5 : 6);
@@ -3192,6 +4526,7 @@ public class ServiceUtils
         if (domainLast < 0)
             domainLast = url.indexOf("?", indDblSlash + 2);
         exchange.setRequestURI(url.substring(domainLast));
+        return true;
     }
 
     private final static char[] hexDigits = {
@@ -3248,6 +4583,40 @@ public class ServiceUtils
 	sb.append(hexDigits[code & 0x0f]);
     }
 
+    /**
+     * Returns the base of urls referenced by the optimized page/stylesheet (context.base).
+     *
+     * @param base value of base tag in html-page (null when missing)
+     * @param context service-context
+     * @return base with hosts mapped by configData.hostsMap (context.url when missing)
+     */
+    public static String baseOf(String base, ServiceContext context)
+    {
+        String url = context.url;
+        ConfigData configData = context.configData;
+
+        if (context.isCss)
+            base = url;
+        if (base != null && !context.isCss && configData.hostsMap != null)
+        {
+            for (Map.Entry<String, String> entry : configData.hostsMap.entrySet())
+            {
+                if (base.contains(entry.getValue()))
+                {
+                    base = base.replace(entry.getValue(), entry.getKey());
+                    break;
+                }
+            }
+        }
+        if ((context.isHtml || context.isCss) && base == null)
+        {
+            if (url.indexOf("://localhost") < 0 && url.indexOf("://fast.") < 0 &&
+                    url.indexOf(getPrimeHost()) < 0)
+                base = url;
+        }
+        return base;
+    }
+
     /**
      * @param path relative or full path of resource referenced by parsed html or css (image, js, ...)
      * @return full-url after encoding spaces and hebrew-characters using percentage notation.
@@ -3509,20 +4878,37 @@ public class ServiceUtils
     public static void putInCache(char variant, String url, RsrcIfc rsrc, ConfigData configData)
     {
         CacheStructure cache = configData.cache;
-        HashMap<String,RsrcIfc> rsrcs = cache.rsrcs;
+        ConcurrentHashMap<String,RsrcIfc> rsrcs = cache.rsrcs;
         char var = CacheUtils.NON_PAGE_VARIANT;
         if (rsrc instanceof PageRsrc ||
                 (rsrc instanceof TempRsrc && ((TempRsrc)rsrc).replacer instanceof PageRsrc))
             var = variant;
         String key = toKey(var, url);
-        RsrcIfc prev = rsrcs.get(key);
+
+        // Adding to rsrcsList before publishing (bodies may be moved off-heap):
+        RsrcIfc prev;
+        if (rsrc instanceof Rsrc && !cache.rsrcsList.add((Rsrc)rsrc))
+            prev = rsrcs.remove(key); // Rejected by the admission policy.
+        else
+            prev = rsrcs.put(key, rsrc);
+
         if (prev == rsrc)
             return;
+        if (rsrc instanceof Rsrc && rsrcs.get(key) == rsrc)
+            Encodings.encodeLater((Rsrc)rsrc, configData); // Admitted.
         if (prev instanceof Rsrc)
-            cache.rsrcsList.remove((Rsrc)prev);
-        if (rsrc instanceof Rsrc)
-            cache.rsrcsList.add((Rsrc)rsrc);
-        rsrcs.put(key, rsrc);
+        {
+            // A refreshed rsrc stays in rsrcsList (still served) while its TempRsrc is cached:
+            if (!(rsrc instanceof TempRsrc && ((TempRsrc)rsrc).replacer == prev))
+                cache.rsrcsList.remove((Rsrc)prev);
+        }
+        else if (prev instanceof TempRsrc)
+        {
+            // End of refresh: the replaced rsrc leaves rsrcsList unless cached again:
+            Rsrc replaced = ((TempRsrc)prev).replacer;
+            if (replaced != null && replaced != rsrc && ((TempRsrc)prev).isBeingRefreshed == false)
+                cache.rsrcsList.remove(replaced);
+        }
     }
 
     /**
@@ -3532,40 +4918,206 @@ public class ServiceUtils
      * @return the resource from cache.rsrcs (null when not found)
      */
     public static RsrcIfc getFromCache(char variant, String url, ConfigData configData)
+    {
+        RsrcIfc prev = getFromMemory(variant, url, configData);
+        if (prev == null && configData.cache.diskStore != null)
+        {
+            prev = promoteFromDisk(variant, url, configData);
+            if (prev instanceof Rsrc)
+                configData.cache.rsrcsList.touch((Rsrc)prev);
+        }
+        return prev;
+    }
+
+    /**
+     * Like getFromCache, but a resource missing in cache.rsrcs isn't promoted from the
+     * disk-store. Used while cache.lockOf(url) is locked (the disk is not read while
+     * holding the lock, so getFromCache is called before locking).
+     *
+     * @param variant visit variant of rsrc
+     * @param url full url of rsrc
+     * @param configData used configuration
+     * @return the resource from cache.rsrcs (null when not found)
+     */
+    public static RsrcIfc getFromMemory(char variant, String url, ConfigData configData)
     {
         CacheStructure cache = configData.cache;
         RsrcIfc prev = cache.rsrcs.get(toKey(CacheUtils.NON_PAGE_VARIANT, url)); // First try not page-rsrc (without variant)
         if (prev == null)
             prev = cache.rsrcs.get(toKey(variant, url)); // Try to find page-rsrc with variant
         if (prev instanceof Rsrc)
-            cache.rsrcsList.moveToEnd((Rsrc)prev);
+            cache.rsrcsList.touch((Rsrc)prev);
         return prev;
     }
 
     /**
-     * Removes rsrc from cache.rsrcs.
+     * Loads a resource missing in cache.rsrcs from the disk-store into cache.rsrcs.
      *
      * @param variant visit variant of rsrc
      * @param url full url of rsrc
      * @param configData used configuration
+     * @return the resource from cache.rsrcs (null when not found)
      */
-    public static void removeFromCache(char variant, String url, ConfigData configData)
+    private static RsrcIfc promoteFromDisk(char variant, String url, ConfigData configData)
     {
         CacheStructure cache = configData.cache;
-        HashMap<String,RsrcIfc> rsrcs = cache.rsrcs;
+        DiskStore diskStore = cache.diskStore;
+
+        String key = toKey(CacheUtils.NON_PAGE_VARIANT, url);
+        Rsrc rsrc = diskStore.load(key);
+        if (rsrc == null)
+        {
+            key = toKey(variant, url);
+            rsrc = diskStore.load(key);
+            if (rsrc == null)
+                return null;
+        }
 
-        String key = toKey(CacheUtils.NON_PAGE_VARIANT, url); // First try non-page rsrc.
-        RsrcIfc prev = rsrcs.get(key);
+        if (!cache.rsrcsList.add(rsrc))
+            return null; // Rejected by the admission policy.
 
-        if (prev == null)
+        // A concurrent load or promotion wins:
+        RsrcIfc raced = cache.rsrcs.putIfAbsent(key, rsrc);
+        if (raced != null)
+        {
+            cache.rsrcsList.remove(rsrc);
+            return raced;
+        }
+
+        if (rsrc.versionUrl != null)
+        {
+            char var = (rsrc instanceof PageRsrc ? rsrc.variant : CacheUtils.NON_PAGE_VARIANT);
+            cache.rsrcs.putIfAbsent(toKey(var, rsrc.versionUrl), rsrc);
+        }
+
+        Encodings.encodeLater(rsrc, configData);
+
+        return rsrc;
+    }
+
+    /**
+     * Removes rsrc evicted by cache.rsrcsList from cache.rsrcs (by url and version-url).
+     * When there is a disk-store, rsrc is demoted into it. An entry that has been replaced
+     * meanwhile (e.g. by a refresh) is kept: the lock of the url isn't taken by the eviction
+     * (it is called by threads that may hold it), so only entries still mapped to rsrc are removed.
+     *
+     * @param rsrc the evicted resource
+     * @param configData used configuration
+     */
+    public static void evictFromCache(Rsrc rsrc, ConfigData configData)
+    {
+        CacheStructure cache = configData.cache;
+        DiskStore diskStore = cache.diskStore;
+        char var = (rsrc instanceof PageRsrc ? rsrc.variant : CacheUtils.NON_PAGE_VARIANT);
+
+        // Demoting before removing (removal releases off-heap buffers of rsrc):
+        String[] keys = (diskStore != null ? keysOf(rsrc, cache) : null);
+        if (keys != null)
+            diskStore.demote(rsrc, keys);
+
+        removeVictim(rsrc.variant, rsrc.url, rsrc, cache);
+        if (rsrc.versionUrl != null)
+            removeVictim(rsrc.variant, rsrc.versionUrl, rsrc, cache);
+    }
+
+    /**
+     * Writes the resources cached in memory into the disk-stores (called when the server
+     * stops), so the hot resources survive a restart too, not only the evicted ones.
+     */
+    public static void persistCachedRsrcs()
+    {
+        ArrayList<CacheStructure> caches = new ArrayList<CacheStructure>();
+        for (ConfigData configData : ConfigUtils.getAllConfigData())
+        {
+            CacheStructure cache = configData.cache;
+            DiskStore diskStore = (cache != null ? cache.diskStore : null);
+            if (diskStore == null || caches.contains(cache))
+                continue;
+            caches.add(cache);
+
+            int count = 0;
+            for (Rsrc rsrc : cache.rsrcsList.getRsrcs())
+            {
+                String[] keys = keysOf(rsrc, cache);
+                if (keys != null)
+                {
+                    diskStore.persist(rsrc, keys);
+                    count++;
+                }
+            }
+            System.out.println("SERVER: " + count + " cached resources written into " + diskStore.getDirPath());
+        }
+    }
+
+    /**
+     * @param rsrc a resource of cache.rsrcsList
+     * @param cache the cache-structure
+     * @return the keys of rsrc in cache.rsrcs (by url and version-url), null when rsrc isn't
+     *          cached by its url (e.g. being refreshed)
+     */
+    private static String[] keysOf(Rsrc rsrc, CacheStructure cache)
+    {
+        char var = (rsrc instanceof PageRsrc ? rsrc.variant : CacheUtils.NON_PAGE_VARIANT);
+        if (rsrc.url == null || cache.rsrcs.get(toKey(var, rsrc.url)) != rsrc)
+            return null;
+        if (rsrc.versionUrl == null)
+            return new String[] {toKey(var, rsrc.url)};
+        return new String[] {toKey(var, rsrc.url), toKey(var, rsrc.versionUrl)};
+    }
+
+    /**
+     * Removes rsrc from cache.rsrcs (and from the disk-store).
+     *
+     * @param variant visit variant of rsrc
+     * @param url full url of rsrc
+     * @param configData used configuration
+     */
+    public static void removeFromCache(char variant, String url, ConfigData configData)
+    {
+        CacheStructure cache = configData.cache;
+        removeFromMemory(variant, url, cache);
+
+        DiskStore diskStore = cache.diskStore;
+        if (diskStore != null)
         {
-            key = toKey(variant, url); // Try page rsrc.
-            prev = rsrcs.get(toKey(variant, url));
+            diskStore.remove(toKey(CacheUtils.NON_PAGE_VARIANT, url));
+            diskStore.remove(toKey(variant, url));
         }
+    }
+
+    /**
+     * Removes rsrc from cache.rsrcs (and from cache.rsrcsList).
+     *
+     * @param variant visit variant of rsrc
+     * @param url full url of rsrc
+     * @param cache the cache-structure
+     */
+    private static void removeFromMemory(char variant, String url, CacheStructure cache)
+    {
+        ConcurrentHashMap<String,RsrcIfc> rsrcs = cache.rsrcs;
+
+        RsrcIfc prev = rsrcs.remove(toKey(CacheUtils.NON_PAGE_VARIANT, url)); // First try non-page rsrc.
+
+        if (prev == null)
+            prev = rsrcs.remove(toKey(variant, url)); // Try page rsrc.
 
         if (prev instanceof Rsrc)
             cache.rsrcsList.remove((Rsrc)prev);
-        rsrcs.remove(key);
+    }
+
+    /**
+     * Removes the entries of url from cache.rsrcs that are still mapped to victim.
+     *
+     * @param variant visit variant of victim
+     * @param url full url (or version-url) of victim
+     * @param victim the evicted resource (removed from cache.rsrcsList by the caller)
+     * @param cache the cache-structure
+     */
+    private static void removeVictim(char variant, String url, Rsrc victim, CacheStructure cache)
+    {
+        ConcurrentHashMap<String,RsrcIfc> rsrcs = cache.rsrcs;
+        if (!rsrcs.remove(toKey(CacheUtils.NON_PAGE_VARIANT, url), victim))
+            rsrcs.remove(toKey(variant, url), victim);
     }
 
     /**
@@ -3721,138 +5273,154 @@ public class ServiceUtils
     }
 
     /**
-     * To be enqueued into _blockingQueue
+     * Resources of a state-full page to be loaded by the background loaders
+     * (one job per host of the resources, see BackLoadScheduler).
      */
     private static class BackThreadLoadInfo
     {
-        public ArrayList<TempRsrc> tmpRsrcs;
         public HttpClient client;
         public String url;
         public String requestHost;
-        public LoadLock loadLock;
+        public LinkedHashMap<String, BackLoadJob> jobs; // Key is host of resources.
 
         public BackThreadLoadInfo(HttpClient client, String url, String requestHost)
         {
             this.client = client;
             this.url = url;
             this.requestHost = requestHost;
-            this.loadLock = new LoadLock();
-        }
-
-        public void add(TempRsrc rsrc)
-        {
-            if (tmpRsrcs == null)
-                tmpRsrcs = new ArrayList<TempRsrc>(256);
-
-            tmpRsrcs.add(rsrc);
         }
-    }
 
-    /**
-     * Receives requests for loading/refreshing full-path resources
-     * of state-full pages/style-sheets from _blockingQueue, loads/
-     * refreshes the requested resources and inserts them into the
-     * cache-structure.
-     */
-    private static class BackThread extends Thread
-    {
-        public BackThread(String threadName)
+        /**
+         * Adds rsrc to the job of its host (called when cache.lockOf(rsrc.url) is locked).
+         *
+         * @param rsrc resource to be loaded
+         * @param key key of rsrc marked as queued in _backLoader
+         */
+        public void add(TempRsrc rsrc, String key)
         {
-            super(threadName);
-        }
+            if (jobs == null)
+                jobs = new LinkedHashMap<String, BackLoadJob>();
 
-        public void run()
-        {
-            while (true)
-            {
-                BackThreadLoadInfo loadInfo = null;
-                try
-                {
-                    loadInfo = _blockingQueue.take();
-                    ArrayList<TempRsrc> rsrcs = loadInfo.tmpRsrcs;
-                    TempRsrc[] rsrcsToLoad = rsrcs.toArray(new TempRsrc[rsrcs.size()]);
-
-                    ConfigData configData = ConfigUtils.getConfigData(loadInfo.requestHost);
-                    ServiceContext context = new ServiceContext();
-                    context.cache = configData.cache;
-                    context.client = loadInfo.client;
-                    context.url = loadInfo.url;
-                    context.requestHost = loadInfo.requestHost;
-                    context.configData = configData;
-
-                    ConfigUtils.configLock.readLock().lock();
-                    try {
-
-                        loadMissingRsrcsIntoCache(
-                                context,
-                                "HTTP/1.1",
-                                "back-thread",
-                                rsrcsToLoad,
-                                loadInfo.loadLock,
-                                null /* rsrcsWaitLock */);
-                    }
-                    finally
-                    {
-                        ConfigUtils.configLock.readLock().unlock();
-                    }
-                    
-                    loadInfo = null;
-                }
-                catch (Exception exc)
-                {
-                    exc.printStackTrace();
-                    try
-                    {
-                        if (loadInfo != null)
-                        {
-                            _blockingQueue.put(loadInfo);
-                        }
-                        Thread.sleep(1000);
-                    }
-                    catch (InterruptedException e)
-                    {
-                    }
-                }
+            BackLoadJob job = jobs.get(rsrc.host);
+            if (job == null)
+            {
+                job = new BackLoadJob(this, rsrc.host);
+                jobs.put(rsrc.host, job);
             }
+
+            rsrc.loader = job.loadLock;
+            job.loadLock.incCount();
+            job.tmpRsrcs.add(rsrc);
+            job.keys.add(key);
         }
     }
 
     /**
-     * Wraps GZIPOutputStream and counts the number of bytes of unziped content.
-     *
-     * Adds the method getUnzipedContentLen.
+     * Loads/refreshes full-path resources (of a single host) of a state-full
+     * page/style-sheet and inserts them into the cache-structure.
+     * Executed by _backLoader.
      */
-    private static class OurGZIPOutputStream extends GZIPOutputStream
+    private static class BackLoadJob extends BackLoadScheduler.Job
     {
-        private int _unzipedContentLen = 0;
+        public final BackThreadLoadInfo loadInfo;
+        public final ArrayList<TempRsrc> tmpRsrcs = new ArrayList<TempRsrc>();
+        public final ArrayList<String> keys = new ArrayList<String>();
+        public final LoadLock loadLock = new LoadLock();
 
-        public OurGZIPOutputStream(OutputStream out) throws IOException
+        public BackLoadJob(BackThreadLoadInfo loadInfo, String host)
         {
-            super(out);
+            super(host, loadInfo.url);
+            this.loadInfo = loadInfo;
         }
 
         @Override
-        public void write(byte[] b) throws IOException
+        public void load() throws Exception
         {
-            if (b != null)
-                _unzipedContentLen += b.length;
+            TempRsrc[] rsrcsToLoad = tmpRsrcs.toArray(new TempRsrc[tmpRsrcs.size()]);
 
-            super.write(b);
-        }
+            ConfigData configData = ConfigUtils.getConfigData(loadInfo.requestHost);
+            ServiceContext context = new ServiceContext();
+            context.cache = configData.cache;
+            context.client = loadInfo.client;
+            context.url = loadInfo.url;
+            context.requestHost = loadInfo.requestHost;
+            context.configData = configData;
 
-        @Override
-        public void write(byte[] buff, int off, int len) throws IOException
-        {
-            _unzipedContentLen += len;
-            super.write(buff, off, len);
+            ConfigUtils.configLock.readLock().lock();
+            try {
+
+                loadMissingRsrcsIntoCache(
+                        context,
+                        "HTTP/1.1",
+                        "back-thread",
+                        rsrcsToLoad,
+                        loadLock,
+                        null /* rsrcsWaitLock */);
+            }
+            finally
+            {
+                ConfigUtils.configLock.readLock().unlock();
+            }
+
+            for (String key : keys)
+                _backLoader.unmarkQueued(key);
         }
 
         /**
-         * @return number of bytes of original (unziped) content
+         * Rolls back the resources that have not been loaded (the refresh of a
+         * cached resource is postponed by 1 minute) and notifies their waiters.
          */
-        public int getUnzipedContentLen()
+        @Override
+        public void cancel()
         {
-            return _unzipedContentLen;
+            ConfigUtils.configLock.readLock().lock();
+            try
+            {
+                ConfigData configData = ConfigUtils.getConfigData(loadInfo.requestHost);
+                CacheStructure cache = configData.cache;
+                for (TempRsrc tr : tmpRsrcs)
+                {
+                    synchronized (cache.lockOf(tr.url))
+                    {
+                        if (tr.loader != loadLock || tr.exchange != null)
+                            continue;
+
+                        if (getFromMemory(CacheUtils.NON_PAGE_VARIANT, tr.url, configData) == tr)
+                        {
+                            if (tr.isBeingRefreshed)
+                            {
+                                tr.isBeingRefreshed = false;
+                                Rsrc rsrc = tr.replacer;
+                                rsrc.isBeingLoaded = false;
+                                rsrc.lastRefreshTime = System.currentTimeMillis();
+                                rsrc.maxFreshTime = rsrc.lastRefreshTime + 60*1000;
+                                putInCache(CacheUtils.NON_PAGE_VARIANT, tr.url, rsrc, configData);
+                            }
+                            else
+                            {
+                                removeFromCache(CacheUtils.NON_PAGE_VARIANT, tr.url, configData);
+                            }
+                        }
+
+                        if (tr.waiters != null)
+                        {
+                            for (LoadLock w : tr.waiters)
+                                w.decCount(); // Notifying waiters
+                            tr.waiters = null;
+                        }
+                    }
+                }
+
+                if (configData.isDebug)
+                    System.out.println("Back-load of " + tmpRsrcs.size() + " resources of " + host + " cancelled, " + loadInfo.url);
+            }
+            finally
+            {
+                ConfigUtils.configLock.readLock().unlock();
+
+                for (String key : keys)
+                    _backLoader.unmarkQueued(key);
+            }
         }
     }
 }
@@ -0,0 +1,357 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+/**
+ * TimerWheel
+ *
+ * A hierarchical timer wheel, executing one-shot tasks at their deadlines.
+ * Scheduling and cancelling a task are O(1), so the wheel holds hundreds of
+ * thousands of tasks (e.g. auto-refreshed pages) with no per-task threads.
+ *
+ * Time is divided into ticks of tickMillis. The wheel has LEVELS levels of
+ * SLOTS slots: a slot of level 0 holds the tasks expiring in a single tick,
+ * a slot of level L holds the tasks expiring in SLOTS^L ticks. A task is held
+ * by the lowest level whose slot covers its deadline, and when the wheel
+ * reaches that slot the task is moved (cascaded) down to a lower level.
+ *
+ * Tasks are executed by the thread of the wheel, so they must be short (a task
+ * typically hands its work over to a thread-pool).
+ */
+public class TimerWheel
+{
+    /**
+     * Number of bits of the slot-index of a level.
+     */
+    private static final int SLOT_BITS = 8;
+
+    /**
+     * Number of slots of each level.
+     */
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    /**
+     * Number of levels (with 100 milli-seconds ticks, the wheel spans 13 years).
+     */
+    private static final int LEVELS = 4;
+
+    /**
+     * A task scheduled on the wheel (an entry of the list of its slot).
+     */
+    public static class Timeout
+    {
+        /**
+         * Executed at the deadline.
+         */
+        private final Runnable _task;
+
+        /**
+         * The tick of the deadline.
+         */
+        private long _deadlineTick;
+
+        /**
+         * Neighbours in the list of the slot (null when not scheduled).
+         */
+        private Timeout _prev;
+        private Timeout _next;
+
+        /**
+         * The slot holding the task (null when not scheduled).
+         */
+        private Timeout _slot;
+
+        private Timeout(Runnable task)
+        {
+            _task = task;
+        }
+    }
+
+    /**
+     * Name of the thread of the wheel.
+     */
+    private final String _name;
+
+    /**
+     * Milli-seconds of a tick.
+     */
+    private final long _tickMillis;
+
+    /**
+     * The slots of all levels (slot of level L and index i is at L*SLOTS+i).
+     * A slot is the head of a circular list of Timeout instances.
+     */
+    private final Timeout[] _slots = new Timeout[LEVELS * SLOTS];
+
+    /**
+     * Nano-seconds of a tick.
+     */
+    private final long _tickNanos;
+
+    /**
+     * Start time of tick 0 (System.nanoTime, not affected by changes of the wall clock).
+     */
+    private final long _startTime;
+
+    /**
+     * The last processed tick (guarded by this).
+     */
+    private long _tick = 0;
+
+    /**
+     * Number of scheduled tasks (guarded by this).
+     */
+    private int _size = 0;
+
+    /**
+     * The thread of the wheel (started by first schedule, null when stopped).
+     */
+    private Thread _thread;
+
+    /**
+     * CONSTRUCTOR
+     *
+     * @param name name of the thread of the wheel
+     * @param tickMillis milli-seconds of a tick (precision of deadlines)
+     */
+    public TimerWheel(String name, long tickMillis)
+    {
+        _name = name;
+        _tickMillis = tickMillis;
+        _tickNanos = tickMillis * 1000000L;
+        _startTime = System.nanoTime();
+        for (int s = 0 ; s < _slots.length ; s++)
+        {
+            Timeout head = new Timeout(null);
+            head._prev = head;
+            head._next = head;
+            _slots[s] = head;
+        }
+    }
+
+    /**
+     * Schedules task to be executed once after delayMillis.
+     *
+     * @param task executed by the thread of the wheel
+     * @param delayMillis milli-seconds until the execution (at least one tick)
+     * @return used for cancelling the task
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis)
+    {
+        Timeout timeout = new Timeout(task);
+
+        long maxTicks = (1L << (SLOT_BITS * LEVELS)) - 1;
+        long ticks = Math.min(maxTicks, Math.max(1, (delayMillis + _tickMillis - 1) / _tickMillis));
+        long currentTick = (System.nanoTime() - _startTime) / _tickNanos;
+        timeout._deadlineTick = Math.max(_tick, currentTick) + ticks;
+
+        insert(timeout);
+        _size++;
+
+        if (_thread == null)
+            start();
+
+        return timeout;
+    }
+
+    /**
+     * Cancels a scheduled task (does nothing when already executed or cancelled).
+     *
+     * @param timeout returned by schedule
+     */
+    public synchronized void cancel(Timeout timeout)
+    {
+        if (timeout._slot == null)
+            return;
+        unlink(timeout);
+        _size--;
+    }
+
+    /**
+     * Cancels all the scheduled tasks and stops the thread of the wheel. The wheel
+     * can be used again: its thread is started again by the next schedule.
+     */
+    public synchronized void stop()
+    {
+        for (Timeout head : _slots)
+        {
+            while (head._next != head)
+                unlink(head._next);
+        }
+        _size = 0;
+        _tick = Math.max(_tick, (System.nanoTime() - _startTime) / _tickNanos); // The empty wheel needn't catch up.
+
+        if (_thread != null)
+        {
+            _thread.interrupt();
+            _thread = null;
+        }
+    }
+
+    /**
+     * @return number of scheduled tasks
+     */
+    public synchronized int size()
+    {
+        return _size;
+    }
+
+    /**
+     * Adds timeout to the slot of the lowest level that covers its deadline
+     * (called when this is locked and timeout._deadlineTick > _tick).
+     *
+     * @param timeout a task that is not scheduled
+     */
+    private void insert(Timeout timeout)
+    {
+        long deadlineTick = timeout._deadlineTick;
+        int level = 0;
+        while (level < LEVELS - 1 &&
+                (deadlineTick >>> (SLOT_BITS * (level + 1))) != (_tick >>> (SLOT_BITS * (level + 1))))
+            level++;
+
+        int index = (int)((deadlineTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        Timeout head = _slots[level * SLOTS + index];
+
+        timeout._slot = head;
+        timeout._prev = head._prev;
+        timeout._next = head;
+        head._prev._next = timeout;
+        head._prev = timeout;
+    }
+
+    /**
+     * Removes timeout from its slot (called when this is locked).
+     *
+     * @param timeout a scheduled task
+     */
+    private static void unlink(Timeout timeout)
+    {
+        timeout._prev._next = timeout._next;
+        timeout._next._prev = timeout._prev;
+        timeout._prev = null;
+        timeout._next = null;
+        timeout._slot = null;
+    }
+
+    /**
+     * Advances the wheel by one tick (called when this is locked).
+     *
+     * @return the head of a list of expired tasks (null when none)
+     */
+    private Timeout advance()
+    {
+        _tick++;
+
+        // Cascading the slots of higher levels reached by the tick (highest first):
+        int topLevel = 0;
+        while (topLevel < LEVELS - 1 && (_tick & ((1L << (SLOT_BITS * (topLevel + 1))) - 1)) == 0)
+            topLevel++;
+        for (int level = topLevel ; level > 0 ; level--)
+        {
+            int index = (int)((_tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            Timeout head = _slots[level * SLOTS + index];
+            while (head._next != head)
+            {
+                Timeout timeout = head._next;
+                unlink(timeout);
+                insert(timeout);
+            }
+        }
+
+        // Expiring the slot of level 0:
+        Timeout head = _slots[(int)(_tick & (SLOTS - 1))];
+        if (head._next == head)
+            return null;
+
+        Timeout expired = null;
+        while (head._next != head)
+        {
+            Timeout timeout = head._next;
+            unlink(timeout);
+            _size--;
+            timeout._next = expired;
+            expired = timeout;
+        }
+        return expired;
+    }
+
+    /**
+     * Starts the thread of the wheel (called when this is locked).
+     */
+    private void start()
+    {
+        _thread = new Thread(_name)
+        {
+            @Override
+            public void run()
+            {
+                while (!isInterrupted())
+                {
+                    Timeout expired = null;
+                    long sleepMillis;
+                    synchronized (TimerWheel.this)
+                    {
+                        if (_thread != this)
+                            return; // Stopped.
+
+                        long currentTick = (System.nanoTime() - _startTime) / _tickNanos;
+                        while (_tick < currentTick)
+                        {
+                            Timeout timeouts = advance();
+                            while (timeouts != null)
+                            {
+                                Timeout next = timeouts._next;
+                                timeouts._next = expired;
+                                expired = timeouts;
+                                timeouts = next;
+                            }
+                        }
+                        long sleepNanos = _startTime + (_tick + 1) * _tickNanos - System.nanoTime();
+                        sleepMillis = (sleepNanos + 999999) / 1000000; // Rounded up (no busy wait).
+                    }
+
+                    // Executing expired tasks outside of the lock (they may schedule tasks):
+                    while (expired != null)
+                    {
+                        Timeout next = expired._next;
+                        expired._next = null;
+                        try
+                        {
+                            expired._task.run();
+                        }
+                        catch (Throwable t)
+                        {
+                            t.printStackTrace();
+                        }
+                        expired = next;
+                    }
+
+                    if (sleepMillis > 0)
+                    {
+                        try
+                        {
+                            Thread.sleep(sleepMillis);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "timer-wheel " + _name + ": scheduled " + _size + ", tick " + _tick;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * VirtualThreads
+ *
+ * Virtual-thread execution mode (property virtual.threads).
+ *
+ * When enabled, the http-client, the processing of asynchronous responses, the
+ * refresh of auto-refreshed pages and the background loads of ServiceUtils run
+ * on virtual threads (a new virtual thread per task), so services blocked on a
+ * slow content-server don't hold platform threads.
+ *
+ * Virtual threads exist since Java 21. They are created by reflection so the
+ * server still runs (with platform threads) on older JVMs.
+ */
+public class VirtualThreads
+{
+    /**
+     * Shared executor of background tasks (null when virtual threads are disabled).
+     */
+    private static volatile ExecutorService _executor = null;
+
+    /**
+     * @return true when the JVM supports virtual threads
+     */
+    public static boolean isSupported()
+    {
+        try
+        {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Enables/disables the virtual-thread execution mode.
+     *
+     * @param isEnabled true for running on virtual threads
+     */
+    public static synchronized void setEnabled(boolean isEnabled)
+    {
+        if (isEnabled && _executor == null)
+        {
+            _executor = newExecutor("HtmlSpeedVirtual-");
+            if (_executor == null)
+                System.out.println("Property virtual.threads ignored: virtual threads require Java 21");
+        }
+        else if (!isEnabled && _executor != null)
+        {
+            _executor.shutdown(); // Running tasks are completed.
+            _executor = null;
+        }
+    }
+
+    /**
+     * @return true when the virtual-thread execution mode is enabled
+     */
+    public static boolean isEnabled()
+    {
+        return _executor != null;
+    }
+
+    /**
+     * @return executor running each task on a new virtual thread (null when disabled)
+     */
+    public static ExecutorService getExecutor()
+    {
+        return _executor;
+    }
+
+    /**
+     * Creates an executor running each task on a new virtual thread.
+     *
+     * @param namePrefix prefix of names of created threads
+     * @return the new executor (null when virtual threads are not supported)
+     */
+    public static ExecutorService newExecutor(String namePrefix)
+    {
+        try
+        {
+            // Thread.ofVirtual().name(namePrefix, 0).factory():
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+            // Executors.newThreadPerTaskExecutor(factory):
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService)method.invoke(null, factory);
+        }
+        catch (Exception e)
+        {
+            return null; // Older JVM.
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.tools;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.htmlspeed.server.ContentServerHealth;
+import com.htmlspeed.server.LoadBalancer;
+
+/**
+ * BalancerSimulation.
+ *
+ * Compares the balancers of LoadBalancer (round-robin, least-outstanding, p2c and
+ * peak-ewma) by simulating the requests of a host whose content-servers are not
+ * alike, in virtual time (a discrete-event simulation, no network is used).
+ *
+ * Usage:
+ *      java com.htmlspeed.tools.BalancerSimulation [seconds [rate]]
+ *
+ *  seconds:    simulated seconds (default 120)
+ *  rate:       requests per second, arriving at random (default 600)
+ *
+ *  Content-servers (all of weight 1, each serves concurrent requests by its workers,
+ *  further requests wait in its queue, service times are exponentially distributed):
+ *      fast-1      8 workers, 10ms
+ *      fast-2      8 workers, 10ms
+ *      medium      8 workers, 20ms
+ *      slow        8 workers, 50ms
+ *      stalling    8 workers, 10ms, but stalled for 1 second every 15 seconds (like a full gc)
+ *
+ *  For each balancer a line is printed: the percentiles of the latencies (wait and service),
+ *  and the part of the requests received by each content-server. The same requests and
+ *  service times are simulated for all the balancers.
+ */
+public class BalancerSimulation
+{
+    private static final String[] SERVERS = {"fast-1", "fast-2", "medium", "slow", "stalling"};
+
+    private static final int[] WORKERS = {8, 8, 8, 8, 8};
+
+    private static final long[] SERVICE_IN_MICROS = {10000, 10000, 20000, 50000, 10000};
+
+    private static final int STALLING = 4;
+    private static final long STALL_PERIOD_IN_MICROS = 15000000;
+    private static final long STALL_IN_MICROS = 1000000;
+
+    private static final String[] BALANCERS = {
+        LoadBalancer.ROUND_ROBIN, LoadBalancer.LEAST_OUTSTANDING,
+        LoadBalancer.POWER_OF_TWO_CHOICES, LoadBalancer.PEAK_EWMA};
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * A request completed at end by a content-server (after latency micro-seconds).
+     */
+    private static class Completion
+    {
+        final long end;
+        final int server;
+        final long latency;
+
+        Completion(long end, int server, long latency)
+        {
+            this.end = end;
+            this.server = server;
+            this.latency = latency;
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = (args.length > 0 ? Integer.parseInt(args[0]) : 120);
+        int rate = (args.length > 1 ? Integer.parseInt(args[1]) : 600);
+
+        System.out.println("seconds: " + seconds + ", rate: " + rate + "/s, content-servers: " + Arrays.toString(SERVERS));
+        StringBuilder header = new StringBuilder(128);
+        header.append(String.format("%-18s", "balancer"));
+        for (double p : PERCENTILES)
+            header.append(String.format(" %9s", "p" + (p == (long)p ? String.valueOf((long)p) : String.valueOf(p))));
+        header.append(String.format(" %9s  %s", "max", "requests per content-server (%)"));
+        System.out.println(header);
+
+        try
+        {
+            for (int b = 0 ; b < BALANCERS.length ; b++)
+                simulate(b, BALANCERS[b], seconds, rate);
+        }
+        finally
+        {
+            ContentServerHealth.stop();
+        }
+    }
+
+    /**
+     * Simulates the requests balanced by balancer and prints the results.
+     *
+     * @param run distinguishes the content-servers of the runs (their states are not shared)
+     */
+    private static void simulate(int run, String name, int seconds, int rate)
+    {
+        LoadBalancer balancer = LoadBalancer.of(name);
+
+        String[] addresses = new String[SERVERS.length];
+        for (int s = 0 ; s < SERVERS.length ; s++)
+            addresses[s] = "10.0." + run + "." + (s + 1);
+        byte[] weights = new byte[SERVERS.length];
+        Arrays.fill(weights, (byte)1);
+        LoadBalancer.Pool pool = new LoadBalancer.Pool(ContentServerHealth.statesOf("sim" + run + ".htmlspeed.com", addresses), weights);
+
+        long[][] freeTimes = new long[SERVERS.length][]; // When each worker is free.
+        for (int s = 0 ; s < SERVERS.length ; s++)
+            freeTimes[s] = new long[WORKERS[s]];
+
+        PriorityQueue<Completion> completions = new PriorityQueue<Completion>(1024, new Comparator<Completion>()
+        {
+            public int compare(Completion c1, Completion c2)
+            {
+                return (c1.end < c2.end ? -1 : (c1.end == c2.end ? 0 : 1));
+            }
+        });
+
+        Random arrivals = new Random(314);
+        Random services = new Random(2718);
+        long duration = seconds * 1000000L;
+        long[] latencies = new long[(int)Math.min(Integer.MAX_VALUE - 8, (long)(seconds * (double)rate * 1.1) + 1024)];
+        int count = 0;
+        int[] received = new int[SERVERS.length];
+
+        long now = 0;
+        while (true)
+        {
+            now += (long)(-Math.log(1 - arrivals.nextDouble()) * 1000000 / rate);
+            double service = -Math.log(1 - services.nextDouble()); // Same for all balancers.
+            if (now >= duration || count == latencies.length)
+                break;
+
+            while (!completions.isEmpty() && completions.peek().end <= now)
+            {
+                Completion c = completions.poll();
+                pool.states[c.server].onRequestEnd(c.latency, false, c.end / 1000);
+            }
+
+            int s = balancer.choose(pool, null, now / 1000);
+            pool.states[s].onRequestStart(false /* isHttps */);
+            received[s]++;
+
+            // The first free worker serves the request:
+            long[] workers = freeTimes[s];
+            int w = 0;
+            for (int i = 1 ; i < workers.length ; i++)
+            {
+                if (workers[i] < workers[w])
+                    w = i;
+            }
+            long start = Math.max(now, workers[w]);
+            long end = start + (long)(service * SERVICE_IN_MICROS[s]);
+            if (s == STALLING && end % STALL_PERIOD_IN_MICROS < STALL_IN_MICROS)
+                end += STALL_IN_MICROS - end % STALL_PERIOD_IN_MICROS; // Completed when the stall is over.
+            workers[w] = end;
+
+            latencies[count++] = end - now;
+            completions.add(new Completion(end, s, end - now));
+        }
+
+        Arrays.sort(latencies, 0, count);
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(String.format("%-18s", name));
+        for (double p : PERCENTILES)
+            sb.append(String.format(" %7.1fms", latencies[(int)Math.min(count - 1, (long)(count * p / 100))] / 1000.0));
+        sb.append(String.format(" %7.1fms ", (count > 0 ? latencies[count - 1] : 0) / 1000.0));
+        for (int s = 0 ; s < SERVERS.length ; s++)
+            sb.append(String.format(" %s %.1f", SERVERS[s], received[s] * 100.0 / Math.max(1, count)));
+        System.out.println(sb);
+    }
+}
@@ -0,0 +1,763 @@
+/**
+ *  Copyright 2011 Galiel 3.14 Ltd. All rights reserved.
+ *  Use is subject to license terms.
+ *
+ * Created on 18 October 2026
+ */
+package com.htmlspeed.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.htmlspeed.server.CacheStats;
+import com.htmlspeed.server.ConfigData;
+import com.htmlspeed.server.ConfigUtils;
+import com.htmlspeed.server.HtmlSpeedServlet;
+
+/**
+ * LoadTest.
+ *
+ * End-to-end load test of HtmlSpeed, for comparing configurations and releases
+ * without the real web-servers.
+ *
+ * Starts in-process (embedded Jetty) a stand-in original web-server serving a
+ * synthetic site, and HtmlSpeedServlet in front of it. Then clients request the
+ * pages of the site through HtmlSpeed with a mix of first visits, second visits
+ * (If-None-Match of the previous visit), mobile and IE8 browsers.
+ *
+ * Usage:
+ *      java com.htmlspeed.tools.LoadTest license=file domain=name [name=value ...]
+ *
+ *  license:        a license.dat licensing domain
+ *  domain:         the domain of the synthetic site (e.g. www.kuku.com)
+ *  properties:     a properties.txt of HtmlSpeed (default: no properties)
+ *  seconds:        measured seconds (default 30), after warmup seconds (default 10)
+ *  clients:        number of concurrent clients (default 50)
+ *  pages:          number of pages of the site (default 200), lower numbered pages are more popular
+ *  page.size:      bytes of a page (default 32768)
+ *  latency:        milli-seconds until the web-server responds (default 50)
+ *  max.age:        max-age of the Cache-Control of the web-server (default 300, 0 for no-cache)
+ *  mix:            percents of first visits, second visits, mobile and IE8 (default 60,20,15,5)
+ *  threads:        threading of HtmlSpeed, overrides properties async.service and virtual.threads:
+ *                  platform (a blocked thread per request), async (pooled threads resume the
+ *                  requests) or virtual (virtual threads), compare runs the test for each of them
+ *                  (in separate JVMs) and reports them side by side
+ *
+ *  The configuration-files are written to a temporary jetty.home, so the configuration
+ *  of the installed HtmlSpeed is not used. Reported: latencies (p50, p90, p99, max) of
+ *  all requests and of each kind of visit, throughput, statuses, requests received by
+ *  the web-server, the cache statistics of HtmlSpeed, the max and final heap use, and
+ *  the peak number of platform threads of HtmlSpeed (its thread stacks are not in the heap).
+ *
+ *  The web-server holds no thread while it delays a response, so with a high latency
+ *  (e.g. latency=2000 clients=2000 max.age=0 threads=compare) the comparison shows how
+ *  many platform threads, and how much memory, HtmlSpeed needs for the concurrent
+ *  requests waiting for the slow web-server.
+ */
+public class LoadTest
+{
+    private static final int FIRST_VISIT = 0;
+    private static final int SECOND_VISIT = 1;
+    private static final int MOBILE_VISIT = 2;
+    private static final int IE8_VISIT = 3;
+
+    private static final String[] VISIT_NAMES = {"first-visit", "second-visit", "mobile", "ie8"};
+
+    private static final String[] USER_AGENTS = {
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36",
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36",
+        "Mozilla/5.0 (Linux; Android 13; Pixel 7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Mobile Safari/537.36",
+        "Mozilla/4.0 (compatible; MSIE 8.0; Windows NT 6.1; Trident/4.0)"};
+
+    /**
+     * A 1x1 transparent png (the images of the site).
+     */
+    private static final byte[] PNG = {
+        (byte)0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a, 0, 0, 0, 0x0d, 'I', 'H', 'D', 'R',
+        0, 0, 0, 1, 0, 0, 0, 1, 8, 6, 0, 0, 0, 0x1f, 0x15, (byte)0xc4, (byte)0x89,
+        0, 0, 0, 0x0d, 'I', 'D', 'A', 'T', 0x78, (byte)0x9c, 0x63, 0, 1, 0, 0, 5, 0, 1,
+        0x0d, 0x0a, 0x2d, (byte)0xb4, 0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte)0xae, 0x42, 0x60, (byte)0x82};
+
+    /**
+     * Threading modes of HtmlSpeed (see property threads) and their properties.
+     */
+    private static final String[] THREADS_MODES = {"platform", "async", "virtual"};
+    private static final String[] THREADS_PROPERTIES = {
+        "async.service=false\nvirtual.threads=false\n",
+        "async.service=true\nvirtual.threads=false\n",
+        "async.service=true\nvirtual.threads=true\n"};
+
+    /**
+     * Prefixes of the names of the threads of the load test (not counted as threads of HtmlSpeed).
+     */
+    private static final String CLIENT_THREAD_PREFIX = "LoadTestClient-";
+    private static final String ORIGIN_THREAD_PREFIX = "LoadTestOrigin";
+
+    /**
+     * Start of the summary line of a test (see compareThreads).
+     */
+    private static final String SUMMARY_PREFIX = "summary:";
+
+    /**
+     * The stand-in original web-server of the synthetic site.
+     *
+     * Page /pN.html references the shared /css/site.css, /js/site.js and
+     * /css/sK.css, /js/jK.js and images /img/iK.png (K = N % 10).
+     */
+    private static class OriginServlet extends HttpServlet
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int _latency;
+        private final int _maxAge;
+        private final int _pageSize;
+
+        /**
+         * Maps a path to its content (generated once).
+         */
+        private final ConcurrentHashMap<String, byte[]> _contents = new ConcurrentHashMap<String, byte[]>();
+
+        /**
+         * Returns the delayed responses (no thread is held while a response is delayed).
+         */
+        private final ScheduledExecutorService _delayer = Executors.newScheduledThreadPool(2, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, ORIGIN_THREAD_PREFIX + "Delayer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        public final AtomicLong requests = new AtomicLong();
+        public final AtomicLong pageRequests = new AtomicLong();
+        public final AtomicLong notModified = new AtomicLong();
+
+        public OriginServlet(int latency, int maxAge, int pageSize)
+        {
+            _latency = latency;
+            _maxAge = maxAge;
+            _pageSize = pageSize;
+        }
+
+        @Override
+        protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+                                                                    throws ServletException, IOException
+        {
+            requests.incrementAndGet();
+
+            if (_latency > 0)
+            {
+                final AsyncContext asyncCtxt = request.startAsync();
+                asyncCtxt.setTimeout(0);
+                _delayer.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            respond(request, response);
+                        }
+                        catch (IOException e)
+                        {
+                        }
+                        finally
+                        {
+                            asyncCtxt.complete();
+                        }
+                    }
+                }, _latency, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            respond(request, response);
+        }
+
+        private void respond(HttpServletRequest request, HttpServletResponse response) throws IOException
+        {
+            String path = request.getRequestURI();
+
+            byte[] content = _contents.get(path);
+            if (content == null)
+            {
+                content = contentOf(path);
+                if (content == null)
+                {
+                    response.sendError(404);
+                    return;
+                }
+                _contents.put(path, content);
+            }
+
+            if (path.endsWith(".html"))
+            {
+                pageRequests.incrementAndGet();
+                response.setContentType("text/html; charset=utf-8");
+            }
+            else if (path.endsWith(".css"))
+                response.setContentType("text/css");
+            else if (path.endsWith(".js"))
+                response.setContentType("application/javascript");
+            else
+                response.setContentType("image/png");
+
+            String etag = "\"" + path.hashCode() + "\"";
+            response.setHeader("ETag", etag);
+            response.setHeader("Cache-Control", _maxAge > 0 ? "max-age=" + _maxAge : "no-cache");
+
+            if (etag.equals(request.getHeader("If-None-Match")))
+            {
+                notModified.incrementAndGet();
+                response.setStatus(304);
+                return;
+            }
+
+            response.setContentLength(content.length);
+            response.getOutputStream().write(content);
+        }
+
+        /**
+         * @param path path of a resource of the site
+         * @return content of the resource (null when not found)
+         */
+        private byte[] contentOf(String path)
+        {
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            if (path.startsWith("/img/"))
+                return PNG;
+            if (path.startsWith("/css/"))
+                return textOf(".c-" + name.hashCode() + " {margin:0; padding:2px; background:url(/img/bg.png)}\n", 2*1024);
+            if (path.startsWith("/js/"))
+                return textOf("function f" + (name.hashCode() & 0xffff) + "(a) {return document.getElementById(a);}\n", 4*1024);
+            if (!name.startsWith("p") || !name.endsWith(".html"))
+                return null;
+
+            int page = Integer.parseInt(name.substring(1, name.length() - 5));
+            int k = page % 10;
+            StringBuilder html = new StringBuilder(_pageSize + 1024);
+            html.append("<!DOCTYPE html>\n<html>\n<head>\n<title>Page ").append(page).append("</title>\n");
+            html.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"/css/site.css\">\n");
+            html.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"/css/s").append(k).append(".css\">\n");
+            html.append("<script type=\"text/javascript\" src=\"/js/site.js\"></script>\n");
+            html.append("<script type=\"text/javascript\" src=\"/js/j").append(k).append(".js\"></script>\n");
+            html.append("</head>\n<body>\n");
+            int section = 0;
+            while (html.length() < _pageSize)
+            {
+                html.append("<div><h2><a href=\"/p").append((page + section) % 1000).append(".html\">Article ");
+                html.append(page).append('-').append(section).append("</a></h2>\n");
+                html.append("<img src=\"/img/i").append((k + section) % 10).append(".png\" width=\"1\" height=\"1\" alt=\"\">\n");
+                html.append("<p>The speed of page loading of article ").append(section);
+                html.append(" of page ").append(page).append(" is measured by the load test of HtmlSpeed.</p></div>\n");
+                section++;
+            }
+            html.append("</body>\n</html>\n");
+            return html.toString().getBytes();
+        }
+
+        private static byte[] textOf(String line, int size)
+        {
+            StringBuilder text = new StringBuilder(size + line.length());
+            while (text.length() < size)
+                text.append(line);
+            return text.toString().getBytes();
+        }
+    }
+
+    /**
+     * Recorded latencies (micro-seconds) of a client.
+     */
+    private static class Latencies
+    {
+        private long[] _values = new long[1024];
+        private int _count = 0;
+
+        public void add(long micros)
+        {
+            if (_count == _values.length)
+                _values = Arrays.copyOf(_values, _count * 2);
+            _values[_count++] = micros;
+        }
+
+        public void addAll(Latencies latencies)
+        {
+            for (int i = 0 ; i < latencies._count ; i++)
+                add(latencies._values[i]);
+        }
+
+        public int getCount()
+        {
+            return _count;
+        }
+
+        /**
+         * @param percent 0..100
+         * @return the percentile in milli-seconds (sorts the values)
+         */
+        public double percentile(double percent)
+        {
+            if (_count == 0)
+                return 0;
+            Arrays.sort(_values, 0, _count);
+            int i = (int)Math.ceil(percent / 100 * _count) - 1;
+            return _values[Math.max(0, Math.min(_count - 1, i))] / 1000.0;
+        }
+    }
+
+    /**
+     * A client requesting pages of the site through HtmlSpeed.
+     */
+    private static class Client extends Thread
+    {
+        private final String _domain;
+        private final int _port;
+        private final int _pages;
+        private final int[] _mix;
+        private final AtomicBoolean _isMeasured;
+        private final AtomicBoolean _isStopped;
+        private final Random _random;
+
+        /**
+         * Maps a page to the ETag returned by its last first-visit.
+         */
+        private final HashMap<Integer, String> _etags = new HashMap<Integer, String>();
+
+        public final Latencies[] latencies = {new Latencies(), new Latencies(), new Latencies(), new Latencies()};
+        public long ok = 0; // Status 200.
+        public long notModified = 0; // Status 304.
+        public long failed = 0; // Other statuses and io-errors.
+        public long bytes = 0;
+
+        public Client(int id, String domain, int port, int pages, int[] mix, AtomicBoolean isMeasured, AtomicBoolean isStopped)
+        {
+            super(CLIENT_THREAD_PREFIX + id);
+            _domain = domain;
+            _port = port;
+            _pages = pages;
+            _mix = mix;
+            _isMeasured = isMeasured;
+            _isStopped = isStopped;
+            _random = new Random(id);
+        }
+
+        @Override
+        public void run()
+        {
+            byte[] buffer = new byte[16*1024];
+            while (!_isStopped.get())
+            {
+                int page = (int)(_pages * Math.pow(_random.nextDouble(), 3)); // Skewed to low numbers.
+
+                int r = _random.nextInt(100);
+                int visit = IE8_VISIT;
+                if (r < _mix[0])
+                    visit = FIRST_VISIT;
+                else if (r < _mix[0] + _mix[1])
+                    visit = SECOND_VISIT;
+                else if (r < _mix[0] + _mix[1] + _mix[2])
+                    visit = MOBILE_VISIT;
+
+                String etag = null;
+                if (visit == SECOND_VISIT)
+                {
+                    etag = _etags.get(Integer.valueOf(page));
+                    if (etag == null)
+                        visit = FIRST_VISIT; // Page has not been visited.
+                }
+
+                boolean isMeasured = _isMeasured.get();
+                long startTime = System.nanoTime();
+                try
+                {
+                    HttpURLConnection conn = (HttpURLConnection)new URL("http://127.0.0.1:" + _port + "/p" + page + ".html").openConnection();
+                    conn.setRequestProperty("Host", _domain);
+                    conn.setRequestProperty("User-Agent", USER_AGENTS[visit]);
+                    conn.setRequestProperty("Accept", "text/html,application/xhtml+xml,*/*;q=0.8");
+                    conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+                    if (etag != null)
+                        conn.setRequestProperty("If-None-Match", etag);
+
+                    int status = conn.getResponseCode();
+                    InputStream in = (status >= 400 ? conn.getErrorStream() : conn.getInputStream());
+                    long len = 0;
+                    if (in != null)
+                    {
+                        int n;
+                        while ((n = in.read(buffer)) > 0)
+                            len += n;
+                        in.close();
+                    }
+                    long micros = (System.nanoTime() - startTime) / 1000;
+
+                    if (visit == FIRST_VISIT && status == 200 && conn.getHeaderField("ETag") != null)
+                        _etags.put(Integer.valueOf(page), conn.getHeaderField("ETag"));
+
+                    if (isMeasured)
+                    {
+                        latencies[visit].add(micros);
+                        bytes += len;
+                        if (status == 200)
+                            ok++;
+                        else if (status == 304)
+                            notModified++;
+                        else
+                            failed++;
+                    }
+                }
+                catch (IOException e)
+                {
+                    if (isMeasured)
+                        failed++;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (String arg : args)
+        {
+            int eq = arg.indexOf('=');
+            if (eq > 0)
+                params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        String license = params.get("license");
+        String domain = params.get("domain");
+        if (license == null || domain == null)
+        {
+            System.out.println("Usage: java com.htmlspeed.tools.LoadTest license=file domain=name [name=value ...]");
+            return;
+        }
+
+        String threadsParam = params.get("threads");
+        if ("compare".equals(threadsParam))
+        {
+            compareThreads(args);
+            return;
+        }
+        int threadsMode = (threadsParam != null ? Arrays.asList(THREADS_MODES).indexOf(threadsParam) : -1);
+        if (threadsParam != null && threadsMode < 0)
+        {
+            System.out.println("Unknown threads: " + threadsParam + " (expected platform, async, virtual or compare)");
+            return;
+        }
+
+        int seconds = intParam(params, "seconds", 30);
+        int warmup = intParam(params, "warmup", 10);
+        int clients = intParam(params, "clients", 50);
+        int pages = intParam(params, "pages", 200);
+        int[] mix = {60, 20, 15, 5};
+        if (params.get("mix") != null)
+        {
+            String[] parts = params.get("mix").split(",");
+            for (int i = 0 ; i < mix.length && i < parts.length ; i++)
+                mix[i] = Integer.parseInt(parts[i].trim());
+        }
+
+        // Configuration-files of HtmlSpeed (in a temporary jetty.home):
+        File home = File.createTempFile("htmlspeed-loadtest", "");
+        home.delete();
+        File configDir = new File(home, "htmlspeed");
+        configDir.mkdirs();
+        copyFile(new File(license), new File(configDir, "license.dat"));
+        if (params.get("properties") != null)
+            copyFile(new File(params.get("properties")), new File(configDir, "properties.txt"));
+        if (threadsMode >= 0)
+            appendFile(new File(configDir, "properties.txt"), "\n" + THREADS_PROPERTIES[threadsMode]);
+        System.setProperty("jetty.home", home.getPath());
+        System.setProperty("sun.net.http.allowRestrictedHeaders", "true"); // Setting the Host header.
+
+        // The stand-in original web-server:
+        OriginServlet origin = new OriginServlet(
+                                            intParam(params, "latency", 50),
+                                            intParam(params, "max.age", 300),
+                                            intParam(params, "page.size", 32*1024));
+        Server originServer = startServer(origin, ORIGIN_THREAD_PREFIX, true);
+        int originPort = originServer.getConnectors()[0].getLocalPort();
+        writeFile(new File(configDir, "hostinfo.txt"), domain + ",127.0.0.1:" + originPort + ":" + originPort);
+
+        // HtmlSpeed:
+        Server htmlSpeedServer = startServer(new HtmlSpeedServlet(), "HtmlSpeedServer", true);
+        int port = htmlSpeedServer.getConnectors()[0].getLocalPort();
+
+        System.out.println("web-server port: " + originPort + ", HtmlSpeed port: " + port + ", clients: " + clients +
+                            ", pages: " + pages + ", mix: " + Arrays.toString(mix));
+
+        // Warm-up, then measurement:
+        AtomicBoolean isMeasured = new AtomicBoolean(false);
+        AtomicBoolean isStopped = new AtomicBoolean(false);
+        Client[] threads = new Client[clients];
+        for (int c = 0 ; c < clients ; c++)
+        {
+            threads[c] = new Client(c, domain, port, pages, mix, isMeasured, isStopped);
+            threads[c].start();
+        }
+        Thread.sleep(warmup * 1000L);
+
+        ConfigData configData = ConfigUtils.getConfigData(domain);
+        configData.cache.stats.clear();
+        long originRequests = origin.requests.get();
+        long originPageRequests = origin.pageRequests.get();
+        long originNotModified = origin.notModified.get();
+
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long maxHeap = 0;
+        int maxThreads = 0;
+        isMeasured.set(true);
+        long startTime = System.nanoTime();
+        long endTime = startTime + seconds * 1000000000L;
+        while (System.nanoTime() < endTime)
+        {
+            maxHeap = Math.max(maxHeap, memoryBean.getHeapMemoryUsage().getUsed());
+            maxThreads = Math.max(maxThreads, countHtmlSpeedThreads(threadBean));
+            Thread.sleep(100);
+        }
+        isMeasured.set(false);
+        long elapsed = System.nanoTime() - startTime;
+        isStopped.set(true);
+        for (Client client : threads)
+            client.join();
+
+        // Report:
+        Latencies all = new Latencies();
+        long ok = 0, notModified = 0, failed = 0, bytes = 0;
+        for (Client client : threads)
+        {
+            for (Latencies latencies : client.latencies)
+                all.addAll(latencies);
+            ok += client.ok;
+            notModified += client.notModified;
+            failed += client.failed;
+            bytes += client.bytes;
+        }
+
+        System.out.println(String.format("%-14s %9s %9s %9s %9s %9s", "requests", "count", "p50-ms", "p90-ms", "p99-ms", "max-ms"));
+        printLatencies("all", all);
+        for (int v = 0 ; v < VISIT_NAMES.length ; v++)
+        {
+            Latencies visitLatencies = new Latencies();
+            for (Client client : threads)
+                visitLatencies.addAll(client.latencies[v]);
+            printLatencies(VISIT_NAMES[v], visitLatencies);
+        }
+
+        double elapsedSeconds = elapsed / 1e9;
+        System.out.println(String.format("throughput: %.1f requests/s, %.1f KB/s",
+                            all.getCount() / elapsedSeconds, bytes / 1024.0 / elapsedSeconds));
+        System.out.println("statuses: 200: " + ok + ", 304: " + notModified + ", failed: " + failed);
+        System.out.println("web-server requests: " + (origin.requests.get() - originRequests) +
+                            ", pages: " + (origin.pageRequests.get() - originPageRequests) +
+                            ", not modified: " + (origin.notModified.get() - originNotModified));
+        System.out.print(configData.cache.stats.toString());
+        System.out.println(String.format("page hit-ratio: %.1f%%", configData.cache.stats.getHitRatio(CacheStats.PAGE_KIND) * 100));
+
+        System.gc();
+        System.out.println("heap: max used " + (maxHeap >> 20) + "MB, used after gc " +
+                            (memoryBean.getHeapMemoryUsage().getUsed() >> 20) + "MB, cached bytes " +
+                            configData.cache.rsrcsList.getTotalSize());
+        System.out.println("threads: peak platform threads of HtmlSpeed " + maxThreads);
+        System.out.println(String.format("%s %-9s %9d %9.1f %9.1f %9d %9d", SUMMARY_PREFIX,
+                            (threadsParam != null ? threadsParam : "-"), all.getCount(), all.getCount() / elapsedSeconds,
+                            all.percentile(99), maxThreads, maxHeap >> 20));
+
+        htmlSpeedServer.stop();
+        originServer.stop();
+        deleteDir(home);
+        System.exit(0); // Stops the threads of HtmlSpeed.
+    }
+
+    /**
+     * Runs the test for each threading mode of HtmlSpeed (in a new JVM, HtmlSpeed
+     * keeps static state), and reports the results side by side.
+     *
+     * @param args arguments of the test (threads=compare is replaced by each mode)
+     * @throws Exception when failed
+     */
+    private static void compareThreads(String[] args) throws Exception
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ArrayList<String> summaries = new ArrayList<String>();
+        for (String mode : THREADS_MODES)
+        {
+            ArrayList<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(LoadTest.class.getName());
+            for (String arg : args)
+            {
+                if (!arg.startsWith("threads="))
+                    command.add(arg);
+            }
+            command.add("threads=" + mode);
+
+            System.out.println("=== threads=" + mode + " ===");
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            Process process = builder.start();
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                System.out.println(line);
+                if (line.startsWith(SUMMARY_PREFIX))
+                    summaries.add(line.substring(SUMMARY_PREFIX.length()));
+            }
+            in.close();
+            process.waitFor();
+        }
+
+        System.out.println();
+        System.out.println(String.format(" %-9s %9s %9s %9s %9s %9s",
+                            "threads", "requests", "req/s", "p99-ms", "platform", "heap-MB"));
+        for (String summary : summaries)
+            System.out.println(summary);
+    }
+
+    /**
+     * @param threadBean thread management of the JVM
+     * @return number of live platform threads, excluding the threads of the load test
+     *          (virtual threads are not counted, their stacks are in the heap)
+     */
+    private static int countHtmlSpeedThreads(ThreadMXBean threadBean)
+    {
+        int count = 0;
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds()))
+        {
+            if (info != null && !info.getThreadName().startsWith(CLIENT_THREAD_PREFIX) &&
+                    !info.getThreadName().startsWith(ORIGIN_THREAD_PREFIX))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Starts an embedded Jetty server (on a free port) executing servlet.
+     *
+     * @param servlet executes all the requests
+     * @param name prefix of the names of the threads of the server
+     * @param isAsyncSupported true when the servlet serves requests asynchronously
+     * @return the started server
+     * @throws Exception when failed
+     */
+    private static Server startServer(javax.servlet.Servlet servlet, String name, boolean isAsyncSupported) throws Exception
+    {
+        Server server = new Server(0);
+        QueuedThreadPool threadPool = new QueuedThreadPool(1000);
+        threadPool.setName(name);
+        server.setThreadPool(threadPool);
+        ServletContextHandler handler = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        handler.setContextPath("/");
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(isAsyncSupported);
+        handler.addServlet(holder, "/*");
+        server.setHandler(handler);
+        server.start();
+        return server;
+    }
+
+    private static void printLatencies(String name, Latencies latencies)
+    {
+        System.out.println(String.format("%-14s %9d %9.1f %9.1f %9.1f %9.1f",
+                            name, latencies.getCount(), latencies.percentile(50), latencies.percentile(90),
+                            latencies.percentile(99), latencies.percentile(100)));
+    }
+
+    private static int intParam(HashMap<String, String> params, String name, int defaultValue)
+    {
+        String value = params.get(name);
+        return (value == null ? defaultValue : Integer.parseInt(value.trim()));
+    }
+
+    private static void copyFile(File from, File to) throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try
+        {
+            byte[] buffer = new byte[8*1024];
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                out.write(buffer, 0, len);
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void writeFile(File file, String text) throws IOException
+    {
+        writeFile(file, text, false);
+    }
+
+    private static void appendFile(File file, String text) throws IOException
+    {
+        writeFile(file, text, true);
+    }
+
+    private static void writeFile(File file, String text, boolean isAppended) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file, isAppended);
+        try
+        {
+            out.write(text.getBytes());
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void deleteDir(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (file.isDirectory())
+                    deleteDir(file);
+                else
+                    file.delete();
+            }
+        }
+        dir.delete();
+    }
+}